@@ -0,0 +1,53 @@
+/*
+ * Copyright (c) 2010. Gridshore
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package nl.gridshore.cqrs4j;
+
+/**
+ * EventStream that provides information about the next event in the stream before the event itself is deserialized.
+ * This allows readers that are only interested in some of the events, such as listeners and replay processes, to
+ * {@link #skip()} the other events without the cost of deserializing them.
+ * <p/>
+ * Implementations only deserialize an event when it is obtained using {@link #next()}.
+ *
+ * @author Allard Buijze
+ * @since 0.4
+ */
+public interface LazyEventStream extends EventStream {
+
+    /**
+     * Returns the fully qualified class name of the next event in the stream, without deserializing the event. Use
+     * <code>hasNext()</code> to obtain a guarantee about the availability of any next event.
+     *
+     * @return the class name of the next event in the stream
+     */
+    String peekEventType();
+
+    /**
+     * Returns the sequence number of the next event in the stream, without deserializing the event. Use
+     * <code>hasNext()</code> to obtain a guarantee about the availability of any next event.
+     *
+     * @return the sequence number of the next event in the stream
+     */
+    Long peekSequenceNumber();
+
+    /**
+     * Moves to the event following the next event in the stream, without deserializing the skipped event. Use
+     * <code>hasNext()</code> to obtain a guarantee about the availability of any next event.
+     */
+    void skip();
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright (c) 2010. Gridshore
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package nl.gridshore.cqrs4j;
+
+/**
+ * Event sourced aggregate that is able to describe its current state in a single {@link SnapshotEvent}. Repositories
+ * may store these snapshot events, allowing them to initialize the aggregate without having to replay all of its
+ * events.
+ * <p/>
+ * The aggregate must restore its state when it handles the snapshot event during {@link
+ * #initializeState(EventStream) initialization}.
+ *
+ * @author Allard Buijze
+ * @see nl.gridshore.cqrs4j.repository.eventsourcing.EventSourcingRepository
+ * @since 0.4
+ */
+public interface SnapshotCapableAggregateRoot extends EventSourcedAggregateRoot {
+
+    /**
+     * Creates a snapshot event describing the current state of this aggregate. The snapshot event should have the
+     * identifier of this aggregate and the sequence number of the last committed event (see {@link
+     * #getLastCommittedEventSequenceNumber()}).
+     * <p/>
+     * This method is only called on aggregates that have no uncommitted events.
+     *
+     * @return a snapshot event describing the current state of this aggregate
+     */
+    SnapshotEvent createSnapshotEvent();
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright (c) 2010. Gridshore
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package nl.gridshore.cqrs4j;
+
+import java.util.UUID;
+
+/**
+ * Base class for events that describe the full state of an aggregate at a certain point in time. When an aggregate is
+ * loaded, a snapshot event replaces all the events up to and including the event with the sequence number of the
+ * snapshot. The aggregate is expected to restore its state when it handles a snapshot event.
+ * <p/>
+ * Snapshot events are not applied to an aggregate. They are created by the aggregate on request of the repository (see
+ * {@link SnapshotCapableAggregateRoot#createSnapshotEvent()}) and are never published on the event bus.
+ *
+ * @author Allard Buijze
+ * @see SnapshotCapableAggregateRoot
+ * @see nl.gridshore.cqrs4j.repository.eventsourcing.SnapshotEventStore
+ * @since 0.4
+ */
+public abstract class SnapshotEvent extends DomainEvent {
+
+    /**
+     * Initialize an empty snapshot event. This constructor is intended for serialization frameworks that need to
+     * instantiate the event before populating its fields.
+     */
+    protected SnapshotEvent() {
+    }
+
+    /**
+     * Initialize a snapshot event for the aggregate with the given <code>aggregateIdentifier</code>, describing its
+     * state after the event with the given <code>sequenceNumber</code> has been applied.
+     *
+     * @param aggregateIdentifier The identifier of the aggregate the snapshot describes
+     * @param sequenceNumber      The sequence number of the last event included in the snapshot
+     */
+    protected SnapshotEvent(UUID aggregateIdentifier, long sequenceNumber) {
+        setAggregateIdentifier(aggregateIdentifier);
+        setSequenceNumber(sequenceNumber);
+    }
+}
@@ -0,0 +1,304 @@
+/*
+ * Copyright (c) 2010. Gridshore
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package nl.gridshore.cqrs4j.eventhandler;
+
+import nl.gridshore.cqrs4j.DomainEvent;
+import nl.gridshore.cqrs4j.repository.eventsourcing.EventLogBatch;
+import nl.gridshore.cqrs4j.repository.eventsourcing.ReplayableEventStore;
+import nl.gridshore.cqrs4j.util.Assert;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Required;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Replays the historical events in a {@link ReplayableEventStore} to a set of event listeners, typically to build a new
+ * read model. Unlike publishing the history on an {@link EventBus}, the replayer processes events in large batches,
+ * using all available processors.
+ * <p/>
+ * Events are read from the global event log in batches. The events in a batch are divided over a number of
+ * partitions, using the {@link EventSequencingPolicy} of each event listener: events with the same sequence identifier
+ * always end up in the same partition, in the order in which they were appended. Events without sequence identifier
+ * are divided evenly over the partitions. The partitions of all listeners are processed in parallel. The next batch is
+ * read while the current batch is being processed, and is only dispatched when all partitions of the current batch
+ * have been processed.
+ * <p/>
+ * Each partition is processed as a single transaction. Listeners implementing {@link TransactionAware} are notified
+ * before and after the transaction, and may limit the transaction size using the {@link TransactionStatus}.
+ * <p/>
+ * When an event listener throws an exception, the replay stops after the current batch. The exception is rethrown by
+ * {@link #replay(java.util.List, long)}.
+ *
+ * @author Allard Buijze
+ * @see ReplayProgressListener
+ * @since 0.4
+ */
+public class EventReplayer {
+
+    private static final Logger logger = LoggerFactory.getLogger(EventReplayer.class);
+    private static final int DEFAULT_BATCH_SIZE = 1000;
+
+    private ReplayableEventStore eventStore;
+    private ExecutorService executorService;
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    private ReplayProgressListener progressListener;
+
+    /**
+     * Replays all events in the event store to the given <code>eventListeners</code>.
+     *
+     * @param eventListeners The event listeners to replay the events to
+     * @return the position in the global event log up to which events have been replayed
+     */
+    public long replay(List<? extends EventListener> eventListeners) {
+        return replay(eventListeners, 0);
+    }
+
+    /**
+     * Replays the events in the event store, starting at the given <code>fromPosition</code> in the global event log,
+     * to the given <code>eventListeners</code>. The returned position may be used to replay events that were appended
+     * during the replay.
+     *
+     * @param eventListeners The event listeners to replay the events to
+     * @param fromPosition   The position of the first event to replay
+     * @return the position in the global event log up to which events have been replayed
+     */
+    public long replay(List<? extends EventListener> eventListeners, long fromPosition) {
+        Assert.state(eventStore != null, "An event store is required to replay events");
+        ExecutorService executor = executorService;
+        if (executor == null) {
+            executor = Executors.newFixedThreadPool(parallelism);
+        }
+        try {
+            return doReplay(eventListeners, fromPosition, executor);
+        } finally {
+            if (executor != executorService) {
+                executor.shutdown();
+            }
+        }
+    }
+
+    private long doReplay(List<? extends EventListener> eventListeners, long fromPosition,
+                          ExecutorService executor) {
+        long eventsReplayed = 0;
+        EventLogBatch batch = eventStore.readAll(fromPosition, batchSize);
+        long position = fromPosition;
+        while (!batch.isEmpty()) {
+            List<Future<?>> tasks = new ArrayList<Future<?>>();
+            for (EventListener eventListener : eventListeners) {
+                for (List<DomainEvent> partition : partition(eventListener, batch.getEvents())) {
+                    tasks.add(executor.submit(new ReplayTransaction(eventListener, partition)));
+                }
+            }
+            // read ahead while the current batch is being processed
+            EventLogBatch nextBatch = eventStore.readAll(batch.getNextPosition(), batchSize);
+            waitFor(tasks);
+            eventsReplayed += batch.getEvents().size();
+            position = batch.getNextPosition();
+            if (progressListener != null) {
+                progressListener.onBatchReplayed(eventsReplayed, position);
+            }
+            logger.debug("Replayed {} events", eventsReplayed);
+            batch = nextBatch;
+        }
+        logger.info("Replay finished after {} events", eventsReplayed);
+        return position;
+    }
+
+    /**
+     * Divides the events the given <code>eventListener</code> can handle over a number of partitions, based on the
+     * sequencing policy of the listener. Empty partitions are not returned.
+     *
+     * @param eventListener The event listener to divide the events for
+     * @param events        The events to divide
+     * @return the partitions containing events
+     */
+    private List<List<DomainEvent>> partition(EventListener eventListener, List<DomainEvent> events) {
+        List<List<DomainEvent>> partitions = new ArrayList<List<DomainEvent>>(parallelism);
+        for (int i = 0; i < parallelism; i++) {
+            partitions.add(new ArrayList<DomainEvent>());
+        }
+        EventSequencingPolicy sequencingPolicy = eventListener.getEventSequencingPolicy();
+        int unsequencedEvents = 0;
+        for (DomainEvent event : events) {
+            if (eventListener.canHandle(event.getClass())) {
+                Object sequenceIdentifier = sequencingPolicy.getSequenceIdentifierFor(event);
+                int partition;
+                if (sequenceIdentifier == null) {
+                    partition = unsequencedEvents++ % parallelism;
+                } else {
+                    partition = (sequenceIdentifier.hashCode() & Integer.MAX_VALUE) % parallelism;
+                }
+                partitions.get(partition).add(event);
+            }
+        }
+        List<List<DomainEvent>> nonEmptyPartitions = new ArrayList<List<DomainEvent>>(parallelism);
+        for (List<DomainEvent> partition : partitions) {
+            if (!partition.isEmpty()) {
+                nonEmptyPartitions.add(partition);
+            }
+        }
+        return nonEmptyPartitions;
+    }
+
+    private void waitFor(List<Future<?>> tasks) {
+        RuntimeException failure = null;
+        for (Future<?> task : tasks) {
+            try {
+                task.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for replayed events to be handled", e);
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = asRuntimeException(e.getCause());
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private RuntimeException asRuntimeException(Throwable cause) {
+        if (cause instanceof RuntimeException) {
+            return (RuntimeException) cause;
+        }
+        if (cause instanceof Error) {
+            throw (Error) cause;
+        }
+        return new IllegalStateException("An event listener failed to handle a replayed event", cause);
+    }
+
+    /**
+     * Sets the event store to read the events to replay from.
+     *
+     * @param eventStore the event store containing the events to replay
+     */
+    @Required
+    public void setEventStore(ReplayableEventStore eventStore) {
+        this.eventStore = eventStore;
+    }
+
+    /**
+     * Sets the executor service that processes the replayed events. The executor service should provide at least as
+     * many threads as the configured {@link #setParallelism(int) parallelism}. By default, a fixed thread pool is
+     * created for each replay, and shut down when the replay finishes.
+     *
+     * @param executorService the executor service that processes the replayed events
+     */
+    public void setExecutorService(ExecutorService executorService) {
+        this.executorService = executorService;
+    }
+
+    /**
+     * Sets the number of partitions the events of each listener are divided over. Defaults to the number of available
+     * processors.
+     *
+     * @param parallelism the number of partitions to divide the events of each listener over
+     */
+    public void setParallelism(int parallelism) {
+        Assert.isTrue(parallelism > 0, "The parallelism must be a positive number");
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Sets the number of events to read from the event store at once. Defaults to 1000. Larger batches result in
+     * larger transactions.
+     *
+     * @param batchSize the number of events to read from the event store at once
+     */
+    public void setBatchSize(int batchSize) {
+        Assert.isTrue(batchSize > 0, "The batch size must be a positive number");
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Sets the listener to notify of the progress of the replay.
+     *
+     * @param progressListener the listener to notify of the progress of the replay
+     */
+    public void setProgressListener(ReplayProgressListener progressListener) {
+        this.progressListener = progressListener;
+    }
+
+    /**
+     * Handles a partition of a batch of events in one or more transactions, depending on the maximum transaction size
+     * set by the event listener.
+     */
+    private static class ReplayTransaction implements Runnable {
+
+        private final EventListener eventListener;
+        private final List<DomainEvent> events;
+
+        public ReplayTransaction(EventListener eventListener, List<DomainEvent> events) {
+            this.eventListener = eventListener;
+            this.events = events;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void run() {
+            TransactionAware transactionListener = null;
+            if (eventListener instanceof TransactionAware) {
+                transactionListener = (TransactionAware) eventListener;
+            }
+            ReplayTransactionStatus status = new ReplayTransactionStatus(events.size());
+            TransactionStatus.set(status);
+            try {
+                int next = 0;
+                while (next < events.size()) {
+                    if (transactionListener != null) {
+                        transactionListener.beforeTransaction(status);
+                    }
+                    try {
+                        do {
+                            eventListener.handle(events.get(next++));
+                            status.recordEventProcessed();
+                        } while (next < events.size() && !status.isTransactionSizeReached());
+                    } catch (RuntimeException e) {
+                        status.markFailed(e);
+                        throw e;
+                    } finally {
+                        if (transactionListener != null) {
+                            transactionListener.afterTransaction(status);
+                        }
+                    }
+                    status.resetTransactionStatus();
+                }
+            } finally {
+                TransactionStatus.clear();
+            }
+        }
+    }
+
+    private static class ReplayTransactionStatus extends TransactionStatus {
+
+        public ReplayTransactionStatus(int transactionSize) {
+            setMaxTransactionSize(transactionSize);
+        }
+    }
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright (c) 2010. Gridshore
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package nl.gridshore.cqrs4j.eventhandler;
+
+/**
+ * Callback that is notified of the progress of a replay by the {@link EventReplayer}.
+ *
+ * @author Allard Buijze
+ * @since 0.4
+ */
+public interface ReplayProgressListener {
+
+    /**
+     * Invoked after all events of a batch have been handled by all event listeners.
+     *
+     * @param eventsReplayed The total number of events read from the event store since the replay started
+     * @param nextPosition   The position in the global event log of the event following the replayed events
+     */
+    void onBatchReplayed(long eventsReplayed, long nextPosition);
+}
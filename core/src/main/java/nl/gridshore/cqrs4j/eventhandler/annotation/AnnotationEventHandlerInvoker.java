@@ -21,18 +21,20 @@ import nl.gridshore.cqrs4j.eventhandler.EventListener;
 import nl.gridshore.cqrs4j.eventhandler.TransactionStatus;
 import org.springframework.util.ReflectionUtils;
 
-import java.lang.annotation.Annotation;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
-import java.security.PrivilegedAction;
 import java.util.Arrays;
-import java.util.concurrent.atomic.AtomicBoolean;
-
-import static java.security.AccessController.doPrivileged;
 
 /**
  * Utility class that supports invocation of specific handler methods for a given event. See {@link
  * nl.gridshore.cqrs4j.eventhandler.annotation.EventHandler} for the rules for resolving the appropriate method.
+ * <p/>
+ * The handler methods of the target are described by {@link HandlerMetadata}, which is built and validated once per
+ * target class and shared by all invokers for targets of that class. Creating an invoker is therefore cheap, and after
+ * the first event of each type, dispatching an event requires a single map lookup.
+ * <p/>
+ * If a dispatcher has been generated for the target class by the cqrs4j annotation processor, events are dispatched
+ * through that dispatcher. Reflection is only used for handlers that the generated dispatcher cannot invoke.
  *
  * @author Allard Buijze
  * @see nl.gridshore.cqrs4j.eventhandler.annotation.EventHandler
@@ -41,6 +43,7 @@ import static java.security.AccessController.doPrivileged;
 class AnnotationEventHandlerInvoker {
 
     private final Object target;
+    private final HandlerMetadata metadata;
 
     /**
      * Initialize an event handler invoker that invokes handlers on the given <code>target</code>
@@ -49,7 +52,7 @@ class AnnotationEventHandlerInvoker {
      */
     public AnnotationEventHandlerInvoker(Object target) {
         this.target = target;
-        validateHandlerMethods(target);
+        this.metadata = HandlerMetadata.forType(target.getClass());
     }
 
     /**
@@ -121,24 +124,65 @@ class AnnotationEventHandlerInvoker {
     }
 
     /**
-     * Invoke the event handler on the target for the given <code>event</code>
+     * Invoke the event handler on the target for the given <code>event</code>. If the event handler method declares a
+     * {@link TransactionStatus} parameter, it will receive the status of the transaction bound to the current thread.
      *
      * @param event the event to handle
      */
     protected void invokeEventHandlerMethod(DomainEvent event) {
-        final Method m = findEventHandlerMethod(event.getClass());
+        if (dispatch(event, null)) {
+            return;
+        }
+        final HandlerMethod m = findEventHandlerMethod(event.getClass());
         if (m == null) {
             // event listener doesn't support this type of event
             return;
         }
+        // only look up the thread bound transaction status when the handler actually needs it
+        doInvokeEventHandlerMethod(m, event, m.getParameterCount() == 1 ? null : TransactionStatus.current());
+    }
+
+    /**
+     * Invoke the event handler on the target for the given <code>event</code>, passing the given
+     * <code>transactionStatus</code> to event handler methods that declare a {@link TransactionStatus} parameter. Use
+     * this method instead of {@link #invokeEventHandlerMethod(nl.gridshore.cqrs4j.DomainEvent)} when the status of the
+     * current transaction is known to the caller.
+     *
+     * @param event             the event to handle
+     * @param transactionStatus the status of the transaction in which the event is handled
+     */
+    protected void invokeEventHandlerMethod(DomainEvent event, TransactionStatus transactionStatus) {
+        if (dispatch(event, transactionStatus)) {
+            return;
+        }
+        final HandlerMethod m = findEventHandlerMethod(event.getClass());
+        if (m == null) {
+            // event listener doesn't support this type of event
+            return;
+        }
+        doInvokeEventHandlerMethod(m, event, transactionStatus);
+    }
+
+    private boolean dispatch(DomainEvent event, TransactionStatus transactionStatus) {
+        EventHandlerDispatcher dispatcher = metadata.getDispatcher();
+        if (dispatcher == null) {
+            return false;
+        }
         try {
-            if (!m.isAccessible()) {
-                doPrivileged(new PrivilegedAccessibilityAction(m));
-            }
-            if (m.getParameterTypes().length == 1) {
+            return dispatcher.dispatch(target, event, transactionStatus);
+        } catch (Exception e) {
+            throw new UnsupportedOperationException(String.format(
+                    "An error occurred when applying an event of type [%s]",
+                    event.getClass().getSimpleName()), e);
+        }
+    }
+
+    private void doInvokeEventHandlerMethod(HandlerMethod m, DomainEvent event, TransactionStatus transactionStatus) {
+        try {
+            if (m.getParameterCount() == 1) {
                 m.invoke(target, event);
             } else {
-                m.invoke(target, event, TransactionStatus.current());
+                m.invoke(target, event, transactionStatus);
             }
         } catch (IllegalAccessException e) {
             throw new UnsupportedOperationException(String.format(
@@ -158,9 +202,9 @@ class AnnotationEventHandlerInvoker {
      * @return the configuration for the event handler that would handle the given <code>event</code>
      */
     protected EventHandler findEventHandlerConfiguration(DomainEvent event) {
-        Method m = findEventHandlerMethod(event.getClass());
-        if (m != null && m.isAnnotationPresent(EventHandler.class)) {
-            return m.getAnnotation(EventHandler.class);
+        HandlerMethod m = findEventHandlerMethod(event.getClass());
+        if (m != null && m.getMethod().isAnnotationPresent(EventHandler.class)) {
+            return m.getMethod().getAnnotation(EventHandler.class);
         }
         return null;
     }
@@ -172,155 +216,75 @@ class AnnotationEventHandlerInvoker {
      * @return true if an event handler is found, false otherwise
      */
     protected boolean hasHandlerFor(Class<? extends DomainEvent> eventClass) {
+        EventHandlerDispatcher dispatcher = metadata.getDispatcher();
+        if (dispatcher != null) {
+            return dispatcher.canHandle(eventClass);
+        }
         return findEventHandlerMethod(eventClass) != null;
     }
 
-    private Method findEventHandlerMethod(final Class<? extends DomainEvent> eventClass) {
-        MostSuitableEventHandlerCallback callback = new MostSuitableEventHandlerCallback(eventClass);
-        ReflectionUtils.doWithMethods(target.getClass(), callback, callback);
-        return callback.foundHandler();
+    private HandlerMethod findEventHandlerMethod(final Class<? extends DomainEvent> eventClass) {
+        return metadata.findEventHandlerMethod(eventClass);
     }
 
+    /**
+     * Invoke the {@link BeforeTransaction} annotated method on the target, if any.
+     *
+     * @param transactionStatus The status of the transaction that is about to start
+     */
     public void invokeBeforeTransaction(TransactionStatus transactionStatus) {
-        invokeTransactionMethod(BeforeTransaction.class, transactionStatus);
-    }
-
-    private void invokeTransactionMethod(Class<? extends Annotation> beforeTransactionClass,
-                                         TransactionStatus transactionStatus) {
-        CallFirstTransactionMethodCallback callback = new CallFirstTransactionMethodCallback(beforeTransactionClass,
-                                                                                             transactionStatus);
-        ReflectionUtils.doWithMethods(target.getClass(), callback, callback);
-    }
-
-    public void invokeAfterTransaction(TransactionStatus transactionStatus) {
-        invokeTransactionMethod(AfterTransaction.class, transactionStatus);
-    }
-
-    private static class PrivilegedAccessibilityAction implements PrivilegedAction<Object> {
-
-        private final Method method;
-
-        /**
-         * Initialize a new privileged action to make given method accessible
-         *
-         * @param method The method to make accessible
-         */
-        public PrivilegedAccessibilityAction(Method method) {
-            this.method = method;
-        }
-
-        /**
-         * {@inheritDoc}
-         */
-        @Override
-        public Object run() {
-            method.setAccessible(true);
-            return Void.class;
+        EventHandlerDispatcher dispatcher = metadata.getDispatcher();
+        try {
+            if (dispatcher != null && dispatcher.beforeTransaction(target, transactionStatus)) {
+                return;
+            }
+        } catch (Exception e) {
+            throw new TransactionMethodExecutionException(String.format(
+                    "An error occurred while invoking the BeforeTransaction method on [%s].",
+                    target.getClass().getSimpleName()), e);
         }
+        invokeTransactionMethod(metadata.getBeforeTransactionMethod(), transactionStatus);
     }
 
     /**
-     * MethodCallback and MethodFilter implementation that finds the most suitable event handler method for an event of
-     * given type.
-     * <p/>
-     * Note that this callback must used both as MethodCallback and MethodCallback.
-     * <p/>
-     * Example:<br/> <code>MostSuitableEventHandlerCallback callback = new MostSuitableEventHandlerCallback(eventType)<br/>
-     * ReflectionUtils.doWithMethods(eventListenerClass, callback, callback);</code>
+     * Invoke the {@link AfterTransaction} annotated method on the target, if any.
+     *
+     * @param transactionStatus The status of the transaction that has just ended
      */
-    private static class MostSuitableEventHandlerCallback
-            implements ReflectionUtils.MethodCallback, ReflectionUtils.MethodFilter {
-
-        private final Class<? extends DomainEvent> eventClass;
-        private Method bestMethodSoFar;
-
-        /**
-         * Initialize this callback for the given event class. The callback will find the most suitable method for an
-         * event of given type.
-         *
-         * @param eventClass The type of event to find the handler for
-         */
-        public MostSuitableEventHandlerCallback(Class<? extends DomainEvent> eventClass) {
-            this.eventClass = eventClass;
-        }
-
-        /**
-         * {@inheritDoc}
-         */
-        @Override
-        public boolean matches(Method method) {
-            Method foundSoFar = bestMethodSoFar;
-            Class<?> classUnderInvestigation = method.getDeclaringClass();
-            boolean bestInClassFound =
-                    foundSoFar != null
-                            && !classUnderInvestigation.equals(foundSoFar.getDeclaringClass())
-                            && classUnderInvestigation.isAssignableFrom(foundSoFar.getDeclaringClass());
-            return !bestInClassFound && method.isAnnotationPresent(EventHandler.class)
-                    && method.getParameterTypes()[0].isAssignableFrom(eventClass);
-        }
-
-        /**
-         * {@inheritDoc}
-         */
-        @Override
-        public void doWith(Method method) throws IllegalArgumentException, IllegalAccessException {
-            // method is eligible, but is it the best?
-            if (bestMethodSoFar == null) {
-                // if we have none yet, this one is the best
-                bestMethodSoFar = method;
-            } else if (bestMethodSoFar.getDeclaringClass().equals(method.getDeclaringClass())
-                    && bestMethodSoFar.getParameterTypes()[0].isAssignableFrom(
-                    method.getParameterTypes()[0])) {
-                // this one is more specific, so it wins
-                bestMethodSoFar = method;
+    public void invokeAfterTransaction(TransactionStatus transactionStatus) {
+        EventHandlerDispatcher dispatcher = metadata.getDispatcher();
+        try {
+            if (dispatcher != null && dispatcher.afterTransaction(target, transactionStatus)) {
+                return;
             }
+        } catch (Exception e) {
+            throw new TransactionMethodExecutionException(String.format(
+                    "An error occurred while invoking the AfterTransaction method on [%s].",
+                    target.getClass().getSimpleName()), e);
         }
-
-        /**
-         * Returns the event handler suitable for the given event, or null if no suitable event handler could be found.
-         *
-         * @return the found event handler, or null if none could be found
-         */
-        public Method foundHandler() {
-            return bestMethodSoFar;
-        }
+        invokeTransactionMethod(metadata.getAfterTransactionMethod(), transactionStatus);
     }
 
-    private class CallFirstTransactionMethodCallback
-            implements ReflectionUtils.MethodCallback, ReflectionUtils.MethodFilter {
-
-        final AtomicBoolean found = new AtomicBoolean(false);
-        private final Class<? extends Annotation> annotation;
-        private final TransactionStatus transactionStatus;
-
-        public CallFirstTransactionMethodCallback(
-                Class<? extends Annotation> annotation, TransactionStatus transactionStatus) {
-            this.annotation = annotation;
-            this.transactionStatus = transactionStatus;
+    private void invokeTransactionMethod(HandlerMethod m, TransactionStatus transactionStatus) {
+        if (m == null) {
+            return;
         }
-
-        @Override
-        public void doWith(Method method) throws IllegalArgumentException, IllegalAccessException {
-            found.set(true);
-            try {
-                if (method.getParameterTypes().length == 1) {
-                    method.invoke(target, transactionStatus);
-                } else {
-                    method.invoke(target);
-                }
-            } catch (InvocationTargetException e) {
-                throw new TransactionMethodExecutionException(String.format(
-                        "An error occurred while invoking [%s] on [%s].",
-                        method.getName(),
-                        target.getClass().getSimpleName()), e);
+        try {
+            if (m.getParameterCount() == 1) {
+                m.invoke(target, transactionStatus);
+            } else {
+                m.invoke(target);
             }
-        }
-
-        @Override
-        public boolean matches(Method method) {
-            return (method.getParameterTypes().length == 0
-                    || method.getParameterTypes()[0].equals(TransactionStatus.class))
-                    && method.isAnnotationPresent(annotation) && !found.get();
+        } catch (IllegalAccessException e) {
+            throw new TransactionMethodExecutionException(String.format(
+                    "Unable to access [%s] on [%s].",
+                    m.getMethod().getName(),
+                    target.getClass().getSimpleName()), e);
+        } catch (InvocationTargetException e) {
+            throw new TransactionMethodExecutionException(String.format(
+                    "An error occurred while invoking [%s] on [%s].",
+                    m.getMethod().getName(),
+                    target.getClass().getSimpleName()), e);
         }
     }
 }
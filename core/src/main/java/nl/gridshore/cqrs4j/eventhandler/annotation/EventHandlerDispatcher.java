@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2010. Gridshore
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package nl.gridshore.cqrs4j.eventhandler.annotation;
+
+import nl.gridshore.cqrs4j.DomainEvent;
+import nl.gridshore.cqrs4j.eventhandler.TransactionStatus;
+
+/**
+ * Dispatches events to the annotated handler methods of a specific type of target without using reflection.
+ * Implementations are generated at compile time by the cqrs4j annotation processor. The dispatcher for a class
+ * <code>com.example.MyListener</code> is named <code>com.example.MyListener_EventDispatcher</code>, and is picked up
+ * automatically by the {@link AnnotationEventListenerAdapter} and the {@link AbstractAnnotatedAggregateRoot}. See
+ * {@link EventHandlerDispatchers}.
+ * <p/>
+ * A dispatcher may not be able to invoke all handler methods of its target, for example because they are private. In
+ * that case, the methods of this interface return <code>false</code>, and the caller falls back to reflection.
+ * <p/>
+ * Implementations must be thread safe and have a public no-arg constructor.
+ *
+ * @author Allard Buijze
+ * @since 0.4
+ */
+public interface EventHandlerDispatcher {
+
+    /**
+     * Indicates whether the target type has any {@link EventHandler} annotated methods. Dispatchers are also generated
+     * for types that only have {@link BeforeTransaction} or {@link AfterTransaction} annotated methods.
+     *
+     * @return <code>true</code> if the target type has event handlers, <code>false</code> otherwise
+     */
+    boolean hasEventHandlers();
+
+    /**
+     * Indicates whether the target type has an event handler for events of the given <code>eventType</code>.
+     *
+     * @param eventType The type of event
+     * @return <code>true</code> if the target type has a handler for the given type of event, <code>false</code>
+     *         otherwise
+     */
+    boolean canHandle(Class<? extends DomainEvent> eventType);
+
+    /**
+     * Invoke the most suitable event handler method on the given <code>target</code> for the given
+     * <code>event</code>. If the handler method declares a {@link TransactionStatus} parameter, it receives the given
+     * <code>transactionStatus</code>, or the status bound to the current thread if <code>transactionStatus</code> is
+     * <code>null</code>.
+     *
+     * @param target            The object to invoke the handler method on
+     * @param event             The event to dispatch
+     * @param transactionStatus The status of the current transaction, or <code>null</code> to use the status bound to
+     *                          the current thread
+     * @return <code>true</code> if the event was dispatched, <code>false</code> if the target has no handler for the
+     *         event, or if the dispatcher cannot invoke the handler
+     *
+     * @throws Exception any exception thrown by the handler method
+     */
+    boolean dispatch(Object target, DomainEvent event, TransactionStatus transactionStatus) throws Exception;
+
+    /**
+     * Invoke the {@link BeforeTransaction} annotated method on the given <code>target</code>, if any.
+     *
+     * @param target            The object to invoke the method on
+     * @param transactionStatus The status of the transaction that is about to start
+     * @return <code>false</code> if the target has such a method, but the dispatcher cannot invoke it,
+     *         <code>true</code> otherwise
+     *
+     * @throws Exception any exception thrown by the invoked method
+     */
+    boolean beforeTransaction(Object target, TransactionStatus transactionStatus) throws Exception;
+
+    /**
+     * Invoke the {@link AfterTransaction} annotated method on the given <code>target</code>, if any.
+     *
+     * @param target            The object to invoke the method on
+     * @param transactionStatus The status of the transaction that has just ended
+     * @return <code>false</code> if the target has such a method, but the dispatcher cannot invoke it,
+     *         <code>true</code> otherwise
+     *
+     * @throws Exception any exception thrown by the invoked method
+     */
+    boolean afterTransaction(Object target, TransactionStatus transactionStatus) throws Exception;
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2010. Gridshore
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package nl.gridshore.cqrs4j.eventhandler.annotation;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Method;
+
+/**
+ * Utility class that locates the generated {@link EventHandlerDispatcher} for a class.
+ * <p/>
+ * A dispatcher generated for a class may also be used for its subclasses, as long as these subclasses do not declare
+ * any annotated handler methods themselves. This is typically the case for proxies that are generated at runtime.
+ *
+ * @author Allard Buijze
+ * @since 0.4
+ */
+public abstract class EventHandlerDispatchers {
+
+    /**
+     * The suffix appended to the binary name of a class to form the name of its generated dispatcher.
+     */
+    public static final String DISPATCHER_SUFFIX = "_EventDispatcher";
+
+    private static final Logger logger = LoggerFactory.getLogger(EventHandlerDispatchers.class);
+
+    /**
+     * Returns the generated dispatcher that can be used for targets of the given <code>targetType</code>, or
+     * <code>null</code> if no such dispatcher is available.
+     *
+     * @param targetType The type of target to find a dispatcher for
+     * @return the dispatcher for targets of the given type, or <code>null</code> if none is available
+     */
+    public static EventHandlerDispatcher findDispatcher(Class<?> targetType) {
+        for (Class<?> type = targetType; type != null && !Object.class.equals(type); type = type.getSuperclass()) {
+            EventHandlerDispatcher dispatcher = loadDispatcher(type);
+            if (dispatcher != null) {
+                return dispatcher;
+            }
+            if (declaresHandlerMethods(type)) {
+                // a dispatcher of a super class would not know about the handlers of this class
+                return null;
+            }
+        }
+        return null;
+    }
+
+    private static EventHandlerDispatcher loadDispatcher(Class<?> type) {
+        ClassLoader classLoader = type.getClassLoader();
+        if (classLoader == null) {
+            return null;
+        }
+        try {
+            Class<?> dispatcherClass = Class.forName(type.getName() + DISPATCHER_SUFFIX, true, classLoader);
+            if (!EventHandlerDispatcher.class.isAssignableFrom(dispatcherClass)) {
+                logger.warn("Class [{}] does not implement EventHandlerDispatcher and will be ignored.",
+                            dispatcherClass.getName());
+                return null;
+            }
+            return (EventHandlerDispatcher) dispatcherClass.newInstance();
+        } catch (ClassNotFoundException e) {
+            return null;
+        } catch (LinkageError e) {
+            logger.warn("Unable to load the generated event dispatcher for [{}]. Reflection will be used instead.",
+                        type.getName());
+            return null;
+        } catch (InstantiationException e) {
+            logger.warn("Unable to instantiate the generated event dispatcher for [{}]. "
+                    + "Reflection will be used instead.", type.getName());
+            return null;
+        } catch (IllegalAccessException e) {
+            logger.warn("Unable to instantiate the generated event dispatcher for [{}]. "
+                    + "Reflection will be used instead.", type.getName());
+            return null;
+        }
+    }
+
+    private static boolean declaresHandlerMethods(Class<?> type) {
+        for (Method method : type.getDeclaredMethods()) {
+            for (Annotation annotation : method.getDeclaredAnnotations()) {
+                if (annotation instanceof EventHandler
+                        || annotation instanceof BeforeTransaction
+                        || annotation instanceof AfterTransaction) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,383 @@
+/*
+ * Copyright (c) 2010. Gridshore
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package nl.gridshore.cqrs4j.eventhandler.annotation;
+
+import nl.gridshore.cqrs4j.DomainEvent;
+import nl.gridshore.cqrs4j.eventhandler.TransactionStatus;
+import org.springframework.util.ReflectionUtils;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Describes the annotated handler methods of a class, such as an aggregate root or an annotated event listener. The
+ * metadata of a class is built and validated once, and is shared by all instances of that class. Use {@link
+ * #forType(Class)} to obtain the metadata of a class.
+ * <p/>
+ * The {@link EventHandler} annotated methods of the class, as well as the {@link BeforeTransaction} and {@link
+ * AfterTransaction} methods, are discovered when the metadata is created. The handler to use for a specific type of
+ * event is resolved the first time such an event is handled, after which the outcome is cached. Since the outcome only
+ * depends on the class and the type of event, this does not affect the immutability of the metadata.
+ * <p/>
+ * When a dispatcher has been generated for the class (see {@link EventHandlerDispatcher}), it is exposed by the
+ * metadata so that events can be dispatched without reflection.
+ *
+ * @author Allard Buijze
+ * @see nl.gridshore.cqrs4j.eventhandler.annotation.EventHandler
+ * @since 0.4
+ */
+final class HandlerMetadata {
+
+    private static final ConcurrentMap<Class<?>, HandlerMetadata> metadataCache =
+            new ConcurrentHashMap<Class<?>, HandlerMetadata>();
+
+    private final Class<?> targetType;
+    private final EventHandlerDispatcher dispatcher;
+    private volatile ReflectiveHandlers reflectiveHandlers;
+
+    /**
+     * Returns the metadata for the given <code>targetType</code>. The metadata is created and validated the first time
+     * it is requested for a type.
+     *
+     * @param targetType The type to get the handler metadata for
+     * @return the handler metadata of the given <code>targetType</code>
+     *
+     * @throws UnsupportedHandlerMethodException
+     *          if the given type contains an invalid handler method
+     */
+    public static HandlerMetadata forType(Class<?> targetType) {
+        HandlerMetadata metadata = metadataCache.get(targetType);
+        if (metadata == null) {
+            // concurrent creation is harmless, as it always yields equivalent metadata
+            metadataCache.putIfAbsent(targetType, new HandlerMetadata(targetType));
+            metadata = metadataCache.get(targetType);
+        }
+        return metadata;
+    }
+
+    /**
+     * Builds the metadata for the given <code>targetType</code>, validating its handler methods.
+     * <p/>
+     * If a generated dispatcher is available for the target type, its handler methods have been validated at compile
+     * time. In that case, the reflective inspection of the target type is postponed until it is actually needed.
+     *
+     * @param targetType The type to build metadata for
+     */
+    private HandlerMetadata(Class<?> targetType) {
+        this.targetType = targetType;
+        this.dispatcher = EventHandlerDispatchers.findDispatcher(targetType);
+        if (dispatcher == null) {
+            this.reflectiveHandlers = new ReflectiveHandlers(targetType);
+        }
+    }
+
+    /**
+     * Returns the type described by this metadata.
+     *
+     * @return the type described by this metadata
+     */
+    public Class<?> getTargetType() {
+        return targetType;
+    }
+
+    /**
+     * Returns the generated dispatcher for the target type, or <code>null</code> if none is available.
+     *
+     * @return the generated dispatcher for the target type, or <code>null</code> if none is available
+     */
+    public EventHandlerDispatcher getDispatcher() {
+        return dispatcher;
+    }
+
+    /**
+     * Returns the handler method to invoke for events of given <code>eventClass</code>, or <code>null</code> if the
+     * target type has no handler for such events.
+     *
+     * @param eventClass The type of event to find the handler for
+     * @return the handler method for the given type of event, or <code>null</code> if there is none
+     */
+    public HandlerMethod findEventHandlerMethod(Class<? extends DomainEvent> eventClass) {
+        return reflectiveHandlers().findEventHandlerMethod(eventClass);
+    }
+
+    /**
+     * Returns the {@link BeforeTransaction} annotated method of the target type, or <code>null</code> if there is
+     * none.
+     *
+     * @return the before transaction method, or <code>null</code> if there is none
+     */
+    public HandlerMethod getBeforeTransactionMethod() {
+        return reflectiveHandlers().beforeTransactionMethod;
+    }
+
+    /**
+     * Returns the {@link AfterTransaction} annotated method of the target type, or <code>null</code> if there is
+     * none.
+     *
+     * @return the after transaction method, or <code>null</code> if there is none
+     */
+    public HandlerMethod getAfterTransactionMethod() {
+        return reflectiveHandlers().afterTransactionMethod;
+    }
+
+    private ReflectiveHandlers reflectiveHandlers() {
+        ReflectiveHandlers handlers = reflectiveHandlers;
+        if (handlers == null) {
+            synchronized (this) {
+                if (reflectiveHandlers == null) {
+                    reflectiveHandlers = new ReflectiveHandlers(targetType);
+                }
+                handlers = reflectiveHandlers;
+            }
+        }
+        return handlers;
+    }
+
+    /**
+     * The handler methods of a type, as discovered using reflection.
+     */
+    private static final class ReflectiveHandlers {
+
+        private final List<Method> eventHandlerMethods;
+        private final HandlerMethod beforeTransactionMethod;
+        private final HandlerMethod afterTransactionMethod;
+        private final ConcurrentMap<Class<?>, ResolvedHandler> resolvedHandlers =
+                new ConcurrentHashMap<Class<?>, ResolvedHandler>();
+
+        /**
+         * Discovers and validates the handler methods of the given <code>targetType</code>.
+         *
+         * @param targetType The type to discover the handler methods of
+         */
+        private ReflectiveHandlers(Class<?> targetType) {
+            AnnotationEventHandlerInvoker.validateHandlerMethods(targetType);
+            EventHandlerMethodsCallback callback = new EventHandlerMethodsCallback();
+            ReflectionUtils.doWithMethods(targetType, callback, callback);
+            this.eventHandlerMethods = Collections.unmodifiableList(callback.foundMethods());
+            this.beforeTransactionMethod = findTransactionMethod(targetType, BeforeTransaction.class);
+            this.afterTransactionMethod = findTransactionMethod(targetType, AfterTransaction.class);
+        }
+
+        private HandlerMethod findEventHandlerMethod(Class<? extends DomainEvent> eventClass) {
+            ResolvedHandler resolvedHandler = resolvedHandlers.get(eventClass);
+            if (resolvedHandler == null) {
+                MostSuitableEventHandlerCallback callback = new MostSuitableEventHandlerCallback(eventClass);
+                for (Method method : eventHandlerMethods) {
+                    if (callback.matches(method)) {
+                        callback.doWith(method);
+                    }
+                }
+                resolvedHandler = new ResolvedHandler(callback.foundHandler());
+                // concurrent resolutions always yield the same method, so it doesn't matter which one is cached
+                resolvedHandlers.putIfAbsent(eventClass, resolvedHandler);
+            }
+            return resolvedHandler.getHandlerMethod();
+        }
+
+        private static HandlerMethod findTransactionMethod(Class<?> targetType,
+                                                           Class<? extends Annotation> annotation) {
+            FirstTransactionMethodCallback callback = new FirstTransactionMethodCallback(annotation);
+            ReflectionUtils.doWithMethods(targetType, callback, callback);
+            Method method = callback.foundMethod();
+            return method == null ? null : HandlerMethod.forMethod(method);
+        }
+    }
+
+    /**
+     * The outcome of the resolution of a handler method. Since the ConcurrentMap used as cache does not allow
+     * <code>null</code> values, this class is also used to cache the fact that no handler is available.
+     */
+    private static final class ResolvedHandler {
+
+        private final HandlerMethod handlerMethod;
+
+        /**
+         * Initialize the resolution outcome for the given <code>method</code>.
+         *
+         * @param method The resolved handler method, or <code>null</code> if no handler was found
+         */
+        private ResolvedHandler(Method method) {
+            this.handlerMethod = method == null ? null : HandlerMethod.forMethod(method);
+        }
+
+        /**
+         * Returns the resolved handler method, or <code>null</code> if no handler is available.
+         *
+         * @return the resolved handler method, or <code>null</code> if no handler is available
+         */
+        public HandlerMethod getHandlerMethod() {
+            return handlerMethod;
+        }
+    }
+
+    /**
+     * MethodCallback and MethodFilter implementation that finds the most suitable event handler method for an event of
+     * given type.
+     * <p/>
+     * Note that this callback must used both as MethodCallback and MethodCallback.
+     * <p/>
+     * Example:<br/> <code>MostSuitableEventHandlerCallback callback = new MostSuitableEventHandlerCallback(eventType)<br/>
+     * ReflectionUtils.doWithMethods(eventListenerClass, callback, callback);</code>
+     */
+    private static class MostSuitableEventHandlerCallback
+            implements ReflectionUtils.MethodCallback, ReflectionUtils.MethodFilter {
+
+        private final Class<? extends DomainEvent> eventClass;
+        private Method bestMethodSoFar;
+
+        /**
+         * Initialize this callback for the given event class. The callback will find the most suitable method for an
+         * event of given type.
+         *
+         * @param eventClass The type of event to find the handler for
+         */
+        public MostSuitableEventHandlerCallback(Class<? extends DomainEvent> eventClass) {
+            this.eventClass = eventClass;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean matches(Method method) {
+            Method foundSoFar = bestMethodSoFar;
+            Class<?> classUnderInvestigation = method.getDeclaringClass();
+            boolean bestInClassFound =
+                    foundSoFar != null
+                            && !classUnderInvestigation.equals(foundSoFar.getDeclaringClass())
+                            && classUnderInvestigation.isAssignableFrom(foundSoFar.getDeclaringClass());
+            return !bestInClassFound && method.isAnnotationPresent(EventHandler.class)
+                    && method.getParameterTypes()[0].isAssignableFrom(eventClass);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void doWith(Method method) {
+            // method is eligible, but is it the best?
+            if (bestMethodSoFar == null) {
+                // if we have none yet, this one is the best
+                bestMethodSoFar = method;
+            } else if (bestMethodSoFar.getDeclaringClass().equals(method.getDeclaringClass())
+                    && bestMethodSoFar.getParameterTypes()[0].isAssignableFrom(
+                    method.getParameterTypes()[0])) {
+                // this one is more specific, so it wins
+                bestMethodSoFar = method;
+            }
+        }
+
+        /**
+         * Returns the event handler suitable for the given event, or null if no suitable event handler could be found.
+         *
+         * @return the found event handler, or null if none could be found
+         */
+        public Method foundHandler() {
+            return bestMethodSoFar;
+        }
+    }
+
+    /**
+     * MethodCallback and MethodFilter implementation that collects all {@link EventHandler} annotated methods, in the
+     * order in which they are found.
+     */
+    private static class EventHandlerMethodsCallback
+            implements ReflectionUtils.MethodCallback, ReflectionUtils.MethodFilter {
+
+        private final List<Method> foundMethods = new ArrayList<Method>();
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void doWith(Method method) {
+            foundMethods.add(method);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean matches(Method method) {
+            return method.isAnnotationPresent(EventHandler.class);
+        }
+
+        /**
+         * Returns the event handler methods found, in the order in which they were found.
+         *
+         * @return the event handler methods found
+         */
+        public List<Method> foundMethods() {
+            return foundMethods;
+        }
+    }
+
+    /**
+     * MethodCallback and MethodFilter implementation that finds the first method annotated with a given transaction
+     * annotation. As methods of a subclass are evaluated before those of its super classes, this is the method on the
+     * most specific class.
+     */
+    private static class FirstTransactionMethodCallback
+            implements ReflectionUtils.MethodCallback, ReflectionUtils.MethodFilter {
+
+        private final Class<? extends Annotation> annotation;
+        private Method foundMethod;
+
+        /**
+         * Initialize the callback to find a method with the given <code>annotation</code>.
+         *
+         * @param annotation The annotation to find the method for
+         */
+        public FirstTransactionMethodCallback(Class<? extends Annotation> annotation) {
+            this.annotation = annotation;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void doWith(Method method) {
+            foundMethod = method;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean matches(Method method) {
+            return foundMethod == null
+                    && (method.getParameterTypes().length == 0
+                    || method.getParameterTypes()[0].equals(TransactionStatus.class))
+                    && method.isAnnotationPresent(annotation);
+        }
+
+        /**
+         * Returns the transaction method found, or null if none could be found.
+         *
+         * @return the transaction method found, or null if none could be found
+         */
+        public Method foundMethod() {
+            return foundMethod;
+        }
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright (c) 2010. Gridshore
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.gridshore.cqrs4j.eventhandler.annotation;
+
+import net.sf.cglib.reflect.FastClass;
+import net.sf.cglib.reflect.FastMethod;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.security.PrivilegedAction;
+
+import static java.security.AccessController.doPrivileged;
+
+/**
+ * Represents an annotated handler method (such as an {@link EventHandler}, {@link BeforeTransaction} or {@link
+ * AfterTransaction} annotated method) that has been prepared for repeated invocation. All the work that doesn't depend
+ * on the actual invocation, such as making the method accessible and finding out how many parameters it expects, is
+ * done once, when the HandlerMethod is created.
+ * <p/>
+ * When possible, handler methods are invoked through a generated class that calls the method directly (see {@link
+ * net.sf.cglib.reflect.FastClass}). Methods that cannot be called that way, such as private methods, are invoked using
+ * reflection.
+ *
+ * @author Allard Buijze
+ * @since 0.4
+ */
+abstract class HandlerMethod {
+
+    private static final Logger logger = LoggerFactory.getLogger(HandlerMethod.class);
+    private static final Object[] NO_PARAMETERS = new Object[0];
+
+    private final Method method;
+    private final int parameterCount;
+
+    /**
+     * Creates a HandlerMethod for the given <code>method</code>, using the fastest available invocation mechanism.
+     *
+     * @param method The method to create a HandlerMethod for
+     * @return a HandlerMethod that invokes the given <code>method</code>
+     */
+    public static HandlerMethod forMethod(Method method) {
+        if (!Modifier.isPrivate(method.getModifiers()) && !Modifier.isProtected(method.getModifiers())) {
+            try {
+                FastMethod fastMethod = FastClass.create(method.getDeclaringClass()).getMethod(method);
+                if (fastMethod.getIndex() >= 0) {
+                    return new FastClassHandlerMethod(method, fastMethod);
+                }
+            } catch (RuntimeException e) {
+                logger.debug("Unable to generate a direct invoker for method [{}]. Reflection will be used instead.",
+                             method.getName());
+            }
+        }
+        return new ReflectiveHandlerMethod(method);
+    }
+
+    /**
+     * Initialize the HandlerMethod for the given <code>method</code>.
+     *
+     * @param method The method that this HandlerMethod invokes
+     */
+    protected HandlerMethod(Method method) {
+        this.method = method;
+        this.parameterCount = method.getParameterTypes().length;
+    }
+
+    /**
+     * Invoke the handler method on the given <code>target</code> with the given <code>parameters</code>.
+     *
+     * @param target     The object to invoke the method on
+     * @param parameters The parameters to pass to the method
+     * @return the value returned by the handler method
+     *
+     * @throws InvocationTargetException when the handler method threw an exception
+     * @throws IllegalAccessException    when the method could not be accessed
+     */
+    public abstract Object invoke(Object target, Object... parameters)
+            throws InvocationTargetException, IllegalAccessException;
+
+    /**
+     * Invoke the handler method on the given <code>target</code> without parameters. Unlike {@link
+     * #invoke(Object, Object[])}, this method does not allocate an array for the parameters.
+     *
+     * @param target The object to invoke the method on
+     * @return the value returned by the handler method
+     *
+     * @throws InvocationTargetException when the handler method threw an exception
+     * @throws IllegalAccessException    when the method could not be accessed
+     */
+    public Object invoke(Object target) throws InvocationTargetException, IllegalAccessException {
+        return invoke(target, NO_PARAMETERS);
+    }
+
+    /**
+     * Invoke the handler method on the given <code>target</code> with the given <code>parameter</code>. The array
+     * holding the parameter never escapes the invocation, which allows the JVM to avoid allocating it.
+     *
+     * @param target    The object to invoke the method on
+     * @param parameter The parameter to pass to the method
+     * @return the value returned by the handler method
+     *
+     * @throws InvocationTargetException when the handler method threw an exception
+     * @throws IllegalAccessException    when the method could not be accessed
+     */
+    public Object invoke(Object target, Object parameter) throws InvocationTargetException, IllegalAccessException {
+        return invoke(target, new Object[]{parameter});
+    }
+
+    /**
+     * Returns the method that this HandlerMethod invokes.
+     *
+     * @return the method that this HandlerMethod invokes
+     */
+    public Method getMethod() {
+        return method;
+    }
+
+    /**
+     * Returns the number of parameters the handler method expects.
+     *
+     * @return the number of parameters the handler method expects
+     */
+    public int getParameterCount() {
+        return parameterCount;
+    }
+
+    /**
+     * HandlerMethod implementation that uses a generated FastClass to invoke the handler method.
+     */
+    private static final class FastClassHandlerMethod extends HandlerMethod {
+
+        private final FastMethod fastMethod;
+
+        /**
+         * Initialize the HandlerMethod for the given <code>method</code>, using the given <code>fastMethod</code> for
+         * invocation.
+         *
+         * @param method     The method that this HandlerMethod invokes
+         * @param fastMethod The generated invoker of the method
+         */
+        private FastClassHandlerMethod(Method method, FastMethod fastMethod) {
+            super(method);
+            this.fastMethod = fastMethod;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public Object invoke(Object target, Object... parameters) throws InvocationTargetException {
+            return fastMethod.invoke(target, parameters);
+        }
+    }
+
+    /**
+     * HandlerMethod implementation that uses reflection to invoke the handler method. The method is made accessible
+     * once, when this instance is created.
+     */
+    private static final class ReflectiveHandlerMethod extends HandlerMethod {
+
+        /**
+         * Initialize the HandlerMethod for the given <code>method</code>, and make it accessible for reflective
+         * invocation.
+         *
+         * @param method The method that this HandlerMethod invokes
+         */
+        private ReflectiveHandlerMethod(Method method) {
+            super(method);
+            if (!method.isAccessible()) {
+                doPrivileged(new PrivilegedAccessibilityAction(method));
+            }
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public Object invoke(Object target, Object... parameters)
+                throws InvocationTargetException, IllegalAccessException {
+            return getMethod().invoke(target, parameters);
+        }
+    }
+
+    private static class PrivilegedAccessibilityAction implements PrivilegedAction<Object> {
+
+        private final Method method;
+
+        /**
+         * Initialize a new privileged action to make given method accessible
+         *
+         * @param method The method to make accessible
+         */
+        public PrivilegedAccessibilityAction(Method method) {
+            this.method = method;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public Object run() {
+            method.setAccessible(true);
+            return Void.class;
+        }
+    }
+}
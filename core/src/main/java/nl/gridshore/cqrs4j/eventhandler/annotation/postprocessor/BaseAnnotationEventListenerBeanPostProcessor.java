@@ -22,6 +22,8 @@ import nl.gridshore.cqrs4j.eventhandler.EventBus;
 import nl.gridshore.cqrs4j.eventhandler.EventListener;
 import nl.gridshore.cqrs4j.eventhandler.annotation.AnnotationEventListenerAdapter;
 import nl.gridshore.cqrs4j.eventhandler.annotation.EventHandler;
+import nl.gridshore.cqrs4j.eventhandler.annotation.EventHandlerDispatcher;
+import nl.gridshore.cqrs4j.eventhandler.annotation.EventHandlerDispatchers;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.BeansException;
@@ -130,6 +132,11 @@ public abstract class BaseAnnotationEventListenerBeanPostProcessor
     }
 
     private boolean hasEventHandlerMethod(Class<?> beanClass) {
+        EventHandlerDispatcher dispatcher = EventHandlerDispatchers.findDispatcher(beanClass);
+        if (dispatcher != null && dispatcher.hasEventHandlers()) {
+            // the dispatcher knows the event handlers of the class, no need to scan the methods
+            return true;
+        }
         final AtomicBoolean result = new AtomicBoolean(false);
         ReflectionUtils.doWithMethods(beanClass, new HasEventHandlerAnnotationMethodCallback(result));
         return result.get();
@@ -20,11 +20,17 @@ import nl.gridshore.cqrs4j.AggregateRoot;
 import nl.gridshore.cqrs4j.DomainEvent;
 import nl.gridshore.cqrs4j.EventStream;
 import nl.gridshore.cqrs4j.eventhandler.EventBus;
+import nl.gridshore.cqrs4j.util.Assert;
+import nl.gridshore.cqrs4j.util.WeakIdentityHashMap;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Required;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
 import java.util.UUID;
 
 /**
@@ -32,6 +38,10 @@ import java.util.UUID;
  * of events when an aggregate is persisted. All uncommitted events on an aggregate are dispatched when the aggregate is
  * saved.
  * <p/>
+ * When a {@link UnitOfWork} has been started for the current thread, aggregates are registered with the unit of work
+ * instead. They are saved when the unit of work is committed, and their events are dispatched once all aggregates in
+ * the unit of work have been saved.
+ * <p/>
  * Note that this repository implementation does not take care of any locking. The underlying persistence is expected to
  * deal with concurrency. Alternatively, consider using the {@link nl.gridshore.cqrs4j.repository.LockingRepository}.
  *
@@ -45,15 +55,25 @@ public abstract class AbstractRepository<T extends AggregateRoot> implements Rep
 
     private EventBus eventBus;
     private final Logger logger = LoggerFactory.getLogger(getClass());
+    // aggregates are compared by identity, so the map only contains the loaded copies themselves
+    private final WeakIdentityHashMap<T, Boolean> readOnlyAggregates = new WeakIdentityHashMap<T, Boolean>();
 
     /**
-     * Saves the given aggregate and publishes all uncommitted events to the EventBus.
+     * Saves the given aggregate and publishes all uncommitted events to the EventBus. If a unit of work has been
+     * started for the current thread, the aggregate is registered with the unit of work instead.
      *
      * @param aggregate The aggregate root of the aggregate to store.
+     * @throws IllegalArgumentException if the aggregate has been loaded for reading only
      * @see #setEventBus(nl.gridshore.cqrs4j.eventhandler.EventBus)
      */
     @Override
     public void save(T aggregate) {
+        assertNotReadOnly(aggregate);
+        UnitOfWork unitOfWork = UnitOfWork.current();
+        if (unitOfWork != null) {
+            unitOfWork.registerAggregate(aggregate, new SaveAggregateListener(aggregate));
+            return;
+        }
         doSave(aggregate);
         dispatchUncommittedEvents(aggregate);
     }
@@ -66,6 +86,61 @@ public abstract class AbstractRepository<T extends AggregateRoot> implements Rep
         return doLoad(aggregateIdentifier);
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public T loadReadOnly(UUID aggregateIdentifier) {
+        T aggregate = doLoadReadOnly(aggregateIdentifier);
+        readOnlyAggregates.put(aggregate, Boolean.TRUE);
+        return aggregate;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void release(T aggregate) {
+        if (isReadOnly(aggregate)) {
+            return;
+        }
+        UnitOfWork unitOfWork = UnitOfWork.current();
+        Assert.state(unitOfWork == null || !unitOfWork.isRegistered(aggregate),
+                     "Aggregates saved within a unit of work are released when the unit of work is completed");
+        doRelease(aggregate);
+    }
+
+    /**
+     * Indicates whether the given <code>aggregate</code> has been loaded for reading only.
+     *
+     * @param aggregate the aggregate to check
+     * @return <code>true</code> if the aggregate has been loaded for reading only, <code>false</code> otherwise
+     */
+    protected boolean isReadOnly(T aggregate) {
+        return readOnlyAggregates.containsKey(aggregate);
+    }
+
+    /**
+     * Verifies that the given <code>aggregate</code> has not been loaded for reading only.
+     *
+     * @param aggregate the aggregate that is about to be saved
+     * @throws IllegalArgumentException if the aggregate has been loaded for reading only
+     */
+    protected void assertNotReadOnly(T aggregate) {
+        Assert.isTrue(!isReadOnly(aggregate), "Aggregates loaded for reading only cannot be saved");
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<T> loadAll(Collection<UUID> aggregateIdentifiers) {
+        List<UUID> identifiers = new ArrayList<UUID>(aggregateIdentifiers);
+        Assert.isTrue(new HashSet<UUID>(identifiers).size() == identifiers.size(),
+                      "The identifiers of the aggregates to load may not contain duplicates");
+        return doLoadAll(identifiers);
+    }
+
     /**
      * Performs the actual saving of the aggregate.
      *
@@ -81,6 +156,43 @@ public abstract class AbstractRepository<T extends AggregateRoot> implements Rep
      */
     protected abstract T doLoad(UUID aggregateIdentifier);
 
+    /**
+     * Loads and initializes the aggregate with the given aggregateIdentifier for reading only. No locks are held while
+     * this method is invoked. The returned instance may not be shared with other callers. Defaults to {@link
+     * #doLoad(java.util.UUID)}.
+     *
+     * @param aggregateIdentifier the identifier of the aggregate to load
+     * @return a fully initialized aggregate that is not shared with other callers
+     */
+    protected T doLoadReadOnly(UUID aggregateIdentifier) {
+        return doLoad(aggregateIdentifier);
+    }
+
+    /**
+     * Discards the changes made to the given aggregate, which is released without being saved. Subclasses holding on
+     * to loaded aggregates, for example in a cache, should make sure the changes are not visible to later loads.
+     * Defaults to doing nothing.
+     *
+     * @param aggregate the aggregate that is released
+     */
+    protected void doRelease(T aggregate) {
+    }
+
+    /**
+     * Loads and initializes the aggregates with the given identifiers. Defaults to loading them one by one, using
+     * {@link #doLoad(java.util.UUID)}.
+     *
+     * @param aggregateIdentifiers the identifiers of the aggregates to load, without duplicates
+     * @return the fully initialized aggregates, in the order of the given identifiers
+     */
+    protected List<T> doLoadAll(List<UUID> aggregateIdentifiers) {
+        List<T> aggregates = new ArrayList<T>(aggregateIdentifiers.size());
+        for (UUID aggregateIdentifier : aggregateIdentifiers) {
+            aggregates.add(doLoad(aggregateIdentifier));
+        }
+        return aggregates;
+    }
+
     private void dispatchUncommittedEvents(T aggregate) {
         EventStream uncommittedEvents = aggregate.getUncommittedEvents();
         while (uncommittedEvents.hasNext()) {
@@ -91,6 +203,42 @@ public abstract class AbstractRepository<T extends AggregateRoot> implements Rep
         aggregate.commitEvents();
     }
 
+    /**
+     * Saves an aggregate when the unit of work it has been registered with is committed, and publishes its events
+     * afterwards.
+     */
+    private class SaveAggregateListener implements UnitOfWorkListener {
+
+        private final T aggregate;
+
+        public SaveAggregateListener(T aggregate) {
+            this.aggregate = aggregate;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void onPrepareCommit() {
+            doSave(aggregate);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void afterCommit() {
+            dispatchUncommittedEvents(aggregate);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void onRollback() {
+        }
+    }
+
     /**
      * Sets the event bus to which newly stored events should be published. Optional. By default, the repository tries
      * to autowire the event bus.
@@ -33,4 +33,14 @@ public class ConcurrencyException extends RuntimeException {
     public ConcurrencyException(String message) {
         super(message);
     }
+
+    /**
+     * Initialize a ConcurrencyException with the given <code>message</code> and <code>cause</code>.
+     *
+     * @param message The message describing the cause of the exception
+     * @param cause   The underlying cause of the exception
+     */
+    public ConcurrencyException(String message, Throwable cause) {
+        super(message, cause);
+    }
 }
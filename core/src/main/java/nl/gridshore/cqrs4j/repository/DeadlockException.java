@@ -0,0 +1,37 @@
+/*
+ * Copyright (c) 2010. Gridshore
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.gridshore.cqrs4j.repository;
+
+/**
+ * Exception indicating that a lock of an aggregate could not be obtained, because the thread holding it is waiting,
+ * directly or indirectly, for a lock held by the thread trying to obtain it. The thread receiving this exception
+ * should release all of its locks, allowing the other threads involved to proceed.
+ *
+ * @author Allard Buijze
+ * @since 0.4
+ */
+public class DeadlockException extends LockAcquisitionFailedException {
+
+    /**
+     * Initialize a DeadlockException with the given <code>message</code>
+     *
+     * @param message The message describing the cause of the exception
+     */
+    public DeadlockException(String message) {
+        super(message);
+    }
+}
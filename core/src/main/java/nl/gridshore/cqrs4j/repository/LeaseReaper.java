@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2010. Gridshore
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.gridshore.cqrs4j.repository;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Releases the locks of which the lease has expired. All lock managers share a single daemon thread. The reaper only
+ * holds a weak reference to the lock manager, so that it stops once the repository using the lock manager is no longer
+ * in use.
+ *
+ * @author Allard Buijze
+ * @since 0.4
+ */
+final class LeaseReaper implements Runnable {
+
+    private static final Logger logger = LoggerFactory.getLogger(LeaseReaper.class);
+    private static final ScheduledExecutorService SCHEDULER =
+            Executors.newSingleThreadScheduledExecutor(new ReaperThreadFactory());
+
+    private final WeakReference<LeasingLockManager> lockManager;
+    private volatile ScheduledFuture<?> future;
+
+    private LeaseReaper(LeasingLockManager lockManager) {
+        this.lockManager = new WeakReference<LeasingLockManager>(lockManager);
+    }
+
+    /**
+     * Starts releasing the expired leases of the given <code>lockManager</code> at the given interval.
+     *
+     * @param lockManager the lock manager to release expired leases of
+     * @param interval    the number of milliseconds between checks for expired leases
+     * @return the reaper, which must be {@link #stop() stopped} when it is no longer needed
+     */
+    static LeaseReaper start(LeasingLockManager lockManager, long interval) {
+        LeaseReaper reaper = new LeaseReaper(lockManager);
+        reaper.future = SCHEDULER.scheduleWithFixedDelay(reaper, interval, interval, TimeUnit.MILLISECONDS);
+        return reaper;
+    }
+
+    /**
+     * Stops releasing expired leases.
+     */
+    void stop() {
+        future.cancel(false);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void run() {
+        LeasingLockManager manager = lockManager.get();
+        if (manager == null) {
+            // the future is always set, as the first run is delayed by at least a millisecond
+            stop();
+            return;
+        }
+        try {
+            int expired = manager.expireLeases(System.currentTimeMillis());
+            if (expired > 0) {
+                logger.warn("Released {} lock(s) of which the lease expired. "
+                        + "Make sure that aggregates are always saved or released after loading them.", expired);
+            }
+        } catch (RuntimeException e) {
+            // an exception would prevent any further runs
+            logger.error("An exception occurred while releasing expired leases", e);
+        }
+    }
+
+    private static class ReaperThreadFactory implements ThreadFactory {
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "LockManager-lease-reaper");
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
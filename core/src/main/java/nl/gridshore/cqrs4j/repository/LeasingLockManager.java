@@ -0,0 +1,44 @@
+/*
+ * Copyright (c) 2010. Gridshore
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.gridshore.cqrs4j.repository;
+
+/**
+ * Lock manager that hands out locks as leases. A lease expires when the lock has not been obtained or validated for a
+ * given amount of time, after which the lock is released by {@link #expireLeases(long)}. That way, locks of aggregates
+ * that are loaded, but never saved, do not stay around forever.
+ *
+ * @author Allard Buijze
+ * @since 0.4
+ */
+interface LeasingLockManager extends LockManager {
+
+    /**
+     * Sets the number of milliseconds after which the lease of a lock expires. Only affects locks obtained or
+     * validated afterwards. Defaults to 0, meaning that leases never expire.
+     *
+     * @param leaseTime the number of milliseconds a lease is valid, or 0 for leases that never expire
+     */
+    void setLeaseTime(long leaseTime);
+
+    /**
+     * Releases the locks of which the lease had expired at the given time.
+     *
+     * @param currentTime the current time, in milliseconds since the epoch
+     * @return the number of locks that were released
+     */
+    int expireLeases(long currentTime);
+}
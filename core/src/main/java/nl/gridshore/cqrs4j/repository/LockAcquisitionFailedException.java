@@ -0,0 +1,45 @@
+/*
+ * Copyright (c) 2010. Gridshore
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.gridshore.cqrs4j.repository;
+
+/**
+ * Exception indicating that a lock of an aggregate could not be obtained, because another thread held it for too long.
+ *
+ * @author Allard Buijze
+ * @since 0.4
+ */
+public class LockAcquisitionFailedException extends ConcurrencyException {
+
+    /**
+     * Initialize a LockAcquisitionFailedException with the given <code>message</code>
+     *
+     * @param message The message describing the cause of the exception
+     */
+    public LockAcquisitionFailedException(String message) {
+        super(message);
+    }
+
+    /**
+     * Initialize a LockAcquisitionFailedException with the given <code>message</code> and <code>cause</code>.
+     *
+     * @param message The message describing the cause of the exception
+     * @param cause   The underlying cause of the exception
+     */
+    public LockAcquisitionFailedException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -18,6 +18,7 @@ package nl.gridshore.cqrs4j.repository;
 
 import nl.gridshore.cqrs4j.VersionedAggregateRoot;
 
+import java.util.Comparator;
 import java.util.UUID;
 
 /**
@@ -52,4 +53,12 @@ interface LockManager {
      * @param aggregateIdentifier the identifier of the aggregate to release the lock for.
      */
     void releaseLock(UUID aggregateIdentifier);
+
+    /**
+     * Returns the order in which a thread must obtain the locks of several aggregates, so that threads locking
+     * overlapping sets of aggregates cannot deadlock each other.
+     *
+     * @return the order of the aggregate identifiers, or <code>null</code> to use their natural order
+     */
+    Comparator<UUID> getLockOrder();
 }
@@ -17,7 +17,14 @@
 package nl.gridshore.cqrs4j.repository;
 
 import nl.gridshore.cqrs4j.VersionedAggregateRoot;
+import nl.gridshore.cqrs4j.util.Assert;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 
 /**
@@ -25,19 +32,34 @@ import java.util.UUID;
  * modifications of persisted aggregates. Unless there is a locking mechanism present in the underlying persistence
  * environment, it is recommended to use a LockingRepository (or one of its subclasses).
  * <p/>
- * The LockingRepository can be initialized with two strategies: <ul><li><em>Optimistic Locking</em> strategy (default):
- * This strategy performs better than the pessimistic one, but you will only discover a concurrency issue at the time a
- * thread tries to save an aggregate. If another thread has saved the same aggregate earlier (but after the first thread
- * loaded its copy), an exception is thrown. The only way to recover from this exception is to load the aggregate from
- * the repository again, replay all actions on it and save it. <li><em>Pessimistic Locking</em> strategy: Pessimistic
- * Locking requires an exclusive lock to be handed to a thread loading an aggregate before the aggregate is handed over.
- * This means that, once an aggregate is loaded, it has full exclusive access to it, until it saves the aggregate. With
- * this strategy, it is important that -no matter what- the aggregate is saved to the repository. Any failure to do so
- * will result in threads blocking endlessly, waiting for a lock that might never be released. </ul>
+ * The LockingRepository can be initialized with three strategies: <ul><li><em>Optimistic Locking</em> strategy
+ * (default): This strategy performs better than the pessimistic one, but you will only discover a concurrency issue at
+ * the time a thread tries to save an aggregate. If another thread has saved the same aggregate earlier (but after the
+ * first thread loaded its copy), an exception is thrown. The only way to recover from this exception is to load the
+ * aggregate from the repository again, replay all actions on it and save it. <li><em>Pessimistic Locking</em> strategy:
+ * Pessimistic Locking requires an exclusive lock to be handed to a thread loading an aggregate before the aggregate is
+ * handed over. This means that, once an aggregate is loaded, it has full exclusive access to it, until it saves the
+ * aggregate. With this strategy, it is important that -no matter what- the aggregate is saved to the repository. Any
+ * failure to do so will result in threads blocking endlessly, waiting for a lock that might never be released.
+ * <li><em>Striped Locking</em> strategy: A pessimistic strategy that uses a fixed number of locks, each shared by many
+ * aggregates. Unlike the pessimistic strategy, it does not create a lock for each aggregate that is loaded, which pays
+ * off when many different aggregates are in use. </ul>
  * <p/>
  * Important: If an exception is thrown during the saving process, any locks held are released. The calling thread may
  * reattempt saving the aggregate again. If the lock is available, the thread automatically takes back the lock. If,
  * however, another thread has obtained the lock first, a ConcurrencyException is thrown.
+ * <p/>
+ * With the pessimistic strategy, threads may be limited in how long they wait for a lock, and deadlocks between threads
+ * waiting for locks may be detected. See {@link #setLockTimeout(long)} and {@link #setDeadlockDetection(boolean)}.
+ * <p/>
+ * Aggregates that are loaded, but not saved, must be {@link #release(VersionedAggregateRoot) released} to release
+ * their lock. As a safety net, locks may be handed out as leases, which expire when an aggregate is not saved or
+ * released in time. See {@link #setLockLeaseTime(long)}.
+ * <p/>
+ * Aggregates {@link #loadReadOnly(java.util.UUID) loaded for reading only} are not locked at all.
+ * <p/>
+ * Aggregates loaded or saved within a {@link UnitOfWork} keep their lock until the unit of work has been committed or
+ * rolled back, unless they are released earlier.
  *
  * @author Allard Buijze
  * @param <T> The type that this aggregate stores
@@ -46,6 +68,8 @@ import java.util.UUID;
 public abstract class LockingRepository<T extends VersionedAggregateRoot> extends AbstractRepository<T> {
 
     private final LockManager lockManager;
+    // guarded by "this"
+    private LeaseReaper leaseReaper;
 
     /**
      * Initialize a repository with an optimistic locking strategy.
@@ -67,6 +91,9 @@ public abstract class LockingRepository<T extends VersionedAggregateRoot> extend
             case OPTIMISTIC:
                 lockManager = new OptimisticLockManager();
                 break;
+            case STRIPED:
+                lockManager = new StripedLockManager();
+                break;
             default:
                 throw new IllegalArgumentException(
                         String.format("This repository implementation does not support the [%s] locking strategy",
@@ -74,6 +101,18 @@ public abstract class LockingRepository<T extends VersionedAggregateRoot> extend
         }
     }
 
+    /**
+     * Initialize the repository with a {@link LockingStrategy#STRIPED striped} locking strategy, using at least the
+     * given number of locks. Optionally, the repository checks that threads do not load an aggregate they have already
+     * loaded without saving it, which usually means that its lock is never released.
+     *
+     * @param lockCount       the minimum number of locks to use, rounded up to a power of two
+     * @param checkReentrancy whether to check that threads do not obtain the lock of an aggregate they already hold
+     */
+    protected LockingRepository(int lockCount, boolean checkReentrancy) {
+        this(new StripedLockManager(lockCount, checkReentrancy));
+    }
+
     /**
      * Utility constructor for testing
      *
@@ -97,8 +136,14 @@ public abstract class LockingRepository<T extends VersionedAggregateRoot> extend
      */
     @Override
     public void save(T aggregate) {
+        assertNotReadOnly(aggregate);
         // make sure no events were previously committed
         boolean isNewAggregate = (aggregate.getLastCommittedEventSequenceNumber() == null);
+        UnitOfWork unitOfWork = UnitOfWork.current();
+        if (unitOfWork != null && unitOfWork.isRegistered(aggregate)) {
+            // the lock has been validated when the aggregate was registered
+            return;
+        }
         if (!isNewAggregate && !lockManager.validateLock(aggregate)) {
             throw new ConcurrencyException(String.format(
                     "The aggregate of type [%s] with identifier [%s] could not be "
@@ -106,6 +151,17 @@ public abstract class LockingRepository<T extends VersionedAggregateRoot> extend
                     aggregate.getClass().getSimpleName(),
                     aggregate.getIdentifier()));
         }
+        if (unitOfWork != null) {
+            super.save(aggregate);
+            if (!isNewAggregate) {
+                ReleaseLockListener releaseLockListener = releaseLockListener(unitOfWork, aggregate);
+                if (!releaseLockListener.holdsLock()) {
+                    // the aggregate was released earlier, the lock has been taken back by validating it
+                    releaseLockListener.lockObtained();
+                }
+            }
+            return;
+        }
         try {
             super.save(aggregate);
         }
@@ -118,17 +174,79 @@ public abstract class LockingRepository<T extends VersionedAggregateRoot> extend
 
     /**
      * {@inheritDoc}
+     * <p/>
+     * If a {@link UnitOfWork} has been started for the current thread, the lock of the aggregate is released when the
+     * unit of work is committed or rolled back, unless the aggregate is released earlier.
      */
     @SuppressWarnings({"unchecked"})
     @Override
     public T load(UUID aggregateIdentifier) {
         lockManager.obtainLock(aggregateIdentifier);
+        T aggregate;
         try {
-            return super.load(aggregateIdentifier);
+            aggregate = super.load(aggregateIdentifier);
         } catch (RuntimeException ex) {
             lockManager.releaseLock(aggregateIdentifier);
             throw ex;
         }
+        releaseOnCompletion(aggregate);
+        return aggregate;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * The locks of the aggregates are obtained in a fixed order, defined by the locking strategy, regardless of the
+     * order in which they are given. That way, threads loading overlapping sets of aggregates cannot deadlock each
+     * other.
+     */
+    @Override
+    public List<T> loadAll(Collection<UUID> aggregateIdentifiers) {
+        List<UUID> lockOrder = new ArrayList<UUID>(aggregateIdentifiers);
+        Collections.sort(lockOrder, lockManager.getLockOrder());
+        List<UUID> lockedAggregates = new ArrayList<UUID>(lockOrder.size());
+        List<T> aggregates;
+        try {
+            for (UUID aggregateIdentifier : lockOrder) {
+                lockManager.obtainLock(aggregateIdentifier);
+                lockedAggregates.add(aggregateIdentifier);
+            }
+            aggregates = super.loadAll(aggregateIdentifiers);
+        } catch (RuntimeException ex) {
+            for (UUID aggregateIdentifier : lockedAggregates) {
+                lockManager.releaseLock(aggregateIdentifier);
+            }
+            throw ex;
+        }
+        for (T aggregate : aggregates) {
+            releaseOnCompletion(aggregate);
+        }
+        return aggregates;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * With the pessimistic and striped locking strategies, or when locks are handed out as leases, aggregates must be
+     * released by the thread that loaded them.
+     *
+     * @throws IllegalMonitorStateException if the pessimistic locking strategy is used, and the lock is not held by the
+     *                                      current thread, for example because its lease expired
+     */
+    @Override
+    public void release(T aggregate) {
+        // new aggregates and aggregates loaded for reading only are not locked
+        boolean isLocked = !isReadOnly(aggregate) && aggregate.getLastCommittedEventSequenceNumber() != null;
+        super.release(aggregate);
+        if (!isLocked) {
+            return;
+        }
+        ReleaseLockListener releaseLockListener = registeredReleaseLockListener(aggregate);
+        if (releaseLockListener != null && releaseLockListener.holdsLock()) {
+            releaseLockListener.releaseLock();
+        } else {
+            lockManager.releaseLock(aggregate.getIdentifier());
+        }
     }
 
     /**
@@ -148,4 +266,170 @@ public abstract class LockingRepository<T extends VersionedAggregateRoot> extend
     @Override
     protected abstract T doLoad(UUID aggregateIdentifier);
 
+    /**
+     * Sets the number of milliseconds a thread waits for the lock of an aggregate it loads. When the timeout expires,
+     * a {@link LockAcquisitionFailedException} is thrown. Defaults to 0, meaning that threads wait indefinitely. Only
+     * supported by the {@link LockingStrategy#PESSIMISTIC pessimistic} locking strategy.
+     *
+     * @param lockTimeout the number of milliseconds to wait for a lock, or 0 to wait indefinitely
+     * @throws IllegalStateException if the repository does not use the pessimistic locking strategy
+     */
+    public void setLockTimeout(long lockTimeout) {
+        pessimisticLockManager().setLockTimeout(lockTimeout);
+    }
+
+    /**
+     * Sets whether threads waiting for the lock of an aggregate check for deadlocks. If a deadlock is found, one of the
+     * threads involved receives a {@link DeadlockException}, which is thrown from {@link #load(java.util.UUID)}. That
+     * thread must release the locks it holds, to allow the other threads to proceed. If it loaded the aggregates within
+     * a {@link UnitOfWork}, rolling back the unit of work releases all of them. Otherwise, it must {@link
+     * #release(VersionedAggregateRoot) release} each aggregate it has loaded. Defaults to <code>false</code>. Only
+     * supported by the {@link LockingStrategy#PESSIMISTIC pessimistic} locking strategy.
+     * <p/>
+     * Deadlocks are detected among all threads waiting for a lock in any pessimistic repository. Only threads waiting
+     * in a repository using deadlock detection receive a DeadlockException.
+     *
+     * @param deadlockDetection whether to detect deadlocks
+     * @throws IllegalStateException if the repository does not use the pessimistic locking strategy
+     */
+    public void setDeadlockDetection(boolean deadlockDetection) {
+        pessimisticLockManager().setDeadlockDetection(deadlockDetection);
+    }
+
+    /**
+     * Sets the number of milliseconds after which the lock of an aggregate that is loaded, but not saved or released,
+     * expires. Expired locks are released shortly afterwards by a background thread, as if the aggregate had been
+     * released. The lease is renewed each time the aggregate is loaded or saved. Defaults to 0, meaning that locks
+     * never expire. Only supported by the {@link LockingStrategy#OPTIMISTIC optimistic} and {@link
+     * LockingStrategy#PESSIMISTIC pessimistic} locking strategies.
+     * <p/>
+     * An aggregate of which the lock has expired can only be saved if the lock is still available, like an aggregate
+     * that failed to save. The lease time should therefore be well beyond the time needed to process a command.
+     *
+     * @param leaseTime the number of milliseconds after which a lock expires, or 0 for locks that never expire
+     * @throws IllegalStateException if the repository uses the striped locking strategy
+     */
+    public synchronized void setLockLeaseTime(long leaseTime) {
+        Assert.state(lockManager instanceof LeasingLockManager,
+                     "Lock leases are only supported by the optimistic and pessimistic locking strategies");
+        LeasingLockManager leasingLockManager = (LeasingLockManager) lockManager;
+        leasingLockManager.setLeaseTime(leaseTime);
+        if (leaseReaper != null) {
+            leaseReaper.stop();
+            leaseReaper = null;
+        }
+        if (leaseTime > 0) {
+            leaseReaper = LeaseReaper.start(leasingLockManager, Math.max(1, leaseTime / 2));
+        }
+    }
+
+    /**
+     * Makes sure the lock of the given <code>aggregate</code> is released when the unit of work of the current thread
+     * is completed, if any. New aggregates are not locked.
+     */
+    private void releaseOnCompletion(T aggregate) {
+        UnitOfWork unitOfWork = UnitOfWork.current();
+        if (unitOfWork != null && aggregate != null && aggregate.getLastCommittedEventSequenceNumber() != null) {
+            releaseLockListener(unitOfWork, aggregate).lockObtained();
+        }
+    }
+
+    /**
+     * Returns the listener releasing the lock of the given <code>aggregate</code> when the given
+     * <code>unitOfWork</code> is completed, registering one if necessary.
+     */
+    private ReleaseLockListener releaseLockListener(UnitOfWork unitOfWork, T aggregate) {
+        Map<T, ReleaseLockListener> releaseLockListeners = releaseLockListeners(unitOfWork);
+        if (releaseLockListeners == null) {
+            releaseLockListeners = new IdentityHashMap<T, ReleaseLockListener>();
+            unitOfWork.bindResource(this, releaseLockListeners);
+        }
+        ReleaseLockListener releaseLockListener = releaseLockListeners.get(aggregate);
+        if (releaseLockListener == null) {
+            releaseLockListener = new ReleaseLockListener(aggregate.getIdentifier());
+            unitOfWork.registerListener(releaseLockListener);
+            releaseLockListeners.put(aggregate, releaseLockListener);
+        }
+        return releaseLockListener;
+    }
+
+    /**
+     * Returns the listener releasing the lock of the given <code>aggregate</code> when the unit of work of the current
+     * thread is completed, or <code>null</code> if there is none.
+     */
+    private ReleaseLockListener registeredReleaseLockListener(T aggregate) {
+        UnitOfWork unitOfWork = UnitOfWork.current();
+        if (unitOfWork == null) {
+            return null;
+        }
+        Map<T, ReleaseLockListener> releaseLockListeners = releaseLockListeners(unitOfWork);
+        return releaseLockListeners == null ? null : releaseLockListeners.get(aggregate);
+    }
+
+    @SuppressWarnings({"unchecked"})
+    private Map<T, ReleaseLockListener> releaseLockListeners(UnitOfWork unitOfWork) {
+        return (Map<T, ReleaseLockListener>) unitOfWork.getResource(this);
+    }
+
+    private PessimisticLockManager pessimisticLockManager() {
+        Assert.state(lockManager instanceof PessimisticLockManager,
+                     "Lock timeouts and deadlock detection are only supported by the pessimistic locking strategy");
+        return (PessimisticLockManager) lockManager;
+    }
+
+    /**
+     * Releases the lock of an aggregate when the unit of work it was loaded or saved in has been completed.
+     */
+    private class ReleaseLockListener implements UnitOfWorkListener {
+
+        private final UUID aggregateIdentifier;
+        // the number of times the lock was obtained, and not yet released, within the unit of work
+        private int lockCount;
+
+        public ReleaseLockListener(UUID aggregateIdentifier) {
+            this.aggregateIdentifier = aggregateIdentifier;
+        }
+
+        public void lockObtained() {
+            lockCount++;
+        }
+
+        public boolean holdsLock() {
+            return lockCount > 0;
+        }
+
+        public void releaseLock() {
+            lockCount--;
+            lockManager.releaseLock(aggregateIdentifier);
+        }
+
+        private void releaseAll() {
+            while (holdsLock()) {
+                releaseLock();
+            }
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void onPrepareCommit() {
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void afterCommit() {
+            releaseAll();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void onRollback() {
+            releaseAll();
+        }
+    }
 }
@@ -40,5 +40,15 @@ public enum LockingStrategy {
      *
      * @see nl.gridshore.cqrs4j.repository.LockingRepository
      */
-    PESSIMISTIC
+    PESSIMISTIC,
+
+    /**
+     * Indicator of a pessimistic locking strategy that uses a fixed number of locks, each of which guards all
+     * aggregates with identifiers of the same hash. Memory usage does not depend on the number of aggregates in use,
+     * at the cost of threads occasionally blocking on an aggregate that shares a lock with the one they load.
+     *
+     * @see nl.gridshore.cqrs4j.repository.LockingRepository
+     * @since 0.4
+     */
+    STRIPED
 }
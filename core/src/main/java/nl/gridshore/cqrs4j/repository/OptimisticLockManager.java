@@ -17,7 +17,11 @@
 package nl.gridshore.cqrs4j.repository;
 
 import nl.gridshore.cqrs4j.VersionedAggregateRoot;
+import nl.gridshore.cqrs4j.util.Assert;
 
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -27,15 +31,26 @@ import java.util.concurrent.ConcurrentHashMap;
  * <p/>
  * Classes that use a repository with this strategy must implement any retry logic themselves. Use the {@link
  * ConcurrencyException} to detect concurrent access.
+ * <p/>
+ * Locks may also be handed out as leases. When the lease of a lock expires, the lock is disposed of by {@link
+ * #expireLeases(long)}. Any aggregate loaded before that can no longer be saved.
+ * <p/>
+ * Leased locks are only validated and released on behalf of the threads that obtained them. That way, a thread of
+ * which the lease has expired cannot release or validate a lock that another thread obtained afterwards. Without
+ * leases, aggregates may be saved and released by any thread.
  *
  * @author Allard Buijze
  * @see nl.gridshore.cqrs4j.EventSourcedAggregateRoot
  * @see ConcurrencyException
  * @since 0.3
  */
-class OptimisticLockManager implements LockManager {
+class OptimisticLockManager implements LeasingLockManager {
+
+    // holds the locks that are not handed out as leases on behalf of all threads
+    private static final Object ANY_THREAD = new Object();
 
     private final ConcurrentHashMap<UUID, OptimisticLock> locks = new ConcurrentHashMap<UUID, OptimisticLock>();
+    private volatile long leaseTime;
 
     /**
      * {@inheritDoc}
@@ -43,7 +58,8 @@ class OptimisticLockManager implements LockManager {
     @Override
     public boolean validateLock(VersionedAggregateRoot aggregate) {
         OptimisticLock lock = locks.get(aggregate.getIdentifier());
-        return lock.validate(aggregate);
+        // without a lock, its lease has expired
+        return lock != null && lock.validate(aggregate);
     }
 
     /**
@@ -53,8 +69,15 @@ class OptimisticLockManager implements LockManager {
     public void obtainLock(UUID aggregateIdentifier) {
         boolean obtained = false;
         while (!obtained) {
-            locks.putIfAbsent(aggregateIdentifier, new OptimisticLock());
             OptimisticLock lock = locks.get(aggregateIdentifier);
+            if (lock == null) {
+                // the lock may be disposed of and removed by another thread at any time, so don't look it up again
+                OptimisticLock newLock = new OptimisticLock();
+                lock = locks.putIfAbsent(aggregateIdentifier, newLock);
+                if (lock == null) {
+                    lock = newLock;
+                }
+            }
             obtained = lock.lock();
             if (!obtained) {
                 locks.remove(aggregateIdentifier, lock);
@@ -68,20 +91,62 @@ class OptimisticLockManager implements LockManager {
     @Override
     public void releaseLock(UUID aggregateIdentifier) {
         OptimisticLock lock = locks.get(aggregateIdentifier);
-        lock.unlock(aggregateIdentifier);
+        // without a lock, its lease has expired
+        if (lock != null) {
+            lock.unlock(aggregateIdentifier);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Comparator<UUID> getLockOrder() {
+        return null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setLeaseTime(long leaseTime) {
+        Assert.isTrue(leaseTime >= 0, "The lease time may not be negative");
+        this.leaseTime = leaseTime;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int expireLeases(long currentTime) {
+        int expired = 0;
+        for (Map.Entry<UUID, OptimisticLock> entry : locks.entrySet()) {
+            if (entry.getValue().expire(entry.getKey(), currentTime)) {
+                expired++;
+            }
+        }
+        return expired;
     }
 
     private class OptimisticLock {
 
         private Long versionNumber;
-        private int lockCount = 0;
+        // the number of times each holder of this lock has obtained it
+        private final Map<Object, Integer> holdCounts = new HashMap<Object, Integer>();
+        private final boolean leased = leaseTime > 0;
         private boolean closed = false;
+        private long leaseExpiry;
 
         public synchronized boolean validate(VersionedAggregateRoot aggregate) {
+            if (closed || !holdCounts.containsKey(currentHolder())) {
+                // the lease has expired, or the lock was obtained by other threads after it did
+                return false;
+            }
             Long lastCommittedEventSequenceNumber = aggregate.getLastCommittedEventSequenceNumber();
             if (versionNumber == null || versionNumber.equals(lastCommittedEventSequenceNumber)) {
                 long last = lastCommittedEventSequenceNumber == null ? 0 : lastCommittedEventSequenceNumber;
                 versionNumber = last + aggregate.getUncommittedEventCount();
+                renewLease();
                 return true;
             }
             return false;
@@ -91,17 +156,51 @@ class OptimisticLockManager implements LockManager {
             if (closed) {
                 return false;
             }
-            lockCount++;
+            Object holder = currentHolder();
+            Integer holdCount = holdCounts.get(holder);
+            holdCounts.put(holder, holdCount == null ? 1 : holdCount + 1);
+            renewLease();
             return true;
         }
 
         public synchronized void unlock(UUID aggregateIdentifier) {
-            lockCount--;
-            if (lockCount == 0) {
+            Object holder = currentHolder();
+            Integer holdCount = holdCounts.get(holder);
+            if (closed || holdCount == null) {
+                // the lease of the lock has expired, and the lock may have been replaced by one of another thread
+                return;
+            }
+            if (holdCount > 1) {
+                holdCounts.put(holder, holdCount - 1);
+                return;
+            }
+            holdCounts.remove(holder);
+            if (holdCounts.isEmpty()) {
                 closed = true;
                 locks.remove(aggregateIdentifier, this);
             }
         }
 
+        public synchronized boolean expire(UUID aggregateIdentifier, long currentTime) {
+            if (closed || leaseExpiry > currentTime) {
+                return false;
+            }
+            closed = true;
+            locks.remove(aggregateIdentifier, this);
+            return true;
+        }
+
+        /**
+         * Returns the holder the current thread acts on behalf of. Leased locks are held by the threads that obtained
+         * them, other locks are shared by all threads.
+         */
+        private Object currentHolder() {
+            return leased ? Thread.currentThread() : ANY_THREAD;
+        }
+
+        private void renewLease() {
+            long time = leaseTime;
+            leaseExpiry = time > 0 ? System.currentTimeMillis() + time : Long.MAX_VALUE;
+        }
     }
 }
@@ -19,20 +19,45 @@ package nl.gridshore.cqrs4j.repository;
 import nl.gridshore.cqrs4j.VersionedAggregateRoot;
 import nl.gridshore.cqrs4j.util.Assert;
 
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * Implementation of the {@link LockManager} that uses a pessimistic locking strategy. Calls to obtainLock will block
  * until a lock could be obtained. If a lock is obtained by a thread, that thread has guaranteed unique access.
+ * <p/>
+ * Optionally, threads only wait for a lock for a limited amount of time, after which a {@link
+ * LockAcquisitionFailedException} is thrown. Deadlocks can also be detected while threads wait for a lock. All threads
+ * waiting for a lock, in any pessimistic lock manager, are tracked in a wait-for graph. When a thread finds that the
+ * owner of the lock it waits for is, directly or indirectly, waiting for a lock held by the thread itself, one of the
+ * threads involved receives a {@link DeadlockException}. This is always the thread with the highest identifier among
+ * the threads involved that wait in a lock manager detecting deadlocks, so that the other threads may proceed once it
+ * releases its locks.
+ * <p/>
+ * Locks may also be handed out as leases. When the lease of a lock expires, the lock is taken away from its owner by
+ * {@link #expireLeases(long)}, as if the owner had released it.
  *
  * @author Allard Buijze
  * @since 0.3
  */
-class PessimisticLockManager implements LockManager {
+class PessimisticLockManager implements LeasingLockManager {
+
+    // the number of milliseconds between checks for deadlocks
+    private static final long DEADLOCK_CHECK_INTERVAL = 50;
+
+    // the wait-for graph, shared by all lock managers to detect deadlocks involving several repositories
+    private static final ConcurrentMap<Thread, PessimisticLockManager.DisposableLock> WAITING_THREADS =
+            new ConcurrentHashMap<Thread, PessimisticLockManager.DisposableLock>();
 
     private final ConcurrentHashMap<UUID, DisposableLock> locks = new ConcurrentHashMap<UUID, DisposableLock>();
+    private volatile long lockTimeout;
+    private volatile boolean deadlockDetection;
+    private volatile long leaseTime;
 
     /**
      * {@inheritDoc}
@@ -40,34 +65,33 @@ class PessimisticLockManager implements LockManager {
     @Override
     public boolean validateLock(VersionedAggregateRoot aggregate) {
         UUID aggregateIdentifier = aggregate.getIdentifier();
-        boolean currentThreadHoldsLock = isLockAvailableFor(aggregateIdentifier)
-                && lockFor(aggregateIdentifier).isHeldByCurrentThread();
-        boolean lockIsAvailable = !isLockAvailableFor(aggregateIdentifier) || !lockFor(aggregateIdentifier).isLocked();
-
-        if (!currentThreadHoldsLock && lockIsAvailable) {
+        DisposableLock lock = lockFor(aggregateIdentifier);
+        if (lock != null && lock.renewLease()) {
+            return true;
+        }
+        if (lock == null || !lock.isLocked()) {
             // if the thread lost the lock due to an exception, it could get it back, if it's lucky.
-            createLockIfAbsent(aggregateIdentifier);
-            return lockFor(aggregateIdentifier).tryLock();
-        } else {
-            return currentThreadHoldsLock;
+            return createLockIfAbsent(aggregateIdentifier).tryLock();
         }
+        return false;
     }
 
     /**
-     * Obtain a lock for an aggregate. This method will block until a lock was successfully obtained.
+     * Obtain a lock for an aggregate. This method will block until a lock was successfully obtained, or until the lock
+     * timeout expires.
      *
      * @param aggregateIdentifier the identifier of the aggregate to obtains a lock for.
+     * @throws LockAcquisitionFailedException if the lock could not be obtained within the lock timeout, or the thread
+     *                                        was interrupted while waiting for it
+     * @throws DeadlockException              if deadlock detection is enabled, and waiting for the lock would deadlock
      */
     @Override
     public void obtainLock(UUID aggregateIdentifier) {
+        long timeout = lockTimeout;
+        long deadline = timeout > 0 ? System.currentTimeMillis() + timeout : 0;
         boolean lockObtained = false;
         while (!lockObtained) {
-            createLockIfAbsent(aggregateIdentifier);
-            DisposableLock lock = lockFor(aggregateIdentifier);
-            lockObtained = lock.lock();
-            if (!lockObtained) {
-                locks.remove(aggregateIdentifier, lock);
-            }
+            lockObtained = createLockIfAbsent(aggregateIdentifier).lock(aggregateIdentifier, deadline);
         }
     }
 
@@ -76,73 +100,275 @@ class PessimisticLockManager implements LockManager {
      *
      * @param aggregateIdentifier the identifier of the aggregate to release the lock for.
      * @throws IllegalStateException        if no lock was ever obtained for this aggregate
-     * @throws IllegalMonitorStateException if a lock was obtained, but is not currently held by the current thread
+     * @throws IllegalMonitorStateException if a lock was obtained, but is not currently held by the current thread,
+     *                                      for example because its lease expired
      */
     @Override
     public void releaseLock(UUID aggregateIdentifier) {
-        Assert.state(locks.containsKey(aggregateIdentifier), "No lock for this aggregate was ever obtained");
         DisposableLock lock = lockFor(aggregateIdentifier);
+        Assert.state(lock != null, "No lock for this aggregate was ever obtained");
         lock.unlock(aggregateIdentifier);
     }
 
-    private void createLockIfAbsent(UUID aggregateIdentifier) {
-        if (!locks.contains(aggregateIdentifier)) {
-            locks.putIfAbsent(aggregateIdentifier, new DisposableLock());
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Comparator<UUID> getLockOrder() {
+        return null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setLeaseTime(long leaseTime) {
+        Assert.isTrue(leaseTime >= 0, "The lease time may not be negative");
+        this.leaseTime = leaseTime;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int expireLeases(long currentTime) {
+        int expired = 0;
+        for (Map.Entry<UUID, DisposableLock> entry : locks.entrySet()) {
+            if (entry.getValue().expire(entry.getKey(), currentTime)) {
+                expired++;
+            }
         }
+        return expired;
     }
 
-    private boolean isLockAvailableFor(UUID aggregateIdentifier) {
-        return locks.containsKey(aggregateIdentifier);
+    /**
+     * Sets the number of milliseconds a thread waits for a lock, before a {@link LockAcquisitionFailedException} is
+     * thrown. Defaults to 0, meaning that threads wait indefinitely.
+     *
+     * @param lockTimeout the number of milliseconds to wait for a lock, or 0 to wait indefinitely
+     */
+    void setLockTimeout(long lockTimeout) {
+        Assert.isTrue(lockTimeout >= 0, "The lock timeout may not be negative");
+        this.lockTimeout = lockTimeout;
+    }
+
+    /**
+     * Sets whether threads waiting for a lock check for deadlocks. Defaults to <code>false</code>.
+     *
+     * @param deadlockDetection whether to detect deadlocks
+     */
+    void setDeadlockDetection(boolean deadlockDetection) {
+        this.deadlockDetection = deadlockDetection;
+    }
+
+    /**
+     * Returns the lock of the aggregate with the given identifier, creating it if it does not exist. The lock may be
+     * disposed of by another thread at any time, so callers must use the returned lock rather than looking it up again.
+     */
+    private DisposableLock createLockIfAbsent(UUID aggregateIdentifier) {
+        DisposableLock lock = lockFor(aggregateIdentifier);
+        if (lock == null) {
+            DisposableLock newLock = new DisposableLock();
+            lock = locks.putIfAbsent(aggregateIdentifier, newLock);
+            if (lock == null) {
+                lock = newLock;
+            }
+        }
+        return lock;
     }
 
     private DisposableLock lockFor(UUID aggregateIdentifier) {
         return locks.get(aggregateIdentifier);
     }
 
+    /**
+     * Indicates whether the current thread, waiting for the given <code>lock</code>, must give up to resolve a
+     * deadlock. That is the case if the owner of the lock is, directly or indirectly, waiting for a lock held by the
+     * current thread, and the current thread has the highest identifier of all threads involved that wait in a lock
+     * manager detecting deadlocks. Threads waiting in other lock managers never check for deadlocks, so they cannot be
+     * chosen to give up.
+     */
+    private static boolean isDeadlockVictim(DisposableLock lock) {
+        Thread currentThread = Thread.currentThread();
+        Thread victim = currentThread;
+        Set<Thread> visited = new HashSet<Thread>();
+        DisposableLock waitedFor = lock;
+        while (waitedFor != null) {
+            Thread owner = waitedFor.getOwner();
+            if (owner == null || !visited.add(owner)) {
+                // the lock is available, or the owners wait for each other without involving the current thread
+                return false;
+            }
+            if (owner == currentThread) {
+                return victim == currentThread;
+            }
+            waitedFor = WAITING_THREADS.get(owner);
+            if (waitedFor != null && waitedFor.detectsDeadlocks() && owner.getId() > victim.getId()) {
+                victim = owner;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Reentrant lock that is disposed of as soon as no thread holds or waits for it. Unlike a {@link
+     * java.util.concurrent.locks.ReentrantLock}, it can be taken away from its owner when its lease expires.
+     */
     private class DisposableLock {
 
-        private ReentrantLock lock;
-        // guarded by "this"
+        // read without synchronization to detect deadlocks
+        private volatile Thread owner;
+        // the remaining fields are guarded by "this"
+        private int holdCount;
+        private int waitCount;
+        private long leaseExpiry;
         private boolean isClosed = false;
 
-        private DisposableLock() {
-            this.lock = new ReentrantLock();
+        public boolean isHeldByCurrentThread() {
+            return owner == Thread.currentThread();
         }
 
-        public boolean isHeldByCurrentThread() {
-            return lock.isHeldByCurrentThread();
+        public boolean isLocked() {
+            return owner != null;
         }
 
-        public void unlock(UUID aggregateIdentifier) {
-            lock.unlock();
-            if (shutDown()) {
-                locks.remove(aggregateIdentifier);
-            }
+        public Thread getOwner() {
+            return owner;
         }
 
-        public synchronized boolean lock() {
+        public boolean detectsDeadlocks() {
+            return deadlockDetection;
+        }
+
+        /**
+         * Obtains this lock, waiting at most until the given <code>deadline</code>, if any. Returns <code>false</code>
+         * if this lock has been disposed of, in which case a new lock must be obtained.
+         */
+        public synchronized boolean lock(UUID aggregateIdentifier, long deadline) {
             if (isClosed) {
                 return false;
             }
-            lock.lock();
+            if (!isAvailable()) {
+                waitForLock(aggregateIdentifier, deadline);
+            }
+            acquire();
             return true;
         }
 
         public synchronized boolean tryLock() {
-            return !isClosed && lock.tryLock();
+            if (isClosed || !isAvailable()) {
+                return false;
+            }
+            acquire();
+            return true;
         }
 
-        public boolean isLocked() {
-            return lock.isLocked();
+        /**
+         * Renews the lease of this lock, if it is held by the current thread. Returns whether the lock is held by the
+         * current thread.
+         */
+        public synchronized boolean renewLease() {
+            if (!isHeldByCurrentThread()) {
+                return false;
+            }
+            leaseExpiry = newLeaseExpiry();
+            return true;
         }
 
-        public synchronized boolean shutDown() {
-            if (lock.tryLock()) {
-                // we now have a lock. We can shut it down.
+        public synchronized void unlock(UUID aggregateIdentifier) {
+            if (!isHeldByCurrentThread()) {
+                throw new IllegalMonitorStateException("The current thread does not hold the lock of this aggregate");
+            }
+            holdCount--;
+            if (holdCount == 0) {
+                free(aggregateIdentifier);
+            }
+        }
+
+        /**
+         * Releases this lock if its lease had expired at the given time. Returns whether the lock was released.
+         */
+        public synchronized boolean expire(UUID aggregateIdentifier, long currentTime) {
+            if (owner == null || leaseExpiry > currentTime) {
+                return false;
+            }
+            holdCount = 0;
+            free(aggregateIdentifier);
+            return true;
+        }
+
+        private boolean isAvailable() {
+            return owner == null || isHeldByCurrentThread();
+        }
+
+        private void acquire() {
+            owner = Thread.currentThread();
+            holdCount++;
+            leaseExpiry = newLeaseExpiry();
+        }
+
+        private long newLeaseExpiry() {
+            long time = leaseTime;
+            return time > 0 ? System.currentTimeMillis() + time : Long.MAX_VALUE;
+        }
+
+        private void free(UUID aggregateIdentifier) {
+            owner = null;
+            if (waitCount > 0) {
+                notifyAll();
+            } else {
+                disposeIfUnused(aggregateIdentifier);
+            }
+        }
+
+        private void disposeIfUnused(UUID aggregateIdentifier) {
+            if (owner == null && waitCount == 0) {
                 isClosed = true;
-                lock.unlock();
+                // only remove this lock, another thread may already have replaced it with a new one
+                locks.remove(aggregateIdentifier, this);
+            }
+        }
+
+        /**
+         * Waits until this lock is available, or throws an exception if that takes too long. Must be called while
+         * holding the monitor of this lock.
+         */
+        private void waitForLock(UUID aggregateIdentifier, long deadline) {
+            waitCount++;
+            WAITING_THREADS.put(Thread.currentThread(), this);
+            boolean available = false;
+            try {
+                while (!isAvailable()) {
+                    // waiting for 0 milliseconds waits indefinitely
+                    long waitTime = deadlockDetection ? DEADLOCK_CHECK_INTERVAL : 0;
+                    if (deadline > 0) {
+                        long remaining = deadline - System.currentTimeMillis();
+                        if (remaining <= 0) {
+                            throw new LockAcquisitionFailedException(String.format(
+                                    "Unable to obtain the lock of aggregate [%s] within %s milliseconds",
+                                    aggregateIdentifier, lockTimeout));
+                        }
+                        waitTime = waitTime == 0 ? remaining : Math.min(waitTime, remaining);
+                    }
+                    wait(waitTime);
+                    if (!isAvailable() && deadlockDetection && isDeadlockVictim(this)) {
+                        throw new DeadlockException(String.format(
+                                "Obtaining the lock of aggregate [%s] would cause a deadlock", aggregateIdentifier));
+                    }
+                }
+                available = true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new LockAcquisitionFailedException(String.format(
+                        "Thread was interrupted while waiting for the lock of aggregate [%s]", aggregateIdentifier), e);
+            } finally {
+                waitCount--;
+                WAITING_THREADS.remove(Thread.currentThread());
+                if (!available) {
+                    // the lock may have been freed while this thread was about to give up
+                    disposeIfUnused(aggregateIdentifier);
+                }
             }
-            return isClosed;
         }
     }
 }
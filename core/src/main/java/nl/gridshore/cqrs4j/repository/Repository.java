@@ -18,6 +18,8 @@ package nl.gridshore.cqrs4j.repository;
 
 import nl.gridshore.cqrs4j.AggregateRoot;
 
+import java.util.Collection;
+import java.util.List;
 import java.util.UUID;
 
 /**
@@ -32,6 +34,9 @@ public interface Repository<T extends AggregateRoot> {
     /**
      * Store the given aggregate. If an aggregate with the same unique identifier already exists, it is updated
      * instead.
+     * <p/>
+     * If a {@link UnitOfWork} has been started for the current thread, the aggregate is stored when the unit of work
+     * is committed.
      *
      * @param aggregate The aggregate root of the aggregate to store.
      */
@@ -44,4 +49,44 @@ public interface Repository<T extends AggregateRoot> {
      * @return The aggregate root with the given identifier.
      */
     T load(UUID aggregateIdentifier);
+
+    /**
+     * Load the aggregate with the given unique identifier for reading only. The returned aggregate is a private copy,
+     * reflecting the state of the aggregate at the time it was loaded. No lock is obtained for it, so loading it never
+     * waits for threads that modify the aggregate, and there is no lock to release afterwards.
+     * <p/>
+     * Aggregates loaded for reading only cannot be saved.
+     *
+     * @param aggregateIdentifier The identifier of the aggregate to load
+     * @return A copy of the aggregate root with the given identifier.
+     *
+     * @since 0.4
+     */
+    T loadReadOnly(UUID aggregateIdentifier);
+
+    /**
+     * Load the aggregates with the given unique identifiers. Depending on the implementation, this may be considerably
+     * faster than loading the aggregates one by one.
+     *
+     * @param aggregateIdentifiers The identifiers of the aggregates to load. May not contain duplicates.
+     * @return The aggregate roots with the given identifiers, in the iteration order of the given collection.
+     *
+     * @throws IllegalArgumentException if the given identifiers contain duplicates
+     * @since 0.4
+     */
+    List<T> loadAll(Collection<UUID> aggregateIdentifiers);
+
+    /**
+     * Release the given aggregate without saving it, for example because the changes made to it turned out to be
+     * invalid. Any locks held on the aggregate are released, and any changes made to it are discarded. The aggregate
+     * may not be saved afterwards.
+     * <p/>
+     * Aggregates saved within a {@link UnitOfWork} are released when the unit of work is completed, and cannot be
+     * released explicitly. Releasing aggregates loaded for reading only has no effect.
+     *
+     * @param aggregate The aggregate root of the aggregate to release.
+     * @throws IllegalStateException if the aggregate has been saved within the current unit of work
+     * @since 0.4
+     */
+    void release(T aggregate);
 }
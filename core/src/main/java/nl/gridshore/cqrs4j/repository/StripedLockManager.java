@@ -0,0 +1,193 @@
+/*
+ * Copyright (c) 2010. Gridshore
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.gridshore.cqrs4j.repository;
+
+import nl.gridshore.cqrs4j.VersionedAggregateRoot;
+import nl.gridshore.cqrs4j.util.Assert;
+
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Implementation of the {@link LockManager} that uses a pessimistic locking strategy, backed by a fixed number of
+ * locks. Each aggregate is guarded by one of these locks, chosen by the hash of its identifier. Unlike the {@link
+ * PessimisticLockManager}, this lock manager never creates or disposes of locks, so its memory usage does not depend on
+ * the number of aggregates in use.
+ * <p/>
+ * Aggregates that share a lock cannot be loaded by different threads at the same time. The more locks are used, the
+ * less likely that is. A thread may hold the locks of any number of aggregates, including aggregates that share a
+ * lock.
+ * <p/>
+ * Optionally, the lock manager checks that threads do not obtain the lock of an aggregate they already hold, which
+ * usually means that a lock was never released. This requires keeping track of the aggregates locked by each thread,
+ * which also allows the lock manager to tell aggregates that share a lock apart when validating locks. Without this
+ * check, a thread holding the lock of an aggregate is considered to hold the locks of all aggregates sharing that
+ * lock.
+ *
+ * @author Allard Buijze
+ * @since 0.4
+ */
+class StripedLockManager implements LockManager {
+
+    /**
+     * The number of locks used by default.
+     */
+    static final int DEFAULT_STRIPE_COUNT = 1024;
+
+    private final ReentrantLock[] stripes;
+    private final int mask;
+    private final ThreadLocal<Set<UUID>> ownedAggregates;
+
+    /**
+     * Initializes a lock manager with the default number of locks, without reentrancy check.
+     */
+    StripedLockManager() {
+        this(DEFAULT_STRIPE_COUNT, false);
+    }
+
+    /**
+     * Initializes a lock manager with at least the given number of locks. The number of locks is rounded up to the
+     * nearest power of two.
+     *
+     * @param stripeCount     the minimum number of locks to use
+     * @param checkReentrancy whether to check that threads do not obtain the lock of an aggregate they already hold
+     */
+    StripedLockManager(int stripeCount, boolean checkReentrancy) {
+        Assert.isTrue(stripeCount > 0 && stripeCount <= (1 << 30), "The number of locks must be between 1 and 2^30");
+        int size = Integer.highestOneBit(stripeCount);
+        if (size < stripeCount) {
+            size <<= 1;
+        }
+        stripes = new ReentrantLock[size];
+        for (int i = 0; i < size; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+        mask = size - 1;
+        ownedAggregates = checkReentrancy ? new OwnedAggregates() : null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean validateLock(VersionedAggregateRoot aggregate) {
+        UUID aggregateIdentifier = aggregate.getIdentifier();
+        if (isHeldByCurrentThread(aggregateIdentifier)) {
+            return true;
+        }
+        // if the thread lost the lock due to an exception, it could get it back, if it's lucky.
+        if (stripeFor(aggregateIdentifier).tryLock()) {
+            markOwned(aggregateIdentifier);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Obtain a lock for an aggregate. This method will block until a lock was successfully obtained.
+     *
+     * @param aggregateIdentifier the identifier of the aggregate to obtains a lock for.
+     * @throws IllegalStateException if reentrancy is checked, and the current thread already holds the lock
+     */
+    @Override
+    public void obtainLock(UUID aggregateIdentifier) {
+        Assert.state(ownedAggregates == null || !ownedAggregates.get().contains(aggregateIdentifier),
+                     "The current thread already holds the lock of this aggregate");
+        stripeFor(aggregateIdentifier).lock();
+        markOwned(aggregateIdentifier);
+    }
+
+    /**
+     * Release the lock held on the aggregate. If no valid lock is held by the current thread, an exception is thrown.
+     *
+     * @param aggregateIdentifier the identifier of the aggregate to release the lock for.
+     * @throws IllegalStateException        if reentrancy is checked, and the current thread does not hold the lock
+     * @throws IllegalMonitorStateException if the current thread does not hold the lock of any aggregate sharing the
+     *                                      lock
+     */
+    @Override
+    public void releaseLock(UUID aggregateIdentifier) {
+        if (ownedAggregates != null) {
+            Assert.state(ownedAggregates.get().remove(aggregateIdentifier),
+                         "The current thread does not hold the lock of this aggregate");
+        }
+        stripeFor(aggregateIdentifier).unlock();
+    }
+
+    /**
+     * Returns an order that sorts aggregates by the index of their lock, and aggregates sharing a lock by their
+     * identifier. Ordering the aggregates by identifier alone would not prevent deadlocks, as aggregates with
+     * identifiers in a given order may well share locks in the opposite order.
+     *
+     * @return the order of the aggregate identifiers
+     */
+    @Override
+    public Comparator<UUID> getLockOrder() {
+        return new Comparator<UUID>() {
+            @Override
+            public int compare(UUID first, UUID second) {
+                int firstIndex = indexOf(first);
+                int secondIndex = indexOf(second);
+                if (firstIndex != secondIndex) {
+                    return firstIndex < secondIndex ? -1 : 1;
+                }
+                return first.compareTo(second);
+            }
+        };
+    }
+
+    private boolean isHeldByCurrentThread(UUID aggregateIdentifier) {
+        if (ownedAggregates != null) {
+            return ownedAggregates.get().contains(aggregateIdentifier);
+        }
+        return stripeFor(aggregateIdentifier).isHeldByCurrentThread();
+    }
+
+    private void markOwned(UUID aggregateIdentifier) {
+        if (ownedAggregates != null) {
+            ownedAggregates.get().add(aggregateIdentifier);
+        }
+    }
+
+    private ReentrantLock stripeFor(UUID aggregateIdentifier) {
+        return stripes[indexOf(aggregateIdentifier)];
+    }
+
+    private int indexOf(UUID aggregateIdentifier) {
+        int hash = aggregateIdentifier.hashCode();
+        // spread the high bits, as only the low bits select the lock
+        hash ^= (hash >>> 16);
+        return hash & mask;
+    }
+
+    /**
+     * Keeps track of the aggregates locked by each thread.
+     */
+    private static class OwnedAggregates extends ThreadLocal<Set<UUID>> {
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        protected Set<UUID> initialValue() {
+            return new HashSet<UUID>();
+        }
+    }
+}
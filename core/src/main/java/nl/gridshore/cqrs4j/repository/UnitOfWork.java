@@ -0,0 +1,215 @@
+/*
+ * Copyright (c) 2010. Gridshore
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.gridshore.cqrs4j.repository;
+
+import nl.gridshore.cqrs4j.AggregateRoot;
+import nl.gridshore.cqrs4j.util.Assert;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Groups the saving of several aggregates, possibly of different repositories. A unit of work is bound to the thread
+ * that started it. While it is active, the {@link AbstractRepository repositories} don't save aggregates immediately,
+ * but register them with the unit of work instead. When the unit of work is committed, all registered aggregates are
+ * saved, after which their events are published. Repositories that use the same storage may combine the changes of
+ * all aggregates in a single write. Nothing is published if saving any of the aggregates fails.
+ * <p/>
+ * Typical usage:
+ * <pre>
+ * UnitOfWork unitOfWork = UnitOfWork.start();
+ * try {
+ *     // load, modify and save aggregates
+ *     unitOfWork.commit();
+ * } catch (RuntimeException e) {
+ *     unitOfWork.rollback();
+ *     throw e;
+ * }
+ * </pre>
+ * A unit of work must always be committed or rolled back. Otherwise, it remains bound to the thread, and the locks of
+ * the aggregates it contains are never released.
+ *
+ * @author Allard Buijze
+ * @since 0.4
+ */
+public class UnitOfWork {
+
+    private static final Logger logger = LoggerFactory.getLogger(UnitOfWork.class);
+    private static final ThreadLocal<UnitOfWork> CURRENT = new ThreadLocal<UnitOfWork>();
+
+    private final Map<AggregateRoot, UnitOfWorkListener> aggregates =
+            new IdentityHashMap<AggregateRoot, UnitOfWorkListener>();
+    private final List<UnitOfWorkListener> listeners = new ArrayList<UnitOfWorkListener>();
+    private final Map<Object, Object> resources = new HashMap<Object, Object>();
+    private boolean completed;
+
+    private UnitOfWork() {
+    }
+
+    /**
+     * Starts a new unit of work and binds it to the current thread.
+     *
+     * @return the started unit of work
+     *
+     * @throws IllegalStateException if a unit of work has already been started for the current thread
+     */
+    public static UnitOfWork start() {
+        Assert.state(CURRENT.get() == null, "A unit of work has already been started for the current thread");
+        UnitOfWork unitOfWork = new UnitOfWork();
+        CURRENT.set(unitOfWork);
+        return unitOfWork;
+    }
+
+    /**
+     * Indicates whether a unit of work is bound to the current thread.
+     *
+     * @return <code>true</code> if a unit of work is bound to the current thread, otherwise <code>false</code>
+     */
+    public static boolean isStarted() {
+        return CURRENT.get() != null;
+    }
+
+    /**
+     * Returns the unit of work bound to the current thread, or <code>null</code> if there is none.
+     *
+     * @return the unit of work bound to the current thread, if any
+     */
+    public static UnitOfWork current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Registers the given <code>aggregate</code> to be saved when this unit of work is committed, using the given
+     * <code>listener</code>. Aggregates that have been registered before are ignored.
+     *
+     * @param aggregate The aggregate to register
+     * @param listener  The listener that saves the aggregate
+     * @return <code>true</code> if the aggregate has been registered, or <code>false</code> if it was registered before
+     */
+    public boolean registerAggregate(AggregateRoot aggregate, UnitOfWorkListener listener) {
+        if (aggregates.containsKey(aggregate)) {
+            return false;
+        }
+        aggregates.put(aggregate, listener);
+        registerListener(listener);
+        return true;
+    }
+
+    /**
+     * Indicates whether the given <code>aggregate</code> has been registered with this unit of work.
+     *
+     * @param aggregate The aggregate to check
+     * @return <code>true</code> if the aggregate has been registered, otherwise <code>false</code>
+     */
+    public boolean isRegistered(AggregateRoot aggregate) {
+        return aggregates.containsKey(aggregate);
+    }
+
+    /**
+     * Registers a listener that is notified when this unit of work is committed or rolled back.
+     *
+     * @param listener The listener to register
+     */
+    public void registerListener(UnitOfWorkListener listener) {
+        Assert.state(!completed, "The unit of work has already been committed or rolled back");
+        listeners.add(listener);
+    }
+
+    /**
+     * Returns the resource bound to this unit of work using the given <code>key</code>, or <code>null</code> if there
+     * is none. Resources allow repositories that share the same storage to combine their changes.
+     *
+     * @param key The key of the resource
+     * @return the resource bound using the given key, if any
+     */
+    public Object getResource(Object key) {
+        return resources.get(key);
+    }
+
+    /**
+     * Binds the given <code>resource</code> to this unit of work, using the given <code>key</code>.
+     *
+     * @param key      The key of the resource
+     * @param resource The resource to bind
+     */
+    public void bindResource(Object key, Object resource) {
+        resources.put(key, resource);
+    }
+
+    /**
+     * Commits this unit of work. All registered aggregates are saved. If that succeeds, the unit of work is unbound
+     * from the current thread before the {@link UnitOfWorkListener#afterCommit() after commit} notifications, which
+     * publish the events of the aggregates. If saving fails, the unit of work is rolled back, and the exception is
+     * rethrown. Rolling it back again, as in the typical usage shown above, has no effect.
+     */
+    public void commit() {
+        Assert.state(CURRENT.get() == this, "The unit of work is not bound to the current thread");
+        try {
+            // listeners may register other listeners while preparing
+            for (int i = 0; i < listeners.size(); i++) {
+                listeners.get(i).onPrepareCommit();
+            }
+        } catch (RuntimeException e) {
+            rollback();
+            throw e;
+        }
+        complete();
+        RuntimeException failure = null;
+        for (UnitOfWorkListener listener : listeners) {
+            try {
+                listener.afterCommit();
+            } catch (RuntimeException e) {
+                logger.error("A listener failed after the unit of work was committed", e);
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Rolls back this unit of work. None of the registered aggregates are saved, and the unit of work is unbound from
+     * the current thread. Does nothing if this unit of work has already been committed or rolled back.
+     */
+    public void rollback() {
+        if (completed) {
+            return;
+        }
+        Assert.state(CURRENT.get() == this, "The unit of work is not bound to the current thread");
+        complete();
+        for (UnitOfWorkListener listener : listeners) {
+            try {
+                listener.onRollback();
+            } catch (RuntimeException e) {
+                logger.warn("A listener failed while the unit of work was rolled back", e);
+            }
+        }
+    }
+
+    private void complete() {
+        completed = true;
+        CURRENT.remove();
+    }
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright (c) 2010. Gridshore
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.gridshore.cqrs4j.repository;
+
+/**
+ * Interface describing a listener that is notified of the progress of a {@link UnitOfWork}.
+ *
+ * @author Allard Buijze
+ * @see UnitOfWork#registerListener(UnitOfWorkListener)
+ * @since 0.4
+ */
+public interface UnitOfWorkListener {
+
+    /**
+     * Invoked when the unit of work is being committed. Listeners are invoked in the order in which they were
+     * registered. Listeners registered while the unit of work is being committed are invoked as well. If this method
+     * throws an exception, the unit of work is rolled back.
+     */
+    void onPrepareCommit();
+
+    /**
+     * Invoked when all listeners have been prepared for commit. The unit of work is no longer bound to the current
+     * thread at this time.
+     */
+    void afterCommit();
+
+    /**
+     * Invoked when the unit of work is rolled back, either explicitly or because preparing the commit failed.
+     */
+    void onRollback();
+}
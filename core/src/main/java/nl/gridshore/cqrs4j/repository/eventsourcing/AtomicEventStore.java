@@ -0,0 +1,42 @@
+/*
+ * Copyright (c) 2010. Gridshore
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.gridshore.cqrs4j.repository.eventsourcing;
+
+import java.util.List;
+
+/**
+ * Event store that is capable of appending the events of several aggregates atomically: either all events are
+ * stored, or none of them are, even if the application crashes while they are being appended.
+ * <p/>
+ * The {@link EventSourcingRepository} uses this capability to save all aggregates of a {@link
+ * nl.gridshore.cqrs4j.repository.UnitOfWork} at once.
+ *
+ * @author Allard Buijze
+ * @see nl.gridshore.cqrs4j.repository.UnitOfWork
+ * @since 0.4
+ */
+public interface AtomicEventStore extends EventStore {
+
+    /**
+     * Append the events in the given streams, which may belong to different aggregates, atomically.
+     *
+     * @param eventStreams The event streams containing the events to store
+     * @throws EventStorageException if an error occurs while storing the events. None of the events are stored in
+     *                               that case.
+     */
+    void appendEvents(List<TypedEventStream> eventStreams);
+}
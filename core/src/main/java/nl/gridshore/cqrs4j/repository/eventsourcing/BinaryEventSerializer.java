@@ -0,0 +1,530 @@
+/*
+ * Copyright (c) 2010. Gridshore
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package nl.gridshore.cqrs4j.repository.eventsourcing;
+
+import com.thoughtworks.xstream.converters.reflection.ReflectionProvider;
+import com.thoughtworks.xstream.converters.reflection.Sun14ReflectionProvider;
+import com.thoughtworks.xstream.core.JVM;
+import nl.gridshore.cqrs4j.DomainEvent;
+import org.joda.time.DateTimeZone;
+import org.joda.time.LocalDateTime;
+import org.springframework.core.ConfigurableObjectInputStream;
+import org.springframework.util.ClassUtils;
+import org.springframework.util.ReflectionUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Implementation of the {@link EventSerializer} that serializes events to a compact binary format. The fields of the
+ * {@link DomainEvent} base class are written in their most compact form: identifiers as two longs, the sequence number
+ * as a variable length integer and the time stamp as milliseconds since the epoch (UTC).
+ * <p/>
+ * The other fields of the event are written in the order of declaration in the class hierarchy, sorted by name within
+ * each class. Primitive values and common types (such as Strings, UUIDs, enums and {@link LocalDateTime}) are written
+ * in a compact form. Values of other classes in the <code>java</code> and <code>javax</code> packages, such as
+ * collections, are written using Java serialization and must be {@link Serializable}. Values of any other class are
+ * written field by field, and may not contain circular references. Static and transient fields are ignored.
+ * <p/>
+ * The fields of each class are looked up and made accessible once, and cached for subsequent use.
+ * <p/>
+ * Note that field names are not included in the serialized form. Adding, removing or renaming fields of an event class
+ * (or any class used by its fields) makes events serialized before the change unreadable. Use the {@link
+ * XStreamEventSerializer} if event classes are expected to change.
+ *
+ * @author Allard Buijze
+ * @since 0.4
+ */
+public class BinaryEventSerializer implements EventSerializer {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final byte NULL = 0;
+    private static final byte BOOLEAN = 1;
+    private static final byte BYTE = 2;
+    private static final byte SHORT = 3;
+    private static final byte CHARACTER = 4;
+    private static final byte INTEGER = 5;
+    private static final byte LONG = 6;
+    private static final byte FLOAT = 7;
+    private static final byte DOUBLE = 8;
+    private static final byte STRING = 9;
+    private static final byte UUID_VALUE = 10;
+    private static final byte LOCAL_DATE_TIME = 11;
+    private static final byte ENUM = 12;
+    private static final byte SERIALIZABLE = 13;
+    private static final byte OBJECT = 14;
+
+    private static final int HAS_AGGREGATE_IDENTIFIER = 1;
+    private static final int HAS_SEQUENCE_NUMBER = 2;
+
+    private static final Field SEQUENCE_NUMBER_FIELD = domainEventField("sequenceNumber");
+    private static final Field AGGREGATE_IDENTIFIER_FIELD = domainEventField("aggregateIdentifier");
+    private static final Field CREATE_DATE_FIELD = domainEventField("createDate");
+    private static final Field EVENT_IDENTIFIER_FIELD = domainEventField("eventIdentifier");
+
+    private static final FieldComparator FIELD_COMPARATOR = new FieldComparator();
+    private static final Map<Class<?>, Class<?>> PRIMITIVE_TYPES = new HashMap<Class<?>, Class<?>>();
+
+    static {
+        PRIMITIVE_TYPES.put(Boolean.class, boolean.class);
+        PRIMITIVE_TYPES.put(Byte.class, byte.class);
+        PRIMITIVE_TYPES.put(Short.class, short.class);
+        PRIMITIVE_TYPES.put(Character.class, char.class);
+        PRIMITIVE_TYPES.put(Integer.class, int.class);
+        PRIMITIVE_TYPES.put(Long.class, long.class);
+        PRIMITIVE_TYPES.put(Float.class, float.class);
+        PRIMITIVE_TYPES.put(Double.class, double.class);
+    }
+
+    private final ConcurrentMap<Class<?>, Field[]> fieldCache = new ConcurrentHashMap<Class<?>, Field[]>();
+    private final ConcurrentMap<String, Class<?>> classCache = new ConcurrentHashMap<String, Class<?>>();
+    private final ReflectionProvider reflectionProvider = createReflectionProvider();
+    private ClassLoader classLoader = ClassUtils.getDefaultClassLoader();
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ByteBuffer serialize(DomainEvent event) {
+        try {
+            Output out = new Output();
+            out.writeString(event.getClass().getName());
+            UUID aggregateIdentifier = event.getAggregateIdentifier();
+            Long sequenceNumber = event.getSequenceNumber();
+            out.writeByte((aggregateIdentifier != null ? HAS_AGGREGATE_IDENTIFIER : 0)
+                                  | (sequenceNumber != null ? HAS_SEQUENCE_NUMBER : 0));
+            if (aggregateIdentifier != null) {
+                out.writeUUID(aggregateIdentifier);
+            }
+            if (sequenceNumber != null) {
+                out.writeVarLong(sequenceNumber);
+            }
+            out.writeUUID(event.getEventIdentifier());
+            out.writeLong(toMillis((LocalDateTime) CREATE_DATE_FIELD.get(event)));
+            writeFields(out, event, event.getClass());
+            return out.toByteBuffer();
+        } catch (IllegalAccessException e) {
+            throw new EventStorageException("Unable to access the fields of the given event", e);
+        } catch (IOException e) {
+            throw new EventStorageException("Unable to serialize the given event", e);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public DomainEvent deserialize(ByteBuffer serializedEvent) {
+        try {
+            Class<?> eventType = classForName(readString(serializedEvent));
+            DomainEvent event = (DomainEvent) reflectionProvider.newInstance(eventType);
+            int flags = serializedEvent.get();
+            if ((flags & HAS_AGGREGATE_IDENTIFIER) != 0) {
+                AGGREGATE_IDENTIFIER_FIELD.set(event, readUUID(serializedEvent));
+            }
+            if ((flags & HAS_SEQUENCE_NUMBER) != 0) {
+                SEQUENCE_NUMBER_FIELD.set(event, readVarLong(serializedEvent));
+            }
+            EVENT_IDENTIFIER_FIELD.set(event, readUUID(serializedEvent));
+            CREATE_DATE_FIELD.set(event, fromMillis(serializedEvent.getLong()));
+            readFields(serializedEvent, event, eventType);
+            return event;
+        } catch (IllegalAccessException e) {
+            throw new EventStorageException("Unable to access the fields of the serialized event", e);
+        } catch (ClassNotFoundException e) {
+            throw new EventStorageException("Unable to find the class of the serialized event", e);
+        } catch (IOException e) {
+            throw new EventStorageException("Unable to deserialize the given event", e);
+        }
+    }
+
+    private void writeFields(Output out, Object object, Class<?> type) throws IllegalAccessException, IOException {
+        for (Field field : fieldsOf(type)) {
+            writeValue(out, field.getType(), field.get(object));
+        }
+    }
+
+    private void readFields(ByteBuffer in, Object object, Class<?> type)
+            throws IllegalAccessException, IOException, ClassNotFoundException {
+        for (Field field : fieldsOf(type)) {
+            field.set(object, readValue(in, field.getType()));
+        }
+    }
+
+    private void writeValue(Output out, Class<?> declaredType, Object value) throws IllegalAccessException,
+                                                                                    IOException {
+        if (declaredType.isPrimitive()) {
+            writePrimitive(out, declaredType, value);
+        } else if (value == null) {
+            out.writeByte(NULL);
+        } else if (value instanceof String) {
+            out.writeByte(STRING);
+            out.writeString((String) value);
+        } else if (PRIMITIVE_TYPES.containsKey(value.getClass())) {
+            Class<?> primitiveType = PRIMITIVE_TYPES.get(value.getClass());
+            out.writeByte(tagOf(primitiveType));
+            writePrimitive(out, primitiveType, value);
+        } else if (value instanceof UUID) {
+            out.writeByte(UUID_VALUE);
+            out.writeUUID((UUID) value);
+        } else if (value instanceof LocalDateTime) {
+            out.writeByte(LOCAL_DATE_TIME);
+            out.writeLong(toMillis((LocalDateTime) value));
+        } else if (value instanceof Enum) {
+            out.writeByte(ENUM);
+            out.writeString(((Enum) value).getDeclaringClass().getName());
+            out.writeString(((Enum) value).name());
+        } else if (value.getClass().isArray() || isPlatformClass(value.getClass())) {
+            if (!(value instanceof Serializable)) {
+                throw new EventStorageException(String.format(
+                        "Unable to serialize a value of type [%s]. It is not Serializable.",
+                        value.getClass().getName()));
+            }
+            out.writeByte(SERIALIZABLE);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ObjectOutputStream objectStream = new ObjectOutputStream(bytes);
+            objectStream.writeObject(value);
+            objectStream.close();
+            out.writeBytes(bytes.toByteArray());
+        } else {
+            out.writeByte(OBJECT);
+            out.writeString(value.getClass().getName());
+            writeFields(out, value, value.getClass());
+        }
+    }
+
+    @SuppressWarnings({"unchecked"})
+    private Object readValue(ByteBuffer in, Class<?> declaredType)
+            throws IllegalAccessException, IOException, ClassNotFoundException {
+        if (declaredType.isPrimitive()) {
+            return readPrimitive(in, declaredType);
+        }
+        byte tag = in.get();
+        switch (tag) {
+            case NULL:
+                return null;
+            case BOOLEAN:
+                return readPrimitive(in, boolean.class);
+            case BYTE:
+                return readPrimitive(in, byte.class);
+            case SHORT:
+                return readPrimitive(in, short.class);
+            case CHARACTER:
+                return readPrimitive(in, char.class);
+            case INTEGER:
+                return readPrimitive(in, int.class);
+            case LONG:
+                return readPrimitive(in, long.class);
+            case FLOAT:
+                return readPrimitive(in, float.class);
+            case DOUBLE:
+                return readPrimitive(in, double.class);
+            case STRING:
+                return readString(in);
+            case UUID_VALUE:
+                return readUUID(in);
+            case LOCAL_DATE_TIME:
+                return fromMillis(in.getLong());
+            case ENUM:
+                Class enumType = classForName(readString(in));
+                return Enum.valueOf(enumType, readString(in));
+            case SERIALIZABLE:
+                byte[] bytes = new byte[(int) readVarLong(in)];
+                in.get(bytes);
+                ObjectInputStream objectStream = new ConfigurableObjectInputStream(new ByteArrayInputStream(bytes),
+                                                                                   classLoader);
+                try {
+                    return objectStream.readObject();
+                } finally {
+                    objectStream.close();
+                }
+            case OBJECT:
+                Class<?> type = classForName(readString(in));
+                Object value = reflectionProvider.newInstance(type);
+                readFields(in, value, type);
+                return value;
+            default:
+                throw new EventStorageException(String.format("Unknown value type [%s] in serialized event", tag));
+        }
+    }
+
+    private void writePrimitive(Output out, Class<?> type, Object value) {
+        if (type == boolean.class) {
+            out.writeByte((Boolean) value ? 1 : 0);
+        } else if (type == byte.class) {
+            out.writeByte((Byte) value);
+        } else if (type == short.class) {
+            out.writeVarLong(zigZag((Short) value));
+        } else if (type == char.class) {
+            out.writeVarLong((Character) value);
+        } else if (type == int.class) {
+            out.writeVarLong(zigZag((Integer) value));
+        } else if (type == long.class) {
+            out.writeVarLong(zigZag((Long) value));
+        } else if (type == float.class) {
+            out.writeInt(Float.floatToIntBits((Float) value));
+        } else {
+            out.writeLong(Double.doubleToLongBits((Double) value));
+        }
+    }
+
+    private Object readPrimitive(ByteBuffer in, Class<?> type) {
+        if (type == boolean.class) {
+            return in.get() != 0;
+        } else if (type == byte.class) {
+            return in.get();
+        } else if (type == short.class) {
+            return (short) unZigZag(readVarLong(in));
+        } else if (type == char.class) {
+            return (char) readVarLong(in);
+        } else if (type == int.class) {
+            return (int) unZigZag(readVarLong(in));
+        } else if (type == long.class) {
+            return unZigZag(readVarLong(in));
+        } else if (type == float.class) {
+            return Float.intBitsToFloat(in.getInt());
+        } else {
+            return Double.longBitsToDouble(in.getLong());
+        }
+    }
+
+    private byte tagOf(Class<?> primitiveType) {
+        if (primitiveType == boolean.class) {
+            return BOOLEAN;
+        } else if (primitiveType == byte.class) {
+            return BYTE;
+        } else if (primitiveType == short.class) {
+            return SHORT;
+        } else if (primitiveType == char.class) {
+            return CHARACTER;
+        } else if (primitiveType == int.class) {
+            return INTEGER;
+        } else if (primitiveType == long.class) {
+            return LONG;
+        } else if (primitiveType == float.class) {
+            return FLOAT;
+        }
+        return DOUBLE;
+    }
+
+    /**
+     * Returns the serialized fields of the given <code>type</code>, looking them up if they have not been cached yet.
+     *
+     * @param type The type to find the fields of
+     * @return the fields to serialize, in serialization order
+     */
+    private Field[] fieldsOf(Class<?> type) {
+        Field[] fields = fieldCache.get(type);
+        if (fields == null) {
+            List<Field> fieldList = new ArrayList<Field>();
+            Class<?> currentType = type;
+            while (currentType != null && currentType != DomainEvent.class && currentType != Object.class) {
+                List<Field> declaredFields = new ArrayList<Field>();
+                for (Field field : currentType.getDeclaredFields()) {
+                    int modifiers = field.getModifiers();
+                    if (!Modifier.isStatic(modifiers) && !Modifier.isTransient(modifiers) && !field.isSynthetic()) {
+                        ReflectionUtils.makeAccessible(field);
+                        declaredFields.add(field);
+                    }
+                }
+                Collections.sort(declaredFields, FIELD_COMPARATOR);
+                fieldList.addAll(0, declaredFields);
+                currentType = currentType.getSuperclass();
+            }
+            fields = fieldList.toArray(new Field[fieldList.size()]);
+            fieldCache.putIfAbsent(type, fields);
+        }
+        return fields;
+    }
+
+    private Class<?> classForName(String className) throws ClassNotFoundException {
+        Class<?> type = classCache.get(className);
+        if (type == null) {
+            type = ClassUtils.forName(className, classLoader);
+            classCache.putIfAbsent(className, type);
+        }
+        return type;
+    }
+
+    private static ReflectionProvider createReflectionProvider() {
+        // event classes often lack a no-arg constructor, so prefer the provider that doesn't need one
+        if (ClassUtils.isPresent("sun.misc.Unsafe", BinaryEventSerializer.class.getClassLoader())) {
+            return new Sun14ReflectionProvider();
+        }
+        return new JVM().bestReflectionProvider();
+    }
+
+    private static boolean isPlatformClass(Class<?> type) {
+        return type.getName().startsWith("java.") || type.getName().startsWith("javax.");
+    }
+
+    private static long toMillis(LocalDateTime localDateTime) {
+        return localDateTime.toDateTime(DateTimeZone.UTC).getMillis();
+    }
+
+    private static LocalDateTime fromMillis(long millis) {
+        return new LocalDateTime(millis, DateTimeZone.UTC);
+    }
+
+    private static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static long readVarLong(ByteBuffer in) {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    private static UUID readUUID(ByteBuffer in) {
+        return new UUID(in.getLong(), in.getLong());
+    }
+
+    private static String readString(ByteBuffer in) {
+        int length = (int) readVarLong(in);
+        String value;
+        if (in.hasArray()) {
+            value = new String(in.array(), in.arrayOffset() + in.position(), length, UTF8);
+            in.position(in.position() + length);
+        } else {
+            byte[] bytes = new byte[length];
+            in.get(bytes);
+            value = new String(bytes, UTF8);
+        }
+        return value;
+    }
+
+    private static Field domainEventField(String name) {
+        Field field = ReflectionUtils.findField(DomainEvent.class, name);
+        ReflectionUtils.makeAccessible(field);
+        return field;
+    }
+
+    /**
+     * Sets the class loader used to load the classes of serialized events and their fields. Defaults to the context
+     * class loader of the thread that created this serializer.
+     *
+     * @param classLoader the class loader to load event classes with
+     */
+    public void setClassLoader(ClassLoader classLoader) {
+        this.classLoader = classLoader;
+        classCache.clear();
+    }
+
+    /**
+     * Growable buffer that serialized events are written to.
+     */
+    private static final class Output {
+
+        private byte[] buffer = new byte[128];
+        private int count;
+
+        private void ensureCapacity(int additionalBytes) {
+            if (count + additionalBytes > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, count + additionalBytes));
+            }
+        }
+
+        private void writeByte(int value) {
+            ensureCapacity(1);
+            buffer[count++] = (byte) value;
+        }
+
+        private void writeInt(int value) {
+            ensureCapacity(4);
+            for (int shift = 24; shift >= 0; shift -= 8) {
+                buffer[count++] = (byte) (value >>> shift);
+            }
+        }
+
+        private void writeLong(long value) {
+            ensureCapacity(8);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                buffer[count++] = (byte) (value >>> shift);
+            }
+        }
+
+        private void writeVarLong(long value) {
+            while ((value & ~0x7FL) != 0) {
+                writeByte((int) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            writeByte((int) value);
+        }
+
+        private void writeUUID(UUID value) {
+            writeLong(value.getMostSignificantBits());
+            writeLong(value.getLeastSignificantBits());
+        }
+
+        private void writeBytes(byte[] bytes) {
+            writeVarLong(bytes.length);
+            ensureCapacity(bytes.length);
+            System.arraycopy(bytes, 0, buffer, count, bytes.length);
+            count += bytes.length;
+        }
+
+        private void writeString(String value) {
+            writeBytes(value.getBytes(UTF8));
+        }
+
+        private ByteBuffer toByteBuffer() {
+            return ByteBuffer.wrap(buffer, 0, count);
+        }
+    }
+
+    private static class FieldComparator implements Comparator<Field> {
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public int compare(Field field1, Field field2) {
+            return field1.getName().compareTo(field2.getName());
+        }
+    }
+}
@@ -19,6 +19,8 @@ package nl.gridshore.cqrs4j.repository.eventsourcing;
 import net.sf.jsr107cache.Cache;
 import nl.gridshore.cqrs4j.EventSourcedAggregateRoot;
 import nl.gridshore.cqrs4j.repository.LockingStrategy;
+import nl.gridshore.cqrs4j.repository.UnitOfWork;
+import nl.gridshore.cqrs4j.repository.UnitOfWorkListener;
 
 import java.util.UUID;
 
@@ -28,7 +30,16 @@ import java.util.UUID;
  * optimistic locking strategy, only pessimistic locking is available for this type of repository.
  * <p/>
  * Note that an entry of a cached aggregate is immediately invalidated when an error occurs while saving that aggregate.
- * This is done to prevent the cache from returning aggregates that may not have fully persisted to disk.
+ * This is done to prevent the cache from returning aggregates that may not have fully persisted to disk. Entries of
+ * aggregates saved in a {@link UnitOfWork} are invalidated when the unit of work is rolled back, whether or not saving
+ * them was attempted.
+ * <p/>
+ * Aggregates {@link #loadReadOnly(java.util.UUID) loaded for reading only} are never taken from the cache, since cached
+ * instances are shared with the threads modifying them. They are replayed from the event store instead.
+ * <p/>
+ * For the same reason, locks cannot be handed out as leases. An expired lock would allow two threads to modify the same
+ * cached instance. Aggregates that are {@link #release(EventSourcedAggregateRoot) released} without being saved are
+ * removed from the cache, discarding their changes.
  *
  * @author Allard Buijze
  * @param <T> The type of aggregate this repository stores
@@ -48,6 +59,24 @@ public abstract class CachingEventSourcingRepository<T extends EventSourcedAggre
         super(LockingStrategy.PESSIMISTIC);
     }
 
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * When a unit of work has been started, the cache entry of the aggregate is invalidated if the unit of work is
+     * rolled back. The cached instance contains the changes that have been discarded.
+     *
+     * @param aggregate the aggregate to save
+     */
+    @Override
+    public void save(T aggregate) {
+        UnitOfWork unitOfWork = UnitOfWork.current();
+        if (unitOfWork != null && !unitOfWork.isRegistered(aggregate)) {
+            // registered before the lock is released on rollback, so other threads can't load the discarded changes
+            unitOfWork.registerListener(new CacheInvalidatingListener(aggregate.getIdentifier()));
+        }
+        super.save(aggregate);
+    }
+
     /**
      * Saves the aggregate and stores is in the cache for fast retrieval. If an exception occurs while saving the
      * aggregate, the related cache entry is invalidated immediately.
@@ -89,6 +118,27 @@ public abstract class CachingEventSourcingRepository<T extends EventSourcedAggre
         return existingAggregate;
     }
 
+    /**
+     * Removes the aggregate from the cache, so that its changes are discarded.
+     *
+     * @param aggregate the aggregate that is released
+     */
+    @Override
+    protected void doRelease(T aggregate) {
+        cache.remove(aggregate.getIdentifier());
+    }
+
+    /**
+     * Lock leases are not supported by this repository, as cached aggregates are shared by all threads loading them.
+     *
+     * @param leaseTime ignored
+     * @throws IllegalStateException always
+     */
+    @Override
+    public void setLockLeaseTime(long leaseTime) {
+        throw new IllegalStateException("Lock leases are not supported by a repository that caches aggregates");
+    }
+
     /**
      * Set the cache to use for this repository. If a cache is not set, caching is disabled for this implementation.
      *
@@ -98,4 +148,38 @@ public abstract class CachingEventSourcingRepository<T extends EventSourcedAggre
         this.cache = cache;
     }
 
+    /**
+     * Removes the cache entry of an aggregate when the unit of work it was saved in is rolled back.
+     */
+    private class CacheInvalidatingListener implements UnitOfWorkListener {
+
+        private final UUID aggregateIdentifier;
+
+        public CacheInvalidatingListener(UUID aggregateIdentifier) {
+            this.aggregateIdentifier = aggregateIdentifier;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void onPrepareCommit() {
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void afterCommit() {
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void onRollback() {
+            cache.remove(aggregateIdentifier);
+        }
+    }
+
 }
@@ -0,0 +1,457 @@
+/*
+ * Copyright (c) 2010. Gridshore
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.gridshore.cqrs4j.repository.eventsourcing;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Input stream that decodes the records in an event file written by the {@link XStreamFileSystemEventStore}. Event
+ * files may contain plain lines, each containing a single event, compressed blocks of such lines and checksummed
+ * records containing either. This stream returns the lines of all of them, as if the whole file consisted of plain
+ * lines.
+ * <p/>
+ * A compressed block starts with a marker byte (<code>0</code>, which cannot be the first byte of a line), followed by
+ * a header containing the compressed and uncompressed length of the block, and the sequence numbers of the first and
+ * last event in the block. The header is followed by the deflated lines of the block. Blocks only containing events
+ * with a sequence number below the requested minimum are skipped without being decompressed.
+ * <p/>
+ * A checksummed record starts with a marker byte (<code>1</code>), followed by the length of its contents, the
+ * sequence numbers of the first and last event it contains, and a CRC-32 checksum of the marker, length, sequence
+ * numbers and contents. The contents are either a single line or a compressed block. Since the sequence numbers are
+ * part of the header, records only containing events below the requested minimum are skipped without being read.
+ * Records that are incomplete or don't match their checksum are reported as an <code>IOException</code> when read,
+ * as are empty blocks and records, which are never written. {@link #findEndOfCompleteRecords(java.io.File, long,
+ * java.util.List)} finds the end of the records that were completely written, for the recovery of event files after a
+ * crash.
+ *
+ * @author Allard Buijze
+ * @since 0.4
+ */
+class CompressedBlockInputStream extends InputStream {
+
+    private static final int BLOCK_MARKER = 0;
+    private static final int CHECKSUMMED_RECORD_MARKER = 1;
+    // marker (1), compressed length (4), length (4) and the first and last sequence number (16)
+    private static final int BLOCK_HEADER_SIZE = 25;
+    // marker (1), length (4), the first and last sequence number (16) and checksum (4)
+    private static final int CHECKSUMMED_RECORD_HEADER_SIZE = 25;
+
+    private final DataInputStream in;
+    private final long minimumSequenceNumber;
+    private final Inflater inflater = new Inflater();
+    private byte[] block;
+    private int blockPosition;
+    private boolean atStartOfLine = true;
+
+    /**
+     * Initialize a stream that decompresses the blocks in the given <code>inputStream</code>.
+     *
+     * @param inputStream The stream to read plain lines and compressed blocks from
+     */
+    public CompressedBlockInputStream(InputStream inputStream) {
+        this(inputStream, Long.MIN_VALUE);
+    }
+
+    /**
+     * Initialize a stream that decompresses the blocks in the given <code>inputStream</code>, skipping the blocks that
+     * only contain events with a sequence number below the given <code>minimumSequenceNumber</code>.
+     *
+     * @param inputStream           The stream to read plain lines and compressed blocks from
+     * @param minimumSequenceNumber The lowest sequence number of the events to read
+     */
+    public CompressedBlockInputStream(InputStream inputStream, long minimumSequenceNumber) {
+        this.in = new DataInputStream(new BufferedInputStream(inputStream));
+        this.minimumSequenceNumber = minimumSequenceNumber;
+    }
+
+    /**
+     * Compresses the given <code>lines</code> into a block, including its header.
+     *
+     * @param lines               The lines to compress, each terminated by a line feed
+     * @param firstSequenceNumber The sequence number of the event on the first line
+     * @param lastSequenceNumber  The sequence number of the event on the last line
+     * @return the compressed block
+     */
+    public static byte[] compress(byte[] lines, long firstSequenceNumber, long lastSequenceNumber) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(lines);
+            deflater.finish();
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream(lines.length / 4 + 64);
+            byte[] buffer = new byte[4096];
+            while (!deflater.finished()) {
+                int length = deflater.deflate(buffer);
+                compressed.write(buffer, 0, length);
+            }
+            ByteArrayOutputStream block = new ByteArrayOutputStream(compressed.size() + 25);
+            DataOutputStream out = new DataOutputStream(block);
+            out.writeByte(BLOCK_MARKER);
+            out.writeInt(compressed.size());
+            out.writeInt(lines.length);
+            out.writeLong(firstSequenceNumber);
+            out.writeLong(lastSequenceNumber);
+            compressed.writeTo(out);
+            return block.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException("Writing to a byte array should not cause an IOException", e);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Wraps the given <code>contents</code>, being either a single line or a compressed block, in a checksummed
+     * record.
+     *
+     * @param contents            The line or compressed block to wrap
+     * @param firstSequenceNumber The sequence number of the first event in the contents
+     * @param lastSequenceNumber  The sequence number of the last event in the contents
+     * @return the checksummed record
+     */
+    public static byte[] checksum(byte[] contents, long firstSequenceNumber, long lastSequenceNumber) {
+        ByteArrayOutputStream record = new ByteArrayOutputStream(contents.length + CHECKSUMMED_RECORD_HEADER_SIZE);
+        DataOutputStream out = new DataOutputStream(record);
+        try {
+            out.writeByte(CHECKSUMMED_RECORD_MARKER);
+            out.writeInt(contents.length);
+            out.writeLong(firstSequenceNumber);
+            out.writeLong(lastSequenceNumber);
+            out.writeInt(checksumOf(contents.length, firstSequenceNumber, lastSequenceNumber, contents));
+            out.write(contents);
+        } catch (IOException e) {
+            throw new IllegalStateException("Writing to a byte array should not cause an IOException", e);
+        }
+        return record.toByteArray();
+    }
+
+    /**
+     * Reads the compressed block or checksummed record at the current position of the given
+     * <code>inputStream</code>, if there is one. Returns <code>null</code> if the stream is at a plain line instead.
+     * The stream must support marking.
+     *
+     * @param inputStream The stream to read the record from
+     * @return the uncompressed lines of the record, or <code>null</code> if the stream is at a plain line
+     *
+     * @throws IOException when an error occurs reading the stream, or the record is corrupt
+     */
+    public static byte[] readRecord(InputStream inputStream) throws IOException {
+        inputStream.mark(1);
+        int marker = inputStream.read();
+        if (marker != BLOCK_MARKER && marker != CHECKSUMMED_RECORD_MARKER) {
+            inputStream.reset();
+            return null;
+        }
+        Inflater inflater = new Inflater();
+        try {
+            DataInputStream in = new DataInputStream(inputStream);
+            return readRecord(marker, in, inflater, Long.MIN_VALUE);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Indicates whether the given byte, being the first byte of a record, is the marker of a checksummed record.
+     *
+     * @param marker The first byte of the record
+     * @return <code>true</code> if the record is a checksummed record, otherwise <code>false</code>
+     */
+    public static boolean isChecksummedRecordMarker(int marker) {
+        return marker == CHECKSUMMED_RECORD_MARKER;
+    }
+
+    /**
+     * Returns the sequence number of the last event in the checksummed record at the given <code>offset</code> of the
+     * given <code>eventFile</code>, as stated in its header. Returns <code>null</code> if there is a plain line or
+     * compressed block at the given <code>offset</code> instead, which doesn't state its sequence numbers.
+     *
+     * @param eventFile The file containing the record
+     * @param offset    The offset of the checksummed record
+     * @return the sequence number of the last event in the record, or <code>null</code> if it is unknown
+     *
+     * @throws IOException when an error occurs reading the file
+     */
+    public static Long lastSequenceNumberOf(RandomAccessFile eventFile, long offset) throws IOException {
+        eventFile.seek(offset);
+        if (eventFile.read() != CHECKSUMMED_RECORD_MARKER) {
+            return null;
+        }
+        eventFile.readInt(); // the length
+        eventFile.readLong(); // the first sequence number
+        return eventFile.readLong();
+    }
+
+    /**
+     * Returns the offset of the end of the last complete record in the given <code>eventFile</code>, scanning the
+     * file from the given <code>offset</code>, which must be the start of a record. A record is complete if it is
+     * entirely present in the file, isn't empty and, if it is checksummed, matches its checksum. Scanning stops at the
+     * first record that isn't complete. The offsets of the complete checksummed records are added to the given
+     * <code>checksummedRecordOffsets</code>.
+     *
+     * @param eventFile                The file to scan
+     * @param offset                   The offset of the record to start scanning at
+     * @param checksummedRecordOffsets The list to add the offsets of complete checksummed records to
+     * @return the offset of the end of the last complete record, or the given <code>offset</code> if there is none
+     *
+     * @throws IOException when an error occurs reading the file
+     */
+    public static long findEndOfCompleteRecords(File eventFile, long offset, List<Long> checksummedRecordOffsets)
+            throws IOException {
+        FileInputStream fileStream = new FileInputStream(eventFile);
+        try {
+            long length = fileStream.getChannel().size();
+            fileStream.getChannel().position(offset);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(fileStream));
+            long position = offset;
+            while (position < length) {
+                in.mark(1);
+                int marker = in.read();
+                in.reset();
+                long recordLength = completeRecordLength(in, length - position);
+                if (recordLength < 0) {
+                    break;
+                }
+                if (isChecksummedRecordMarker(marker)) {
+                    checksummedRecordOffsets.add(position);
+                }
+                position += recordLength;
+            }
+            return position;
+        } finally {
+            fileStream.close();
+        }
+    }
+
+    /**
+     * Reads the record at the current position of the given stream, and returns its length, or -1 if the record is
+     * not complete. At most <code>available</code> bytes are part of the file.
+     */
+    private static long completeRecordLength(DataInputStream in, long available) throws IOException {
+        int marker = in.read();
+        if (marker == BLOCK_MARKER) {
+            if (available < BLOCK_HEADER_SIZE) {
+                return -1;
+            }
+            int compressedLength = in.readInt();
+            int length = in.readInt();
+            in.readLong(); // the first sequence number
+            in.readLong(); // the last sequence number
+            // a tail of zeroes, left behind by a crash, looks like a sequence of empty blocks
+            if (compressedLength <= 0 || length <= 0 || compressedLength > available - BLOCK_HEADER_SIZE) {
+                return -1;
+            }
+            in.skipBytes(compressedLength);
+            return BLOCK_HEADER_SIZE + compressedLength;
+        } else if (marker == CHECKSUMMED_RECORD_MARKER) {
+            if (available < CHECKSUMMED_RECORD_HEADER_SIZE) {
+                return -1;
+            }
+            int length = in.readInt();
+            long firstSequenceNumber = in.readLong();
+            long lastSequenceNumber = in.readLong();
+            int checksum = in.readInt();
+            if (length <= 0 || length > available - CHECKSUMMED_RECORD_HEADER_SIZE) {
+                return -1;
+            }
+            byte[] contents = new byte[length];
+            in.readFully(contents);
+            boolean valid = checksumOf(length, firstSequenceNumber, lastSequenceNumber, contents) == checksum;
+            return valid ? CHECKSUMMED_RECORD_HEADER_SIZE + length : -1;
+        }
+        long length = 1;
+        int next = marker;
+        while (next != '\n') {
+            if (length >= available) {
+                return -1;
+            }
+            next = in.read();
+            length++;
+        }
+        return length;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int read() throws IOException {
+        while (true) {
+            if (block != null && blockPosition < block.length) {
+                return block[blockPosition++] & 0xFF;
+            }
+            block = null;
+            int next = in.read();
+            if (atStartOfLine && (next == BLOCK_MARKER || next == CHECKSUMMED_RECORD_MARKER)) {
+                block = readRecord(next, in, inflater, minimumSequenceNumber);
+                blockPosition = 0;
+            } else {
+                atStartOfLine = next == '\n';
+                return next;
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        int count = 0;
+        int next;
+        while (count < length && (next = read()) != -1) {
+            buffer[offset + count++] = (byte) next;
+            if (block != null && blockPosition < block.length) {
+                int available = Math.min(length - count, block.length - blockPosition);
+                System.arraycopy(block, blockPosition, buffer, offset + count, available);
+                blockPosition += available;
+                count += available;
+            }
+        }
+        return count == 0 ? -1 : count;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close() throws IOException {
+        inflater.end();
+        in.close();
+    }
+
+    /**
+     * Reads the record of which the given <code>marker</code> has already been read, and returns the lines it
+     * contains. Returns an empty array if the record only contains events with a sequence number below the given
+     * <code>minimumSequenceNumber</code>.
+     */
+    private static byte[] readRecord(int marker, DataInputStream in, Inflater inflater, long minimumSequenceNumber)
+            throws IOException {
+        if (marker == BLOCK_MARKER) {
+            return decompress(in, inflater, minimumSequenceNumber);
+        }
+        return readChecksummedRecord(in, inflater, minimumSequenceNumber);
+    }
+
+    /**
+     * Reads the header and contents of a checksummed record, of which the marker has already been read, and returns
+     * the lines it contains. If the record only contains events with a sequence number below the given
+     * <code>minimumSequenceNumber</code>, its contents are skipped without being read or verified, and an empty array
+     * is returned.
+     */
+    private static byte[] readChecksummedRecord(DataInputStream in, Inflater inflater, long minimumSequenceNumber)
+            throws IOException {
+        int length = in.readInt();
+        long firstSequenceNumber = in.readLong();
+        long lastSequenceNumber = in.readLong();
+        int checksum = in.readInt();
+        if (length <= 0) {
+            throw new IOException("The checksummed record has an invalid length");
+        }
+        if (lastSequenceNumber < minimumSequenceNumber) {
+            if (in.skipBytes(length) < length) {
+                throw new EOFException("The checksummed record is shorter than its header indicates");
+            }
+            return new byte[0];
+        }
+        byte[] contents = new byte[length];
+        in.readFully(contents);
+        if (checksumOf(length, firstSequenceNumber, lastSequenceNumber, contents) != checksum) {
+            throw new IOException("The checksummed record doesn't match its checksum");
+        }
+        return decompressIfBlock(contents, inflater, minimumSequenceNumber);
+    }
+
+    private static byte[] decompressIfBlock(byte[] contents, Inflater inflater, long minimumSequenceNumber)
+            throws IOException {
+        if (contents.length > 0 && contents[0] == BLOCK_MARKER) {
+            DataInputStream blockStream = new DataInputStream(
+                    new ByteArrayInputStream(contents, 1, contents.length - 1));
+            return decompress(blockStream, inflater, minimumSequenceNumber);
+        }
+        return contents;
+    }
+
+    private static int checksumOf(int length, long firstSequenceNumber, long lastSequenceNumber, byte[] contents) {
+        ByteBuffer header = ByteBuffer.allocate(CHECKSUMMED_RECORD_HEADER_SIZE - 4);
+        header.put((byte) CHECKSUMMED_RECORD_MARKER);
+        header.putInt(length);
+        header.putLong(firstSequenceNumber);
+        header.putLong(lastSequenceNumber);
+        CRC32 crc = new CRC32();
+        crc.update(header.array());
+        crc.update(contents);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Reads the header and contents of a block, of which the marker has already been read. Returns an empty array if
+     * the block only contains events with a sequence number below the given <code>minimumSequenceNumber</code>.
+     */
+    private static byte[] decompress(DataInputStream in, Inflater inflater, long minimumSequenceNumber)
+            throws IOException {
+        int compressedLength = in.readInt();
+        int length = in.readInt();
+        in.readLong(); // the first sequence number
+        long lastSequenceNumber = in.readLong();
+        if (compressedLength <= 0 || length <= 0) {
+            throw new IOException("The compressed block has an invalid length");
+        }
+        if (lastSequenceNumber < minimumSequenceNumber) {
+            if (in.skipBytes(compressedLength) < compressedLength) {
+                throw new EOFException("The compressed block is shorter than its header indicates");
+            }
+            return new byte[0];
+        }
+        byte[] compressed = new byte[compressedLength];
+        in.readFully(compressed);
+        inflater.reset();
+        inflater.setInput(compressed);
+        byte[] lines = new byte[length];
+        try {
+            int inflated = 0;
+            while (inflated < length) {
+                int count = inflater.inflate(lines, inflated, length - inflated);
+                if (count == 0 && (inflater.finished() || inflater.needsInput())) {
+                    throw new IOException("The compressed block is shorter than its header indicates");
+                }
+                inflated += count;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("The compressed block is corrupt: " + e.getMessage());
+        }
+        return lines;
+    }
+}
@@ -0,0 +1,326 @@
+/*
+ * Copyright (c) 2010. Gridshore
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.gridshore.cqrs4j.repository.eventsourcing;
+
+import nl.gridshore.cqrs4j.util.Assert;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Required;
+import org.springframework.core.io.Resource;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Converts the event files written by an {@link XStreamFileSystemEventStore} to another layout. The aggregates are
+ * divided in batches, which are processed in parallel.
+ * <p/>
+ * {@link #migrate()} moves the files of all aggregates to the directory layout of another {@link
+ * XStreamFileSystemEventStore#setDirectoryDepth(int) directory depth}. Files are moved, not copied, so the global event
+ * log remains valid. Event stores using the base directory must not be in use while the files are moved, and must be
+ * configured with the target directory depth afterwards.
+ * <p/>
+ * {@link #copyTo(EventStore, EventStore)} appends the events of all aggregates to another event store, such as the
+ * {@link SegmentLogEventStore}, which packs the events of all aggregates in a small number of segment files. Snapshots
+ * are not copied. Events of different aggregates are appended in no particular order.
+ *
+ * @author Allard Buijze
+ * @since 0.4
+ */
+public class EventFileMigrator {
+
+    private static final Logger logger = LoggerFactory.getLogger(EventFileMigrator.class);
+    private static final int DEFAULT_BATCH_SIZE = 1000;
+    private static final String EVENT_FILE_EXTENSION = ".events";
+    private static final String[] AGGREGATE_FILE_EXTENSIONS = {".index", ".snapshot", EVENT_FILE_EXTENSION};
+
+    private Resource baseDir;
+    private int sourceDirectoryDepth = 0;
+    private int targetDirectoryDepth = 2;
+    private ExecutorService executorService;
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+    private int batchSize = DEFAULT_BATCH_SIZE;
+
+    /**
+     * Moves the files of all aggregates from the source directory layout to the target directory layout.
+     *
+     * @return the number of aggregates that have been moved
+     */
+    public int migrate() {
+        logger.info("Moving event files from directory depth {} to {}", sourceDirectoryDepth, targetDirectoryDepth);
+        return execute(new BatchTaskFactory() {
+            @Override
+            public Callable<Integer> createTask(File typeDir, String type, List<File> eventFiles) {
+                return new MoveTask(typeDir, eventFiles);
+            }
+        });
+    }
+
+    /**
+     * Appends the events of all aggregates in the base directory, read from the given <code>source</code>, to the
+     * given <code>target</code> event store. The <code>source</code> event store is typically an {@link
+     * XStreamFileSystemEventStore} using the base directory and source directory depth of this migrator.
+     *
+     * @param source The event store to read the events from
+     * @param target The event store to append the events to
+     * @return the number of aggregates that have been copied
+     */
+    public int copyTo(final EventStore source, final EventStore target) {
+        logger.info("Copying events of all aggregates to another event store");
+        return execute(new BatchTaskFactory() {
+            @Override
+            public Callable<Integer> createTask(File typeDir, String type, List<File> eventFiles) {
+                return new CopyTask(source, target, type, eventFiles);
+            }
+        });
+    }
+
+    private int execute(BatchTaskFactory taskFactory) {
+        Assert.state(baseDir != null, "A base directory is required to migrate event files");
+        ExecutorService executor = executorService;
+        if (executor == null) {
+            executor = Executors.newFixedThreadPool(parallelism);
+        }
+        try {
+            List<Future<Integer>> tasks = new ArrayList<Future<Integer>>();
+            for (File typeDir : listFiles(baseDir.getFile(), true)) {
+                List<File> eventFiles = new ArrayList<File>();
+                collectEventFiles(typeDir, sourceDirectoryDepth, eventFiles);
+                for (int i = 0; i < eventFiles.size(); i += batchSize) {
+                    List<File> batch = eventFiles.subList(i, Math.min(i + batchSize, eventFiles.size()));
+                    tasks.add(executor.submit(taskFactory.createTask(typeDir, typeDir.getName(), batch)));
+                }
+            }
+            int aggregateCount = waitFor(tasks);
+            logger.info("Migrated the event files of {} aggregates", aggregateCount);
+            return aggregateCount;
+        } catch (IOException e) {
+            throw new EventStorageException("Unable to access the event store directory", e);
+        } finally {
+            if (executor != executorService) {
+                executor.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Adds the event files in the given <code>dir</code>, or in its subdirectories at the given <code>depth</code>,
+     * to the given list of <code>eventFiles</code>.
+     *
+     * @param dir        The directory to search for event files
+     * @param depth      The number of subdirectory levels between the directory and the event files
+     * @param eventFiles The list to add the event files to
+     */
+    static void collectEventFiles(File dir, int depth, List<File> eventFiles) {
+        if (depth == 0) {
+            for (File file : listFiles(dir, false)) {
+                if (file.getName().endsWith(EVENT_FILE_EXTENSION)) {
+                    eventFiles.add(file);
+                }
+            }
+        } else {
+            for (File subDir : listFiles(dir, true)) {
+                collectEventFiles(subDir, depth - 1, eventFiles);
+            }
+        }
+    }
+
+    static List<File> listFiles(File dir, boolean directories) {
+        File[] files = dir.listFiles();
+        List<File> result = new ArrayList<File>();
+        if (files != null) {
+            for (File file : files) {
+                if (file.isDirectory() == directories) {
+                    result.add(file);
+                }
+            }
+        }
+        return result;
+    }
+
+    private static String aggregateIdentifierOf(File eventFile) {
+        String name = eventFile.getName();
+        return name.substring(0, name.length() - EVENT_FILE_EXTENSION.length());
+    }
+
+    private int waitFor(List<Future<Integer>> tasks) {
+        int total = 0;
+        RuntimeException failure = null;
+        for (Future<Integer> task : tasks) {
+            try {
+                total += task.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for event files to be migrated", e);
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = e.getCause() instanceof RuntimeException
+                            ? (RuntimeException) e.getCause()
+                            : new EventStorageException("Unable to migrate event files", e.getCause());
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        return total;
+    }
+
+    /**
+     * Sets the base directory of the event store to migrate.
+     *
+     * @param baseDir the base directory containing the event files
+     */
+    @Required
+    public void setBaseDir(Resource baseDir) {
+        this.baseDir = baseDir;
+    }
+
+    /**
+     * Sets the directory depth the event files are currently stored in. Defaults to 0, the layout of event stores
+     * without directory depth.
+     *
+     * @param sourceDirectoryDepth the current directory depth of the event files
+     * @see XStreamFileSystemEventStore#setDirectoryDepth(int)
+     */
+    public void setSourceDirectoryDepth(int sourceDirectoryDepth) {
+        this.sourceDirectoryDepth = sourceDirectoryDepth;
+    }
+
+    /**
+     * Sets the directory depth to move the event files to. Defaults to 2.
+     *
+     * @param targetDirectoryDepth the directory depth to move the event files to
+     * @see XStreamFileSystemEventStore#setDirectoryDepth(int)
+     */
+    public void setTargetDirectoryDepth(int targetDirectoryDepth) {
+        this.targetDirectoryDepth = targetDirectoryDepth;
+    }
+
+    /**
+     * Sets the executor service that migrates the batches of aggregates. If none is set, a thread pool is created
+     * for each migration, and shut down when the migration is done.
+     *
+     * @param executorService the executor service to migrate aggregates with
+     */
+    public void setExecutorService(ExecutorService executorService) {
+        this.executorService = executorService;
+    }
+
+    /**
+     * Sets the number of threads used to migrate aggregates, when no executor service has been set. Defaults to the
+     * number of available processors.
+     *
+     * @param parallelism the number of threads to migrate aggregates with
+     */
+    public void setParallelism(int parallelism) {
+        Assert.isTrue(parallelism > 0, "The parallelism must be a positive number");
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Sets the number of aggregates migrated by a single task. Defaults to 1000.
+     *
+     * @param batchSize the number of aggregates per task
+     */
+    public void setBatchSize(int batchSize) {
+        Assert.isTrue(batchSize > 0, "The batch size must be a positive number");
+        this.batchSize = batchSize;
+    }
+
+    private interface BatchTaskFactory {
+
+        Callable<Integer> createTask(File typeDir, String type, List<File> eventFiles);
+    }
+
+    /**
+     * Moves all files of a batch of aggregates to the target directory layout.
+     */
+    private class MoveTask implements Callable<Integer> {
+
+        private final File typeDir;
+        private final List<File> eventFiles;
+
+        public MoveTask(File typeDir, List<File> eventFiles) {
+            this.typeDir = typeDir;
+            this.eventFiles = eventFiles;
+        }
+
+        @Override
+        public Integer call() {
+            for (File eventFile : eventFiles) {
+                String aggregateIdentifier = aggregateIdentifierOf(eventFile);
+                File sourceDir = eventFile.getParentFile();
+                File targetDir = XStreamFileSystemEventStore.getDirectory(typeDir, aggregateIdentifier,
+                                                                          targetDirectoryDepth);
+                if (!targetDir.isDirectory() && !targetDir.mkdirs() && !targetDir.isDirectory()) {
+                    throw new EventStorageException(String.format("Unable to create directory [%s]",
+                                                                  targetDir.getPath()));
+                }
+                for (String extension : AGGREGATE_FILE_EXTENSIONS) {
+                    File file = new File(sourceDir, aggregateIdentifier + extension);
+                    if (file.exists()) {
+                        move(file, new File(targetDir, file.getName()));
+                    }
+                }
+            }
+            return eventFiles.size();
+        }
+
+        private void move(File file, File target) {
+            if (!file.equals(target) && !file.renameTo(target)) {
+                throw new EventStorageException(String.format("Unable to move file [%s] to [%s]",
+                                                              file.getPath(), target.getPath()));
+            }
+        }
+    }
+
+    /**
+     * Appends the events of a batch of aggregates to the target event store.
+     */
+    private static class CopyTask implements Callable<Integer> {
+
+        private final EventStore source;
+        private final EventStore target;
+        private final String type;
+        private final List<File> eventFiles;
+
+        public CopyTask(EventStore source, EventStore target, String type, List<File> eventFiles) {
+            this.source = source;
+            this.target = target;
+            this.type = type;
+            this.eventFiles = eventFiles;
+        }
+
+        @Override
+        public Integer call() {
+            for (File eventFile : eventFiles) {
+                UUID aggregateIdentifier = UUID.fromString(aggregateIdentifierOf(eventFile));
+                target.appendEvents(type, source.readEvents(type, aggregateIdentifier, 0));
+            }
+            return eventFiles.size();
+        }
+    }
+}
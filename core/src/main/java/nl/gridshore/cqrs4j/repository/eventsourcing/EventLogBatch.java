@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2010. Gridshore
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package nl.gridshore.cqrs4j.repository.eventsourcing;
+
+import nl.gridshore.cqrs4j.DomainEvent;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A batch of events read from the global event log of a {@link ReplayableEventStore}, together with the position to
+ * read the next batch from.
+ *
+ * @author Allard Buijze
+ * @since 0.4
+ */
+public class EventLogBatch {
+
+    private final List<DomainEvent> events;
+    private final long nextPosition;
+
+    /**
+     * Initialize a batch containing the given <code>events</code>, which are followed by the event at the given
+     * <code>nextPosition</code> in the global event log.
+     *
+     * @param events       The events in the batch, in the order in which they were appended
+     * @param nextPosition The position to read the next batch from
+     */
+    public EventLogBatch(List<DomainEvent> events, long nextPosition) {
+        this.events = Collections.unmodifiableList(events);
+        this.nextPosition = nextPosition;
+    }
+
+    /**
+     * Returns the events in this batch, in the order in which they were appended.
+     *
+     * @return the events in this batch
+     */
+    public List<DomainEvent> getEvents() {
+        return events;
+    }
+
+    /**
+     * Returns the position in the global event log to read the next batch from.
+     *
+     * @return the position to read the next batch from
+     */
+    public long getNextPosition() {
+        return nextPosition;
+    }
+
+    /**
+     * Indicates whether this batch contains any events. An empty batch indicates that all events in the global event
+     * log have been read.
+     *
+     * @return <code>true</code> if this batch doesn't contain any events, otherwise <code>false</code>
+     */
+    public boolean isEmpty() {
+        return events.isEmpty();
+    }
+}
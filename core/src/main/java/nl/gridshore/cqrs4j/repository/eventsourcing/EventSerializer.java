@@ -0,0 +1,52 @@
+/*
+ * Copyright (c) 2010. Gridshore
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package nl.gridshore.cqrs4j.repository.eventsourcing;
+
+import nl.gridshore.cqrs4j.DomainEvent;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Interface describing a serialization mechanism for domain events. Event stores use an EventSerializer to convert
+ * events to bytes before storing them, and back when they are read.
+ *
+ * @author Allard Buijze
+ * @see XStreamEventSerializer
+ * @see BinaryEventSerializer
+ * @since 0.4
+ */
+public interface EventSerializer {
+
+    /**
+     * Serialize the given <code>event</code>. The returned buffer contains the serialized event between its position
+     * and its limit.
+     *
+     * @param event The event to serialize
+     * @return a buffer containing the serialized event
+     */
+    ByteBuffer serialize(DomainEvent event);
+
+    /**
+     * Deserialize an event from the bytes between the position and limit of the given <code>serializedEvent</code>
+     * buffer. Implementations may change the position of the buffer.
+     *
+     * @param serializedEvent The buffer containing the serialized event
+     * @return the deserialized event
+     */
+    DomainEvent deserialize(ByteBuffer serializedEvent);
+}
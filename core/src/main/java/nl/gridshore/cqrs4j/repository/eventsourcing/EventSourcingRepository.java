@@ -16,18 +16,51 @@
 
 package nl.gridshore.cqrs4j.repository.eventsourcing;
 
+import nl.gridshore.cqrs4j.DomainEvent;
 import nl.gridshore.cqrs4j.EventSourcedAggregateRoot;
 import nl.gridshore.cqrs4j.EventStream;
+import nl.gridshore.cqrs4j.SnapshotCapableAggregateRoot;
+import nl.gridshore.cqrs4j.SnapshotEvent;
 import nl.gridshore.cqrs4j.repository.LockingRepository;
 import nl.gridshore.cqrs4j.repository.LockingStrategy;
+import nl.gridshore.cqrs4j.repository.UnitOfWork;
+import nl.gridshore.cqrs4j.repository.UnitOfWorkListener;
+import nl.gridshore.cqrs4j.util.WeakIdentityHashMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Required;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Abstract repository implementation that allows easy implementation of an Event Sourcing mechanism. It will
  * automatically publish new events to the given {@link nl.gridshore.cqrs4j.eventhandler.EventBus} and delegate event
  * storage to the provided {@link nl.gridshore.cqrs4j.repository.eventsourcing.EventStore}.
+ * <p/>
+ * If the event store is a {@link SnapshotEventStore} and the aggregates implement {@link
+ * nl.gridshore.cqrs4j.SnapshotCapableAggregateRoot}, the repository can create snapshots of aggregates, so that they
+ * can be loaded without replaying all of their events. A snapshot is created after an aggregate has been saved, when
+ * the number of events since the last snapshot reaches the {@link #setSnapshotEventCountThreshold(int) event count
+ * threshold}, or when the last replay of the aggregate's events took longer than the {@link
+ * #setSnapshotLoadTimeThreshold(long) load time threshold}. Snapshots are created asynchronously, using a freshly
+ * loaded copy of the aggregate.
+ * <p/>
+ * When several aggregates are {@link #loadAll(java.util.Collection) loaded at once} and a {@link
+ * #setLoadExecutor(java.util.concurrent.Executor) load executor} has been configured, their events are read and
+ * replayed in parallel.
+ * <p/>
+ * When the aggregates of a {@link UnitOfWork} are saved and the event store is an {@link AtomicEventStore}, the events
+ * of all aggregates in the unit of work that use the same event store are appended in a single, atomic call.
  *
  * @author Allard Buijze
  * @param <T> The type of aggregate this repository stores
@@ -40,7 +73,16 @@ import java.util.UUID;
  */
 public abstract class EventSourcingRepository<T extends EventSourcedAggregateRoot> extends LockingRepository<T> {
 
+    private static final Logger logger = LoggerFactory.getLogger(EventSourcingRepository.class);
+
+    // aggregates are compared by identity, so that copies of the same aggregate have their own counter
+    private final WeakIdentityHashMap<T, SnapshotCounter> snapshotCounters =
+            new WeakIdentityHashMap<T, SnapshotCounter>();
     private EventStore eventStore;
+    private int snapshotEventCountThreshold;
+    private long snapshotLoadTimeThreshold;
+    private Executor snapshotExecutor;
+    private Executor loadExecutor;
 
     /**
      * Initializes a repository with the default locking strategy.
@@ -59,6 +101,17 @@ public abstract class EventSourcingRepository<T extends EventSourcedAggregateRoo
         super(lockingStrategy);
     }
 
+    /**
+     * Initialize a repository with a striped locking strategy, using at least the given number of locks.
+     *
+     * @param lockCount       the minimum number of locks to use, rounded up to a power of two
+     * @param checkReentrancy whether to check that threads do not obtain the lock of an aggregate they already hold
+     * @see nl.gridshore.cqrs4j.repository.LockingRepository#LockingRepository(int, boolean)
+     */
+    protected EventSourcingRepository(int lockCount, boolean checkReentrancy) {
+        super(lockCount, checkReentrancy);
+    }
+
     /**
      * Perform the actual saving of the aggregate. All necessary locks have been verified.
      *
@@ -66,7 +119,35 @@ public abstract class EventSourcingRepository<T extends EventSourcedAggregateRoo
      */
     @Override
     protected void doSave(T aggregate) {
+        UnitOfWork unitOfWork = UnitOfWork.current();
+        if (unitOfWork != null && eventStore instanceof AtomicEventStore) {
+            getAppendBatch(unitOfWork).add(this, aggregate);
+            return;
+        }
+        int eventCount = aggregate.getUncommittedEventCount();
         eventStore.appendEvents(getTypeIdentifier(), aggregate.getUncommittedEvents());
+        afterAppend(aggregate, eventCount);
+    }
+
+    private void afterAppend(T aggregate, int eventCount) {
+        if (eventCount > 0 && isSnapshotCapable(aggregate)) {
+            triggerSnapshotIfRequired(aggregate, eventCount);
+        }
+    }
+
+    /**
+     * Returns the batch of appends to the event store of this repository in the given <code>unitOfWork</code>. The
+     * batch is shared with the other repositories using the same event store.
+     */
+    private AppendBatch getAppendBatch(UnitOfWork unitOfWork) {
+        AppendBatch batch = (AppendBatch) unitOfWork.getResource(eventStore);
+        if (batch == null) {
+            batch = new AppendBatch((AtomicEventStore) eventStore);
+            unitOfWork.bindResource(eventStore, batch);
+            // registered while the aggregates are being saved, so it is prepared after all of them
+            unitOfWork.registerListener(batch);
+        }
+        return batch;
     }
 
     /**
@@ -77,12 +158,127 @@ public abstract class EventSourcingRepository<T extends EventSourcedAggregateRoo
      */
     @Override
     protected T doLoad(UUID aggregateIdentifier) {
+        EventStream events = eventStore.readEvents(getTypeIdentifier(), aggregateIdentifier);
+        T aggregate = instantiateAggregate(events.getAggregateIdentifier());
+        if (!isSnapshotCapable(aggregate)) {
+            aggregate.initializeState(events);
+            return aggregate;
+        }
+        CountingEventStream countingEvents = new CountingEventStream(events);
+        long startTime = System.currentTimeMillis();
+        aggregate.initializeState(countingEvents);
+        long loadTime = System.currentTimeMillis() - startTime;
+        snapshotCounters.put(aggregate, new SnapshotCounter(
+                countingEvents.getEventsSinceSnapshot(),
+                snapshotLoadTimeThreshold > 0 && loadTime > snapshotLoadTimeThreshold));
+        return aggregate;
+    }
+
+    /**
+     * Loads the aggregates with the given identifiers. If a load executor has been configured, the aggregates are
+     * loaded in parallel, using that executor. The necessary locks have been obtained.
+     *
+     * @param aggregateIdentifiers the identifiers of the aggregates to load, without duplicates
+     * @return the fully initialized aggregates, in the order of the given identifiers
+     */
+    @Override
+    protected List<T> doLoadAll(List<UUID> aggregateIdentifiers) {
+        Executor executor = loadExecutor;
+        if (executor == null || aggregateIdentifiers.size() < 2) {
+            return super.doLoadAll(aggregateIdentifiers);
+        }
+        List<FutureTask<T>> tasks = new ArrayList<FutureTask<T>>(aggregateIdentifiers.size());
+        for (UUID aggregateIdentifier : aggregateIdentifiers) {
+            FutureTask<T> task = new FutureTask<T>(new LoadTask(aggregateIdentifier));
+            tasks.add(task);
+            executor.execute(task);
+        }
+        List<T> aggregates = new ArrayList<T>(tasks.size());
+        try {
+            for (FutureTask<T> task : tasks) {
+                aggregates.add(getLoadedAggregate(task));
+            }
+        } finally {
+            if (aggregates.size() < tasks.size()) {
+                // loading one of the aggregates failed, the others are of no use
+                for (FutureTask<T> task : tasks) {
+                    task.cancel(false);
+                }
+            }
+        }
+        return aggregates;
+    }
+
+    private T getLoadedAggregate(FutureTask<T> task) {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new EventStorageException("Thread was interrupted while waiting for aggregates to be loaded", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw new EventStorageException("An error occurred while loading an aggregate", e.getCause());
+        }
+    }
+
+    /**
+     * Loads an aggregate for reading only, by replaying its events on a new instance. Implementations that return
+     * shared instances from {@link #doLoad(java.util.UUID)} should not override this method.
+     *
+     * @param aggregateIdentifier the identifier of the aggregate to load
+     * @return the fully initialized aggregate
+     */
+    @Override
+    protected T doLoadReadOnly(UUID aggregateIdentifier) {
         EventStream events = eventStore.readEvents(getTypeIdentifier(), aggregateIdentifier);
         T aggregate = instantiateAggregate(events.getAggregateIdentifier());
         aggregate.initializeState(events);
         return aggregate;
     }
 
+    private boolean isSnapshotCapable(T aggregate) {
+        return eventStore instanceof SnapshotEventStore
+                && aggregate instanceof SnapshotCapableAggregateRoot
+                && (snapshotEventCountThreshold > 0 || snapshotLoadTimeThreshold > 0);
+    }
+
+    private void triggerSnapshotIfRequired(T aggregate, int newEventCount) {
+        boolean snapshotRequired;
+        synchronized (snapshotCounters) {
+            SnapshotCounter counter = snapshotCounters.get(aggregate);
+            if (counter == null) {
+                counter = new SnapshotCounter(0, false);
+                snapshotCounters.put(aggregate, counter);
+            }
+            counter.eventCount += newEventCount;
+            snapshotRequired = counter.slowReplay
+                    || (snapshotEventCountThreshold > 0 && counter.eventCount >= snapshotEventCountThreshold);
+            if (snapshotRequired) {
+                counter.eventCount = 0;
+                counter.slowReplay = false;
+            }
+        }
+        if (snapshotRequired) {
+            getSnapshotExecutor().execute(new SnapshotTask(aggregate.getIdentifier()));
+        }
+    }
+
+    private synchronized Executor getSnapshotExecutor() {
+        if (snapshotExecutor == null) {
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS,
+                                                                 new LinkedBlockingQueue<Runnable>(),
+                                                                 new SnapshotThreadFactory());
+            executor.allowCoreThreadTimeOut(true);
+            snapshotExecutor = executor;
+        }
+        return snapshotExecutor;
+    }
+
     /**
      * Instantiate the aggregate using the given aggregate identifier. Aggregate state should *not* be initialized by
      * this method. That means, no events should be applied by a call to this method.
@@ -102,6 +298,57 @@ public abstract class EventSourcingRepository<T extends EventSourcedAggregateRoo
         this.eventStore = eventStore;
     }
 
+    /**
+     * Sets the number of events after which a snapshot of an aggregate is created. The count includes the events that
+     * were replayed when the aggregate was loaded, as well as the events saved since. Defaults to 0, meaning that
+     * snapshots are not triggered by the number of events.
+     * <p/>
+     * Snapshots are only created if the event store is a {@link SnapshotEventStore} and the aggregate implements
+     * {@link nl.gridshore.cqrs4j.SnapshotCapableAggregateRoot}.
+     *
+     * @param snapshotEventCountThreshold the number of events after which a snapshot is created
+     */
+    public void setSnapshotEventCountThreshold(int snapshotEventCountThreshold) {
+        this.snapshotEventCountThreshold = snapshotEventCountThreshold;
+    }
+
+    /**
+     * Sets the number of milliseconds that replaying the events of an aggregate may take before a snapshot of that
+     * aggregate is created. The snapshot is created after the aggregate has been saved. Defaults to 0, meaning that
+     * snapshots are not triggered by the time it takes to load an aggregate.
+     * <p/>
+     * Snapshots are only created if the event store is a {@link SnapshotEventStore} and the aggregate implements
+     * {@link nl.gridshore.cqrs4j.SnapshotCapableAggregateRoot}.
+     *
+     * @param snapshotLoadTimeThreshold the number of milliseconds after which a snapshot is created
+     */
+    public void setSnapshotLoadTimeThreshold(long snapshotLoadTimeThreshold) {
+        this.snapshotLoadTimeThreshold = snapshotLoadTimeThreshold;
+    }
+
+    /**
+     * Sets the executor that creates snapshots. Defaults to an executor with a single daemon thread, which is stopped
+     * when it has been idle for a while.
+     *
+     * @param snapshotExecutor the executor that creates snapshots
+     */
+    public synchronized void setSnapshotExecutor(Executor snapshotExecutor) {
+        this.snapshotExecutor = snapshotExecutor;
+    }
+
+    /**
+     * Sets the executor that loads aggregates in parallel when several of them are {@link
+     * #loadAll(java.util.Collection) loaded at once}. Defaults to <code>null</code>, meaning that the aggregates are
+     * loaded one by one, in the calling thread.
+     * <p/>
+     * Loading aggregates is mostly I/O bound, so the executor may use more threads than there are processors.
+     *
+     * @param loadExecutor the executor that loads aggregates in parallel
+     */
+    public void setLoadExecutor(Executor loadExecutor) {
+        this.loadExecutor = loadExecutor;
+    }
+
     /**
      * Returns the type identifier for this aggregate. The type identifier is used by the EventStore to organize data
      * related to the same type of aggregate.
@@ -112,4 +359,181 @@ public abstract class EventSourcingRepository<T extends EventSourcedAggregateRoo
      */
     protected abstract String getTypeIdentifier();
 
+    /**
+     * Loads a single aggregate, as part of loading several aggregates in parallel.
+     */
+    private class LoadTask implements Callable<T> {
+
+        private final UUID aggregateIdentifier;
+
+        public LoadTask(UUID aggregateIdentifier) {
+            this.aggregateIdentifier = aggregateIdentifier;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public T call() {
+            return doLoad(aggregateIdentifier);
+        }
+    }
+
+    /**
+     * Creates a snapshot of an aggregate. The aggregate is loaded from the event store, so the snapshot never contains
+     * uncommitted state, and the aggregate instance used by the application is never accessed by another thread.
+     */
+    private class SnapshotTask implements Runnable {
+
+        private final UUID aggregateIdentifier;
+
+        public SnapshotTask(UUID aggregateIdentifier) {
+            this.aggregateIdentifier = aggregateIdentifier;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void run() {
+            try {
+                EventStream events = eventStore.readEvents(getTypeIdentifier(), aggregateIdentifier);
+                T aggregate = instantiateAggregate(aggregateIdentifier);
+                aggregate.initializeState(events);
+                SnapshotEvent snapshotEvent = ((SnapshotCapableAggregateRoot) aggregate).createSnapshotEvent();
+                if (snapshotEvent != null) {
+                    ((SnapshotEventStore) eventStore).appendSnapshotEvent(getTypeIdentifier(), snapshotEvent);
+                }
+            } catch (RuntimeException e) {
+                logger.warn(String.format("Unable to create a snapshot of aggregate [%s] with identifier [%s]",
+                                          getTypeIdentifier(), aggregateIdentifier), e);
+            }
+        }
+    }
+
+    /**
+     * The events of the aggregates saved in a unit of work, which are appended to the event store at once when the
+     * unit of work is committed.
+     */
+    private static class AppendBatch implements UnitOfWorkListener {
+
+        private final AtomicEventStore eventStore;
+        private final List<TypedEventStream> eventStreams = new ArrayList<TypedEventStream>();
+        private final List<Runnable> appendCallbacks = new ArrayList<Runnable>();
+
+        public AppendBatch(AtomicEventStore eventStore) {
+            this.eventStore = eventStore;
+        }
+
+        public <T extends EventSourcedAggregateRoot> void add(final EventSourcingRepository<T> repository,
+                                                               final T aggregate) {
+            final int eventCount = aggregate.getUncommittedEventCount();
+            eventStreams.add(new TypedEventStream(repository.getTypeIdentifier(), aggregate.getUncommittedEvents()));
+            appendCallbacks.add(new Runnable() {
+                @Override
+                public void run() {
+                    repository.afterAppend(aggregate, eventCount);
+                }
+            });
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void onPrepareCommit() {
+            eventStore.appendEvents(eventStreams);
+            for (Runnable callback : appendCallbacks) {
+                callback.run();
+            }
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void afterCommit() {
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void onRollback() {
+        }
+    }
+
+    /**
+     * Keeps track of the number of events of an aggregate since its last snapshot.
+     */
+    private static class SnapshotCounter {
+
+        private int eventCount;
+        private boolean slowReplay;
+
+        public SnapshotCounter(int eventCount, boolean slowReplay) {
+            this.eventCount = eventCount;
+            this.slowReplay = slowReplay;
+        }
+    }
+
+    /**
+     * Event stream that counts the events that follow the most recent snapshot event in the stream.
+     */
+    private static class CountingEventStream implements EventStream {
+
+        private final EventStream delegate;
+        private int eventsSinceSnapshot;
+
+        public CountingEventStream(EventStream delegate) {
+            this.delegate = delegate;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public UUID getAggregateIdentifier() {
+            return delegate.getAggregateIdentifier();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean hasNext() {
+            return delegate.hasNext();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public DomainEvent next() {
+            DomainEvent event = delegate.next();
+            if (event instanceof SnapshotEvent) {
+                eventsSinceSnapshot = 0;
+            } else {
+                eventsSinceSnapshot++;
+            }
+            return event;
+        }
+
+        public int getEventsSinceSnapshot() {
+            return eventsSinceSnapshot;
+        }
+    }
+
+    private static class SnapshotThreadFactory implements ThreadFactory {
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "EventSourcingRepository-snapshotter");
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
 }
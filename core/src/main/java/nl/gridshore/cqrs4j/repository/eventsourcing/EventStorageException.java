@@ -24,6 +24,15 @@ package nl.gridshore.cqrs4j.repository.eventsourcing;
  */
 public class EventStorageException extends RuntimeException {
 
+    /**
+     * Initialize the exception with the given <code>message</code>
+     *
+     * @param message a detailed message of the cause of the exception
+     */
+    public EventStorageException(String message) {
+        super(message);
+    }
+
     /**
      * Initialize the exception with the given <code>message</code> and <code>cause</code>
      *
@@ -46,4 +46,22 @@ public interface EventStore {
      * @return an event stream containing the events of the aggregate
      */
     EventStream readEvents(String type, UUID identifier);
+
+    /**
+     * Read the events of the aggregate identified by the given type and identifier, starting with the event with the
+     * given <code>firstSequenceNumber</code>. Events with a lower sequence number are not part of the returned
+     * stream. If the aggregate doesn't have any events with the given or a higher sequence number, the returned stream
+     * is empty.
+     * <p/>
+     * Unlike {@link #readEvents(String, java.util.UUID)}, this method never returns snapshot events, even when the
+     * event store is capable of storing them.
+     *
+     * @param type                The type descriptor of the object to retrieve
+     * @param identifier          The unique aggregate identifier of the events to load
+     * @param firstSequenceNumber The sequence number of the first event to return
+     * @return an event stream containing the events of the aggregate, starting at the given sequence number
+     *
+     * @since 0.4
+     */
+    EventStream readEvents(String type, UUID identifier, long firstSequenceNumber);
 }
@@ -0,0 +1,482 @@
+/*
+ * Copyright (c) 2010. Gridshore
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.gridshore.cqrs4j.repository.eventsourcing;
+
+import nl.gridshore.cqrs4j.DomainEvent;
+import nl.gridshore.cqrs4j.EventStream;
+import nl.gridshore.cqrs4j.LazyEventStream;
+import nl.gridshore.cqrs4j.util.Assert;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Implementation of the {@link EventStore} that keeps all events in memory. It is meant for tests, benchmarks and
+ * nodes that don't need to keep their events after a restart.
+ * <p/>
+ * The events of each aggregate are kept in an array that only grows at the end. Appending events to the same
+ * aggregate is serialized, but reading never requires a lock: readers see the events that had been appended when
+ * they started reading. The global event log used by {@link #readAll(long, int)} is kept in fixed size chunks, so that
+ * large numbers of events never require the log to be copied.
+ * <p/>
+ * By default, all events are kept. Use {@link #setMaxEventsPerAggregate(int)} and {@link #setMaxLoggedEvents(long)}
+ * to bound the amount of memory used. Events that are needed to load an aggregate are never discarded.
+ *
+ * @author Allard Buijze
+ * @since 0.4
+ */
+public class InMemoryEventStore implements SnapshotEventStore, ReplayableEventStore, AtomicEventStore {
+
+    private static final int LOG_CHUNK_SIZE = 1024;
+    private static final int INITIAL_CAPACITY = 8;
+
+    private final ConcurrentMap<AggregateKey, AggregateEvents> aggregates =
+            new ConcurrentHashMap<AggregateKey, AggregateEvents>();
+    private final Object eventLogLock = new Object();
+    // written while holding the eventLogLock
+    private volatile EventLogChunks eventLogChunks = new EventLogChunks(new DomainEvent[0][], 0);
+    private volatile long committedPosition = 0;
+    private int maxEventsPerAggregate = Integer.MAX_VALUE;
+    private long maxLoggedEvents = Long.MAX_VALUE;
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void appendEvents(String type, EventStream events) {
+        List<DomainEvent> eventList = new ArrayList<DomainEvent>();
+        while (events.hasNext()) {
+            eventList.add(events.next());
+        }
+        if (eventList.isEmpty()) {
+            return;
+        }
+        AggregateEvents aggregateEvents = getOrCreate(new AggregateKey(type, events.getAggregateIdentifier()));
+        synchronized (aggregateEvents) {
+            // readers of the event log must find at least the events found by readers of the aggregate
+            appendToEventLog(eventList);
+            aggregateEvents.append(eventList, maxEventsPerAggregate);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * The aggregates are locked in a fixed order while the events are appended, so that the events appear in the
+     * global event log in a single, uninterrupted sequence.
+     */
+    @Override
+    public void appendEvents(List<TypedEventStream> eventStreams) {
+        Map<AggregateKey, List<DomainEvent>> eventsPerAggregate = new TreeMap<AggregateKey, List<DomainEvent>>();
+        List<DomainEvent> allEvents = new ArrayList<DomainEvent>();
+        for (TypedEventStream events : eventStreams) {
+            AggregateKey key = new AggregateKey(events.getType(), events.getAggregateIdentifier());
+            List<DomainEvent> eventList = eventsPerAggregate.get(key);
+            if (eventList == null) {
+                eventList = new ArrayList<DomainEvent>();
+                eventsPerAggregate.put(key, eventList);
+            }
+            while (events.hasNext()) {
+                DomainEvent event = events.next();
+                eventList.add(event);
+                allEvents.add(event);
+            }
+        }
+        List<AggregateEvents> aggregateEvents = new ArrayList<AggregateEvents>();
+        for (AggregateKey key : eventsPerAggregate.keySet()) {
+            aggregateEvents.add(getOrCreate(key));
+        }
+        appendLocked(aggregateEvents, new ArrayList<List<DomainEvent>>(eventsPerAggregate.values()), allEvents, 0);
+    }
+
+    private void appendLocked(List<AggregateEvents> aggregateEvents, List<List<DomainEvent>> eventLists,
+                              List<DomainEvent> allEvents, int lockIndex) {
+        if (lockIndex < aggregateEvents.size()) {
+            synchronized (aggregateEvents.get(lockIndex)) {
+                appendLocked(aggregateEvents, eventLists, allEvents, lockIndex + 1);
+            }
+            return;
+        }
+        appendToEventLog(allEvents);
+        for (int i = 0; i < aggregateEvents.size(); i++) {
+            if (!eventLists.get(i).isEmpty()) {
+                aggregateEvents.get(i).append(eventLists.get(i), maxEventsPerAggregate);
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * Events preceding the snapshot may be discarded, if the number of events of the aggregate exceeds the {@link
+     * #setMaxEventsPerAggregate(int) maximum}.
+     */
+    @Override
+    public void appendSnapshotEvent(String type, DomainEvent snapshotEvent) {
+        AggregateEvents aggregateEvents = getOrCreate(new AggregateKey(type,
+                                                                       snapshotEvent.getAggregateIdentifier()));
+        synchronized (aggregateEvents) {
+            aggregateEvents.setSnapshot(snapshotEvent, maxEventsPerAggregate);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public LazyEventStream readEvents(String type, UUID identifier) {
+        EventRange events = getAggregateEvents(type, identifier).events;
+        if (events.snapshot == null) {
+            return new EventRangeStream(identifier, null, events, events.start);
+        }
+        return new EventRangeStream(identifier, events.snapshot, events,
+                                    events.indexOf(events.snapshot.getSequenceNumber() + 1));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public LazyEventStream readEvents(String type, UUID identifier, long firstSequenceNumber) {
+        EventRange events = getAggregateEvents(type, identifier).events;
+        return new EventRangeStream(identifier, null, events, events.indexOf(firstSequenceNumber));
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * The position of an event is its index in the global event log. When older events have been discarded, reading
+     * continues at the oldest event that is still available.
+     */
+    @Override
+    public EventLogBatch readAll(long fromPosition, int batchSize) {
+        long endPosition = committedPosition;
+        // read after the committed position, so that all committed events are part of the chunks
+        EventLogChunks chunks = eventLogChunks;
+        long position = Math.max(fromPosition, chunks.firstChunk * LOG_CHUNK_SIZE);
+        List<DomainEvent> events = new ArrayList<DomainEvent>();
+        while (events.size() < batchSize && position < endPosition) {
+            DomainEvent[] chunk = chunks.chunks[(int) (position / LOG_CHUNK_SIZE - chunks.firstChunk)];
+            events.add(chunk[(int) (position % LOG_CHUNK_SIZE)]);
+            position++;
+        }
+        return new EventLogBatch(events, position);
+    }
+
+    private AggregateEvents getAggregateEvents(String type, UUID identifier) {
+        AggregateEvents aggregateEvents = aggregates.get(new AggregateKey(type, identifier));
+        if (aggregateEvents == null) {
+            throw new EventStorageException(String.format(
+                    "No events found for aggregate of type [%s] with identifier [%s]", type, identifier));
+        }
+        return aggregateEvents;
+    }
+
+    private AggregateEvents getOrCreate(AggregateKey key) {
+        AggregateEvents aggregateEvents = aggregates.get(key);
+        if (aggregateEvents == null) {
+            AggregateEvents newEvents = new AggregateEvents();
+            aggregateEvents = aggregates.putIfAbsent(key, newEvents);
+            if (aggregateEvents == null) {
+                aggregateEvents = newEvents;
+            }
+        }
+        return aggregateEvents;
+    }
+
+    private void appendToEventLog(List<DomainEvent> events) {
+        synchronized (eventLogLock) {
+            EventLogChunks chunks = eventLogChunks;
+            DomainEvent[][] chunkArray = chunks.chunks;
+            long firstChunk = chunks.firstChunk;
+            long position = committedPosition;
+            for (DomainEvent event : events) {
+                int chunkIndex = (int) (position / LOG_CHUNK_SIZE - firstChunk);
+                if (chunkIndex == chunkArray.length) {
+                    int discardedChunks = 0;
+                    // the chunks that remain after discarding one must still contain the maximum number of events
+                    while ((chunkArray.length - discardedChunks - 1) * (long) LOG_CHUNK_SIZE >= maxLoggedEvents) {
+                        discardedChunks++;
+                    }
+                    DomainEvent[][] newChunkArray = new DomainEvent[chunkArray.length - discardedChunks + 1][];
+                    System.arraycopy(chunkArray, discardedChunks, newChunkArray, 0,
+                                     chunkArray.length - discardedChunks);
+                    newChunkArray[newChunkArray.length - 1] = new DomainEvent[LOG_CHUNK_SIZE];
+                    chunkArray = newChunkArray;
+                    firstChunk += discardedChunks;
+                    chunkIndex -= discardedChunks;
+                }
+                chunkArray[chunkIndex][(int) (position % LOG_CHUNK_SIZE)] = event;
+                position++;
+            }
+            if (chunkArray != chunks.chunks) {
+                eventLogChunks = new EventLogChunks(chunkArray, firstChunk);
+            }
+            committedPosition = position;
+        }
+    }
+
+    /**
+     * Sets the maximum number of events kept per aggregate. When an aggregate has more events, the oldest events
+     * preceding its most recent snapshot are discarded. Events of aggregates without snapshot are never discarded, as
+     * they would be needed to load the aggregate. Defaults to no limit.
+     *
+     * @param maxEventsPerAggregate the maximum number of events to keep per aggregate
+     */
+    public void setMaxEventsPerAggregate(int maxEventsPerAggregate) {
+        Assert.isTrue(maxEventsPerAggregate > 0, "The maximum number of events must be a positive number");
+        this.maxEventsPerAggregate = maxEventsPerAggregate;
+    }
+
+    /**
+     * Sets the number of most recent events kept in the global event log. Older events are discarded from the log in
+     * chunks of 1024 events, so the log may contain up to 1024 more events. Discarded events are no longer returned by
+     * {@link #readAll(long, int)}, but remain available to {@link #readEvents(String, java.util.UUID)}. Defaults to no
+     * limit.
+     *
+     * @param maxLoggedEvents the maximum number of events to keep in the global event log
+     */
+    public void setMaxLoggedEvents(long maxLoggedEvents) {
+        Assert.isTrue(maxLoggedEvents > 0, "The maximum number of events must be a positive number");
+        this.maxLoggedEvents = maxLoggedEvents;
+    }
+
+    /**
+     * The events of a single aggregate. Modifications must be made while holding the lock on the instance, and are
+     * published by replacing the (immutable) event range.
+     */
+    private static final class AggregateEvents {
+
+        private volatile EventRange events = new EventRange(new DomainEvent[INITIAL_CAPACITY], 0, 0, null);
+
+        private void append(List<DomainEvent> newEvents, int maxEvents) {
+            EventRange current = events;
+            DomainEvent[] array = current.events;
+            int end = current.end;
+            if (end + newEvents.size() > array.length) {
+                int size = end - current.start;
+                array = new DomainEvent[Math.max(INITIAL_CAPACITY, (size + newEvents.size()) * 2)];
+                System.arraycopy(current.events, current.start, array, 0, size);
+                current = new EventRange(array, 0, size, current.snapshot);
+                end = size;
+            }
+            // readers of the current range never read beyond its end, so the array may be shared
+            for (DomainEvent event : newEvents) {
+                array[end++] = event;
+            }
+            events = discardOldEvents(new EventRange(array, current.start, end, current.snapshot), maxEvents);
+        }
+
+        private void setSnapshot(DomainEvent snapshot, int maxEvents) {
+            EventRange current = events;
+            events = discardOldEvents(new EventRange(current.events, current.start, current.end, snapshot),
+                                      maxEvents);
+        }
+
+        private EventRange discardOldEvents(EventRange range, int maxEvents) {
+            if (range.snapshot == null || range.end - range.start <= maxEvents) {
+                return range;
+            }
+            int start = Math.min(range.end - maxEvents, range.indexOf(range.snapshot.getSequenceNumber() + 1));
+            if (start <= range.start) {
+                return range;
+            }
+            // the discarded events are released when the array is replaced by a larger one
+            return new EventRange(range.events, start, range.end, range.snapshot);
+        }
+    }
+
+    /**
+     * An immutable view on the events of an aggregate: the events in the array between start (inclusive) and end
+     * (exclusive), which are ordered by sequence number, and the most recent snapshot, if any.
+     */
+    private static final class EventRange {
+
+        private final DomainEvent[] events;
+        private final int start;
+        private final int end;
+        private final DomainEvent snapshot;
+
+        private EventRange(DomainEvent[] events, int start, int end, DomainEvent snapshot) {
+            this.events = events;
+            this.start = start;
+            this.end = end;
+            this.snapshot = snapshot;
+        }
+
+        /**
+         * Returns the index of the first event with a sequence number equal to or higher than the given
+         * <code>sequenceNumber</code>, or <code>end</code> if there is no such event.
+         */
+        private int indexOf(long sequenceNumber) {
+            int low = start;
+            int high = end - 1;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                if (events[middle].getSequenceNumber() < sequenceNumber) {
+                    low = middle + 1;
+                } else {
+                    high = middle - 1;
+                }
+            }
+            return low;
+        }
+    }
+
+    /**
+     * The chunks of the global event log. The first chunk in the array is chunk number <code>firstChunk</code>.
+     */
+    private static final class EventLogChunks {
+
+        private final DomainEvent[][] chunks;
+        private final long firstChunk;
+
+        private EventLogChunks(DomainEvent[][] chunks, long firstChunk) {
+            this.chunks = chunks;
+            this.firstChunk = firstChunk;
+        }
+    }
+
+    /**
+     * Event stream over an event range, optionally preceded by a snapshot event.
+     */
+    private static final class EventRangeStream implements LazyEventStream {
+
+        private final UUID aggregateIdentifier;
+        private final EventRange events;
+        private DomainEvent snapshot;
+        private int next;
+
+        private EventRangeStream(UUID aggregateIdentifier, DomainEvent snapshot, EventRange events, int next) {
+            this.aggregateIdentifier = aggregateIdentifier;
+            this.snapshot = snapshot;
+            this.events = events;
+            this.next = next;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public UUID getAggregateIdentifier() {
+            return aggregateIdentifier;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean hasNext() {
+            return snapshot != null || next < events.end;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public DomainEvent next() {
+            DomainEvent event = peek();
+            skip();
+            return event;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public String peekEventType() {
+            return peek().getClass().getName();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public Long peekSequenceNumber() {
+            return peek().getSequenceNumber();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void skip() {
+            peek();
+            if (snapshot != null) {
+                snapshot = null;
+            } else {
+                next++;
+            }
+        }
+
+        private DomainEvent peek() {
+            if (!hasNext()) {
+                throw new NoSuchElementException("The event stream doesn't contain any more events");
+            }
+            return snapshot != null ? snapshot : events.events[next];
+        }
+    }
+
+    private static final class AggregateKey implements Comparable<AggregateKey> {
+
+        private final String type;
+        private final UUID identifier;
+
+        private AggregateKey(String type, UUID identifier) {
+            this.type = type;
+            this.identifier = identifier;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            AggregateKey that = (AggregateKey) o;
+            return identifier.equals(that.identifier) && type.equals(that.type);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public int hashCode() {
+            return 31 * type.hashCode() + identifier.hashCode();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public int compareTo(AggregateKey other) {
+            int typeComparison = type.compareTo(other.type);
+            return typeComparison != 0 ? typeComparison : identifier.compareTo(other.identifier);
+        }
+    }
+}
@@ -0,0 +1,518 @@
+/*
+ * Copyright (c) 2010. Gridshore
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.gridshore.cqrs4j.repository.eventsourcing;
+
+import nl.gridshore.cqrs4j.DomainEvent;
+import nl.gridshore.cqrs4j.EventStream;
+import nl.gridshore.cqrs4j.LazyEventStream;
+import nl.gridshore.cqrs4j.repository.ConcurrencyException;
+import nl.gridshore.cqrs4j.util.Assert;
+import org.springframework.beans.factory.annotation.Required;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.jdbc.core.BatchPreparedStatementSetter;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.PreparedStatementCreator;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.sql.DataSource;
+import java.nio.ByteBuffer;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.UUID;
+
+/**
+ * Implementation of the {@link EventStore} that stores events in a relational database, using JDBC. Events are
+ * serialized using an {@link EventSerializer}, and stored in a table containing a row per event. A unique constraint
+ * on the aggregate type, identifier and sequence number of the events guarantees that concurrent modifications of the
+ * same aggregate are detected: the append that comes last fails with a {@link ConcurrencyException}.
+ * <p/>
+ * The events passed to a single {@link #appendEvents(String, nl.gridshore.cqrs4j.EventStream)} call are inserted
+ * using a single JDBC batch. The same goes for the events of several aggregates passed to {@link
+ * #appendEvents(java.util.List)}, which are inserted in a single transaction.
+ * <p/>
+ * The events of an aggregate are read in pages of the configured fetch size, ordered by sequence number. The next page
+ * is only queried when the events of the previous one have been read from the returned event stream, so that no more
+ * than a single page of events is held in memory, and no database connection is held while the stream is being read.
+ * Events are only deserialized when they are read from the event stream.
+ * <p/>
+ * Database access is done using Spring's {@link JdbcTemplate}, and appends are executed in a transaction. When the
+ * caller already started a transaction using a {@link DataSourceTransactionManager} for the same data source (or the
+ * transaction manager set using {@link #setTransactionManager(PlatformTransactionManager)}), appends join that
+ * transaction. Otherwise, each append is committed on its own.
+ * <p/>
+ * The tables can be created using {@link #createSchema()}. The position of events in the global event log used by
+ * {@link #readAll(long, int)} is the value of an identity column. Since concurrent transactions may commit in another
+ * order than the one in which they obtained these values, events appended concurrently with reading the log may be
+ * missed.
+ *
+ * @author Allard Buijze
+ * @since 0.4
+ */
+public class JdbcEventStore implements SnapshotEventStore, ReplayableEventStore, AtomicEventStore {
+
+    private static final int DEFAULT_FETCH_SIZE = 100;
+
+    private JdbcTemplate jdbcTemplate;
+    private TransactionTemplate transactionTemplate;
+    private EventSerializer eventSerializer = new XStreamEventSerializer();
+    private int fetchSize = DEFAULT_FETCH_SIZE;
+    private String eventTable = "domain_event_entry";
+    private String snapshotTable = "snapshot_event_entry";
+
+    /**
+     * Creates the tables used by this event store.
+     */
+    public void createSchema() {
+        jdbcTemplate.execute("create table " + eventTable + " ("
+                + "global_index bigint generated by default as identity primary key, "
+                + "aggregate_type varchar(255) not null, "
+                + "aggregate_identifier char(36) not null, "
+                + "sequence_number bigint not null, "
+                + "event_type varchar(255) not null, "
+                + "payload blob not null, "
+                + "constraint " + eventTable + "_aggregate_sequence "
+                + "unique (aggregate_type, aggregate_identifier, sequence_number))");
+        jdbcTemplate.execute("create table " + snapshotTable + " ("
+                + "aggregate_type varchar(255) not null, "
+                + "aggregate_identifier char(36) not null, "
+                + "sequence_number bigint not null, "
+                + "payload blob not null, "
+                + "primary key (aggregate_type, aggregate_identifier, sequence_number))");
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * All events are inserted in a single JDBC batch.
+     *
+     * @throws ConcurrencyException when an event with the same sequence number was already stored for the aggregate
+     */
+    @Override
+    public void appendEvents(String type, EventStream events) {
+        List<String> types = new ArrayList<String>();
+        List<DomainEvent> eventList = new ArrayList<DomainEvent>();
+        while (events.hasNext()) {
+            types.add(type);
+            eventList.add(events.next());
+        }
+        try {
+            insertInTransaction(types, eventList);
+        } catch (DuplicateKeyException e) {
+            throw new ConcurrencyException(String.format(
+                    "An event for aggregate [%s] with sequence number [%s] was already inserted",
+                    events.getAggregateIdentifier(), eventList.get(0).getSequenceNumber()), e);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * The events are inserted using a single JDBC batch, in a single transaction.
+     */
+    @Override
+    public void appendEvents(List<TypedEventStream> eventStreams) {
+        List<String> types = new ArrayList<String>();
+        List<DomainEvent> eventList = new ArrayList<DomainEvent>();
+        for (TypedEventStream events : eventStreams) {
+            while (events.hasNext()) {
+                types.add(events.getType());
+                eventList.add(events.next());
+            }
+        }
+        try {
+            insertInTransaction(types, eventList);
+        } catch (DuplicateKeyException e) {
+            throw new ConcurrencyException("An event for one of the aggregates was already inserted", e);
+        }
+    }
+
+    private void insertInTransaction(final List<String> types, final List<DomainEvent> eventList) {
+        if (eventList.isEmpty()) {
+            return;
+        }
+        transactionTemplate.execute(new TransactionCallbackWithoutResult() {
+            @Override
+            protected void doInTransactionWithoutResult(TransactionStatus status) {
+                insertEvents(types, eventList);
+            }
+        });
+    }
+
+    private void insertEvents(final List<String> types, final List<DomainEvent> eventList) {
+        jdbcTemplate.batchUpdate("insert into " + eventTable
+                + " (aggregate_type, aggregate_identifier, sequence_number, event_type, payload)"
+                + " values (?, ?, ?, ?, ?)", new BatchPreparedStatementSetter() {
+            @Override
+            public void setValues(PreparedStatement ps, int i) throws SQLException {
+                DomainEvent event = eventList.get(i);
+                ps.setString(1, types.get(i));
+                ps.setString(2, event.getAggregateIdentifier().toString());
+                ps.setLong(3, event.getSequenceNumber());
+                ps.setString(4, event.getClass().getName());
+                ps.setBytes(5, toBytes(eventSerializer.serialize(event)));
+            }
+
+            @Override
+            public int getBatchSize() {
+                return eventList.size();
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * Snapshots preceding the given snapshot are removed.
+     */
+    @Override
+    public void appendSnapshotEvent(final String type, final DomainEvent snapshotEvent) {
+        transactionTemplate.execute(new TransactionCallbackWithoutResult() {
+            @Override
+            protected void doInTransactionWithoutResult(TransactionStatus status) {
+                replaceSnapshot(type, snapshotEvent);
+            }
+        });
+    }
+
+    private void replaceSnapshot(String type, DomainEvent snapshotEvent) {
+        String aggregateIdentifier = snapshotEvent.getAggregateIdentifier().toString();
+        jdbcTemplate.update("insert into " + snapshotTable
+                + " (aggregate_type, aggregate_identifier, sequence_number, payload) values (?, ?, ?, ?)",
+                            type, aggregateIdentifier, snapshotEvent.getSequenceNumber(),
+                            toBytes(eventSerializer.serialize(snapshotEvent)));
+        jdbcTemplate.update("delete from " + snapshotTable
+                + " where aggregate_type = ? and aggregate_identifier = ? and sequence_number < ?",
+                            type, aggregateIdentifier, snapshotEvent.getSequenceNumber());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public LazyEventStream readEvents(String type, UUID identifier) {
+        SerializedEvents snapshots = query("select sequence_number, null, payload from " + snapshotTable
+                + " where aggregate_type = ? and aggregate_identifier = ? order by sequence_number desc",
+                                           1, type, identifier.toString());
+        if (!snapshots.isEmpty()) {
+            return new SerializedEventStream(type, identifier, snapshots, false);
+        }
+        SerializedEvents events = readPage(type, identifier, 0);
+        if (events.isEmpty()) {
+            throw new EventStorageException(String.format(
+                    "No events found for aggregate of type [%s] with identifier [%s]", type, identifier));
+        }
+        return new SerializedEventStream(type, identifier, events, isLastPage(events));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public LazyEventStream readEvents(String type, UUID identifier, long firstSequenceNumber) {
+        SerializedEvents events = readPage(type, identifier, firstSequenceNumber);
+        return new SerializedEventStream(type, identifier, events, isLastPage(events));
+    }
+
+    private SerializedEvents readPage(String type, UUID identifier, long firstSequenceNumber) {
+        return query("select sequence_number, event_type, payload from " + eventTable
+                + " where aggregate_type = ? and aggregate_identifier = ? and sequence_number >= ?"
+                + " order by sequence_number", fetchSize, type, identifier.toString(), firstSequenceNumber);
+    }
+
+    private boolean isLastPage(SerializedEvents page) {
+        return page.size() < fetchSize;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * The position of an event is the value of its identity column.
+     */
+    @Override
+    public EventLogBatch readAll(long fromPosition, int batchSize) {
+        final List<DomainEvent> events = new ArrayList<DomainEvent>();
+        final long[] nextPosition = {fromPosition};
+        jdbcTemplate.query(new SelectStatementCreator(
+                "select global_index, payload from " + eventTable + " where global_index >= ? order by global_index",
+                batchSize, fromPosition), new RowCallbackHandler() {
+            @Override
+            public void processRow(ResultSet rs) throws SQLException {
+                nextPosition[0] = rs.getLong(1) + 1;
+                events.add(eventSerializer.deserialize(ByteBuffer.wrap(rs.getBytes(2))));
+            }
+        });
+        return new EventLogBatch(events, nextPosition[0]);
+    }
+
+    private SerializedEvents query(String sql, int maxRows, Object... parameters) {
+        final SerializedEvents events = new SerializedEvents();
+        jdbcTemplate.query(new SelectStatementCreator(sql, maxRows, parameters), new RowCallbackHandler() {
+            @Override
+            public void processRow(ResultSet rs) throws SQLException {
+                events.add(rs.getLong(1), rs.getString(2), rs.getBytes(3));
+            }
+        });
+        return events;
+    }
+
+    private static byte[] toBytes(ByteBuffer buffer) {
+        if (buffer.hasArray() && buffer.arrayOffset() == 0 && buffer.position() == 0
+                && buffer.remaining() == buffer.array().length) {
+            return buffer.array();
+        }
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Sets the data source providing the connections to the database. Unless another transaction manager is set,
+     * appends are executed using a {@link DataSourceTransactionManager} for this data source.
+     *
+     * @param dataSource the data source providing database connections
+     */
+    @Required
+    public void setDataSource(DataSource dataSource) {
+        this.jdbcTemplate = new JdbcTemplate(dataSource);
+        if (transactionTemplate == null) {
+            this.transactionTemplate = new TransactionTemplate(new DataSourceTransactionManager(dataSource));
+        }
+    }
+
+    /**
+     * Sets the transaction manager used to execute appends in a transaction. Appends join the transaction of the
+     * caller, if it has one. Defaults to a {@link DataSourceTransactionManager} for the data source.
+     *
+     * @param transactionManager the transaction manager to execute appends with
+     */
+    public void setTransactionManager(PlatformTransactionManager transactionManager) {
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+    }
+
+    /**
+     * Sets the serializer used to serialize events. Defaults to an {@link XStreamEventSerializer}. Events can only be
+     * read using the serializer they were stored with.
+     *
+     * @param eventSerializer the serializer used to serialize events
+     */
+    public void setEventSerializer(EventSerializer eventSerializer) {
+        this.eventSerializer = eventSerializer;
+    }
+
+    /**
+     * Sets the number of rows fetched from the database at once when reading events. This is also the maximum number
+     * of events of an aggregate kept in memory by the event streams returned from <code>readEvents</code>. Defaults to
+     * 100.
+     *
+     * @param fetchSize the number of rows to fetch at once
+     */
+    public void setFetchSize(int fetchSize) {
+        Assert.isTrue(fetchSize > 0, "The fetch size must be a positive number");
+        this.fetchSize = fetchSize;
+    }
+
+    /**
+     * Sets the name of the table containing the events. Defaults to <code>domain_event_entry</code>.
+     *
+     * @param eventTable the name of the table containing the events
+     */
+    public void setEventTable(String eventTable) {
+        this.eventTable = eventTable;
+    }
+
+    /**
+     * Sets the name of the table containing the snapshot events. Defaults to <code>snapshot_event_entry</code>.
+     *
+     * @param snapshotTable the name of the table containing the snapshot events
+     */
+    public void setSnapshotTable(String snapshotTable) {
+        this.snapshotTable = snapshotTable;
+    }
+
+    /**
+     * Creates select statements using the configured fetch size.
+     */
+    private class SelectStatementCreator implements PreparedStatementCreator {
+
+        private final String sql;
+        private final int maxRows;
+        private final Object[] parameters;
+
+        private SelectStatementCreator(String sql, int maxRows, Object... parameters) {
+            this.sql = sql;
+            this.maxRows = maxRows;
+            this.parameters = parameters;
+        }
+
+        @Override
+        public PreparedStatement createPreparedStatement(Connection connection) throws SQLException {
+            PreparedStatement statement = connection.prepareStatement(sql);
+            statement.setFetchSize(maxRows > 0 ? Math.min(fetchSize, maxRows) : fetchSize);
+            statement.setMaxRows(maxRows);
+            for (int i = 0; i < parameters.length; i++) {
+                statement.setObject(i + 1, parameters[i]);
+            }
+            return statement;
+        }
+    }
+
+    /**
+     * The serialized form of a page of events, as read from the database.
+     */
+    private static final class SerializedEvents {
+
+        private final List<Long> sequenceNumbers = new ArrayList<Long>();
+        private final List<String> eventTypes = new ArrayList<String>();
+        private final List<byte[]> payloads = new ArrayList<byte[]>();
+
+        private void add(long sequenceNumber, String eventType, byte[] payload) {
+            sequenceNumbers.add(sequenceNumber);
+            eventTypes.add(eventType);
+            payloads.add(payload);
+        }
+
+        private int size() {
+            return sequenceNumbers.size();
+        }
+
+        private boolean isEmpty() {
+            return sequenceNumbers.isEmpty();
+        }
+
+        private long lastSequenceNumber() {
+            return sequenceNumbers.get(sequenceNumbers.size() - 1);
+        }
+    }
+
+    /**
+     * Event stream that deserializes events when they are read. The events are read from the database a page at a
+     * time, when all events of the previous page have been read.
+     */
+    private final class SerializedEventStream implements LazyEventStream {
+
+        private final String type;
+        private final UUID aggregateIdentifier;
+        private SerializedEvents events;
+        private boolean lastPage;
+        private int next;
+        private DomainEvent nextEvent;
+
+        private SerializedEventStream(String type, UUID aggregateIdentifier, SerializedEvents firstPage,
+                                      boolean lastPage) {
+            this.type = type;
+            this.aggregateIdentifier = aggregateIdentifier;
+            this.events = firstPage;
+            this.lastPage = lastPage;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public UUID getAggregateIdentifier() {
+            return aggregateIdentifier;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean hasNext() {
+            if (next < events.size()) {
+                return true;
+            }
+            if (!lastPage) {
+                readNextPage();
+            }
+            return next < events.size();
+        }
+
+        private void readNextPage() {
+            long nextSequenceNumber = events.lastSequenceNumber() + 1;
+            events = readPage(type, aggregateIdentifier, nextSequenceNumber);
+            lastPage = isLastPage(events);
+            next = 0;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public DomainEvent next() {
+            DomainEvent event = deserializeNextEvent();
+            skip();
+            return event;
+        }
+
+        /**
+         * {@inheritDoc}
+         * <p/>
+         * Snapshot events are deserialized to find out their type.
+         */
+        @Override
+        public String peekEventType() {
+            assertHasNext();
+            String eventType = events.eventTypes.get(next);
+            return eventType != null ? eventType : deserializeNextEvent().getClass().getName();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public Long peekSequenceNumber() {
+            assertHasNext();
+            return events.sequenceNumbers.get(next);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void skip() {
+            assertHasNext();
+            // release the serialized form of events that have been read
+            events.payloads.set(next, null);
+            nextEvent = null;
+            next++;
+        }
+
+        private DomainEvent deserializeNextEvent() {
+            assertHasNext();
+            if (nextEvent == null) {
+                nextEvent = eventSerializer.deserialize(ByteBuffer.wrap(events.payloads.get(next)));
+            }
+            return nextEvent;
+        }
+
+        private void assertHasNext() {
+            if (!hasNext()) {
+                throw new NoSuchElementException("The event stream doesn't contain any more events");
+            }
+        }
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright (c) 2010. Gridshore
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package nl.gridshore.cqrs4j.repository.eventsourcing;
+
+import com.thoughtworks.xstream.converters.SingleValueConverter;
+import org.joda.time.LocalDateTime;
+
+/**
+ * XStream converter that writes Joda's {@link LocalDateTime} in its compact ISO-8601 representation.
+ *
+ * @author Allard Buijze
+ * @since 0.1
+ */
+class LocalDateTimeConverter implements SingleValueConverter {
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean canConvert(Class type) {
+        return type.equals(LocalDateTime.class);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString(Object obj) {
+        return obj.toString();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Object fromString(String str) {
+        return new LocalDateTime(str);
+    }
+}
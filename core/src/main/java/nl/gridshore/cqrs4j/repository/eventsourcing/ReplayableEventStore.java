@@ -0,0 +1,46 @@
+/*
+ * Copyright (c) 2010. Gridshore
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package nl.gridshore.cqrs4j.repository.eventsourcing;
+
+/**
+ * Event store that keeps track of the order in which events of all aggregates were appended. Each stored event has a
+ * position in this global event log, allowing all events to be read in the order in which they were committed, for
+ * example to rebuild a read model.
+ * <p/>
+ * Positions are opaque: they are only guaranteed to increase with every appended event. Use the position of the first
+ * event (<code>0</code>) or the {@link EventLogBatch#getNextPosition() next position} of a previously read batch as
+ * the position to read from. Snapshot events are not part of the global event log.
+ *
+ * @author Allard Buijze
+ * @since 0.4
+ */
+public interface ReplayableEventStore extends EventStore {
+
+    /**
+     * Read at most <code>batchSize</code> events from the global event log, starting at the given
+     * <code>fromPosition</code>. The events are returned in the order in which they were appended. When there are no
+     * events at or after the given position, the returned batch is empty.
+     *
+     * @param fromPosition The position of the first event to read
+     * @param batchSize    The maximum number of events to read
+     * @return a batch containing the events read, and the position to read the next batch from
+     *
+     * @throws EventStorageException if an error occurs while reading the events
+     */
+    EventLogBatch readAll(long fromPosition, int batchSize);
+}
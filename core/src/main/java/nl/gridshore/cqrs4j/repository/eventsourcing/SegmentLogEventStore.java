@@ -0,0 +1,1043 @@
+/*
+ * Copyright (c) 2010. Gridshore
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package nl.gridshore.cqrs4j.repository.eventsourcing;
+
+import nl.gridshore.cqrs4j.DomainEvent;
+import nl.gridshore.cqrs4j.EventStream;
+import nl.gridshore.cqrs4j.LazyEventStream;
+import nl.gridshore.cqrs4j.util.Assert;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Required;
+import org.springframework.core.io.Resource;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Implementation of the {@link EventStore} that appends events of all aggregates to a single log, consisting of fixed
+ * size segment files. Each event is stored as a length prefixed binary record, containing the aggregate type, aggregate
+ * identifier, sequence number and type of the event, followed by the event itself, serialized using the configured
+ * {@link EventSerializer}.
+ * <p/>
+ * Segment files are preallocated to their full size. A record length of zero marks the end of the data in a segment.
+ * When a record doesn't fit in the remaining space of the active segment, a new segment is started.
+ * <p/>
+ * Records are written using a {@link FileChannel}, and read through a {@link MappedByteBuffer} of the segment. The
+ * position of each record is kept in an in-memory index per aggregate, which is rebuilt from the segment files when
+ * the event store is {@link #initialize() initialized}. Loading an aggregate therefore only reads the records of that
+ * aggregate, without having to parse any other data. The event streams returned by this event store are {@link
+ * LazyEventStream lazy}: an event is only deserialized when it is read from the stream.
+ * <p/>
+ * Snapshot events are appended to the log like any other event, but are marked as such. The index keeps track of the
+ * most recent snapshot of each aggregate, so that the events it replaces don't have to be read.
+ * <p/>
+ * The log itself is the global event log of this {@link ReplayableEventStore}. The position of an event in the global
+ * event log is derived from the number of the segment and the offset of the event record in that segment.
+ * <p/>
+ * The records of a single append, which may contain the events of several aggregates (see {@link
+ * #appendEvents(java.util.List)}), are always written to the same segment, using a single write. All records but the
+ * last one are marked as being continued by the next, so that the records of an append that was interrupted by a crash
+ * are ignored when the index is rebuilt: appends are atomic.
+ * <p/>
+ * Appends are committed in groups. Events appended while another thread is writing are queued, and the next writing
+ * thread writes all queued events at once, followed by a single force of the segment if the {@link SyncPolicy}
+ * requires it. With the default policy ({@link SyncPolicy#PER_BATCH}), a call to {@link #appendEvents(String,
+ * nl.gridshore.cqrs4j.EventStream)} returns once the appended events have been forced to the storage device.
+ * <p/>
+ * Use {@link #setBaseDir(org.springframework.core.io.Resource)} to specify the directory where segment files should
+ * be stored. Only a single event store instance may use a directory at any time.
+ *
+ * @author Allard Buijze
+ * @since 0.4
+ */
+public class SegmentLogEventStore implements SnapshotEventStore, ReplayableEventStore, AtomicEventStore {
+
+    private static final Logger logger = LoggerFactory.getLogger(SegmentLogEventStore.class);
+
+    private static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+    private static final long DEFAULT_SYNC_INTERVAL = 1000;
+    private static final String SEGMENT_FILE_SUFFIX = ".segment";
+    private static final int LENGTH_FIELD_SIZE = 4;
+    // flags (1), aggregate identifier (16), sequence number (8), aggregate type length (2) and event type length (2)
+    private static final int RECORD_HEADER_SIZE = 29;
+    // offset of the sequence number in a record, including the length field
+    private static final int SEQUENCE_NUMBER_OFFSET = 21;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final byte SNAPSHOT_FLAG = 1;
+    // the record is followed by another record of the same append
+    private static final byte CONTINUED_FLAG = 2;
+
+    private final ConcurrentMap<AggregateKey, RecordPositions> index =
+            new ConcurrentHashMap<AggregateKey, RecordPositions>();
+    private final List<Segment> segments = new CopyOnWriteArrayList<Segment>();
+    private final Queue<PendingAppend> pendingAppends = new ConcurrentLinkedQueue<PendingAppend>();
+    private final Object writeLock = new Object();
+    private volatile boolean initialized;
+    private Segment activeSegment;
+    private int writePosition;
+    private volatile long committedPosition;
+    private boolean unsyncedWrites;
+    private ScheduledExecutorService syncScheduler;
+    private EventSerializer eventSerializer = new XStreamEventSerializer();
+    private Resource baseDir;
+    private int segmentSize = DEFAULT_SEGMENT_SIZE;
+    private SyncPolicy syncPolicy = SyncPolicy.PER_BATCH;
+    private long syncInterval = DEFAULT_SYNC_INTERVAL;
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void appendEvents(String type, EventStream events) {
+        appendEvents(Collections.singletonList(new TypedEventStream(type, events)));
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * The records of all events are written to the same segment, using a single write. Their total size may therefore
+     * not exceed the segment size.
+     */
+    @Override
+    public void appendEvents(List<TypedEventStream> eventStreams) {
+        assertInitialized();
+        List<RecordPositions> indexes = new ArrayList<RecordPositions>();
+        List<DomainEvent> eventList = new ArrayList<DomainEvent>();
+        List<ByteBuffer> records = new ArrayList<ByteBuffer>();
+        int size = 0;
+        for (TypedEventStream events : eventStreams) {
+            byte[] typeBytes = events.getType().getBytes(UTF8);
+            RecordPositions positions = positionsOf(new AggregateKey(events.getType(),
+                                                                     events.getAggregateIdentifier()));
+            while (events.hasNext()) {
+                DomainEvent event = events.next();
+                ByteBuffer record = createRecord(typeBytes, event, CONTINUED_FLAG);
+                size += record.remaining();
+                indexes.add(positions);
+                eventList.add(event);
+                records.add(record);
+            }
+        }
+        if (records.isEmpty()) {
+            return;
+        }
+        if (size > segmentSize - LENGTH_FIELD_SIZE) {
+            throw new EventStorageException(String.format(
+                    "The %s appended events take %s bytes, which does not fit in a segment of %s bytes",
+                    records.size(), size, segmentSize));
+        }
+        // the last record completes the append
+        records.get(records.size() - 1).put(LENGTH_FIELD_SIZE, (byte) 0);
+        commit(new PendingAppend(indexes, eventList, records, false));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void appendSnapshotEvent(String type, DomainEvent snapshotEvent) {
+        assertInitialized();
+        ByteBuffer record = createRecord(type.getBytes(UTF8), snapshotEvent, SNAPSHOT_FLAG);
+        commit(new PendingAppend(
+                Collections.singletonList(positionsOf(new AggregateKey(type, snapshotEvent.getAggregateIdentifier()))),
+                Collections.singletonList(snapshotEvent), Collections.singletonList(record), true));
+    }
+
+    private void commit(PendingAppend append) {
+        pendingAppends.add(append);
+        synchronized (writeLock) {
+            // another thread may have committed our events while we were waiting for the lock
+            if (!append.isCommitted()) {
+                commitPendingAppends();
+            }
+        }
+        append.assertSuccessful();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public LazyEventStream readEvents(String type, UUID identifier) {
+        assertInitialized();
+        RecordPositions positions = index.get(new AggregateKey(type, identifier));
+        if (positions == null) {
+            throw new EventStorageException(String.format(
+                    "No events found for aggregate of type [%s] with identifier [%s]", type, identifier));
+        }
+        return new SegmentEventStream(positions.positionsToRead(), identifier);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * The index contains the sequence number of each event, so the records of the events before
+     * <code>firstSequenceNumber</code> are not read at all.
+     */
+    @Override
+    public LazyEventStream readEvents(String type, UUID identifier, long firstSequenceNumber) {
+        assertInitialized();
+        RecordPositions positions = index.get(new AggregateKey(type, identifier));
+        if (positions == null) {
+            throw new EventStorageException(String.format(
+                    "No events found for aggregate of type [%s] with identifier [%s]", type, identifier));
+        }
+        return new SegmentEventStream(positions.positionsFrom(firstSequenceNumber), identifier);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * Only events that have been committed are read. Snapshot events are skipped.
+     */
+    @Override
+    public EventLogBatch readAll(long fromPosition, int batchSize) {
+        assertInitialized();
+        long endPosition = committedPosition;
+        List<DomainEvent> events = new ArrayList<DomainEvent>();
+        long position = fromPosition;
+        while (events.size() < batchSize && position < endPosition) {
+            int segmentNumber = segmentNumberOf(position);
+            int offset = offsetOf(position);
+            ByteBuffer buffer = segments.get(segmentNumber).buffer;
+            int recordLength = offset + LENGTH_FIELD_SIZE <= buffer.limit() ? buffer.getInt(offset) : 0;
+            if (recordLength < RECORD_HEADER_SIZE) {
+                // end of the data in this segment
+                position = toPosition(segmentNumber + 1, 0);
+            } else {
+                if ((buffer.get(offset + LENGTH_FIELD_SIZE) & SNAPSHOT_FLAG) == 0) {
+                    events.add(readEvent(position));
+                }
+                position += LENGTH_FIELD_SIZE + recordLength;
+            }
+        }
+        return new EventLogBatch(events, position);
+    }
+
+    /**
+     * Opens the segment files in the base directory and rebuilds the index of the events they contain. If the
+     * directory doesn't contain any segments yet, the first segment is created.
+     * <p/>
+     * This method must be called after initialization of all properties.
+     */
+    @PostConstruct
+    public void initialize() {
+        synchronized (writeLock) {
+            if (initialized) {
+                return;
+            }
+            try {
+                File directory = baseDir.getFile();
+                if (!directory.exists() && !directory.mkdirs()) {
+                    throw new IllegalStateException(
+                            "The given event store directory doesn't exist and could not be created");
+                }
+                File[] segmentFiles = directory.listFiles(new SegmentFileFilter());
+                Arrays.sort(segmentFiles);
+                for (int i = 0; i < segmentFiles.length; i++) {
+                    if (!segmentFileName(i).equals(segmentFiles[i].getName())) {
+                        throw new EventStorageException(String.format(
+                                "Segment [%s] is missing in directory [%s]", segmentFileName(i), directory));
+                    }
+                    Segment segment = Segment.open(segmentFiles[i], i, segmentSize);
+                    segments.add(segment);
+                    activeSegment = segment;
+                    writePosition = indexSegment(segment);
+                }
+                if (activeSegment == null) {
+                    startNewSegment();
+                }
+                committedPosition = toPosition(activeSegment.number, writePosition);
+                if (syncPolicy == SyncPolicy.INTERVAL) {
+                    syncScheduler = Executors.newSingleThreadScheduledExecutor(new SyncThreadFactory());
+                    syncScheduler.scheduleWithFixedDelay(new SyncTask(), syncInterval, syncInterval,
+                                                         TimeUnit.MILLISECONDS);
+                }
+                initialized = true;
+                logger.info("Event store initialized with {} segment(s), containing events of {} aggregate(s)",
+                            segments.size(), index.size());
+            } catch (IOException e) {
+                close();
+                throw new EventStorageException("An IO Exception occurred while opening the segment files", e);
+            }
+        }
+    }
+
+    /**
+     * Forces all appended events to the storage device and closes all segment files. The event store may be
+     * initialized again afterwards.
+     */
+    @PreDestroy
+    public void close() {
+        if (syncScheduler != null) {
+            syncScheduler.shutdown();
+            syncScheduler = null;
+        }
+        synchronized (writeLock) {
+            if (initialized) {
+                try {
+                    sync();
+                } catch (IOException e) {
+                    logger.warn("Unable to force appended events to the storage device", e);
+                }
+            }
+            initialized = false;
+            for (Segment segment : segments) {
+                segment.close();
+            }
+            segments.clear();
+            index.clear();
+            activeSegment = null;
+            writePosition = 0;
+            committedPosition = 0;
+            unsyncedWrites = false;
+        }
+    }
+
+    private ByteBuffer createRecord(byte[] typeBytes, DomainEvent event, byte flags) {
+        byte[] eventTypeBytes = event.getClass().getName().getBytes(UTF8);
+        ByteBuffer payload = eventSerializer.serialize(event);
+        int recordLength = RECORD_HEADER_SIZE + typeBytes.length + eventTypeBytes.length + payload.remaining();
+        if (LENGTH_FIELD_SIZE + recordLength > segmentSize - LENGTH_FIELD_SIZE) {
+            throw new EventStorageException(String.format(
+                    "An event of %s bytes does not fit in a segment of %s bytes", payload.remaining(), segmentSize));
+        }
+        ByteBuffer record = ByteBuffer.allocate(LENGTH_FIELD_SIZE + recordLength);
+        record.putInt(recordLength);
+        record.put(flags);
+        record.putLong(event.getAggregateIdentifier().getMostSignificantBits());
+        record.putLong(event.getAggregateIdentifier().getLeastSignificantBits());
+        record.putLong(event.getSequenceNumber());
+        record.putShort((short) typeBytes.length);
+        record.put(typeBytes);
+        record.putShort((short) eventTypeBytes.length);
+        record.put(eventTypeBytes);
+        record.put(payload);
+        record.flip();
+        return record;
+    }
+
+    /**
+     * Writes the records of all pending appends, and forces them to the storage device if the sync policy requires
+     * it. Each pending append is marked as committed, whether it was successful or not. When the batch fails, the
+     * records that were already written are discarded, so that they don't reappear when the index is rebuilt.
+     * <p/>
+     * Must be called while holding the write lock.
+     */
+    private void commitPendingAppends() {
+        List<PendingAppend> batch = new ArrayList<PendingAppend>();
+        PendingAppend next;
+        while ((next = pendingAppends.poll()) != null) {
+            batch.add(next);
+        }
+        Segment batchSegment = activeSegment;
+        int batchPosition = writePosition;
+        RuntimeException failure = null;
+        try {
+            writeBatch(batch);
+            if (syncPolicy == SyncPolicy.PER_BATCH) {
+                sync();
+            }
+            committedPosition = toPosition(activeSegment.number, writePosition);
+        } catch (IOException e) {
+            failure = new EventStorageException("Unable to store given entity due to a IOException", e);
+        } catch (RuntimeException e) {
+            failure = e;
+        }
+        if (failure != null) {
+            discardBatch(batchSegment, batchPosition);
+        }
+        for (PendingAppend append : batch) {
+            append.markCommitted(failure);
+        }
+    }
+
+    /**
+     * Discards the records of a failed batch, by moving the write position back to the given <code>position</code> in
+     * the given <code>segment</code>, where the batch started, and marking the end of the data there. Segments started
+     * while writing the batch are removed.
+     * <p/>
+     * Must be called while holding the write lock.
+     *
+     * @param segment  The segment that was active when the batch started
+     * @param position The write position at the start of the batch
+     */
+    private void discardBatch(Segment segment, int position) {
+        activeSegment = segment;
+        writePosition = position;
+        try {
+            writeEndMarker(segment, position);
+            while (segments.size() > segment.number + 1) {
+                Segment discarded = segments.remove(segments.size() - 1);
+                writeEndMarker(discarded, 0);
+                discarded.close();
+                // an empty segment is harmless, it is reused when the next segment is started
+                if (!discarded.file.delete()) {
+                    logger.debug("Unable to delete discarded segment [{}]", discarded.file.getName());
+                }
+            }
+            unsyncedWrites = false;
+        } catch (IOException e) {
+            logger.error("Unable to discard the events of a failed append. They may reappear when the event store "
+                                 + "is reopened.", e);
+        }
+    }
+
+    private void writeEndMarker(Segment segment, int position) throws IOException {
+        ByteBuffer marker = ByteBuffer.allocate(LENGTH_FIELD_SIZE);
+        while (marker.hasRemaining()) {
+            segment.channel.write(marker, position + marker.position());
+        }
+        segment.channel.force(false);
+    }
+
+    /**
+     * Writes the records of the given <code>batch</code>, using a single write per segment. The records of an append
+     * are never divided over several segments.
+     *
+     * @param batch The appends to write the records of
+     * @throws IOException when an error occurs writing to the segment files
+     */
+    private void writeBatch(List<PendingAppend> batch) throws IOException {
+        List<ByteBuffer> chunk = new ArrayList<ByteBuffer>();
+        int chunkSize = 0;
+        for (PendingAppend append : batch) {
+            // always leave room for the length field that marks the end of the data. The active segment may have been
+            // created with another segment size.
+            if (writePosition + chunkSize + append.size() > activeSegment.capacity() - LENGTH_FIELD_SIZE) {
+                writeChunk(chunk, chunkSize);
+                chunk.clear();
+                chunkSize = 0;
+                if (syncPolicy != SyncPolicy.OS_BUFFERED) {
+                    sync();
+                }
+                startNewSegment();
+            }
+            for (int i = 0; i < append.records.size(); i++) {
+                ByteBuffer record = append.records.get(i);
+                append.positions[i] = toPosition(activeSegment.number, writePosition + chunkSize);
+                chunk.add(record);
+                chunkSize += record.remaining();
+            }
+        }
+        writeChunk(chunk, chunkSize);
+    }
+
+    /**
+     * Writes the given <code>records</code> at the write position of the active segment, followed by a length field
+     * that marks the end of the data. The marker overwrites any remains of records that were discarded when the index
+     * was rebuilt.
+     */
+    private void writeChunk(List<ByteBuffer> records, int chunkSize) throws IOException {
+        if (records.isEmpty()) {
+            return;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(chunkSize + LENGTH_FIELD_SIZE);
+        for (ByteBuffer record : records) {
+            buffer.put(record.duplicate());
+        }
+        buffer.putInt(0);
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            activeSegment.channel.write(buffer, writePosition + buffer.position());
+        }
+        writePosition += chunkSize;
+        unsyncedWrites = true;
+    }
+
+    /**
+     * Forces all events written to the active segment to the storage device. Must be called while holding the write
+     * lock.
+     *
+     * @throws IOException when an error occurs forcing the segment
+     */
+    private void sync() throws IOException {
+        if (unsyncedWrites) {
+            activeSegment.channel.force(false);
+            unsyncedWrites = false;
+        }
+    }
+
+    private DomainEvent readEvent(long position) {
+        ByteBuffer buffer = recordAt(position);
+        int recordEnd = buffer.position() + LENGTH_FIELD_SIZE + buffer.getInt(buffer.position());
+        skipToEventType(buffer);
+        int eventTypeLength = buffer.getShort();
+        buffer.position(buffer.position() + eventTypeLength);
+        ByteBuffer payload = buffer.slice();
+        payload.limit(recordEnd - buffer.position());
+        return eventSerializer.deserialize(payload);
+    }
+
+    private String readEventType(long position) {
+        ByteBuffer buffer = recordAt(position);
+        skipToEventType(buffer);
+        byte[] eventTypeBytes = new byte[buffer.getShort()];
+        buffer.get(eventTypeBytes);
+        return new String(eventTypeBytes, UTF8);
+    }
+
+    private long readSequenceNumber(long position) {
+        ByteBuffer buffer = recordAt(position);
+        return buffer.getLong(buffer.position() + SEQUENCE_NUMBER_OFFSET);
+    }
+
+    private ByteBuffer recordAt(long position) {
+        ByteBuffer buffer = segments.get(segmentNumberOf(position)).buffer.duplicate();
+        buffer.position(offsetOf(position));
+        return buffer;
+    }
+
+    /**
+     * Moves the position of the given <code>buffer</code> from the start of a record to the event type length field.
+     *
+     * @param buffer The buffer positioned at the start of a record
+     */
+    private void skipToEventType(ByteBuffer buffer) {
+        buffer.position(buffer.position() + SEQUENCE_NUMBER_OFFSET + 8);
+        int typeLength = buffer.getShort();
+        buffer.position(buffer.position() + typeLength);
+    }
+
+    /**
+     * Adds the records in the given <code>segment</code> to the index. The records of an append are only added once
+     * the record completing the append has been found. The records of an incomplete append at the end of the data
+     * are ignored.
+     *
+     * @param segment The segment to index
+     * @return the offset of the end of the data in the segment
+     */
+    private int indexSegment(Segment segment) {
+        ByteBuffer buffer = segment.buffer.duplicate();
+        int offset = 0;
+        int appendOffset = 0;
+        List<IndexedRecord> appendRecords = new ArrayList<IndexedRecord>();
+        while (offset + LENGTH_FIELD_SIZE <= buffer.limit()) {
+            int recordLength = buffer.getInt(offset);
+            if (recordLength == 0) {
+                break;
+            }
+            if (recordLength < RECORD_HEADER_SIZE || offset + LENGTH_FIELD_SIZE + recordLength > buffer.limit()) {
+                logger.warn("Segment [{}] contains an incomplete record at offset {}. It will be ignored.",
+                            segment.file.getName(), offset);
+                break;
+            }
+            buffer.position(offset + LENGTH_FIELD_SIZE);
+            byte flags = buffer.get();
+            UUID aggregateIdentifier = new UUID(buffer.getLong(), buffer.getLong());
+            long sequenceNumber = buffer.getLong();
+            byte[] typeBytes = new byte[buffer.getShort()];
+            buffer.get(typeBytes);
+            appendRecords.add(new IndexedRecord(new AggregateKey(new String(typeBytes, UTF8), aggregateIdentifier),
+                                                toPosition(segment.number, offset), sequenceNumber,
+                                                (flags & SNAPSHOT_FLAG) != 0));
+            offset += LENGTH_FIELD_SIZE + recordLength;
+            if ((flags & CONTINUED_FLAG) == 0) {
+                for (IndexedRecord record : appendRecords) {
+                    RecordPositions positions = positionsOf(record.key);
+                    if (record.snapshot) {
+                        positions.setSnapshot(record.position, record.sequenceNumber);
+                    } else {
+                        positions.add(record.position, record.sequenceNumber);
+                    }
+                }
+                appendRecords.clear();
+                appendOffset = offset;
+            }
+        }
+        if (!appendRecords.isEmpty()) {
+            logger.warn("Segment [{}] contains an incomplete append of {} event(s) at offset {}. It will be ignored.",
+                        new Object[]{segment.file.getName(), appendRecords.size(), appendOffset});
+        }
+        return appendOffset;
+    }
+
+    private void startNewSegment() throws IOException {
+        int number = segments.size();
+        Segment segment = Segment.open(new File(baseDir.getFile(), segmentFileName(number)), number, segmentSize);
+        segments.add(segment);
+        activeSegment = segment;
+        writePosition = 0;
+    }
+
+    private RecordPositions positionsOf(AggregateKey key) {
+        RecordPositions positions = index.get(key);
+        if (positions == null) {
+            index.putIfAbsent(key, new RecordPositions());
+            positions = index.get(key);
+        }
+        return positions;
+    }
+
+    private void assertInitialized() {
+        Assert.state(initialized, "The event store has not been initialized. Call initialize() before using it.");
+    }
+
+    private static String segmentFileName(int number) {
+        return String.format("%010d%s", number, SEGMENT_FILE_SUFFIX);
+    }
+
+    private static long toPosition(int segmentNumber, int offset) {
+        return ((long) segmentNumber << 32) | offset;
+    }
+
+    private static int segmentNumberOf(long position) {
+        return (int) (position >>> 32);
+    }
+
+    private static int offsetOf(long position) {
+        return (int) position;
+    }
+
+    /**
+     * Sets the base directory where the event store will store the segment files.
+     *
+     * @param baseDir the location to store segment files
+     */
+    @Required
+    public void setBaseDir(Resource baseDir) {
+        this.baseDir = baseDir;
+    }
+
+    /**
+     * Sets the size, in bytes, of newly created segment files. Defaults to 64MB. A single event may not be larger than
+     * a segment. Existing segments keep the size they were created with.
+     *
+     * @param segmentSize the size of new segment files
+     */
+    public void setSegmentSize(int segmentSize) {
+        Assert.isTrue(segmentSize > LENGTH_FIELD_SIZE + RECORD_HEADER_SIZE, "The given segment size is too small");
+        this.segmentSize = segmentSize;
+    }
+
+    /**
+     * Sets the policy that defines when appended events are forced to the storage device. Defaults to {@link
+     * SyncPolicy#PER_BATCH}.
+     *
+     * @param syncPolicy the policy that defines when appended events are forced to the storage device
+     */
+    public void setSyncPolicy(SyncPolicy syncPolicy) {
+        this.syncPolicy = syncPolicy;
+    }
+
+    /**
+     * Sets the number of milliseconds between forcing appended events to the storage device. Only used when the sync
+     * policy is {@link SyncPolicy#INTERVAL}. Defaults to 1000 milliseconds.
+     *
+     * @param syncInterval the number of milliseconds between forcing appended events to the storage device
+     */
+    public void setSyncInterval(long syncInterval) {
+        Assert.isTrue(syncInterval > 0, "The sync interval must be positive");
+        this.syncInterval = syncInterval;
+    }
+
+    /**
+     * Sets the serializer used to serialize events. Defaults to an {@link XStreamEventSerializer}. Events can only be
+     * read using the same kind of serializer as the one they were written with.
+     *
+     * @param eventSerializer the serializer used to serialize events
+     */
+    public void setEventSerializer(EventSerializer eventSerializer) {
+        this.eventSerializer = eventSerializer;
+    }
+
+    /**
+     * A segment file of the log, together with the channel used to write to it and the buffer used to read from it.
+     */
+    private static final class Segment {
+
+        private final int number;
+        private final File file;
+        private final RandomAccessFile randomAccessFile;
+        private final FileChannel channel;
+        private final MappedByteBuffer buffer;
+
+        private Segment(int number, File file, RandomAccessFile randomAccessFile, MappedByteBuffer buffer) {
+            this.number = number;
+            this.file = file;
+            this.randomAccessFile = randomAccessFile;
+            this.channel = randomAccessFile.getChannel();
+            this.buffer = buffer;
+        }
+
+        /**
+         * Opens the given segment <code>file</code>. If the file doesn't exist yet, it is created and preallocated to
+         * the given <code>size</code>.
+         *
+         * @param file   The segment file to open
+         * @param number The number of the segment
+         * @param size   The size of the segment, if it needs to be created
+         * @return the opened segment
+         *
+         * @throws IOException when the segment could not be opened
+         */
+        private static Segment open(File file, int number, int size) throws IOException {
+            RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+            try {
+                if (randomAccessFile.length() == 0) {
+                    randomAccessFile.setLength(size);
+                }
+                MappedByteBuffer buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0,
+                                                                             randomAccessFile.length());
+                return new Segment(number, file, randomAccessFile, buffer);
+            } catch (IOException e) {
+                randomAccessFile.close();
+                throw e;
+            }
+        }
+
+        /**
+         * Returns the size of this segment, which is the size it was created with.
+         *
+         * @return the size of this segment, in bytes
+         */
+        private int capacity() {
+            return buffer.capacity();
+        }
+
+        private void close() {
+            try {
+                randomAccessFile.close();
+            } catch (IOException e) {
+                logger.warn("Unable to close segment [{}]", file.getName());
+            }
+        }
+    }
+
+    /**
+     * The records appended by a single call to {@link SegmentLogEventStore#appendEvents(java.util.List)}, waiting to be
+     * committed.
+     */
+    private static final class PendingAppend {
+
+        private final List<RecordPositions> indexes;
+        private final List<DomainEvent> events;
+        private final List<ByteBuffer> records;
+        private final boolean snapshot;
+        private final long[] positions;
+        // guarded by the write lock
+        private boolean committed;
+        private RuntimeException failure;
+
+        private PendingAppend(List<RecordPositions> indexes, List<DomainEvent> events, List<ByteBuffer> records,
+                              boolean snapshot) {
+            this.indexes = indexes;
+            this.events = events;
+            this.records = records;
+            this.snapshot = snapshot;
+            this.positions = new long[records.size()];
+        }
+
+        private boolean isCommitted() {
+            return committed;
+        }
+
+        private int size() {
+            int size = 0;
+            for (ByteBuffer record : records) {
+                size += record.remaining();
+            }
+            return size;
+        }
+
+        private void markCommitted(RuntimeException commitFailure) {
+            if (commitFailure == null) {
+                for (int i = 0; i < positions.length; i++) {
+                    long sequenceNumber = events.get(i).getSequenceNumber();
+                    if (snapshot) {
+                        indexes.get(i).setSnapshot(positions[i], sequenceNumber);
+                    } else {
+                        indexes.get(i).add(positions[i], sequenceNumber);
+                    }
+                }
+            }
+            this.failure = commitFailure;
+            this.committed = true;
+        }
+
+        private void assertSuccessful() {
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    }
+
+    /**
+     * Periodically forces appended events to the storage device, when using the {@link SyncPolicy#INTERVAL} policy.
+     */
+    private class SyncTask implements Runnable {
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void run() {
+            synchronized (writeLock) {
+                if (!initialized) {
+                    return;
+                }
+                try {
+                    sync();
+                } catch (IOException e) {
+                    logger.warn("Unable to force appended events to the storage device", e);
+                }
+            }
+        }
+    }
+
+    private static class SyncThreadFactory implements ThreadFactory {
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "SegmentLogEventStore-sync");
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+    /**
+     * Event stream that reads the records at the given positions. The header of a record provides the type and
+     * sequence number of an event, so the payload is only deserialized when the event is read from the stream.
+     */
+    private final class SegmentEventStream implements LazyEventStream {
+
+        private final long[] recordPositions;
+        private final UUID aggregateIdentifier;
+        private int next;
+
+        private SegmentEventStream(long[] recordPositions, UUID aggregateIdentifier) {
+            this.recordPositions = recordPositions;
+            this.aggregateIdentifier = aggregateIdentifier;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public UUID getAggregateIdentifier() {
+            return aggregateIdentifier;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean hasNext() {
+            return next < recordPositions.length;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public DomainEvent next() {
+            return readEvent(nextRecordPosition(true));
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public String peekEventType() {
+            return readEventType(nextRecordPosition(false));
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public Long peekSequenceNumber() {
+            return readSequenceNumber(nextRecordPosition(false));
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void skip() {
+            nextRecordPosition(true);
+        }
+
+        private long nextRecordPosition(boolean advance) {
+            if (!hasNext()) {
+                throw new NoSuchElementException("The event stream doesn't contain any more events");
+            }
+            return advance ? recordPositions[next++] : recordPositions[next];
+        }
+    }
+
+    /**
+     * The positions and sequence numbers of the event records of a single aggregate, in the order in which they were
+     * appended, together with the position of the most recent snapshot of the aggregate.
+     */
+    private static final class RecordPositions {
+
+        private long[] positions = new long[8];
+        private long[] sequenceNumbers = new long[8];
+        private int count;
+        private long snapshotPosition = -1;
+        private long snapshotSequenceNumber;
+
+        private synchronized void add(long position, long sequenceNumber) {
+            if (count == positions.length) {
+                positions = Arrays.copyOf(positions, count * 2);
+                sequenceNumbers = Arrays.copyOf(sequenceNumbers, count * 2);
+            }
+            positions[count] = position;
+            sequenceNumbers[count] = sequenceNumber;
+            count++;
+        }
+
+        private synchronized void setSnapshot(long position, long sequenceNumber) {
+            if (snapshotPosition < 0 || sequenceNumber >= snapshotSequenceNumber) {
+                snapshotPosition = position;
+                snapshotSequenceNumber = sequenceNumber;
+            }
+        }
+
+        /**
+         * Returns the positions of the records to read to initialize the aggregate: the most recent snapshot, if any,
+         * followed by the events appended after it.
+         *
+         * @return the positions of the records to read
+         */
+        private synchronized long[] positionsToRead() {
+            if (snapshotPosition < 0) {
+                return Arrays.copyOf(positions, count);
+            }
+            // usually, only a few events follow the snapshot
+            int first = count;
+            while (first > 0 && sequenceNumbers[first - 1] > snapshotSequenceNumber) {
+                first--;
+            }
+            long[] result = new long[count - first + 1];
+            result[0] = snapshotPosition;
+            System.arraycopy(positions, first, result, 1, count - first);
+            return result;
+        }
+
+        /**
+         * Returns the positions of the event records with a sequence number equal to or higher than the given
+         * <code>firstSequenceNumber</code>. Snapshots are not included.
+         *
+         * @param firstSequenceNumber The sequence number of the first event to read
+         * @return the positions of the records to read
+         */
+        private synchronized long[] positionsFrom(long firstSequenceNumber) {
+            // events of an aggregate are appended in the order of their sequence numbers
+            int first = Arrays.binarySearch(sequenceNumbers, 0, count, firstSequenceNumber);
+            if (first < 0) {
+                first = -first - 1;
+            }
+            return Arrays.copyOfRange(positions, first, count);
+        }
+    }
+
+    /**
+     * A record found while rebuilding the index, which is added to the index once its append is known to be complete.
+     */
+    private static final class IndexedRecord {
+
+        private final AggregateKey key;
+        private final long position;
+        private final long sequenceNumber;
+        private final boolean snapshot;
+
+        private IndexedRecord(AggregateKey key, long position, long sequenceNumber, boolean snapshot) {
+            this.key = key;
+            this.position = position;
+            this.sequenceNumber = sequenceNumber;
+            this.snapshot = snapshot;
+        }
+    }
+
+    /**
+     * Key of the index, identifying an aggregate by its type and identifier.
+     */
+    private static final class AggregateKey {
+
+        private final String type;
+        private final UUID identifier;
+
+        private AggregateKey(String type, UUID identifier) {
+            this.type = type;
+            this.identifier = identifier;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            AggregateKey that = (AggregateKey) o;
+            return identifier.equals(that.identifier) && type.equals(that.type);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public int hashCode() {
+            return 31 * type.hashCode() + identifier.hashCode();
+        }
+    }
+
+    private static class SegmentFileFilter implements FileFilter {
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean accept(File file) {
+            return file.isFile() && file.getName().endsWith(SEGMENT_FILE_SUFFIX);
+        }
+    }
+}
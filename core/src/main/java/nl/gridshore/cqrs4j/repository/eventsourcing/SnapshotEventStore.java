@@ -0,0 +1,45 @@
+/*
+ * Copyright (c) 2010. Gridshore
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package nl.gridshore.cqrs4j.repository.eventsourcing;
+
+import nl.gridshore.cqrs4j.DomainEvent;
+
+/**
+ * Event store that is capable of storing snapshot events. A snapshot event describes the complete state of an
+ * aggregate, replacing all events up to and including the event with the same sequence number as the snapshot.
+ * <p/>
+ * When a snapshot is available for an aggregate, {@link #readEvents(String, java.util.UUID)} returns an event stream
+ * that starts with the most recent snapshot event, followed by the events that were appended after the snapshot.
+ * Appending a snapshot event doesn't remove any events from the event store.
+ *
+ * @author Allard Buijze
+ * @see nl.gridshore.cqrs4j.SnapshotEvent
+ * @since 0.4
+ */
+public interface SnapshotEventStore extends EventStore {
+
+    /**
+     * Append the given <code>snapshotEvent</code> to the events of the aggregate it describes. The aggregate identifier
+     * and sequence number of the snapshot event identify the aggregate and the last event the snapshot replaces.
+     *
+     * @param type          The type descriptor of the aggregate the snapshot describes
+     * @param snapshotEvent The snapshot event to store
+     * @throws EventStorageException if an error occurs while storing the snapshot event
+     */
+    void appendSnapshotEvent(String type, DomainEvent snapshotEvent);
+}
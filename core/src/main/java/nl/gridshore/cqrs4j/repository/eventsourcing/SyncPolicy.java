@@ -0,0 +1,48 @@
+/*
+ * Copyright (c) 2010. Gridshore
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package nl.gridshore.cqrs4j.repository.eventsourcing;
+
+/**
+ * Enum indicating when an event store forces appended events to the storage device.
+ *
+ * @author Allard Buijze
+ * @see SegmentLogEventStore
+ * @since 0.4
+ */
+public enum SyncPolicy {
+
+    /**
+     * Indicator of a policy that forces events to the storage device before the caller that appended them returns.
+     * Events appended concurrently are written and forced together, so a single force covers many callers.
+     */
+    PER_BATCH,
+
+    /**
+     * Indicator of a policy that forces appended events to the storage device periodically. Callers return as soon as
+     * their events have been written to the operating system. Events appended within the last interval may be lost
+     * when the machine crashes.
+     */
+    INTERVAL,
+
+    /**
+     * Indicator of a policy that leaves it to the operating system to decide when to write appended events to the
+     * storage device. Events are only forced when the event store is closed. This policy offers the best performance,
+     * but events that have not been written yet are lost when the machine crashes.
+     */
+    OS_BUFFERED
+}
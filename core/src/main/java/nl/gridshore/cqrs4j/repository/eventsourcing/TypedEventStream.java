@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2010. Gridshore
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.gridshore.cqrs4j.repository.eventsourcing;
+
+import nl.gridshore.cqrs4j.DomainEvent;
+import nl.gridshore.cqrs4j.EventStream;
+
+import java.util.UUID;
+
+/**
+ * Event stream that is accompanied by the type descriptor of the aggregate it belongs to. Used to append the events of
+ * several aggregates at once, using an {@link AtomicEventStore}.
+ *
+ * @author Allard Buijze
+ * @since 0.4
+ */
+public class TypedEventStream implements EventStream {
+
+    private final String type;
+    private final EventStream events;
+
+    /**
+     * Initialize a stream containing the given <code>events</code> of an aggregate of the given <code>type</code>.
+     *
+     * @param type   The type descriptor of the aggregate
+     * @param events The events of the aggregate
+     */
+    public TypedEventStream(String type, EventStream events) {
+        this.type = type;
+        this.events = events;
+    }
+
+    /**
+     * Returns the type descriptor of the aggregate the events belong to.
+     *
+     * @return the type descriptor of the aggregate
+     */
+    public String getType() {
+        return type;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public UUID getAggregateIdentifier() {
+        return events.getAggregateIdentifier();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean hasNext() {
+        return events.hasNext();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public DomainEvent next() {
+        return events.next();
+    }
+}
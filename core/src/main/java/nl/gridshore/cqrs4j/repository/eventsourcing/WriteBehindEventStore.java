@@ -0,0 +1,486 @@
+/*
+ * Copyright (c) 2010. Gridshore
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.gridshore.cqrs4j.repository.eventsourcing;
+
+import nl.gridshore.cqrs4j.DomainEvent;
+import nl.gridshore.cqrs4j.EventStream;
+import nl.gridshore.cqrs4j.SimpleEventStream;
+import nl.gridshore.cqrs4j.util.Assert;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Required;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Event store that appends events to another event store asynchronously. Appends return as soon as the events have
+ * been placed in a bounded queue, from which a dedicated writer thread appends them to the delegate event store in
+ * batches. When the queue is full, appends block until the writer thread has made room.
+ * <p/>
+ * Events that have been queued, but not yet appended to the delegate, are included in the event streams returned by
+ * {@link #readEvents(String, java.util.UUID)} and {@link #readEvents(String, java.util.UUID, long)}.
+ * <p/>
+ * This event store doesn't accept snapshot events, so that repositories don't create snapshots for a delegate that
+ * cannot store them. Use a {@link WriteBehindSnapshotEventStore} to append snapshot events to a delegate that is a
+ * {@link SnapshotEventStore}.
+ * <p/>
+ * Note that queued events are lost when the application terminates unexpectedly. Failures of the delegate event store
+ * cannot be reported to the code that appended the events; they are logged instead. Once appending the events of an
+ * aggregate has failed, the appends queued after them for the same aggregate are discarded, as they build on the lost
+ * events. The next call to {@link #appendEvents(String, nl.gridshore.cqrs4j.EventStream)} for that aggregate fails
+ * with an {@link EventStorageException}, and so does the next call to {@link #flush()}, which waits for all queued
+ * events to be appended. The writer thread is started by {@link #start()}, and stopped by {@link #stop()}, which
+ * appends all queued events first.
+ *
+ * @author Allard Buijze
+ * @since 0.4
+ */
+public class WriteBehindEventStore implements EventStore {
+
+    private static final Logger logger = LoggerFactory.getLogger(WriteBehindEventStore.class);
+    private static final int DEFAULT_QUEUE_CAPACITY = 1000;
+    private static final int DEFAULT_BATCH_SIZE = 100;
+
+    private EventStore delegate;
+    private int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+    private int batchSize = DEFAULT_BATCH_SIZE;
+
+    // guarded by itself
+    private final Map<AggregateKey, List<DomainEvent>> pendingEvents = new HashMap<AggregateKey, List<DomainEvent>>();
+    // guarded by pendingEvents
+    private final Map<AggregateKey, RuntimeException> failedAggregates = new HashMap<AggregateKey, RuntimeException>();
+    private final Object progressLock = new Object();
+    // guarded by progressLock
+    private long queuedAppends;
+    private long completedAppends;
+    private RuntimeException unreportedFailure;
+    // held for reading while queueing, and for writing while starting or stopping
+    private final ReadWriteLock runningLock = new ReentrantReadWriteLock();
+    private volatile BlockingQueue<PendingAppend> queue;
+    private volatile boolean running;
+    private Thread writerThread;
+
+    /**
+     * Starts the writer thread that appends queued events to the delegate event store.
+     */
+    @PostConstruct
+    public synchronized void start() {
+        Assert.state(delegate != null, "A delegate event store is required");
+        if (running) {
+            return;
+        }
+        queue = new ArrayBlockingQueue<PendingAppend>(queueCapacity);
+        setRunning(true);
+        writerThread = new Thread(new Writer(), "WriteBehindEventStore-writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    /**
+     * Appends all queued events to the delegate event store, and stops the writer thread. Appends are no longer
+     * accepted until the event store is started again.
+     *
+     * @throws EventStorageException if the delegate failed to append queued events
+     */
+    @PreDestroy
+    public synchronized void stop() {
+        if (!running) {
+            return;
+        }
+        try {
+            flush();
+        } finally {
+            // appends queued after flushing are appended by the writer thread before it ends
+            setRunning(false);
+            try {
+                writerThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            writerThread = null;
+        }
+    }
+
+    private void setRunning(boolean running) {
+        runningLock.writeLock().lock();
+        try {
+            this.running = running;
+        } finally {
+            runningLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * The events are placed in the queue, and appended to the delegate event store by the writer thread. This method
+     * blocks while the queue is full.
+     *
+     * @throws EventStorageException if appending earlier events of the aggregate to the delegate has failed
+     */
+    @Override
+    public void appendEvents(String type, EventStream events) {
+        List<DomainEvent> eventList = new ArrayList<DomainEvent>();
+        while (events.hasNext()) {
+            eventList.add(events.next());
+        }
+        if (eventList.isEmpty()) {
+            return;
+        }
+        AggregateKey key = new AggregateKey(type, events.getAggregateIdentifier());
+        // registered before queueing, so the writer thread never finds events that aren't registered yet
+        synchronized (pendingEvents) {
+            RuntimeException failure = failedAggregates.get(key);
+            if (failure != null) {
+                if (!pendingEvents.containsKey(key)) {
+                    // all appends queued after the failed one have been discarded
+                    failedAggregates.remove(key);
+                }
+                throw new EventStorageException(String.format(
+                        "Earlier events of aggregate [%s] could not be appended. The aggregate must be reloaded.",
+                        key.identifier), failure);
+            }
+            List<DomainEvent> pending = pendingEvents.get(key);
+            if (pending == null) {
+                pending = new ArrayList<DomainEvent>();
+                pendingEvents.put(key, pending);
+            }
+            pending.addAll(eventList);
+        }
+        try {
+            enqueue(new PendingAppend(key, eventList, false));
+        } catch (RuntimeException e) {
+            removePendingEvents(key, eventList);
+            throw e;
+        }
+    }
+
+    /**
+     * Places the given <code>snapshotEvent</code> in the queue, to be appended to the delegate event store after the
+     * events queued before it. The snapshot event only becomes visible once it has been appended. The delegate must be
+     * a {@link SnapshotEventStore}.
+     *
+     * @param type          The type identifier of the aggregate that the snapshot event describes
+     * @param snapshotEvent The snapshot event to append
+     */
+    protected void queueSnapshotEvent(String type, DomainEvent snapshotEvent) {
+        enqueue(new PendingAppend(new AggregateKey(type, snapshotEvent.getAggregateIdentifier()),
+                                  Collections.singletonList(snapshotEvent), true));
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * The events read from the delegate event store are followed by the events of the aggregate that are still queued.
+     */
+    @Override
+    public EventStream readEvents(String type, UUID identifier) {
+        List<DomainEvent> pending = getPendingEvents(new AggregateKey(type, identifier));
+        if (!pending.isEmpty() && pending.get(0).getSequenceNumber() == 0) {
+            // none of the events of the aggregate have been appended to the delegate yet
+            return new SimpleEventStream(pending, identifier);
+        }
+        return merge(identifier, delegate.readEvents(type, identifier), pending);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * The events read from the delegate event store are followed by the events of the aggregate that are still queued.
+     */
+    @Override
+    public EventStream readEvents(String type, UUID identifier, long firstSequenceNumber) {
+        List<DomainEvent> pending = getPendingEvents(new AggregateKey(type, identifier));
+        List<DomainEvent> events = new ArrayList<DomainEvent>();
+        if (pending.isEmpty() || pending.get(0).getSequenceNumber() > firstSequenceNumber) {
+            EventStream storedEvents = delegate.readEvents(type, identifier, firstSequenceNumber);
+            while (storedEvents.hasNext()) {
+                events.add(storedEvents.next());
+            }
+        }
+        for (DomainEvent event : pending) {
+            if (event.getSequenceNumber() >= firstSequenceNumber && isAfterLast(event, events)) {
+                events.add(event);
+            }
+        }
+        return new SimpleEventStream(events, identifier);
+    }
+
+    /**
+     * Blocks until all events that have been queued before this method was called have been appended to the delegate
+     * event store.
+     *
+     * @throws EventStorageException if the delegate failed to append events since the previous call to this method
+     */
+    public void flush() {
+        synchronized (progressLock) {
+            long target = queuedAppends;
+            while (completedAppends < target) {
+                try {
+                    progressLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Interrupted while waiting for queued events to be appended",
+                                                    e);
+                }
+            }
+            RuntimeException failure = unreportedFailure;
+            unreportedFailure = null;
+            if (failure != null) {
+                throw new EventStorageException("The delegate failed to append queued events. They are lost.",
+                                                failure);
+            }
+        }
+    }
+
+    private void enqueue(PendingAppend append) {
+        // the read lock prevents the writer thread from being stopped before the append has been queued
+        runningLock.readLock().lock();
+        try {
+            Assert.state(running, "The write-behind event store has not been started");
+            synchronized (progressLock) {
+                queuedAppends++;
+            }
+            try {
+                queue.put(append);
+            } catch (InterruptedException e) {
+                synchronized (progressLock) {
+                    queuedAppends--;
+                    progressLock.notifyAll();
+                }
+                Thread.currentThread().interrupt();
+                throw new EventStorageException("Interrupted while waiting for room in the queue", e);
+            }
+        } finally {
+            runningLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the events read from the given <code>storedEvents</code> stream, followed by the pending events that
+     * have a higher sequence number than the last stored event. Events may have been appended to the delegate while
+     * the stored events were being read, in which case they are part of both.
+     */
+    private EventStream merge(UUID identifier, EventStream storedEvents, List<DomainEvent> pending) {
+        if (pending.isEmpty()) {
+            return storedEvents;
+        }
+        List<DomainEvent> events = new ArrayList<DomainEvent>();
+        while (storedEvents.hasNext()) {
+            events.add(storedEvents.next());
+        }
+        for (DomainEvent event : pending) {
+            if (isAfterLast(event, events)) {
+                events.add(event);
+            }
+        }
+        return new SimpleEventStream(events, identifier);
+    }
+
+    private boolean isAfterLast(DomainEvent event, List<DomainEvent> events) {
+        return events.isEmpty() || event.getSequenceNumber() > events.get(events.size() - 1).getSequenceNumber();
+    }
+
+    private List<DomainEvent> getPendingEvents(AggregateKey key) {
+        synchronized (pendingEvents) {
+            List<DomainEvent> pending = pendingEvents.get(key);
+            return pending == null ? new ArrayList<DomainEvent>() : new ArrayList<DomainEvent>(pending);
+        }
+    }
+
+    private void removePendingEvents(AggregateKey key, List<DomainEvent> events) {
+        synchronized (pendingEvents) {
+            List<DomainEvent> pending = pendingEvents.get(key);
+            if (pending != null) {
+                pending.removeAll(events);
+                if (pending.isEmpty()) {
+                    pendingEvents.remove(key);
+                }
+            }
+        }
+    }
+
+    /**
+     * Sets the event store to append the events to.
+     *
+     * @param delegate the event store to append the events to
+     */
+    @Required
+    public void setDelegate(EventStore delegate) {
+        this.delegate = delegate;
+    }
+
+    /**
+     * Sets the maximum number of appends (each containing the events of a single call to {@link
+     * #appendEvents(String, nl.gridshore.cqrs4j.EventStream)}) that can be queued. Defaults to 1000.
+     *
+     * @param queueCapacity the maximum number of queued appends
+     */
+    public void setQueueCapacity(int queueCapacity) {
+        Assert.isTrue(queueCapacity > 0, "The queue capacity must be a positive number");
+        this.queueCapacity = queueCapacity;
+    }
+
+    /**
+     * Sets the maximum number of queued appends the writer thread processes at once. Consecutive appends for the same
+     * aggregate within a batch are appended to the delegate using a single call. Defaults to 100.
+     *
+     * @param batchSize the maximum number of appends to process at once
+     */
+    public void setBatchSize(int batchSize) {
+        Assert.isTrue(batchSize > 0, "The batch size must be a positive number");
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Takes batches of appends from the queue, and appends them to the delegate.
+     */
+    private class Writer implements Runnable {
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void run() {
+            List<PendingAppend> batch = new ArrayList<PendingAppend>(batchSize);
+            while (running || !queue.isEmpty()) {
+                try {
+                    PendingAppend first = queue.poll(100, TimeUnit.MILLISECONDS);
+                    if (first != null) {
+                        batch.add(first);
+                        queue.drainTo(batch, batchSize - 1);
+                        write(batch);
+                        batch.clear();
+                    }
+                } catch (InterruptedException e) {
+                    logger.warn("The writer thread was interrupted. Queued events may not have been appended.");
+                    return;
+                }
+            }
+        }
+
+        private void write(List<PendingAppend> batch) {
+            int i = 0;
+            while (i < batch.size()) {
+                PendingAppend append = batch.get(i++);
+                List<DomainEvent> events = new ArrayList<DomainEvent>(append.events);
+                while (!append.snapshot && i < batch.size() && !batch.get(i).snapshot
+                        && batch.get(i).key.equals(append.key)) {
+                    events.addAll(batch.get(i++).events);
+                }
+                try {
+                    if (hasFailed(append.key)) {
+                        logger.error(String.format(
+                                "Discarding %s event(s) of aggregate [%s], as earlier events could not be appended.",
+                                events.size(), append.key.identifier));
+                    } else if (append.snapshot) {
+                        ((SnapshotEventStore) delegate).appendSnapshotEvent(append.key.type, events.get(0));
+                    } else {
+                        delegate.appendEvents(append.key.type, new SimpleEventStream(events, append.key.identifier));
+                    }
+                } catch (RuntimeException e) {
+                    logger.error(String.format("Unable to append %s event(s) of aggregate [%s]. They are lost.",
+                                               events.size(), append.key.identifier), e);
+                    registerFailure(append.key, e);
+                } finally {
+                    if (!append.snapshot) {
+                        removePendingEvents(append.key, events);
+                    }
+                }
+            }
+            synchronized (progressLock) {
+                completedAppends += batch.size();
+                progressLock.notifyAll();
+            }
+        }
+
+        private boolean hasFailed(AggregateKey key) {
+            synchronized (pendingEvents) {
+                return failedAggregates.containsKey(key);
+            }
+        }
+
+        private void registerFailure(AggregateKey key, RuntimeException failure) {
+            // registered before the pending events are removed, so that appends can't miss both
+            synchronized (pendingEvents) {
+                failedAggregates.put(key, failure);
+            }
+            synchronized (progressLock) {
+                unreportedFailure = failure;
+            }
+        }
+    }
+
+    private static final class PendingAppend {
+
+        private final AggregateKey key;
+        private final List<DomainEvent> events;
+        private final boolean snapshot;
+
+        private PendingAppend(AggregateKey key, List<DomainEvent> events, boolean snapshot) {
+            this.key = key;
+            this.events = events;
+            this.snapshot = snapshot;
+        }
+    }
+
+    private static final class AggregateKey {
+
+        private final String type;
+        private final UUID identifier;
+
+        private AggregateKey(String type, UUID identifier) {
+            this.type = type;
+            this.identifier = identifier;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            AggregateKey that = (AggregateKey) o;
+            return identifier.equals(that.identifier) && type.equals(that.type);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public int hashCode() {
+            return 31 * type.hashCode() + identifier.hashCode();
+        }
+    }
+}
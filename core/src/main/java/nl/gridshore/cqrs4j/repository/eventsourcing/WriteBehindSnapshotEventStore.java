@@ -0,0 +1,54 @@
+/*
+ * Copyright (c) 2010. Gridshore
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.gridshore.cqrs4j.repository.eventsourcing;
+
+import nl.gridshore.cqrs4j.DomainEvent;
+import nl.gridshore.cqrs4j.util.Assert;
+import org.springframework.beans.factory.annotation.Required;
+
+/**
+ * {@link WriteBehindEventStore} that also appends snapshot events to its delegate asynchronously. The delegate must be
+ * a {@link SnapshotEventStore}.
+ *
+ * @author Allard Buijze
+ * @since 0.4
+ */
+public class WriteBehindSnapshotEventStore extends WriteBehindEventStore implements SnapshotEventStore {
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * The snapshot event is placed in the queue, and appended to the delegate event store after the events queued
+     * before it. It only becomes visible once it has been appended.
+     */
+    @Override
+    public void appendSnapshotEvent(String type, DomainEvent snapshotEvent) {
+        queueSnapshotEvent(type, snapshotEvent);
+    }
+
+    /**
+     * Sets the event store to append the events and snapshot events to, which must be a {@link SnapshotEventStore}.
+     *
+     * @param delegate the event store to append the events and snapshot events to
+     */
+    @Required
+    @Override
+    public void setDelegate(EventStore delegate) {
+        Assert.isTrue(delegate instanceof SnapshotEventStore, "The delegate event store must support snapshots");
+        super.setDelegate(delegate);
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2010. Gridshore
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package nl.gridshore.cqrs4j.repository.eventsourcing;
+
+import com.thoughtworks.xstream.XStream;
+import com.thoughtworks.xstream.io.xml.CompactWriter;
+import nl.gridshore.cqrs4j.DomainEvent;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Map;
+
+/**
+ * Implementation of the {@link EventSerializer} that serializes events to XML using XStream. The XML format is
+ * readable for both user and machine, and tolerates most changes to event classes. The serialized form of an event is
+ * considerably larger than that of the {@link BinaryEventSerializer}, though.
+ *
+ * @author Allard Buijze
+ * @since 0.4
+ */
+public class XStreamEventSerializer implements EventSerializer {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final XStream xStream;
+
+    /**
+     * Initialize the serializer with a default XStream instance.
+     */
+    public XStreamEventSerializer() {
+        xStream = new XStream();
+        xStream.registerConverter(new LocalDateTimeConverter());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ByteBuffer serialize(DomainEvent event) {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            Writer writer = new OutputStreamWriter(out, UTF8);
+            xStream.marshal(event, new CompactWriter(writer));
+            writer.flush();
+            return ByteBuffer.wrap(out.toByteArray());
+        } catch (IOException e) {
+            throw new EventStorageException("Unable to serialize the given event", e);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public DomainEvent deserialize(ByteBuffer serializedEvent) {
+        ByteArrayInputStream in;
+        if (serializedEvent.hasArray()) {
+            in = new ByteArrayInputStream(serializedEvent.array(),
+                                          serializedEvent.arrayOffset() + serializedEvent.position(),
+                                          serializedEvent.remaining());
+        } else {
+            byte[] bytes = new byte[serializedEvent.remaining()];
+            serializedEvent.get(bytes);
+            in = new ByteArrayInputStream(bytes);
+        }
+        return (DomainEvent) xStream.fromXML(new InputStreamReader(in, UTF8));
+    }
+
+    /**
+     * Specify aliases for classes on serialization. When serializing an object, this serializer will use the fully
+     * qualified class name as element name. Those are potentially long names. By specifying an alias, they can be
+     * considerably shortened.
+     *
+     * @param aliases a map containing the aliases as keys and their respective class as value
+     */
+    public void setAliases(Map<String, Class> aliases) {
+        for (Map.Entry<String, Class> entry : aliases.entrySet()) {
+            xStream.alias(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Specify aliases for package names on serialization. When serializing an object, this serializer will use the
+     * fully qualified class name as element name. Those are potentially long names. By specifying an alias for a
+     * package, they can be considerably shortened.
+     *
+     * @param aliases a map containing the aliases as keys and the full package name as value
+     */
+    public void setPackageAliases(Map<String, String> aliases) {
+        for (Map.Entry<String, String> entry : aliases.entrySet()) {
+            xStream.aliasPackage(entry.getKey(), entry.getValue());
+        }
+    }
+}
@@ -17,34 +17,92 @@
 package nl.gridshore.cqrs4j.repository.eventsourcing;
 
 import com.thoughtworks.xstream.XStream;
-import com.thoughtworks.xstream.converters.SingleValueConverter;
 import com.thoughtworks.xstream.io.xml.CompactWriter;
 import nl.gridshore.cqrs4j.DomainEvent;
 import nl.gridshore.cqrs4j.EventStream;
+import nl.gridshore.cqrs4j.LazyEventStream;
+import nl.gridshore.cqrs4j.util.Assert;
 import org.apache.commons.io.IOUtils;
-import org.joda.time.LocalDateTime;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Required;
 import org.springframework.core.io.Resource;
 
-import java.io.ByteArrayInputStream;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.ObjectInputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
-import java.io.SequenceInputStream;
-import java.io.UnsupportedEncodingException;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Implementation of the {@link nl.gridshore.cqrs4j.repository.eventsourcing.EventStore} that serializes objects using
  * XStream and writes them to files to disk. Each aggregate is represented by a single file, where each event of that
  * aggregate is a line in that file. Events are serialized to XML format, making them readable for both user and
- * machine.
+ * machine. Event streams returned by this event store are {@link nl.gridshore.cqrs4j.LazyEventStream lazy}: the
+ * events are only deserialized when they are read from the stream.
+ * <p/>
+ * Next to the event file, an index file is maintained for each aggregate. It contains the sequence number and file
+ * offset of each event, allowing {@link #readEvents(String, java.util.UUID, long)} to start reading at the requested
+ * event instead of parsing the events that precede it. Event files without (complete) index are read from the last
+ * indexed event that precedes the requested one, or from the start of the file.
+ * <p/>
+ * All appended events are also registered in a global event log file, <code>events.log</code>, in the base
+ * directory. It refers to the events in the event files in the order in which they were appended, which allows {@link
+ * #readAll(long, int)} to read the events of all aggregates without having to scan and merge all event files. Events
+ * that were appended before the global event log was introduced are not part of it.
+ * <p/>
+ * To avoid opening files for every append, the event and index files of the most recently used aggregates are kept
+ * open (see {@link #setOpenFileCacheSize(int)}). Use {@link #close()} to close them when the event store is no longer
+ * used.
+ * <p/>
+ * Optionally, events are stored in compressed blocks (see {@link #setCompressionEnabled(boolean)}). The events
+ * appended in a single call are then compressed into a single block, which is decompressed as a whole when reading.
+ * Event files may contain both compressed and uncompressed events, so compression may be enabled for existing event
+ * stores.
+ * <p/>
+ * Each event, or compressed block of events, is stored in a record containing its length, the sequence numbers of the
+ * events it contains and a CRC-32 checksum. Records preceding the requested events are skipped without being read.
+ * When the application crashes while appending events, the event files may end with an incomplete record, and the
+ * index and global event log may lack the entries of complete records. {@link #recover()}, which is invoked at startup,
+ * discards the incomplete records and restores the missing entries. Event files written before checksums were
+ * introduced remain readable. When the event store was {@link #close() closed} properly, there is nothing to recover,
+ * and the files aren't checked at all.
+ * <p/>
+ * By default, the files of all aggregates of the same type are stored in a single directory. For large numbers of
+ * aggregates, use {@link #setDirectoryDepth(int)} to spread them over a tree of subdirectories. Existing event files
+ * can be moved to such a layout using the {@link EventFileMigrator}.
+ * <p/>
+ * Snapshot events are stored in a separate file per aggregate, which only contains the most recent snapshot. When a
+ * snapshot is available, reading the events of the aggregate starts at the first event following the snapshot.
  * <p/>
  * Use {@link #setBaseDir(org.springframework.core.io.Resource)} to specify the directory where event files should be
  * stored
@@ -52,10 +110,40 @@ import java.util.UUID;
  * @author Allard Buijze
  * @since 0.1
  */
-public class XStreamFileSystemEventStore implements EventStore {
+public class XStreamFileSystemEventStore implements SnapshotEventStore, ReplayableEventStore {
+
+    private static final Logger logger = LoggerFactory.getLogger(XStreamFileSystemEventStore.class);
+
+    private static final int INDEX_ENTRY_SIZE = 16;
+    private static final String EVENT_LOG_FILE = "events.log";
+    private static final String CHECKPOINT_FILE = "events.checkpoint";
+    // event log length (8), time (8) and whether the event store was closed properly (1)
+    private static final int CHECKPOINT_SIZE = 17;
+    // file systems may store modification times with a granularity of up to two seconds
+    private static final long MODIFICATION_TIME_MARGIN = 2000;
+    // aggregate identifier (16), sequence number (8) and offset (8), following the aggregate type
+    private static final int EVENT_LOG_ENTRY_SIZE = 32;
+
+    private static final int DEFAULT_OPEN_FILE_CACHE_SIZE = 100;
+    private static final int MAX_DIRECTORY_DEPTH = 4;
+    private static final int RECOVERY_BATCH_SIZE = 1000;
 
     private final XStream xStream;
+    private final ConcurrentMap<String, File> typeDirectories = new ConcurrentHashMap<String, File>();
+    // guarded by itself, in order of last access
+    private final Map<String, AppendFiles> openFiles = new LinkedHashMap<String, AppendFiles>(16, 0.75f, true);
+    private final Object eventLogLock = new Object();
+    // guarded by eventLogLock
+    private FileChannel eventLogChannel;
     private Resource baseDir;
+    private int openFileCacheSize = DEFAULT_OPEN_FILE_CACHE_SIZE;
+    private int directoryDepth = 0;
+    private boolean compressionEnabled = false;
+    private int recoveryParallelism = Runtime.getRuntime().availableProcessors();
+    // whether the files are known to be consistent, allowing a checkpoint to be written when the event store is closed
+    private volatile boolean consistent;
+    // whether the checkpoint indicates that the event store is in use, guarded by eventLogLock for writing
+    private volatile boolean checkpointOpen;
 
     /**
      * Basic initialization of the event store.
@@ -67,38 +155,562 @@ public class XStreamFileSystemEventStore implements EventStore {
 
     /**
      * {@inheritDoc}
+     * <p/>
+     * The event and index files of recently used aggregates are kept open, so that appending events to them doesn't
+     * require them to be opened again.
      */
     @Override
     public void appendEvents(String type, EventStream eventsToStore) {
-        OutputStream out = null;
+        UUID aggregateIdentifier = eventsToStore.getAggregateIdentifier();
+        AppendFiles files = null;
         try {
-            File eventFile = getBaseDirForType(type).createRelative(eventsToStore.getAggregateIdentifier() + ".events")
-                    .getFile();
-            out = new FileOutputStream(eventFile, true);
-            CompactWriter writer = new CompactWriter(new OutputStreamWriter(out, "UTF-8"));
+            if (!checkpointOpen) {
+                markCheckpointOpen();
+            }
+            byte[] typeBytes = type.getBytes("UTF-8");
+            files = acquireAppendFiles(type, aggregateIdentifier);
+            ByteArrayOutputStream records = new ByteArrayOutputStream();
+            ByteArrayOutputStream serializedEvent = new ByteArrayOutputStream();
+            Writer writer = new OutputStreamWriter(serializedEvent, "UTF-8");
+            ByteArrayOutputStream indexEntries = new ByteArrayOutputStream();
+            DataOutputStream indexWriter = new DataOutputStream(indexEntries);
+            ByteArrayOutputStream eventLogEntries = new ByteArrayOutputStream();
+            DataOutputStream eventLogWriter = new DataOutputStream(eventLogEntries);
+            Long firstSequenceNumber = null;
+            long lastSequenceNumber = 0;
             while (eventsToStore.hasNext()) {
                 DomainEvent event = eventsToStore.next();
-                xStream.marshal(event, writer);
-                IOUtils.write("\n", out);
+                // compressed events are referred to by the offset of their block
+                long offset = files.eventFileSize + (compressionEnabled ? 0 : records.size());
+                if (!compressionEnabled) {
+                    serializedEvent.reset();
+                }
+                xStream.marshal(event, new CompactWriter(writer));
+                writer.write("\n");
+                writer.flush();
+                if (!compressionEnabled) {
+                    records.write(CompressedBlockInputStream.checksum(serializedEvent.toByteArray(),
+                                                                      event.getSequenceNumber(),
+                                                                      event.getSequenceNumber()));
+                }
+                if (!compressionEnabled || firstSequenceNumber == null) {
+                    indexWriter.writeLong(event.getSequenceNumber());
+                    indexWriter.writeLong(offset);
+                }
+                if (firstSequenceNumber == null) {
+                    firstSequenceNumber = event.getSequenceNumber();
+                }
+                lastSequenceNumber = event.getSequenceNumber();
+                writeEventLogEntry(eventLogWriter, typeBytes, aggregateIdentifier, event.getSequenceNumber(), offset);
+            }
+            byte[] events = records.toByteArray();
+            if (compressionEnabled && firstSequenceNumber != null) {
+                byte[] block = CompressedBlockInputStream.compress(serializedEvent.toByteArray(), firstSequenceNumber,
+                                                                   lastSequenceNumber);
+                events = CompressedBlockInputStream.checksum(block, firstSequenceNumber, lastSequenceNumber);
             }
+            // the event log and index are written after the events, so they never refer to events that don't exist.
+            // The index is written last, so that all indexed events are logged.
+            files.appendEvents(ByteBuffer.wrap(events));
+            appendToEventLog(ByteBuffer.wrap(eventLogEntries.toByteArray()));
+            files.appendIndexEntries(ByteBuffer.wrap(indexEntries.toByteArray()));
         } catch (IOException e) {
+            if (files != null) {
+                // the state of the files is unknown, so they are reopened on the next append
+                evict(type, aggregateIdentifier, files);
+            }
             throw new EventStorageException("Unable to store given entity due to a IOException", e);
         } finally {
-            IOUtils.closeQuietly(out);
+            if (files != null) {
+                files.lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Returns the open event and index files of the given aggregate, locked by the current thread. If the files are not
+     * open yet, they are opened and added to the cache of open files, evicting the least recently used files if the
+     * cache is full.
+     *
+     * @param type                The type of the aggregate
+     * @param aggregateIdentifier The identifier of the aggregate
+     * @return the locked files of the aggregate
+     *
+     * @throws IOException when an error occurs opening the files
+     */
+    private AppendFiles acquireAppendFiles(String type, UUID aggregateIdentifier) throws IOException {
+        String key = type + "/" + aggregateIdentifier;
+        while (true) {
+            AppendFiles files;
+            synchronized (openFiles) {
+                files = openFiles.get(key);
+            }
+            if (files == null) {
+                createParentDirectory(getFile(type, aggregateIdentifier, ".events"));
+                AppendFiles newFiles = new AppendFiles(getFile(type, aggregateIdentifier, ".events"),
+                                                       getFile(type, aggregateIdentifier, ".index"));
+                List<AppendFiles> evictedFiles = new ArrayList<AppendFiles>();
+                synchronized (openFiles) {
+                    files = openFiles.get(key);
+                    if (files == null) {
+                        files = newFiles;
+                        openFiles.put(key, newFiles);
+                        Iterator<AppendFiles> leastRecentlyUsed = openFiles.values().iterator();
+                        while (openFiles.size() > openFileCacheSize) {
+                            evictedFiles.add(leastRecentlyUsed.next());
+                            leastRecentlyUsed.remove();
+                        }
+                    }
+                }
+                if (files != newFiles) {
+                    newFiles.close();
+                }
+                for (AppendFiles evicted : evictedFiles) {
+                    evicted.closeWhenIdle();
+                }
+            }
+            files.lock.lock();
+            if (!files.closed) {
+                return files;
+            }
+            // the files were evicted in the meantime
+            files.lock.unlock();
+        }
+    }
+
+    private void evict(String type, UUID aggregateIdentifier, AppendFiles files) {
+        String key = type + "/" + aggregateIdentifier;
+        synchronized (openFiles) {
+            if (openFiles.get(key) == files) {
+                openFiles.remove(key);
+            }
+        }
+        files.close();
+    }
+
+    private static void writeEventLogEntry(DataOutputStream eventLogWriter, byte[] typeBytes, UUID aggregateIdentifier,
+                                           long sequenceNumber, long offset) throws IOException {
+        eventLogWriter.writeShort(typeBytes.length);
+        eventLogWriter.write(typeBytes);
+        eventLogWriter.writeLong(aggregateIdentifier.getMostSignificantBits());
+        eventLogWriter.writeLong(aggregateIdentifier.getLeastSignificantBits());
+        eventLogWriter.writeLong(sequenceNumber);
+        eventLogWriter.writeLong(offset);
+    }
+
+    private void appendToEventLog(ByteBuffer eventLogEntries) throws IOException {
+        synchronized (eventLogLock) {
+            if (eventLogChannel == null) {
+                eventLogChannel = new RandomAccessFile(getEventLogFile(), "rw").getChannel();
+            }
+            long position = eventLogChannel.size();
+            while (eventLogEntries.hasRemaining()) {
+                position += eventLogChannel.write(eventLogEntries, position);
+            }
+        }
+    }
+
+    /**
+     * Closes all files kept open by this event store. The event store may still be used afterwards, in which case the
+     * files are opened again.
+     * <p/>
+     * If the event store has been {@link #recover() recovered}, a checkpoint is written, indicating that the files
+     * don't need to be recovered at the next startup. Events may not be appended while this method is invoked.
+     */
+    @PreDestroy
+    public void close() {
+        closeFiles();
+        if (consistent) {
+            try {
+                writeCheckpoint(true);
+            } catch (IOException e) {
+                logger.warn("Unable to write the checkpoint. The event files will be checked at the next startup.", e);
+            }
+        }
+    }
+
+    private void closeFiles() {
+        List<AppendFiles> filesToClose;
+        synchronized (openFiles) {
+            filesToClose = new ArrayList<AppendFiles>(openFiles.values());
+            openFiles.clear();
+        }
+        for (AppendFiles files : filesToClose) {
+            files.closeWhenIdle();
+        }
+        synchronized (eventLogLock) {
+            closeQuietly(eventLogChannel);
+            eventLogChannel = null;
+        }
+    }
+
+    /**
+     * Discards the incomplete data at the end of the event files, index files and global event log, which is left
+     * behind when the application crashes while events are being appended. Each event is stored in a record
+     * containing a checksum, which allows incomplete records to be recognized. Files are only scanned from their last
+     * indexed or logged record, and are processed in parallel (see {@link #setRecoveryParallelism(int)}).
+     * <p/>
+     * Since the event files are written before the global event log, which is written before the index files, a crash
+     * may also leave complete records behind that are missing from the event log or the index. Their entries are
+     * restored, so that the events are returned by {@link #readAll(long, int)} as well as by the
+     * <code>readEvents</code> methods.
+     * <p/>
+     * The files are consistent when the event store was {@link #close() closed} properly, in which case they aren't
+     * checked at all. Otherwise, only the event log entries and event files written since the event store was last
+     * closed or recovered are checked.
+     * <p/>
+     * This method must be called after initialization of all properties, before events are appended.
+     */
+    @PostConstruct
+    public void recover() {
+        closeFiles();
+        consistent = false;
+        ExecutorService executor = Executors.newFixedThreadPool(recoveryParallelism);
+        try {
+            File directory = baseDir.getFile();
+            if (!directory.exists()) {
+                consistent = true;
+                return;
+            }
+            Checkpoint checkpoint = readCheckpoint();
+            if (checkpoint != null && checkpoint.closed) {
+                logger.info("The event store was closed properly, the event files don't need to be recovered");
+            } else {
+                recoverEventFiles(directory, checkpoint, executor);
+            }
+            writeCheckpoint(false);
+            consistent = true;
+        } catch (IOException e) {
+            throw new EventStorageException("Unable to recover the event files due to an IOException", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new EventStorageException("Interrupted while recovering the event files", e);
+        } catch (ExecutionException e) {
+            throw new EventStorageException("Unable to recover the event files", e.getCause());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Recovers the event log and event files. Without a <code>checkpoint</code>, all of them are checked. Otherwise,
+     * only the event log entries following the checkpoint, and the event files modified since the checkpoint was
+     * written, are checked.
+     *
+     * @param directory  The base directory of the event store
+     * @param checkpoint The checkpoint written when the files were last known to be consistent, if any
+     * @param executor   The executor to check the event files with
+     * @throws IOException          when an error occurs reading or writing the files
+     * @throws InterruptedException when interrupted while waiting for the event files to be checked
+     * @throws ExecutionException   when an error occurs checking an event file
+     */
+    private void recoverEventFiles(File directory, Checkpoint checkpoint, ExecutorService executor)
+            throws IOException, InterruptedException, ExecutionException {
+        long fromPosition = checkpoint == null ? 0 : checkpoint.eventLogLength;
+        long modifiedSince = checkpoint == null ? 0 : checkpoint.time - MODIFICATION_TIME_MARGIN;
+        Map<String, long[]> lastLoggedEvents = recoverEventLog(getEventLogFile(), fromPosition);
+        List<Future<Integer>> tasks = new ArrayList<Future<Integer>>();
+        int fileCount = 0;
+        for (File typeDir : EventFileMigrator.listFiles(directory, true)) {
+            List<File> eventFiles = new ArrayList<File>();
+            EventFileMigrator.collectEventFiles(typeDir, directoryDepth, eventFiles);
+            if (checkpoint != null) {
+                for (Iterator<File> iterator = eventFiles.iterator(); iterator.hasNext();) {
+                    if (iterator.next().lastModified() < modifiedSince) {
+                        iterator.remove();
+                    }
+                }
+            }
+            for (int i = 0; i < eventFiles.size(); i += RECOVERY_BATCH_SIZE) {
+                List<File> batch = eventFiles.subList(i, Math.min(i + RECOVERY_BATCH_SIZE, eventFiles.size()));
+                tasks.add(executor.submit(new RecoveryTask(typeDir.getName(), batch, lastLoggedEvents,
+                                                           checkpoint != null)));
+            }
+            fileCount += eventFiles.size();
+        }
+        int recoveredCount = 0;
+        for (Future<Integer> task : tasks) {
+            recoveredCount += task.get();
+        }
+        logger.info("Checked {} event file(s), of which {} needed to be recovered", fileCount, recoveredCount);
+    }
+
+    /**
+     * Removes the incomplete entry at the end of the given <code>eventLogFile</code>, if any, and returns the sequence
+     * number and offset of the last logged event of each aggregate logged at or after the given
+     * <code>fromPosition</code>, keyed by aggregate type and identifier.
+     *
+     * @param eventLogFile The global event log file
+     * @param fromPosition The position of the first entry to read
+     * @return the sequence number and offset of the last logged event of each aggregate
+     *
+     * @throws IOException when an error occurs reading or truncating the file
+     */
+    private Map<String, long[]> recoverEventLog(File eventLogFile, long fromPosition) throws IOException {
+        Map<String, long[]> lastLoggedEvents = new HashMap<String, long[]>();
+        if (!eventLogFile.exists()) {
+            return lastLoggedEvents;
+        }
+        RandomAccessFile eventLog = new RandomAccessFile(eventLogFile, "rw");
+        try {
+            long length = eventLog.length();
+            eventLog.seek(fromPosition);
+            DataInputStream entries = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(eventLog.getFD())));
+            long position = fromPosition;
+            while (position + 2 <= length) {
+                int typeLength = entries.readUnsignedShort();
+                if (position + 2 + typeLength + EVENT_LOG_ENTRY_SIZE > length) {
+                    break;
+                }
+                byte[] typeBytes = new byte[typeLength];
+                entries.readFully(typeBytes);
+                UUID aggregateIdentifier = new UUID(entries.readLong(), entries.readLong());
+                // the entries of an aggregate are logged in the order of their sequence numbers
+                lastLoggedEvents.put(new String(typeBytes, "UTF-8") + "/" + aggregateIdentifier,
+                                     new long[]{entries.readLong(), entries.readLong()});
+                position += 2 + typeLength + EVENT_LOG_ENTRY_SIZE;
+            }
+            if (position < length) {
+                logger.warn("Discarding {} byte(s) of incomplete entries in the global event log", length - position);
+                eventLog.setLength(position);
+            }
+        } finally {
+            eventLog.close();
+        }
+        return lastLoggedEvents;
+    }
+
+    /**
+     * Discards the incomplete records at the end of the given <code>eventFile</code>, and the index entries referring
+     * to them. The index and event log entries of complete records that are missing are restored. Scanning starts at
+     * the last record that is both indexed and logged.
+     * <p/>
+     * Only checksummed records are restored, since other records were either written before the index and event log
+     * were introduced, or are covered by their entries already.
+     *
+     * @param type                 The type of the aggregate
+     * @param eventFile            The event file to recover
+     * @param lastLoggedEvent      The sequence number and offset of the last logged event of the aggregate, or
+     *                             <code>null</code> if it is unknown
+     * @param indexedRecordsLogged Whether the indexed records are known to be logged if the last logged event is
+     *                             unknown. Otherwise, none of the events of the aggregate are logged in that case.
+     * @return <code>true</code> if the event file, its index or the event log needed to be recovered, otherwise
+     *         <code>false</code>
+     *
+     * @throws IOException when an error occurs reading or writing the files
+     */
+    private boolean recoverEventFile(String type, File eventFile, long[] lastLoggedEvent,
+                                     boolean indexedRecordsLogged) throws IOException {
+        String name = eventFile.getName();
+        String baseName = name.substring(0, name.lastIndexOf('.'));
+        File indexFile = new File(eventFile.getParentFile(), baseName + ".index");
+        long eventFileLength = eventFile.length();
+        RandomAccessFile events = new RandomAccessFile(eventFile, "rw");
+        RandomAccessFile index = indexFile.exists() ? new RandomAccessFile(indexFile, "rw") : null;
+        try {
+            long indexEntries = index == null ? 0 : index.length() / INDEX_ENTRY_SIZE;
+            while (indexEntries > 0 && indexedOffset(index, indexEntries - 1) >= eventFileLength) {
+                indexEntries--;
+            }
+            long scanOffset = indexEntries == 0 ? 0 : indexedOffset(index, indexEntries - 1);
+            if (lastLoggedEvent == null && indexedRecordsLogged && indexEntries > 0) {
+                // the index is written after the event log, so the last indexed record is logged
+                Long lastIndexedSequenceNumber = CompressedBlockInputStream.lastSequenceNumberOf(events, scanOffset);
+                if (lastIndexedSequenceNumber != null) {
+                    lastLoggedEvent = new long[]{lastIndexedSequenceNumber, scanOffset};
+                }
+            }
+            if (lastLoggedEvent != null) {
+                scanOffset = Math.min(scanOffset, lastLoggedEvent[1]);
+            } else {
+                // checksummed records were written along with the event log, so none of them have been logged
+                for (long entry = indexEntries - 1; entry >= 0
+                        && isChecksummedRecord(events, indexedOffset(index, entry)); entry--) {
+                    scanOffset = indexedOffset(index, entry);
+                }
+            }
+            List<Long> recordOffsets = new ArrayList<Long>();
+            long end = CompressedBlockInputStream.findEndOfCompleteRecords(eventFile, scanOffset, recordOffsets);
+            while (indexEntries > 0 && indexedOffset(index, indexEntries - 1) >= end) {
+                indexEntries--;
+            }
+            if (index != null && index.length() != indexEntries * INDEX_ENTRY_SIZE) {
+                index.setLength(indexEntries * INDEX_ENTRY_SIZE);
+            }
+            boolean recovered = false;
+            if (end != eventFileLength) {
+                logger.warn("Discarding {} byte(s) of incomplete events at the end of event file [{}]",
+                            eventFileLength - end, eventFile.getName());
+                events.setLength(end);
+                recovered = true;
+            }
+            long lastIndexedOffset = indexEntries == 0 ? -1 : indexedOffset(index, indexEntries - 1);
+            ByteArrayOutputStream indexEntryBytes = new ByteArrayOutputStream();
+            DataOutputStream indexWriter = new DataOutputStream(indexEntryBytes);
+            ByteArrayOutputStream eventLogEntries = new ByteArrayOutputStream();
+            DataOutputStream eventLogWriter = new DataOutputStream(eventLogEntries);
+            byte[] typeBytes = type.getBytes("UTF-8");
+            UUID aggregateIdentifier = UUID.fromString(baseName);
+            EventFileReader reader = new EventFileReader(xStream);
+            try {
+                for (long offset : recordOffsets) {
+                    boolean indexed = offset <= lastIndexedOffset;
+                    if (indexed && lastLoggedEvent != null && isLogged(events, offset, lastLoggedEvent)) {
+                        continue;
+                    }
+                    List<DomainEvent> recordEvents = reader.readRecord(eventFile, offset);
+                    if (!indexed && !recordEvents.isEmpty()) {
+                        indexWriter.writeLong(recordEvents.get(0).getSequenceNumber());
+                        indexWriter.writeLong(offset);
+                    }
+                    for (DomainEvent event : recordEvents) {
+                        if (lastLoggedEvent == null || event.getSequenceNumber() > lastLoggedEvent[0]) {
+                            writeEventLogEntry(eventLogWriter, typeBytes, aggregateIdentifier,
+                                               event.getSequenceNumber(), offset);
+                        }
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+            if (indexEntryBytes.size() > 0 || eventLogEntries.size() > 0) {
+                logger.warn("Restoring {} index entries and {} event log entries of event file [{}]",
+                            new Object[]{indexEntryBytes.size() / INDEX_ENTRY_SIZE,
+                                    eventLogEntries.size() / (2 + typeBytes.length + EVENT_LOG_ENTRY_SIZE),
+                                    eventFile.getName()});
+                appendToEventLog(ByteBuffer.wrap(eventLogEntries.toByteArray()));
+                if (index == null) {
+                    index = new RandomAccessFile(indexFile, "rw");
+                }
+                index.seek(indexEntries * INDEX_ENTRY_SIZE);
+                index.write(indexEntryBytes.toByteArray());
+                recovered = true;
+            }
+            return recovered;
+        } finally {
+            events.close();
+            if (index != null) {
+                index.close();
+            }
+        }
+    }
+
+    private static boolean isChecksummedRecord(RandomAccessFile events, long offset) throws IOException {
+        events.seek(offset);
+        return CompressedBlockInputStream.isChecksummedRecordMarker(events.read());
+    }
+
+    /**
+     * Indicates whether all events in the record at the given <code>offset</code> are logged, given the last logged
+     * event of the aggregate. Records preceding that event are logged, and so are records ending with it.
+     */
+    private static boolean isLogged(RandomAccessFile events, long offset, long[] lastLoggedEvent) throws IOException {
+        if (offset != lastLoggedEvent[1]) {
+            return offset < lastLoggedEvent[1];
+        }
+        Long lastSequenceNumber = CompressedBlockInputStream.lastSequenceNumberOf(events, offset);
+        return lastSequenceNumber != null && lastSequenceNumber <= lastLoggedEvent[0];
+    }
+
+    private static long indexedOffset(RandomAccessFile index, long entry) throws IOException {
+        index.seek(entry * INDEX_ENTRY_SIZE + 8);
+        return index.readLong();
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * The position of an event is the offset of its entry in the global event log file.
+     */
+    @Override
+    public EventLogBatch readAll(long fromPosition, int batchSize) {
+        List<DomainEvent> events = new ArrayList<DomainEvent>();
+        long position = fromPosition;
+        DataInputStream eventLog = null;
+        EventFileReader eventReader = new EventFileReader(xStream);
+        try {
+            File eventLogFile = getEventLogFile();
+            if (!eventLogFile.exists()) {
+                return new EventLogBatch(events, fromPosition);
+            }
+            FileInputStream eventLogStream = new FileInputStream(eventLogFile);
+            long endPosition = eventLogStream.getChannel().size();
+            eventLogStream.getChannel().position(fromPosition);
+            eventLog = new DataInputStream(new BufferedInputStream(eventLogStream));
+            while (events.size() < batchSize && position + 2 <= endPosition) {
+                int typeLength = eventLog.readUnsignedShort();
+                if (position + 2 + typeLength + EVENT_LOG_ENTRY_SIZE > endPosition) {
+                    // the entry is still being written
+                    break;
+                }
+                byte[] typeBytes = new byte[typeLength];
+                eventLog.readFully(typeBytes);
+                UUID aggregateIdentifier = new UUID(eventLog.readLong(), eventLog.readLong());
+                long sequenceNumber = eventLog.readLong();
+                long offset = eventLog.readLong();
+                File eventFile = getFile(new String(typeBytes, "UTF-8"), aggregateIdentifier, ".events");
+                DomainEvent event = offset < eventFile.length()
+                        ? eventReader.readEvent(eventFile, offset, sequenceNumber)
+                        : null;
+                if (event != null) {
+                    events.add(event);
+                } else {
+                    logger.warn("Event [{}] of aggregate [{}] is no longer available. It is skipped.",
+                                sequenceNumber, aggregateIdentifier);
+                }
+                position += 2 + typeLength + EVENT_LOG_ENTRY_SIZE;
+            }
+            return new EventLogBatch(events, position);
+        } catch (IOException e) {
+            throw new EventStorageException("Unable to read the global event log due to an IOException", e);
+        } finally {
+            IOUtils.closeQuietly(eventLog);
+            eventReader.close();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public LazyEventStream readEvents(String type, UUID identifier) {
+        try {
+            DomainEvent snapshotEvent = readSnapshotEvent(type, identifier);
+            if (snapshotEvent == null) {
+                File eventFile = getFile(type, identifier, ".events");
+                return new XmlLineEventStream(xStream, new CompressedBlockInputStream(new FileInputStream(eventFile)),
+                                              identifier);
+            }
+            return new SnapshotEventStream(snapshotEvent,
+                                           readEvents(type, identifier, snapshotEvent.getSequenceNumber() + 1));
+        } catch (IOException e) {
+            throw new IllegalStateException(
+                    String.format("An error occurred while trying to open the event file "
+                            + "for aggregate type [%s] with identifier [%s]",
+                                  type,
+                                  identifier.toString()), e);
         }
     }
 
     /**
      * {@inheritDoc}
+     * <p/>
+     * The offset of the requested event is looked up in the index file of the aggregate, so that only the requested
+     * events need to be parsed.
      */
     @Override
-    public EventStream readEvents(String type, UUID identifier) {
+    public LazyEventStream readEvents(String type, UUID identifier, long firstSequenceNumber) {
         try {
-            File eventFile = getBaseDirForType(type).createRelative(identifier + ".events").getFile();
+            File eventFile = getFile(type, identifier, ".events");
+            File indexFile = getFile(type, identifier, ".index");
             FileInputStream fileStream = new FileInputStream(eventFile);
-            InputStream inputStream = surroundWitObjectStreamTag(fileStream);
-            ObjectInputStream eventsStream = xStream.createObjectInputStream(inputStream);
-            return new ObjectInputStreamAdapter(eventsStream);
+            fileStream.getChannel().position(findOffset(indexFile, firstSequenceNumber));
+            LazyEventStream events = new XmlLineEventStream(xStream,
+                                                            new CompressedBlockInputStream(fileStream,
+                                                                                           firstSequenceNumber),
+                                                            identifier);
+            return new SequenceNumberRangeEventStream(identifier, events, firstSequenceNumber);
         } catch (IOException e) {
             throw new IllegalStateException(
                     String.format("An error occurred while trying to open the event file "
@@ -108,24 +720,223 @@ public class XStreamFileSystemEventStore implements EventStore {
         }
     }
 
-    private InputStream surroundWitObjectStreamTag(FileInputStream fileStream) throws UnsupportedEncodingException {
-        InputStream prefix = new ByteArrayInputStream("<object-stream>".getBytes("UTF-8"));
-        InputStream suffix = new ByteArrayInputStream("</object-stream>".getBytes("UTF-8"));
-        return new SequenceInputStream(prefix, new SequenceInputStream(fileStream, suffix));
+    /**
+     * Finds the offset in the event file to start reading at, in order to read the event with the given
+     * <code>sequenceNumber</code>. If the index doesn't contain the event, the offset of the last indexed event
+     * preceding it is returned, or 0 if there is no such event.
+     *
+     * @param indexFile      The index file of the aggregate
+     * @param sequenceNumber The sequence number of the event to find
+     * @return the offset in the event file to start reading at
+     *
+     * @throws IOException when an error occurs reading the index file
+     */
+    private long findOffset(File indexFile, long sequenceNumber) throws IOException {
+        if (!indexFile.exists()) {
+            return 0;
+        }
+        RandomAccessFile index = new RandomAccessFile(indexFile, "r");
+        try {
+            long low = 0;
+            long high = index.length() / INDEX_ENTRY_SIZE - 1;
+            long offset = 0;
+            // events are appended in the order of their sequence numbers
+            while (low <= high) {
+                long middle = (low + high) >>> 1;
+                index.seek(middle * INDEX_ENTRY_SIZE);
+                long middleSequenceNumber = index.readLong();
+                if (middleSequenceNumber == sequenceNumber) {
+                    return index.readLong();
+                } else if (middleSequenceNumber < sequenceNumber) {
+                    offset = index.readLong();
+                    low = middle + 1;
+                } else {
+                    high = middle - 1;
+                }
+            }
+            return offset;
+        } finally {
+            index.close();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * The snapshot is written to a temporary file first, which then replaces the previous snapshot of the aggregate.
+     */
+    @Override
+    public void appendSnapshotEvent(String type, DomainEvent snapshotEvent) {
+        OutputStream out = null;
+        try {
+            File snapshotFile = getFile(type, snapshotEvent.getAggregateIdentifier(), ".snapshot");
+            File tempFile = getFile(type, snapshotEvent.getAggregateIdentifier(), ".snapshot.tmp");
+            createParentDirectory(tempFile);
+            out = new FileOutputStream(tempFile);
+            CompactWriter writer = new CompactWriter(new OutputStreamWriter(out, "UTF-8"));
+            xStream.marshal(snapshotEvent, writer);
+            writer.flush();
+            out.close();
+            if (!tempFile.renameTo(snapshotFile) && !(snapshotFile.delete() && tempFile.renameTo(snapshotFile))) {
+                throw new EventStorageException(String.format("Unable to replace snapshot file [%s]",
+                                                              snapshotFile.getName()));
+            }
+        } catch (IOException e) {
+            throw new EventStorageException("Unable to store given snapshot due to a IOException", e);
+        } finally {
+            IOUtils.closeQuietly(out);
+        }
+    }
+
+    private DomainEvent readSnapshotEvent(String type, UUID identifier) throws IOException {
+        File snapshotFile = getFile(type, identifier, ".snapshot");
+        if (!snapshotFile.exists()) {
+            return null;
+        }
+        InputStream in = new FileInputStream(snapshotFile);
+        try {
+            return (DomainEvent) xStream.fromXML(new InputStreamReader(in, "UTF-8"));
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    private File getEventLogFile() throws IOException {
+        return baseDir.createRelative(EVENT_LOG_FILE).getFile();
+    }
+
+    /**
+     * Marks the checkpoint as being in use, so that the files are recovered if the application crashes before the
+     * event store is closed. Must be invoked before events are appended.
+     *
+     * @throws IOException when an error occurs reading or writing the checkpoint
+     */
+    private void markCheckpointOpen() throws IOException {
+        synchronized (eventLogLock) {
+            if (checkpointOpen) {
+                return;
+            }
+            Checkpoint checkpoint = readCheckpoint();
+            if (checkpoint != null && checkpoint.closed) {
+                writeCheckpoint(new Checkpoint(checkpoint.eventLogLength, checkpoint.time, false));
+            }
+            checkpointOpen = true;
+        }
+    }
+
+    /**
+     * Writes a checkpoint of the current state of the files, which must be consistent.
+     *
+     * @param closed whether the event store is closed
+     * @throws IOException when an error occurs writing the checkpoint
+     */
+    private void writeCheckpoint(boolean closed) throws IOException {
+        synchronized (eventLogLock) {
+            if (!baseDir.getFile().exists()) {
+                return;
+            }
+            writeCheckpoint(new Checkpoint(getEventLogFile().length(), System.currentTimeMillis(), closed));
+            checkpointOpen = !closed;
+        }
+    }
+
+    private void writeCheckpoint(Checkpoint checkpoint) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(CHECKPOINT_SIZE);
+        DataOutputStream checkpointWriter = new DataOutputStream(bytes);
+        checkpointWriter.writeLong(checkpoint.eventLogLength);
+        checkpointWriter.writeLong(checkpoint.time);
+        checkpointWriter.writeBoolean(checkpoint.closed);
+        RandomAccessFile checkpointFile = new RandomAccessFile(baseDir.createRelative(CHECKPOINT_FILE).getFile(), "rw");
+        try {
+            checkpointFile.write(bytes.toByteArray());
+            checkpointFile.setLength(CHECKPOINT_SIZE);
+        } finally {
+            checkpointFile.close();
+        }
+    }
+
+    /**
+     * Returns the checkpoint written when the files were last known to be consistent, or <code>null</code> if there is
+     * no valid checkpoint.
+     *
+     * @return the checkpoint, or <code>null</code> if there is none
+     *
+     * @throws IOException when an error occurs reading the checkpoint
+     */
+    private Checkpoint readCheckpoint() throws IOException {
+        File file = baseDir.createRelative(CHECKPOINT_FILE).getFile();
+        if (file.length() != CHECKPOINT_SIZE) {
+            return null;
+        }
+        DataInputStream checkpointReader = new DataInputStream(new FileInputStream(file));
+        try {
+            Checkpoint checkpoint = new Checkpoint(checkpointReader.readLong(), checkpointReader.readLong(),
+                                                   checkpointReader.readBoolean());
+            // the event log never shrinks, unless it was modified by hand
+            return checkpoint.eventLogLength <= getEventLogFile().length() ? checkpoint : null;
+        } finally {
+            IOUtils.closeQuietly(checkpointReader);
+        }
+    }
+
+    private File getFile(String type, UUID aggregateIdentifier, String extension) {
+        return new File(getDirectory(getBaseDirForType(type), aggregateIdentifier.toString(), directoryDepth),
+                        aggregateIdentifier + extension);
+    }
+
+    /**
+     * Returns the directory containing the files of the aggregate with given <code>aggregateIdentifier</code>. For
+     * each level of the given <code>depth</code>, the next two characters of the identifier are used as the name of a
+     * subdirectory. The directory of aggregate <code>3f2a9c1e-...</code> at depth 2 is <code>3f/2a</code>, relative
+     * to the <code>typeDir</code>.
+     *
+     * @param typeDir             The directory containing the files of the aggregate type
+     * @param aggregateIdentifier The string representation of the aggregate identifier
+     * @param depth               The number of subdirectory levels
+     * @return the directory containing the files of the aggregate
+     */
+    static File getDirectory(File typeDir, String aggregateIdentifier, int depth) {
+        File dir = typeDir;
+        for (int level = 0; level < depth; level++) {
+            dir = new File(dir, aggregateIdentifier.substring(level * 2, level * 2 + 2));
+        }
+        return dir;
+    }
+
+    private void createParentDirectory(File file) {
+        File dir = file.getParentFile();
+        if (directoryDepth > 0 && !dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory()) {
+            throw new EventStorageException(String.format("Unable to create directory [%s]", dir.getPath()));
+        }
     }
 
-    private Resource getBaseDirForType(String type) {
+    private File getBaseDirForType(String type) {
+        File typeSpecificDir = typeDirectories.get(type);
+        if (typeSpecificDir != null) {
+            return typeSpecificDir;
+        }
         try {
-            Resource typeSpecificDir = baseDir.createRelative("/" + type + "/");
-            if (!typeSpecificDir.exists() && !typeSpecificDir.getFile().mkdirs()) {
+            typeSpecificDir = baseDir.createRelative("/" + type + "/").getFile();
+            if (!typeSpecificDir.exists() && !typeSpecificDir.mkdirs()) {
                 throw new IllegalStateException("The given event store directory doesn't exist and could not be created");
             }
+            typeDirectories.put(type, typeSpecificDir);
             return typeSpecificDir;
         } catch (IOException e) {
             throw new EventStorageException("An IO Exception occured while reading from the file system", e);
         }
     }
 
+    private static void closeQuietly(FileChannel channel) {
+        try {
+            if (channel != null) {
+                channel.close();
+            }
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
     /**
      * Sets the base directory where the event store will store all events.
      *
@@ -134,6 +945,62 @@ public class XStreamFileSystemEventStore implements EventStore {
     @Required
     public void setBaseDir(Resource baseDir) {
         this.baseDir = baseDir;
+        typeDirectories.clear();
+    }
+
+    /**
+     * Sets the number of aggregates for which the event files are kept open after appending events. When more
+     * aggregates are appended to, the files of the least recently used aggregate are closed. Defaults to 100. Each
+     * aggregate uses two file handles.
+     *
+     * @param openFileCacheSize the number of aggregates to keep the event files open for
+     */
+    public void setOpenFileCacheSize(int openFileCacheSize) {
+        Assert.isTrue(openFileCacheSize > 0, "The open file cache size must be a positive number");
+        this.openFileCacheSize = openFileCacheSize;
+    }
+
+    /**
+     * Sets the number of subdirectory levels the files of an aggregate are stored in, within the directory of the
+     * aggregate type. Each level is named after the next two characters of the aggregate identifier, so that each
+     * directory contains at most 256 subdirectories. Defaults to 0, meaning that the files of all aggregates of a type
+     * are stored in the same directory. A depth of 2 suits millions of aggregates per type.
+     * <p/>
+     * Changing the depth of an existing event store requires its files to be moved using the {@link
+     * EventFileMigrator}.
+     *
+     * @param directoryDepth the number of subdirectory levels, between 0 and 4
+     */
+    public void setDirectoryDepth(int directoryDepth) {
+        Assert.isTrue(directoryDepth >= 0 && directoryDepth <= MAX_DIRECTORY_DEPTH,
+                      "The directory depth must be between 0 and " + MAX_DIRECTORY_DEPTH);
+        this.directoryDepth = directoryDepth;
+    }
+
+    /**
+     * Sets whether appended events should be stored in compressed blocks. Compression reduces the size of the event
+     * files, and the amount of data read when loading aggregates, at the cost of some processing time. Since the
+     * events appended in a single call form a single block, compression is most effective when multiple events are
+     * appended at once. Defaults to <code>false</code>.
+     * <p/>
+     * Events stored before compression was enabled remain readable, as do compressed events after it has been
+     * disabled again.
+     *
+     * @param compressionEnabled whether to compress appended events
+     */
+    public void setCompressionEnabled(boolean compressionEnabled) {
+        this.compressionEnabled = compressionEnabled;
+    }
+
+    /**
+     * Sets the number of threads used by {@link #recover()} to check the event files. Defaults to the number of
+     * available processors.
+     *
+     * @param recoveryParallelism the number of threads to check event files with
+     */
+    public void setRecoveryParallelism(int recoveryParallelism) {
+        Assert.isTrue(recoveryParallelism > 0, "The recovery parallelism must be a positive number");
+        this.recoveryParallelism = recoveryParallelism;
     }
 
     /**
@@ -162,30 +1029,375 @@ public class XStreamFileSystemEventStore implements EventStore {
         }
     }
 
-    private static class LocalDateTimeConverter implements SingleValueConverter {
+    /**
+     * Event stream that starts with a snapshot event, followed by the events of the given stream.
+     */
+    private static class SnapshotEventStream implements LazyEventStream {
+
+        private final LazyEventStream events;
+        private final UUID aggregateIdentifier;
+        private DomainEvent snapshotEvent;
+
+        public SnapshotEventStream(DomainEvent snapshotEvent, LazyEventStream events) {
+            this.events = events;
+            this.aggregateIdentifier = snapshotEvent.getAggregateIdentifier();
+            this.snapshotEvent = snapshotEvent;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public UUID getAggregateIdentifier() {
+            return aggregateIdentifier;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean hasNext() {
+            return snapshotEvent != null || events.hasNext();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public DomainEvent next() {
+            if (snapshotEvent == null) {
+                return events.next();
+            }
+            DomainEvent currentEvent = snapshotEvent;
+            snapshotEvent = null;
+            return currentEvent;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public String peekEventType() {
+            return snapshotEvent == null ? events.peekEventType() : snapshotEvent.getClass().getName();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public Long peekSequenceNumber() {
+            return snapshotEvent == null ? events.peekSequenceNumber() : snapshotEvent.getSequenceNumber();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void skip() {
+            if (snapshotEvent == null) {
+                events.skip();
+            }
+            snapshotEvent = null;
+        }
+    }
+
+    /**
+     * Event stream that skips the events of the given stream that have a lower sequence number than a given sequence
+     * number. Skipped events are not deserialized.
+     */
+    private static class SequenceNumberRangeEventStream implements LazyEventStream {
+
+        private final LazyEventStream events;
+        private final UUID aggregateIdentifier;
+
+        public SequenceNumberRangeEventStream(UUID aggregateIdentifier, LazyEventStream events,
+                                              long firstSequenceNumber) {
+            this.events = events;
+            this.aggregateIdentifier = aggregateIdentifier;
+            // the stream may start at an earlier event if the requested event is not indexed
+            while (events.hasNext() && events.peekSequenceNumber() < firstSequenceNumber) {
+                events.skip();
+            }
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public UUID getAggregateIdentifier() {
+            return aggregateIdentifier;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean hasNext() {
+            return events.hasNext();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public DomainEvent next() {
+            return events.next();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public String peekEventType() {
+            return events.peekEventType();
+        }
 
         /**
          * {@inheritDoc}
          */
         @Override
-        public boolean canConvert(Class type) {
-            return type.equals(LocalDateTime.class);
+        public Long peekSequenceNumber() {
+            return events.peekSequenceNumber();
         }
 
         /**
          * {@inheritDoc}
          */
         @Override
-        public String toString(Object obj) {
-            return obj.toString();
+        public void skip() {
+            events.skip();
+        }
+    }
+
+    /**
+     * Reads single events from event files. Consecutive events of the same event file are read using the same stream.
+     * The events of a record are deserialized at once, and kept until an event outside the record is read.
+     */
+    private static class EventFileReader {
+
+        private final XStream xStream;
+        private File currentFile;
+        private PositionAwareInputStream currentStream;
+        private long recordOffset;
+        private List<DomainEvent> recordEvents;
+
+        /**
+         * Initialize a reader that deserializes events using the given <code>xStream</code>.
+         *
+         * @param xStream The XStream instance to deserialize events with
+         */
+        public EventFileReader(XStream xStream) {
+            this.xStream = xStream;
+        }
+
+        /**
+         * Reads the event with the given <code>sequenceNumber</code>, which is stored at the given <code>offset</code>
+         * in the given <code>eventFile</code>. For compressed events, the offset is the offset of their block. Returns
+         * <code>null</code> if the event file doesn't contain the event at that offset, which is the case for events
+         * that have been discarded by {@link XStreamFileSystemEventStore#recover()}.
+         *
+         * @param eventFile      The file to read the event from
+         * @param offset         The offset of the event, or of the block containing it, in the file
+         * @param sequenceNumber The sequence number of the event
+         * @return the event, or <code>null</code> if the file doesn't contain the event
+         *
+         * @throws IOException when an error occurs reading the file
+         */
+        public DomainEvent readEvent(File eventFile, long offset, long sequenceNumber) throws IOException {
+            for (DomainEvent event : readRecord(eventFile, offset)) {
+                if (event.getSequenceNumber() == sequenceNumber) {
+                    return event;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Reads the events of the record at the given <code>offset</code> in the given <code>eventFile</code>.
+         *
+         * @param eventFile The file to read the record from
+         * @param offset    The offset of the record in the file
+         * @return the events in the record
+         *
+         * @throws IOException when an error occurs reading the file
+         */
+        public List<DomainEvent> readRecord(File eventFile, long offset) throws IOException {
+            if (!eventFile.equals(currentFile) || offset != recordOffset || recordEvents == null) {
+                if (!eventFile.equals(currentFile) || offset != currentStream.position()) {
+                    close();
+                    currentStream = new PositionAwareInputStream(new FileInputStream(eventFile));
+                    currentStream.seek(offset);
+                    currentFile = eventFile;
+                }
+                recordOffset = offset;
+                recordEvents = readCurrentRecord();
+            }
+            return recordEvents;
+        }
+
+        private List<DomainEvent> readCurrentRecord() throws IOException {
+            List<DomainEvent> events = new ArrayList<DomainEvent>();
+            byte[] record = CompressedBlockInputStream.readRecord(currentStream);
+            String lines = record == null ? readLine() : new String(record, "UTF-8");
+            for (String line : lines.split("\n")) {
+                if (line.length() > 0) {
+                    events.add((DomainEvent) xStream.fromXML(line));
+                }
+            }
+            return events;
+        }
+
+        private String readLine() throws IOException {
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            int next;
+            while ((next = currentStream.read()) != -1 && next != '\n') {
+                line.write(next);
+            }
+            return line.toString("UTF-8");
+        }
+
+        /**
+         * Closes the stream of the file currently being read, if any.
+         */
+        public void close() {
+            IOUtils.closeQuietly(currentStream);
+            currentStream = null;
+            currentFile = null;
+            recordEvents = null;
+        }
+    }
+
+    /**
+     * Buffered stream of a file, that keeps track of the position in the file of the next byte to read.
+     */
+    private static final class PositionAwareInputStream extends BufferedInputStream {
+
+        private final FileChannel channel;
+
+        private PositionAwareInputStream(FileInputStream fileStream) {
+            super(fileStream);
+            this.channel = fileStream.getChannel();
+        }
+
+        private void seek(long position) throws IOException {
+            channel.position(position);
+            count = 0;
+            pos = 0;
+            markpos = -1;
+        }
+
+        private long position() throws IOException {
+            return channel.position() - (count - pos);
+        }
+    }
+
+    /**
+     * Recovers a batch of event files of a single aggregate type, returning the number of files that needed to be
+     * recovered.
+     */
+    private final class RecoveryTask implements Callable<Integer> {
+
+        private final String type;
+        private final List<File> eventFiles;
+        private final Map<String, long[]> lastLoggedEvents;
+        private final boolean indexedRecordsLogged;
+
+        private RecoveryTask(String type, List<File> eventFiles, Map<String, long[]> lastLoggedEvents,
+                             boolean indexedRecordsLogged) {
+            this.type = type;
+            this.eventFiles = eventFiles;
+            this.lastLoggedEvents = lastLoggedEvents;
+            this.indexedRecordsLogged = indexedRecordsLogged;
         }
 
         /**
          * {@inheritDoc}
          */
         @Override
-        public Object fromString(String str) {
-            return new LocalDateTime(str);
+        public Integer call() throws IOException {
+            int recoveredCount = 0;
+            for (File eventFile : eventFiles) {
+                String name = eventFile.getName();
+                long[] lastLoggedEvent = lastLoggedEvents.get(type + "/" + name.substring(0, name.lastIndexOf('.')));
+                if (recoverEventFile(type, eventFile, lastLoggedEvent, indexedRecordsLogged)) {
+                    recoveredCount++;
+                }
+            }
+            return recoveredCount;
+        }
+    }
+
+    /**
+     * The state of the files at the time they were last known to be consistent: the length of the event log, the time
+     * and whether the event store was closed.
+     */
+    private static final class Checkpoint {
+
+        private final long eventLogLength;
+        private final long time;
+        private final boolean closed;
+
+        private Checkpoint(long eventLogLength, long time, boolean closed) {
+            this.eventLogLength = eventLogLength;
+            this.time = time;
+            this.closed = closed;
+        }
+    }
+
+    /**
+     * The open event and index file of an aggregate. Appends must be done while holding the lock.
+     */
+    private static final class AppendFiles {
+
+        private final Lock lock = new ReentrantLock();
+        private final FileChannel eventChannel;
+        private final FileChannel indexChannel;
+        // guarded by lock
+        private long eventFileSize;
+        private long indexFileSize;
+        private volatile boolean closed;
+
+        private AppendFiles(File eventFile, File indexFile) throws IOException {
+            eventChannel = new RandomAccessFile(eventFile, "rw").getChannel();
+            try {
+                indexChannel = new RandomAccessFile(indexFile, "rw").getChannel();
+                eventFileSize = eventChannel.size();
+                indexFileSize = indexChannel.size();
+            } catch (IOException e) {
+                closeQuietly(eventChannel);
+                throw e;
+            }
+        }
+
+        private void appendEvents(ByteBuffer events) throws IOException {
+            eventFileSize += writeFully(eventChannel, events, eventFileSize);
+        }
+
+        private void appendIndexEntries(ByteBuffer indexEntries) throws IOException {
+            indexFileSize += writeFully(indexChannel, indexEntries, indexFileSize);
+        }
+
+        private static int writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+            int bytesWritten = 0;
+            while (buffer.hasRemaining()) {
+                bytesWritten += channel.write(buffer, position + bytesWritten);
+            }
+            return bytesWritten;
+        }
+
+        private void closeWhenIdle() {
+            lock.lock();
+            try {
+                close();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void close() {
+            closed = true;
+            closeQuietly(eventChannel);
+            closeQuietly(indexChannel);
         }
     }
 }
@@ -0,0 +1,191 @@
+/*
+ * Copyright (c) 2010. Gridshore
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package nl.gridshore.cqrs4j.repository.eventsourcing;
+
+import com.thoughtworks.xstream.XStream;
+import com.thoughtworks.xstream.io.xml.XmlFriendlyReplacer;
+import com.thoughtworks.xstream.mapper.CannotResolveClassException;
+import nl.gridshore.cqrs4j.DomainEvent;
+import nl.gridshore.cqrs4j.LazyEventStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UnsupportedEncodingException;
+import java.util.NoSuchElementException;
+import java.util.UUID;
+
+/**
+ * {@link LazyEventStream} implementation that reads events from an input stream containing a single XML serialized
+ * event per line, as written by the {@link XStreamFileSystemEventStore}. Only the element name of each line is
+ * inspected up front, to resolve the type of the event. The event itself is only deserialized when it is read from
+ * the stream.
+ * <p/>
+ * Lines containing an event of an unknown type are skipped. The input stream is closed when the end of the stream has
+ * been reached.
+ *
+ * @author Allard Buijze
+ * @since 0.4
+ */
+class XmlLineEventStream implements LazyEventStream {
+
+    private static final Logger logger = LoggerFactory.getLogger(XmlLineEventStream.class);
+    private static final String SEQUENCE_NUMBER_START = "<sequenceNumber>";
+    private static final String SEQUENCE_NUMBER_END = "</sequenceNumber>";
+
+    private final XStream xStream;
+    private final XmlFriendlyReplacer replacer = new XmlFriendlyReplacer();
+    private final BufferedReader reader;
+    private final UUID aggregateIdentifier;
+    private String nextLine;
+    private String nextEventType;
+    private DomainEvent nextEvent;
+
+    /**
+     * Initialize a stream that reads events of the aggregate with the given <code>aggregateIdentifier</code> from the
+     * given <code>inputStream</code>, using the given <code>xStream</code> to deserialize them.
+     *
+     * @param xStream             The XStream instance to deserialize events with
+     * @param inputStream         The stream containing the serialized events, one per line
+     * @param aggregateIdentifier The identifier of the aggregate the events apply to
+     */
+    public XmlLineEventStream(XStream xStream, InputStream inputStream, UUID aggregateIdentifier) {
+        this.xStream = xStream;
+        this.aggregateIdentifier = aggregateIdentifier;
+        try {
+            this.reader = new BufferedReader(new InputStreamReader(inputStream, "UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException("The UTF-8 encoding is not supported", e);
+        }
+        advance();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public UUID getAggregateIdentifier() {
+        return aggregateIdentifier;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean hasNext() {
+        return nextLine != null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public DomainEvent next() {
+        DomainEvent event = deserializeNextEvent();
+        advance();
+        return event;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String peekEventType() {
+        assertHasNext();
+        return nextEventType;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * The sequence number is read from the serialized form of the event. Only if the sequence number is not the first
+     * element of the event, the event is deserialized.
+     */
+    @Override
+    public Long peekSequenceNumber() {
+        assertHasNext();
+        int start = nextLine.indexOf('>') + 1;
+        if (nextEvent == null && nextLine.startsWith(SEQUENCE_NUMBER_START, start)) {
+            start += SEQUENCE_NUMBER_START.length();
+            return Long.valueOf(nextLine.substring(start, nextLine.indexOf(SEQUENCE_NUMBER_END, start)));
+        }
+        return deserializeNextEvent().getSequenceNumber();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void skip() {
+        assertHasNext();
+        advance();
+    }
+
+    private DomainEvent deserializeNextEvent() {
+        assertHasNext();
+        if (nextEvent == null) {
+            nextEvent = (DomainEvent) xStream.fromXML(nextLine);
+        }
+        return nextEvent;
+    }
+
+    /**
+     * Moves to the next line containing an event of a known type, and resolves the type of that event. Closes the
+     * reader when the end of the stream is reached.
+     */
+    private void advance() {
+        nextEvent = null;
+        nextEventType = null;
+        try {
+            while (nextEventType == null && (nextLine = reader.readLine()) != null) {
+                if (nextLine.length() > 0) {
+                    nextEventType = resolveEventType(nextLine);
+                }
+            }
+            if (nextLine == null) {
+                reader.close();
+            }
+        } catch (IOException e) {
+            throw new EventStorageException("Unable to read events due to an IOException", e);
+        }
+    }
+
+    private String resolveEventType(String line) {
+        int end = 1;
+        while (end < line.length() && line.charAt(end) != '>' && line.charAt(end) != ' '
+                && line.charAt(end) != '/') {
+            end++;
+        }
+        String elementName = replacer.unescapeName(line.substring(1, end));
+        try {
+            return xStream.getMapper().realClass(elementName).getName();
+        } catch (CannotResolveClassException e) {
+            logger.warn("Unable to resolve the class of event [{}]. Event is skipped.", elementName);
+            return null;
+        }
+    }
+
+    private void assertHasNext() {
+        if (!hasNext()) {
+            throw new NoSuchElementException("The event stream doesn't contain any more events");
+        }
+    }
+}
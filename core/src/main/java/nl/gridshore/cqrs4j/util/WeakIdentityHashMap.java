@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2010. Gridshore
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.gridshore.cqrs4j.util;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Map that compares its keys by identity, and only holds weak references to them. Entries are removed once their key
+ * has been garbage collected. Unlike a {@link java.util.WeakHashMap}, keys that are equal, but not the same instance,
+ * are different entries. This makes it suitable for keeping state about specific instances of objects that implement
+ * <code>equals</code>, such as aggregates.
+ * <p/>
+ * All methods are synchronized on the map itself.
+ *
+ * @author Allard Buijze
+ * @param <K> The type of the keys
+ * @param <V> The type of the values
+ * @since 0.4
+ */
+public class WeakIdentityHashMap<K, V> {
+
+    private final Map<IdentityWeakReference<K>, V> entries = new HashMap<IdentityWeakReference<K>, V>();
+    private final ReferenceQueue<K> queue = new ReferenceQueue<K>();
+
+    /**
+     * Returns the value of the entry of the given <code>key</code>, or <code>null</code> if there is none.
+     *
+     * @param key The key of the entry
+     * @return the value of the entry, if any
+     */
+    public synchronized V get(K key) {
+        expungeStaleEntries();
+        return entries.get(new IdentityWeakReference<K>(key, null));
+    }
+
+    /**
+     * Indicates whether the map contains an entry for the given <code>key</code>.
+     *
+     * @param key The key of the entry
+     * @return <code>true</code> if the map contains an entry for the given key, otherwise <code>false</code>
+     */
+    public synchronized boolean containsKey(K key) {
+        expungeStaleEntries();
+        return entries.containsKey(new IdentityWeakReference<K>(key, null));
+    }
+
+    /**
+     * Sets the value of the entry of the given <code>key</code>, replacing the previous value, if any.
+     *
+     * @param key   The key of the entry
+     * @param value The value of the entry
+     * @return the previous value of the entry, or <code>null</code> if there was none
+     */
+    public synchronized V put(K key, V value) {
+        expungeStaleEntries();
+        return entries.put(new IdentityWeakReference<K>(key, queue), value);
+    }
+
+    /**
+     * Removes the entry of the given <code>key</code>.
+     *
+     * @param key The key of the entry
+     * @return the value of the removed entry, or <code>null</code> if there was none
+     */
+    public synchronized V remove(K key) {
+        expungeStaleEntries();
+        return entries.remove(new IdentityWeakReference<K>(key, null));
+    }
+
+    /**
+     * Returns the number of entries in the map. Entries of which the key has been garbage collected may still be
+     * counted.
+     *
+     * @return the number of entries in the map
+     */
+    public synchronized int size() {
+        expungeStaleEntries();
+        return entries.size();
+    }
+
+    private void expungeStaleEntries() {
+        Reference<? extends K> reference;
+        while ((reference = queue.poll()) != null) {
+            entries.remove(reference);
+        }
+    }
+
+    /**
+     * Weak reference that is equal to references to the same instance, using its identity hash code.
+     */
+    private static final class IdentityWeakReference<T> extends WeakReference<T> {
+
+        private final int hashCode;
+
+        private IdentityWeakReference(T referent, ReferenceQueue<? super T> queue) {
+            super(referent, queue);
+            this.hashCode = System.identityHashCode(referent);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+
+        /**
+         * {@inheritDoc}
+         * <p/>
+         * A reference of which the referent has been garbage collected is only equal to itself.
+         */
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof IdentityWeakReference)) {
+                return false;
+            }
+            Object referent = get();
+            return referent != null && referent == ((IdentityWeakReference<?>) o).get();
+        }
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 2010. Gridshore
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.gridshore.cqrs4j;
+
+import nl.gridshore.cqrs4j.repository.eventsourcing.EventStore;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+/**
+ * Utility methods to append stub events to event stores and verify the events read from them.
+ *
+ * @author Allard Buijze
+ */
+public abstract class EventStoreTestUtils {
+
+    /**
+     * Appends <code>count</code> stub events of the aggregate with the given <code>aggregateIdentifier</code> and type
+     * "test" to the given <code>eventStore</code>, in a single call, starting at the given
+     * <code>firstSequenceNumber</code>.
+     */
+    public static void appendEvents(EventStore eventStore, UUID aggregateIdentifier, int firstSequenceNumber,
+                                    int count) {
+        List<DomainEvent> events = new ArrayList<DomainEvent>();
+        for (int i = firstSequenceNumber; i < firstSequenceNumber + count; i++) {
+            events.add(new StubDomainEvent(aggregateIdentifier, i));
+        }
+        eventStore.appendEvents("test", new SimpleEventStream(events, aggregateIdentifier));
+    }
+
+    /**
+     * Asserts that the given <code>events</code> stream contains exactly the events with the given sequence numbers,
+     * in that order.
+     */
+    public static void assertSequenceNumbers(EventStream events, long... expectedSequenceNumbers) {
+        for (long expected : expectedSequenceNumbers) {
+            assertTrue("Expected event " + expected, events.hasNext());
+            assertEquals(new Long(expected), events.next().getSequenceNumber());
+        }
+        assertFalse(events.hasNext());
+    }
+
+    /**
+     * Asserts that the given <code>events</code> stream contains exactly the events with sequence numbers from
+     * <code>first</code> (inclusive) to <code>end</code> (exclusive), in that order.
+     */
+    public static void assertSequenceNumberRange(EventStream events, long first, long end) {
+        for (long expected = first; expected < end; expected++) {
+            assertTrue("Expected event " + expected, events.hasNext());
+            assertEquals(new Long(expected), events.next().getSequenceNumber());
+        }
+        assertFalse(events.hasNext());
+    }
+}
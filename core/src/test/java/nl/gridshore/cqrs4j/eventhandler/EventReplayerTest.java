@@ -0,0 +1,157 @@
+/*
+ * Copyright (c) 2010. Gridshore
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package nl.gridshore.cqrs4j.eventhandler;
+
+import nl.gridshore.cqrs4j.DomainEvent;
+import nl.gridshore.cqrs4j.StubDomainEvent;
+import nl.gridshore.cqrs4j.repository.eventsourcing.EventLogBatch;
+import nl.gridshore.cqrs4j.repository.eventsourcing.ReplayableEventStore;
+import org.junit.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * @author Allard Buijze
+ */
+public class EventReplayerTest {
+
+    private EventReplayer testSubject;
+    private ReplayableEventStore mockEventStore;
+    private UUID aggregate1 = UUID.randomUUID();
+    private UUID aggregate2 = UUID.randomUUID();
+
+    @Before
+    public void setUp() {
+        mockEventStore = mock(ReplayableEventStore.class);
+        List<DomainEvent> firstBatch = Arrays.<DomainEvent>asList(new StubDomainEvent(aggregate1, 0),
+                                                                  new StubDomainEvent(aggregate2, 0),
+                                                                  new StubDomainEvent(aggregate1, 1));
+        List<DomainEvent> secondBatch = Arrays.<DomainEvent>asList(new StubDomainEvent(aggregate2, 1),
+                                                                   new StubDomainEvent(aggregate1, 2));
+        when(mockEventStore.readAll(0, 3)).thenReturn(new EventLogBatch(firstBatch, 3));
+        when(mockEventStore.readAll(3, 3)).thenReturn(new EventLogBatch(secondBatch, 5));
+        when(mockEventStore.readAll(5, 3)).thenReturn(new EventLogBatch(Collections.<DomainEvent>emptyList(), 5));
+        testSubject = new EventReplayer();
+        testSubject.setEventStore(mockEventStore);
+        testSubject.setBatchSize(3);
+        testSubject.setParallelism(4);
+    }
+
+    @Test
+    public void testReplayKeepsEventsOfSameSequenceInOrder() {
+        RecordingEventListener listener1 = new RecordingEventListener();
+        RecordingEventListener listener2 = new RecordingEventListener();
+        ReplayProgressListener progressListener = mock(ReplayProgressListener.class);
+        testSubject.setProgressListener(progressListener);
+
+        long position = testSubject.replay(Arrays.asList(listener1, listener2));
+
+        assertEquals(5, position);
+        for (RecordingEventListener listener : Arrays.asList(listener1, listener2)) {
+            assertSequenceNumbers(listener.handledEvents.get(aggregate1), 0, 1, 2);
+            assertSequenceNumbers(listener.handledEvents.get(aggregate2), 0, 1);
+            assertEquals(listener.beforeTransactionCount.get(), listener.afterTransactionCount.get());
+            assertTrue(listener.beforeTransactionCount.get() > 0);
+        }
+        verify(progressListener).onBatchReplayed(3, 3);
+        verify(progressListener).onBatchReplayed(5, 5);
+    }
+
+    @Test
+    public void testReplayFromPosition() {
+        RecordingEventListener listener = new RecordingEventListener();
+
+        testSubject.replay(Arrays.asList(listener), 3);
+
+        assertSequenceNumbers(listener.handledEvents.get(aggregate1), 2);
+        assertSequenceNumbers(listener.handledEvents.get(aggregate2), 1);
+    }
+
+    @Test
+    public void testReplayStopsWhenListenerFails() {
+        EventListener failingListener = mock(EventListener.class);
+        when(failingListener.canHandle(StubDomainEvent.class)).thenReturn(true);
+        when(failingListener.getEventSequencingPolicy()).thenReturn(new SequentialPolicy());
+        doThrow(new MockException()).when(failingListener).handle(isA(DomainEvent.class));
+
+        try {
+            testSubject.replay(Arrays.asList(failingListener));
+            fail("Expected exception to be propagated");
+        } catch (MockException e) {
+            // expected
+        }
+        verify(mockEventStore, never()).readAll(5, 3);
+    }
+
+    private void assertSequenceNumbers(List<DomainEvent> events, long... expectedSequenceNumbers) {
+        assertEquals(expectedSequenceNumbers.length, events.size());
+        for (int i = 0; i < expectedSequenceNumbers.length; i++) {
+            assertEquals(new Long(expectedSequenceNumbers[i]), events.get(i).getSequenceNumber());
+        }
+    }
+
+    private static class RecordingEventListener implements EventListener, TransactionAware {
+
+        private final Map<UUID, List<DomainEvent>> handledEvents = new HashMap<UUID, List<DomainEvent>>();
+        private final AtomicInteger beforeTransactionCount = new AtomicInteger();
+        private final AtomicInteger afterTransactionCount = new AtomicInteger();
+
+        @Override
+        public boolean canHandle(Class<? extends DomainEvent> eventType) {
+            return true;
+        }
+
+        @Override
+        public synchronized void handle(DomainEvent event) {
+            assertNotNull(TransactionStatus.current());
+            if (!handledEvents.containsKey(event.getAggregateIdentifier())) {
+                handledEvents.put(event.getAggregateIdentifier(), new ArrayList<DomainEvent>());
+            }
+            handledEvents.get(event.getAggregateIdentifier()).add(event);
+        }
+
+        @Override
+        public EventSequencingPolicy getEventSequencingPolicy() {
+            return new SequentialPerAggregatePolicy();
+        }
+
+        @Override
+        public void beforeTransaction(TransactionStatus transactionStatus) {
+            beforeTransactionCount.incrementAndGet();
+        }
+
+        @Override
+        public void afterTransaction(TransactionStatus transactionStatus) {
+            afterTransactionCount.incrementAndGet();
+        }
+    }
+
+    private static class MockException extends RuntimeException {
+
+    }
+}
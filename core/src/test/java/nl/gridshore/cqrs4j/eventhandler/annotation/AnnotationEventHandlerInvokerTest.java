@@ -75,6 +75,62 @@ public class AnnotationEventHandlerInvokerTest {
         assertEquals(0, handler.invocationCount2);
     }
 
+    /*
+    Test scenario:
+    resolved handlers are cached per target class. Instances of a subclass must not use the handlers resolved for the
+    super class, and vice versa.
+    */
+
+    @Test
+    public void testInvokeEventHandler_ResolvedHandlersAreKeptPerTargetClass() {
+        FirstSubclass firstSubclass = new FirstSubclass();
+        SecondSubclass secondSubclass = new SecondSubclass();
+        new AnnotationEventHandlerInvoker(firstSubclass).invokeEventHandlerMethod(new StubEventOne());
+        new AnnotationEventHandlerInvoker(secondSubclass).invokeEventHandlerMethod(new StubEventOne());
+        new AnnotationEventHandlerInvoker(firstSubclass).invokeEventHandlerMethod(new StubEventOne());
+
+        assertEquals(2, firstSubclass.invocationCount1);
+        assertEquals(0, secondSubclass.invocationCount1);
+        assertEquals(1, secondSubclass.invocationCount3);
+    }
+
+    @Test
+    public void testHasHandlerFor_ResultIsSameForEachInstance() {
+        testSubject = new AnnotationEventHandlerInvoker(new FirstSubclass());
+        assertTrue(testSubject.hasHandlerFor(StubEventTwo.class));
+        assertFalse(testSubject.hasHandlerFor(DomainEvent.class));
+        assertFalse(testSubject.hasHandlerFor(DomainEvent.class));
+
+        AnnotationEventHandlerInvoker otherInvoker = new AnnotationEventHandlerInvoker(new FirstSubclass());
+        assertTrue(otherInvoker.hasHandlerFor(StubEventTwo.class));
+        assertFalse(otherInvoker.hasHandlerFor(DomainEvent.class));
+    }
+
+    @Test
+    public void testInvokeEventHandler_ExplicitTransactionStatusIsPassed() {
+        TransactionStatus status = mock(TransactionStatus.class);
+        SecondSubclass handler = new SecondSubclass();
+        testSubject = new AnnotationEventHandlerInvoker(handler);
+        testSubject.invokeEventHandlerMethod(new StubEventOne(), status);
+
+        assertEquals(1, handler.invocationCount3);
+        assertSame(status, handler.lastTransactionStatus);
+    }
+
+    @Test
+    public void testInvokeEventHandler_NonPublicHandlersAreInvoked() {
+        TransactionStatus status = mock(TransactionStatus.class);
+        NonPublicHandlers handler = new NonPublicHandlers();
+        testSubject = new AnnotationEventHandlerInvoker(handler);
+        testSubject.invokeEventHandlerMethod(new StubEventOne());
+        testSubject.invokeEventHandlerMethod(new StubEventTwo());
+        testSubject.invokeBeforeTransaction(status);
+
+        assertEquals(1, handler.invocationCount1);
+        assertEquals(1, handler.invocationCount2);
+        assertEquals(1, handler.beforeTransactionCount);
+    }
+
     /*
     Test scenario:
     within a single class, the most specific handler is chosen, even if an exact handler isn't found.
@@ -210,10 +266,12 @@ public class AnnotationEventHandlerInvokerTest {
     private static class SecondSubclass extends FirstSubclass {
 
         protected int invocationCount3;
+        protected TransactionStatus lastTransactionStatus;
 
         @EventHandler
         public void method3(StubEventOne event, TransactionStatus transactionStatus) {
             invocationCount3++;
+            lastTransactionStatus = transactionStatus;
         }
 
         @AfterTransaction
@@ -249,6 +307,28 @@ public class AnnotationEventHandlerInvokerTest {
 
     }
 
+    private static class NonPublicHandlers {
+
+        private int invocationCount1;
+        private int invocationCount2;
+        private int beforeTransactionCount;
+
+        @EventHandler
+        private void method1(StubEventOne event) {
+            invocationCount1++;
+        }
+
+        @EventHandler
+        protected void method2(StubEventTwo event) {
+            invocationCount2++;
+        }
+
+        @BeforeTransaction
+        void beforeTransaction() {
+            beforeTransactionCount++;
+        }
+    }
+
     private static class StubEventOne extends StubDomainEvent {
 
     }
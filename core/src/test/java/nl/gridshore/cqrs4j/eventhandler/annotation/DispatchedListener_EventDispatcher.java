@@ -0,0 +1,64 @@
+/*
+ * Copyright (c) 2010. Gridshore
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package nl.gridshore.cqrs4j.eventhandler.annotation;
+
+import nl.gridshore.cqrs4j.DomainEvent;
+import nl.gridshore.cqrs4j.StubDomainEvent;
+import nl.gridshore.cqrs4j.eventhandler.TransactionStatus;
+
+/**
+ * Hand written equivalent of a dispatcher generated by the cqrs4j annotation processor. It counts the dispatched
+ * events instead of invoking the handler methods.
+ *
+ * @author Allard Buijze
+ */
+public class DispatchedListener_EventDispatcher implements EventHandlerDispatcher {
+
+    static int dispatchedEvents;
+    static int transactions;
+
+    @Override
+    public boolean hasEventHandlers() {
+        return true;
+    }
+
+    @Override
+    public boolean canHandle(Class<? extends DomainEvent> eventType) {
+        return StubDomainEvent.class.isAssignableFrom(eventType);
+    }
+
+    @Override
+    public boolean dispatch(Object target, DomainEvent event, TransactionStatus transactionStatus) {
+        if (event instanceof StubDomainEvent) {
+            dispatchedEvents++;
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public boolean beforeTransaction(Object target, TransactionStatus transactionStatus) {
+        transactions++;
+        return true;
+    }
+
+    @Override
+    public boolean afterTransaction(Object target, TransactionStatus transactionStatus) {
+        return true;
+    }
+}
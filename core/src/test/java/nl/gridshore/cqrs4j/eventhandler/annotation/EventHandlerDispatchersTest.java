@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2010. Gridshore
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package nl.gridshore.cqrs4j.eventhandler.annotation;
+
+import nl.gridshore.cqrs4j.DomainEvent;
+import nl.gridshore.cqrs4j.StubDomainEvent;
+import nl.gridshore.cqrs4j.eventhandler.TransactionStatus;
+import org.junit.*;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * @author Allard Buijze
+ */
+public class EventHandlerDispatchersTest {
+
+    @Before
+    public void setUp() {
+        DispatchedListener_EventDispatcher.dispatchedEvents = 0;
+        DispatchedListener_EventDispatcher.transactions = 0;
+    }
+
+    @Test
+    public void testFindDispatcher() {
+        assertTrue(EventHandlerDispatchers.findDispatcher(DispatchedListener.class)
+                instanceof DispatchedListener_EventDispatcher);
+        assertNull(EventHandlerDispatchers.findDispatcher(Object.class));
+        assertNull(EventHandlerDispatchers.findDispatcher(EventHandlerDispatchersTest.class));
+    }
+
+    @Test
+    public void testFindDispatcher_SubclassWithoutHandlersUsesSuperClassDispatcher() {
+        assertTrue(EventHandlerDispatchers.findDispatcher(PlainSubclass.class)
+                instanceof DispatchedListener_EventDispatcher);
+        assertNull(EventHandlerDispatchers.findDispatcher(SubclassWithHandlers.class));
+    }
+
+    @Test
+    public void testAdapterUsesDispatcher() {
+        DispatchedListener listener = new DispatchedListener();
+        AnnotationEventListenerAdapter adapter = new AnnotationEventListenerAdapter(listener);
+
+        assertTrue(adapter.canHandle(StubDomainEvent.class));
+        assertFalse(adapter.canHandle(DomainEvent.class));
+        adapter.handle(new StubDomainEvent());
+        adapter.beforeTransaction(mock(TransactionStatus.class));
+
+        assertEquals(1, DispatchedListener_EventDispatcher.dispatchedEvents);
+        assertEquals(1, DispatchedListener_EventDispatcher.transactions);
+        assertEquals(0, listener.reflectiveInvocations);
+    }
+
+    private static class PlainSubclass extends DispatchedListener {
+
+        public void notAHandler(StubDomainEvent event) {
+        }
+    }
+
+    private static class SubclassWithHandlers extends DispatchedListener {
+
+        @EventHandler
+        public void onEvent(DomainEvent event) {
+        }
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2010. Gridshore
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package nl.gridshore.cqrs4j.eventhandler.annotation;
+
+import nl.gridshore.cqrs4j.DomainEvent;
+import nl.gridshore.cqrs4j.StubDomainEvent;
+import nl.gridshore.cqrs4j.eventhandler.TransactionStatus;
+import org.junit.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Allard Buijze
+ */
+@SuppressWarnings({"UnusedDeclaration"})
+public class HandlerMetadataTest {
+
+    @Test
+    public void testMetadataIsSharedPerType() {
+        HandlerMetadata metadata = HandlerMetadata.forType(ValidHandler.class);
+
+        assertSame(metadata, HandlerMetadata.forType(ValidHandler.class));
+        assertNotSame(metadata, HandlerMetadata.forType(ValidSubHandler.class));
+        assertEquals(ValidHandler.class, metadata.getTargetType());
+    }
+
+    @Test
+    public void testMetadataDescribesHandlerMethods() {
+        HandlerMetadata metadata = HandlerMetadata.forType(ValidSubHandler.class);
+
+        assertEquals("handleSub", metadata.findEventHandlerMethod(StubDomainEvent.class).getMethod().getName());
+        assertEquals("handleAny", metadata.findEventHandlerMethod(DomainEvent.class).getMethod().getName());
+        assertEquals("beforeTransaction", metadata.getBeforeTransactionMethod().getMethod().getName());
+        assertNull(metadata.getAfterTransactionMethod());
+    }
+
+    @Test
+    public void testInvalidTypeIsRejectedEveryTime() {
+        for (int t = 0; t < 2; t++) {
+            try {
+                HandlerMetadata.forType(InvalidHandler.class);
+                fail("Expected an UnsupportedHandlerMethodException");
+            }
+            catch (UnsupportedHandlerMethodException e) {
+                assertEquals("handle", e.getViolatingMethod().getName());
+            }
+        }
+    }
+
+    private static class ValidHandler {
+
+        @EventHandler
+        public void handleAny(DomainEvent event) {
+        }
+
+        @BeforeTransaction
+        public void beforeTransaction(TransactionStatus transactionStatus) {
+        }
+    }
+
+    private static class ValidSubHandler extends ValidHandler {
+
+        @EventHandler
+        public void handleSub(StubDomainEvent event) {
+        }
+    }
+
+    private static class InvalidHandler {
+
+        @EventHandler
+        public void handle(String notAnEvent) {
+        }
+    }
+}
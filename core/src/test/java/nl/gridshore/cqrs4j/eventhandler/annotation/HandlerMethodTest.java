@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2010. Gridshore
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.gridshore.cqrs4j.eventhandler.annotation;
+
+import org.junit.*;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Allard Buijze
+ */
+@SuppressWarnings({"UnusedDeclaration"})
+public class HandlerMethodTest {
+
+    @Test
+    public void testSingleParameterInvocationIsReentrant_FastClass() throws Exception {
+        assertReentrantInvocation("handlePublic");
+    }
+
+    @Test
+    public void testSingleParameterInvocationIsReentrant_Reflection() throws Exception {
+        assertReentrantInvocation("handlePrivate");
+    }
+
+    @Test
+    public void testInvocationWithoutParameters() throws Exception {
+        Handler handler = new Handler();
+        HandlerMethod handlerMethod = HandlerMethod.forMethod(Handler.class.getMethod("handleNothing"));
+        assertEquals("nothing", handlerMethod.invoke(handler));
+    }
+
+    private void assertReentrantInvocation(String methodName) throws Exception {
+        Method method = Handler.class.getDeclaredMethod(methodName, String.class);
+        Handler handler = new Handler();
+        handler.nestedMethod = HandlerMethod.forMethod(method);
+        handler.nestedMethod.invoke(handler, "outer");
+        assertEquals("[nested, outer]", handler.received.toString());
+    }
+
+    public static class Handler {
+
+        private final List<String> received = new ArrayList<String>();
+        private HandlerMethod nestedMethod;
+
+        public void handlePublic(String parameter) throws Exception {
+            handle(parameter);
+        }
+
+        private void handlePrivate(String parameter) throws Exception {
+            handle(parameter);
+        }
+
+        public String handleNothing() {
+            return "nothing";
+        }
+
+        private void handle(String parameter) throws Exception {
+            if (!"nested".equals(parameter)) {
+                nestedMethod.invoke(this, "nested");
+            }
+            received.add(parameter);
+        }
+    }
+}
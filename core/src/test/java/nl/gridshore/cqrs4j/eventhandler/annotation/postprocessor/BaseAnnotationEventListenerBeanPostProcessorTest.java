@@ -88,6 +88,15 @@ public class BaseAnnotationEventListenerBeanPostProcessorTest {
         verify(mockAdapter).shutdown();
     }
 
+    @Test
+    public void testBeanWithoutEventHandlersIsNotAdapted() throws Exception {
+        TransactionalBean bean = new TransactionalBean();
+        Object postProcessedBean = testSubject.postProcessAfterInitialization(bean, "beanName");
+
+        assertSame(bean, postProcessedBean);
+        verifyZeroInteractions(mockAdapter);
+    }
+
     public static class AnnotatedEventListener {
 
         private int invocationCount;
@@ -0,0 +1,55 @@
+/*
+ * Copyright (c) 2010. Gridshore
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.gridshore.cqrs4j.eventhandler.annotation.postprocessor;
+
+import nl.gridshore.cqrs4j.DomainEvent;
+import nl.gridshore.cqrs4j.eventhandler.TransactionStatus;
+import nl.gridshore.cqrs4j.eventhandler.annotation.EventHandlerDispatcher;
+
+/**
+ * Hand written equivalent of the dispatcher generated by the cqrs4j annotation processor for a class that only has a
+ * {@link nl.gridshore.cqrs4j.eventhandler.annotation.BeforeTransaction} annotated method.
+ *
+ * @author Allard Buijze
+ */
+public class TransactionalBean_EventDispatcher implements EventHandlerDispatcher {
+
+    @Override
+    public boolean hasEventHandlers() {
+        return false;
+    }
+
+    @Override
+    public boolean canHandle(Class<? extends DomainEvent> eventType) {
+        return false;
+    }
+
+    @Override
+    public boolean dispatch(Object target, DomainEvent event, TransactionStatus transactionStatus) {
+        return false;
+    }
+
+    @Override
+    public boolean beforeTransaction(Object target, TransactionStatus transactionStatus) {
+        return true;
+    }
+
+    @Override
+    public boolean afterTransaction(Object target, TransactionStatus transactionStatus) {
+        return true;
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2010. Gridshore
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.gridshore.cqrs4j.repository;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures the throughput of the lock managers when many threads lock and release aggregates concurrently. Not run as
+ * part of the test suite. Run the main method, optionally passing the number of threads, the number of aggregates and
+ * the duration of each measurement in seconds.
+ *
+ * @author Allard Buijze
+ */
+public class LockManagerBenchmark {
+
+    private final int threadCount;
+    private final UUID[] aggregateIdentifiers;
+    private final long durationMillis;
+
+    public LockManagerBenchmark(int threadCount, int aggregateCount, long durationMillis) {
+        this.threadCount = threadCount;
+        this.durationMillis = durationMillis;
+        aggregateIdentifiers = new UUID[aggregateCount];
+        for (int i = 0; i < aggregateCount; i++) {
+            aggregateIdentifiers[i] = UUID.randomUUID();
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        int threadCount = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int aggregateCount = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+        long durationMillis = args.length > 2 ? Long.parseLong(args[2]) * 1000 : 5000;
+        LockManagerBenchmark benchmark = new LockManagerBenchmark(threadCount, aggregateCount, durationMillis);
+        System.out.println(String.format("%s threads locking %s aggregates", threadCount, aggregateCount));
+        for (int round = 0; round < 2; round++) {
+            // the first round warms up the JVM
+            benchmark.measure("optimistic", new OptimisticLockManager());
+            benchmark.measure("pessimistic", new PessimisticLockManager());
+            benchmark.measure("striped", new StripedLockManager());
+            benchmark.measure("striped with reentrancy check",
+                              new StripedLockManager(StripedLockManager.DEFAULT_STRIPE_COUNT, true));
+        }
+    }
+
+    private void measure(String name, final LockManager lockManager) throws InterruptedException {
+        final AtomicLong operations = new AtomicLong();
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch finished = new CountDownLatch(threadCount);
+        final long[] deadline = new long[1];
+        for (int i = 0; i < threadCount; i++) {
+            final Random random = new Random(i);
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        long count = 0;
+                        while (System.currentTimeMillis() < deadline[0]) {
+                            int index = random.nextInt(aggregateIdentifiers.length);
+                            UUID aggregateIdentifier = aggregateIdentifiers[index];
+                            lockManager.obtainLock(aggregateIdentifier);
+                            lockManager.releaseLock(aggregateIdentifier);
+                            count++;
+                        }
+                        operations.addAndGet(count);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        finished.countDown();
+                    }
+                }
+            }).start();
+        }
+        System.gc();
+        long gcCountBefore = gcCount();
+        deadline[0] = System.currentTimeMillis() + durationMillis;
+        start.countDown();
+        finished.await();
+        System.out.println(String.format("%-30s %,12d locks/s, %s garbage collections", name,
+                                         operations.get() * 1000 / durationMillis, gcCount() - gcCountBefore));
+    }
+
+    private static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, bean.getCollectionCount());
+        }
+        return count;
+    }
+}
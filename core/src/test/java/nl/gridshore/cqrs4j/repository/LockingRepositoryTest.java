@@ -22,9 +22,18 @@ import nl.gridshore.cqrs4j.eventhandler.EventBus;
 import org.junit.*;
 import org.mockito.*;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.*;
 import static org.mockito.Mockito.*;
@@ -116,6 +125,107 @@ public class LockingRepositoryTest {
         testLoadAndStoreAggregate_LockReleasedOnException();
     }
 
+    @Test
+    public void testReleaseAggregateWithoutSaving() {
+        StubAggregate aggregate = new StubAggregate();
+        aggregate.doSomething();
+        testSubject.save(aggregate);
+        reset(mockEventBus);
+
+        StubAggregate loadedAggregate = testSubject.load(aggregate.getIdentifier());
+        testSubject.release(loadedAggregate);
+        verify(lockManager).releaseLock(aggregate.getIdentifier());
+        // only saved when the aggregate was created
+        verify(testSubject, times(1)).doSave(isA(StubAggregate.class));
+        verifyZeroInteractions(mockEventBus);
+    }
+
+    @Test
+    public void testExpiredLockReleasedInBackground() throws Exception {
+        testSubject.setLockLeaseTime(50);
+        StubAggregate aggregate = new StubAggregate();
+        aggregate.doSomething();
+        testSubject.save(aggregate);
+        final UUID aggregateIdentifier = aggregate.getIdentifier();
+        // the lock is never released by this thread
+        testSubject.load(aggregateIdentifier);
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            StubAggregate loadedAggregate = executor.submit(new Callable<StubAggregate>() {
+                @Override
+                public StubAggregate call() {
+                    StubAggregate loadedAggregate = testSubject.load(aggregateIdentifier);
+                    testSubject.release(loadedAggregate);
+                    return loadedAggregate;
+                }
+            }).get(5, TimeUnit.SECONDS);
+            assertNotNull(loadedAggregate);
+        } finally {
+            executor.shutdownNow();
+            testSubject.setLockLeaseTime(0);
+        }
+    }
+
+    @Test
+    public void testDeadlockResolvedByRollingBackUnitOfWork() throws Exception {
+        final LockingRepository<StubAggregate> repository =
+                new InMemoryLockingRepository(new PessimisticLockManager());
+        repository.setEventBus(mockEventBus);
+        repository.setDeadlockDetection(true);
+        final UUID[] identifiers = new UUID[2];
+        for (int i = 0; i < identifiers.length; i++) {
+            StubAggregate aggregate = new StubAggregate();
+            aggregate.doSomething();
+            repository.save(aggregate);
+            identifiers[i] = aggregate.getIdentifier();
+        }
+
+        final CyclicBarrier barrier = new CyclicBarrier(2);
+        final AtomicInteger deadlocks = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        List<Future<Void>> results = new ArrayList<Future<Void>>();
+        for (final UUID[] order : new UUID[][]{identifiers, {identifiers[1], identifiers[0]}}) {
+            results.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    UnitOfWork unitOfWork = UnitOfWork.start();
+                    try {
+                        // the lock of the first aggregate is only released when the unit of work is completed
+                        repository.load(order[0]);
+                        barrier.await();
+                        StubAggregate aggregate = repository.load(order[1]);
+                        aggregate.doSomething();
+                        repository.save(aggregate);
+                        unitOfWork.commit();
+                    } catch (DeadlockException e) {
+                        deadlocks.incrementAndGet();
+                        unitOfWork.rollback();
+                    }
+                    return null;
+                }
+            }));
+        }
+        try {
+            for (Future<Void> result : results) {
+                result.get(5, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(1, deadlocks.get());
+
+        // all locks have been released when the units of work were completed
+        for (UUID identifier : identifiers) {
+            repository.release(repository.load(identifier));
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testLockLeasesNotSupportedByStripedLocking() {
+        new InMemoryLockingRepository(new StripedLockManager()).setLockLeaseTime(50);
+    }
+
     private static class InMemoryLockingRepository extends LockingRepository<StubAggregate> {
 
         private Map<UUID, StubAggregate> store = new HashMap<UUID, StubAggregate>();
@@ -22,6 +22,12 @@ import org.junit.*;
 import java.lang.reflect.Field;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.*;
 
@@ -43,6 +49,77 @@ public class OptimisticLockManagerTest {
         assertEquals("Expected lock to be cleaned up", 0, locks.size());
     }
 
+    @Test
+    public void testExpiredLeaseInvalidatesLock() throws Exception {
+        final StubAggregate aggregate = new StubAggregate();
+        final OptimisticLockManager manager = new OptimisticLockManager();
+        manager.setLeaseTime(100);
+        manager.obtainLock(aggregate.getIdentifier());
+        assertEquals(0, manager.expireLeases(System.currentTimeMillis()));
+        assertEquals(1, manager.expireLeases(System.currentTimeMillis() + 100));
+
+        aggregate.doSomething();
+        assertFalse("Expected the expired lock to be invalid", manager.validateLock(aggregate));
+
+        final CountDownLatch newLockObtained = new CountDownLatch(1);
+        final CountDownLatch expiredLockReleased = new CountDownLatch(1);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Boolean> newLockValid = executor.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws InterruptedException {
+                    manager.obtainLock(aggregate.getIdentifier());
+                    newLockObtained.countDown();
+                    expiredLockReleased.await();
+                    StubAggregate loadedAggregate = new StubAggregate(aggregate.getIdentifier());
+                    loadedAggregate.doSomething();
+                    boolean valid = manager.validateLock(loadedAggregate);
+                    manager.releaseLock(aggregate.getIdentifier());
+                    return valid;
+                }
+            });
+            assertTrue(newLockObtained.await(5, TimeUnit.SECONDS));
+
+            assertFalse("Expected the lock of another thread to be invalid", manager.validateLock(aggregate));
+            // releasing the expired lock has no effect, even though another thread has obtained a new lock
+            manager.releaseLock(aggregate.getIdentifier());
+            expiredLockReleased.countDown();
+
+            assertTrue("Expected the new lock to be valid", newLockValid.get(5, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+        Field locksField = manager.getClass().getDeclaredField("locks");
+        locksField.setAccessible(true);
+        assertEquals("Expected lock to be cleaned up", 0, ((Map) locksField.get(manager)).size());
+    }
+
+    @Test
+    public void testAggregateSavedByOtherThread() throws Exception {
+        final StubAggregate aggregate = new StubAggregate();
+        final OptimisticLockManager manager = new OptimisticLockManager();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    manager.obtainLock(aggregate.getIdentifier());
+                    return null;
+                }
+            }).get(5, TimeUnit.SECONDS);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        aggregate.doSomething();
+        assertTrue("Expected the lock to be valid", manager.validateLock(aggregate));
+        manager.releaseLock(aggregate.getIdentifier());
+
+        Field locksField = manager.getClass().getDeclaredField("locks");
+        locksField.setAccessible(true);
+        assertEquals("Expected lock to be cleaned up", 0, ((Map) locksField.get(manager)).size());
+    }
+
     @Test
     public void testLockFailsOnConcurrentModification() {
         UUID identifier = UUID.randomUUID();
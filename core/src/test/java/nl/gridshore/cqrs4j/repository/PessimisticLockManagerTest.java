@@ -21,6 +21,10 @@ import org.junit.*;
 import java.lang.reflect.Field;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.*;
 
@@ -41,4 +45,164 @@ public class PessimisticLockManagerTest {
         Map locks = (Map) locksField.get(manager);
         assertEquals("Expected lock to be cleaned up", 0, locks.size());
     }
+
+    @Test
+    public void testLockReferenceKeptWhileLockIsHeldMoreThanOnce()
+            throws NoSuchFieldException, IllegalAccessException {
+        PessimisticLockManager manager = new PessimisticLockManager();
+        UUID identifier = UUID.randomUUID();
+        manager.obtainLock(identifier);
+        manager.obtainLock(identifier);
+        manager.releaseLock(identifier);
+
+        Field locksField = manager.getClass().getDeclaredField("locks");
+        locksField.setAccessible(true);
+        Map locks = (Map) locksField.get(manager);
+        assertEquals("Expected lock to be kept", 1, locks.size());
+        manager.releaseLock(identifier);
+        assertEquals("Expected lock to be cleaned up", 0, locks.size());
+    }
+
+    @Test
+    public void testExpiredLeaseReleasesLock() throws InterruptedException {
+        final PessimisticLockManager manager = new PessimisticLockManager();
+        manager.setLeaseTime(100);
+        final UUID identifier = UUID.randomUUID();
+        manager.obtainLock(identifier);
+        assertEquals(0, manager.expireLeases(System.currentTimeMillis()));
+        assertEquals(1, manager.expireLeases(System.currentTimeMillis() + 100));
+
+        final AtomicInteger obtained = new AtomicInteger();
+        Thread other = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                manager.obtainLock(identifier);
+                obtained.incrementAndGet();
+                manager.releaseLock(identifier);
+            }
+        });
+        other.start();
+        other.join(5000);
+        assertEquals(1, obtained.get());
+        try {
+            manager.releaseLock(identifier);
+            fail("Expected the lock to be taken away from this thread");
+        } catch (IllegalStateException e) {
+            // expected, the lock has been disposed of
+        }
+    }
+
+    @Test
+    public void testLockAcquisitionTimesOut() throws InterruptedException {
+        final PessimisticLockManager manager = new PessimisticLockManager();
+        manager.setLockTimeout(100);
+        final UUID identifier = UUID.randomUUID();
+        manager.obtainLock(identifier);
+
+        final AtomicInteger failures = new AtomicInteger();
+        Thread other = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    manager.obtainLock(identifier);
+                } catch (LockAcquisitionFailedException e) {
+                    failures.incrementAndGet();
+                }
+            }
+        });
+        other.start();
+        other.join(5000);
+        assertEquals(1, failures.get());
+        manager.releaseLock(identifier);
+    }
+
+    @Test
+    public void testDeadlockResolvedByFailingOneThread() throws InterruptedException {
+        final PessimisticLockManager manager = new PessimisticLockManager();
+        manager.setDeadlockDetection(true);
+        final UUID identifier1 = UUID.randomUUID();
+        final UUID identifier2 = UUID.randomUUID();
+        final CyclicBarrier barrier = new CyclicBarrier(2);
+        final AtomicInteger deadlocks = new AtomicInteger();
+        final CountDownLatch finished = new CountDownLatch(2);
+        for (final UUID[] order : new UUID[][]{{identifier1, identifier2}, {identifier2, identifier1}}) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        manager.obtainLock(order[0]);
+                        barrier.await();
+                        try {
+                            manager.obtainLock(order[1]);
+                            manager.releaseLock(order[1]);
+                        } catch (DeadlockException e) {
+                            deadlocks.incrementAndGet();
+                        } finally {
+                            manager.releaseLock(order[0]);
+                        }
+                        finished.countDown();
+                    } catch (Exception e) {
+                        // the test fails because the thread never finishes
+                    }
+                }
+            }).start();
+        }
+        assertTrue("Expected both threads to finish", finished.await(5, TimeUnit.SECONDS));
+        assertEquals(1, deadlocks.get());
+    }
+
+    @Test
+    public void testDeadlockResolvedByThreadWaitingInDetectingManager() throws InterruptedException {
+        final PessimisticLockManager detectingManager = new PessimisticLockManager();
+        detectingManager.setDeadlockDetection(true);
+        final PessimisticLockManager manager = new PessimisticLockManager();
+        final UUID identifier1 = UUID.randomUUID();
+        final UUID identifier2 = UUID.randomUUID();
+        final CyclicBarrier barrier = new CyclicBarrier(2);
+        final AtomicInteger deadlocks = new AtomicInteger();
+        final CountDownLatch finished = new CountDownLatch(2);
+        // the thread with the highest identifier is started last, and waits in the manager not detecting deadlocks
+        Thread detectingThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    manager.obtainLock(identifier2);
+                    barrier.await();
+                    try {
+                        detectingManager.obtainLock(identifier1);
+                        detectingManager.releaseLock(identifier1);
+                    } catch (DeadlockException e) {
+                        deadlocks.incrementAndGet();
+                    } finally {
+                        manager.releaseLock(identifier2);
+                    }
+                    finished.countDown();
+                } catch (Exception e) {
+                    // the test fails because the thread never finishes
+                }
+            }
+        });
+        Thread otherThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    detectingManager.obtainLock(identifier1);
+                    barrier.await();
+                    try {
+                        manager.obtainLock(identifier2);
+                        manager.releaseLock(identifier2);
+                    } finally {
+                        detectingManager.releaseLock(identifier1);
+                    }
+                    finished.countDown();
+                } catch (Exception e) {
+                    // the test fails because the thread never finishes
+                }
+            }
+        });
+        detectingThread.start();
+        otherThread.start();
+        assertTrue("Expected both threads to finish", finished.await(5, TimeUnit.SECONDS));
+        assertEquals(1, deadlocks.get());
+    }
 }
@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2010. Gridshore
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.gridshore.cqrs4j.repository;
+
+import nl.gridshore.cqrs4j.StubAggregate;
+import org.junit.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Allard Buijze
+ */
+public class StripedLockManagerTest {
+
+    @Test
+    public void testAggregatesSharingALockAreLockedExclusively() throws InterruptedException {
+        final StripedLockManager manager = new StripedLockManager(1, false);
+        UUID identifier1 = UUID.randomUUID();
+        final UUID identifier2 = UUID.randomUUID();
+        manager.obtainLock(identifier1);
+        // the same thread may hold the locks of aggregates sharing a lock
+        manager.obtainLock(identifier2);
+        manager.releaseLock(identifier2);
+
+        final CountDownLatch obtained = new CountDownLatch(1);
+        Thread other = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                manager.obtainLock(identifier2);
+                obtained.countDown();
+                manager.releaseLock(identifier2);
+            }
+        });
+        other.start();
+        assertFalse(obtained.await(200, TimeUnit.MILLISECONDS));
+        manager.releaseLock(identifier1);
+        assertTrue(obtained.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testReentrancyCheck() {
+        StripedLockManager manager = new StripedLockManager(1, true);
+        UUID identifier1 = UUID.randomUUID();
+        UUID identifier2 = UUID.randomUUID();
+        manager.obtainLock(identifier1);
+        try {
+            manager.obtainLock(identifier1);
+            fail("Expected IllegalStateException");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        try {
+            manager.releaseLock(identifier2);
+            fail("Expected IllegalStateException");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        assertTrue(manager.validateLock(new StubAggregate(identifier1)));
+        manager.releaseLock(identifier1);
+    }
+
+    @Test
+    public void testLockRecoveredWhenValidatedAfterRelease() {
+        StripedLockManager manager = new StripedLockManager(16, false);
+        StubAggregate aggregate = new StubAggregate();
+        manager.obtainLock(aggregate.getIdentifier());
+        manager.releaseLock(aggregate.getIdentifier());
+        assertTrue(manager.validateLock(aggregate));
+        manager.releaseLock(aggregate.getIdentifier());
+    }
+
+    @Test
+    public void testLockOrderIsConsistent() {
+        StripedLockManager manager = new StripedLockManager(4, false);
+        List<UUID> identifiers = new ArrayList<UUID>();
+        for (int i = 0; i < 100; i++) {
+            identifiers.add(UUID.randomUUID());
+        }
+        List<UUID> sorted = new ArrayList<UUID>(identifiers);
+        Collections.sort(sorted, manager.getLockOrder());
+        Collections.reverse(identifiers);
+        Collections.sort(identifiers, manager.getLockOrder());
+        assertEquals(sorted, identifiers);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidLockCount() {
+        new StripedLockManager(0, false);
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright (c) 2010. Gridshore
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.gridshore.cqrs4j.repository;
+
+import nl.gridshore.cqrs4j.DomainEvent;
+import nl.gridshore.cqrs4j.StubAggregate;
+import nl.gridshore.cqrs4j.eventhandler.EventBus;
+import nl.gridshore.cqrs4j.repository.eventsourcing.EventSourcingRepository;
+import nl.gridshore.cqrs4j.repository.eventsourcing.EventStorageException;
+import nl.gridshore.cqrs4j.repository.eventsourcing.InMemoryEventStore;
+import nl.gridshore.cqrs4j.repository.eventsourcing.TypedEventStream;
+import org.junit.*;
+
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * @author Allard Buijze
+ */
+public class UnitOfWorkTest {
+
+    private CountingEventStore eventStore;
+    private EventBus mockEventBus;
+    private StubRepository repository1;
+    private StubRepository repository2;
+    private UUID aggregate1;
+    private UUID aggregate2;
+
+    @Before
+    public void setUp() {
+        eventStore = new CountingEventStore();
+        mockEventBus = mock(EventBus.class);
+        repository1 = new StubRepository("test1");
+        repository2 = new StubRepository("test2");
+        aggregate1 = createAggregate(repository1);
+        aggregate2 = createAggregate(repository2);
+        reset(mockEventBus);
+    }
+
+    @After
+    public void tearDown() {
+        if (UnitOfWork.isStarted()) {
+            UnitOfWork.current().rollback();
+        }
+    }
+
+    @Test
+    public void testAggregatesAppendedAtomicallyAndPublishedAfterCommit() {
+        UnitOfWork unitOfWork = UnitOfWork.start();
+        StubAggregate first = repository1.load(aggregate1);
+        StubAggregate second = repository2.load(aggregate2);
+        first.doSomething();
+        second.doSomething();
+        repository1.save(first);
+        repository2.save(second);
+        repository1.save(first);
+
+        assertEquals(0, eventStore.atomicAppends);
+        verify(mockEventBus, never()).publish(isA(DomainEvent.class));
+
+        unitOfWork.commit();
+        assertFalse(UnitOfWork.isStarted());
+        assertEquals(1, eventStore.atomicAppends);
+        verify(mockEventBus, times(2)).publish(isA(DomainEvent.class));
+        assertEquals(0, first.getUncommittedEventCount());
+        assertEquals(2, repository1.load(aggregate1).getInvocationCount());
+        assertEquals(2, repository2.load(aggregate2).getInvocationCount());
+    }
+
+    @Test
+    public void testNothingStoredOrPublishedAfterRollback() throws Exception {
+        UnitOfWork unitOfWork = UnitOfWork.start();
+        StubAggregate first = repository1.load(aggregate1);
+        first.doSomething();
+        repository1.save(first);
+        unitOfWork.rollback();
+
+        assertFalse(UnitOfWork.isStarted());
+        assertEquals(0, eventStore.atomicAppends);
+        verify(mockEventBus, never()).publish(isA(DomainEvent.class));
+        assertLockAvailable(repository1, aggregate1);
+        assertEquals(1, repository1.load(aggregate1).getInvocationCount());
+    }
+
+    @Test
+    public void testNothingPublishedWhenAppendFails() throws Exception {
+        eventStore.failure = new EventStorageException("Mock");
+        UnitOfWork unitOfWork = UnitOfWork.start();
+        StubAggregate first = repository1.load(aggregate1);
+        StubAggregate second = repository2.load(aggregate2);
+        first.doSomething();
+        second.doSomething();
+        repository1.save(first);
+        repository2.save(second);
+        try {
+            unitOfWork.commit();
+            fail("Expected EventStorageException");
+        } catch (EventStorageException e) {
+            assertSame(eventStore.failure, e);
+        }
+
+        assertFalse(UnitOfWork.isStarted());
+        verify(mockEventBus, never()).publish(isA(DomainEvent.class));
+        assertLockAvailable(repository1, aggregate1);
+        assertLockAvailable(repository2, aggregate2);
+    }
+
+    @Test
+    public void testRollbackAfterFailedCommitRethrowsFailure() throws Exception {
+        eventStore.failure = new EventStorageException("Mock");
+        UnitOfWork unitOfWork = UnitOfWork.start();
+        try {
+            StubAggregate first = repository1.load(aggregate1);
+            first.doSomething();
+            repository1.save(first);
+            unitOfWork.commit();
+            fail("Expected EventStorageException");
+        } catch (RuntimeException e) {
+            unitOfWork.rollback();
+            assertSame(eventStore.failure, e);
+        }
+
+        assertFalse(UnitOfWork.isStarted());
+        assertLockAvailable(repository1, aggregate1);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testOnlyOneUnitOfWorkPerThread() {
+        UnitOfWork.start();
+        UnitOfWork.start();
+    }
+
+    private UUID createAggregate(StubRepository repository) {
+        StubAggregate aggregate = new StubAggregate();
+        aggregate.doSomething();
+        repository.save(aggregate);
+        return aggregate.getIdentifier();
+    }
+
+    private void assertLockAvailable(final StubRepository repository, final UUID aggregateIdentifier)
+            throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            StubAggregate aggregate = executor.submit(new Callable<StubAggregate>() {
+                @Override
+                public StubAggregate call() {
+                    StubAggregate aggregate = repository.load(aggregateIdentifier);
+                    repository.save(aggregate);
+                    return aggregate;
+                }
+            }).get(5, TimeUnit.SECONDS);
+            assertNotNull(aggregate);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private class StubRepository extends EventSourcingRepository<StubAggregate> {
+
+        private final String type;
+
+        private StubRepository(String type) {
+            super(LockingStrategy.PESSIMISTIC);
+            this.type = type;
+            setEventStore(eventStore);
+            setEventBus(mockEventBus);
+        }
+
+        @Override
+        protected StubAggregate instantiateAggregate(UUID aggregateIdentifier) {
+            return new StubAggregate(aggregateIdentifier);
+        }
+
+        @Override
+        protected String getTypeIdentifier() {
+            return type;
+        }
+    }
+
+    private static class CountingEventStore extends InMemoryEventStore {
+
+        private int atomicAppends;
+        private RuntimeException failure;
+
+        @Override
+        public void appendEvents(List<TypedEventStream> eventStreams) {
+            if (failure != null) {
+                throw failure;
+            }
+            atomicAppends++;
+            super.appendEvents(eventStreams);
+        }
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright (c) 2010. Gridshore
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package nl.gridshore.cqrs4j.repository.eventsourcing;
+
+import nl.gridshore.cqrs4j.DomainEvent;
+import nl.gridshore.cqrs4j.StubDomainEvent;
+import org.joda.time.LocalDateTime;
+import org.junit.*;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Allard Buijze
+ */
+public class BinaryEventSerializerTest {
+
+    private BinaryEventSerializer testSubject;
+
+    @Before
+    public void setUp() {
+        testSubject = new BinaryEventSerializer();
+    }
+
+    @Test
+    public void testSerializeAndDeserializeDomainEventFields() {
+        UUID aggregateIdentifier = UUID.randomUUID();
+        StubDomainEvent event = new StubDomainEvent(aggregateIdentifier, 42);
+
+        DomainEvent actual = testSubject.deserialize(testSubject.serialize(event));
+
+        assertTrue(actual instanceof StubDomainEvent);
+        assertEquals(event, actual);
+        assertEquals(aggregateIdentifier, actual.getAggregateIdentifier());
+        assertEquals(new Long(42), actual.getSequenceNumber());
+        assertEquals(event.getEventIdentifier(), actual.getEventIdentifier());
+    }
+
+    @Test
+    public void testSerializeEventWithoutSequenceNumber() {
+        StubDomainEvent event = new StubDomainEvent();
+
+        DomainEvent actual = testSubject.deserialize(testSubject.serialize(event));
+
+        assertNull(actual.getAggregateIdentifier());
+        assertNull(actual.getSequenceNumber());
+        assertEquals(event.getEventIdentifier(), actual.getEventIdentifier());
+    }
+
+    @Test
+    public void testSerializeAndDeserializePayloadFields() {
+        List<String> names = new ArrayList<String>(Arrays.asList("first", "second"));
+        Address address = new Address("Main Street", 12);
+        LocalDateTime deadline = new LocalDateTime(2010, 3, 14, 15, 9, 26, 535);
+        PayloadEvent event = new PayloadEvent(UUID.randomUUID(), -1234567890123L, 'x', 3.14f, Status.ACTIVE,
+                                              deadline, names, address, null, -7);
+
+        PayloadEvent actual = (PayloadEvent) testSubject.deserialize(testSubject.serialize(event));
+
+        assertEquals(event.reference, actual.reference);
+        assertEquals(-1234567890123L, actual.amount);
+        assertEquals('x', actual.code);
+        assertEquals(3.14f, actual.ratio, 0);
+        assertEquals(Status.ACTIVE, actual.status);
+        assertEquals(deadline, actual.deadline);
+        assertEquals(names, actual.names);
+        assertEquals("Main Street", actual.address.street);
+        assertEquals(12, actual.address.number);
+        assertNull(actual.comment);
+        assertEquals(Integer.valueOf(-7), actual.priority);
+        assertEquals(0, actual.cachedHash);
+        assertEquals("parent", ((ParentEvent) actual).parentField);
+    }
+
+    @Test
+    public void testDeserializeFromBufferWithOffset() {
+        StubDomainEvent event = new StubDomainEvent(UUID.randomUUID(), 1);
+        ByteBuffer serialized = testSubject.serialize(event);
+        ByteBuffer buffer = ByteBuffer.allocate(serialized.remaining() + 10);
+        buffer.position(10);
+        buffer.put(serialized);
+        buffer.position(10);
+
+        assertEquals(event, testSubject.deserialize(buffer.slice()));
+    }
+
+    @Test
+    public void testSerializedFormIsSmallerThanXml() {
+        StubDomainEvent event = new StubDomainEvent(UUID.randomUUID(), 1);
+
+        int binarySize = testSubject.serialize(event).remaining();
+        int xmlSize = new XStreamEventSerializer().serialize(event).remaining();
+
+        assertTrue("Expected binary form to be smaller. Binary: " + binarySize + ", XML: " + xmlSize,
+                   binarySize * 3 < xmlSize);
+    }
+
+    @Test(expected = EventStorageException.class)
+    public void testSerializeNonSerializablePlatformValue() {
+        testSubject.serialize(new PayloadEvent(UUID.randomUUID(), 0, 'a', 0, Status.INACTIVE, new LocalDateTime(),
+                                               null, null, new Thread(), 0));
+    }
+
+    private static enum Status {
+        ACTIVE, INACTIVE
+    }
+
+    private static class ParentEvent extends DomainEvent {
+
+        private final String parentField;
+
+        private ParentEvent(String parentField) {
+            this.parentField = parentField;
+        }
+    }
+
+    private static class PayloadEvent extends ParentEvent {
+
+        private final UUID reference;
+        private final long amount;
+        private final char code;
+        private final float ratio;
+        private final Status status;
+        private final LocalDateTime deadline;
+        private final List<String> names;
+        private final Address address;
+        private final Object comment;
+        private final Integer priority;
+        private transient int cachedHash;
+
+        private PayloadEvent(UUID reference, long amount, char code, float ratio, Status status,
+                             LocalDateTime deadline, List<String> names, Address address, Object comment,
+                             Integer priority) {
+            super("parent");
+            this.reference = reference;
+            this.amount = amount;
+            this.code = code;
+            this.ratio = ratio;
+            this.status = status;
+            this.deadline = deadline;
+            this.names = names;
+            this.address = address;
+            this.comment = comment;
+            this.priority = priority;
+            this.cachedHash = 31;
+        }
+    }
+
+    private static class Address {
+
+        private final String street;
+        private final int number;
+
+        private Address(String street, int number) {
+            this.street = street;
+            this.number = number;
+        }
+    }
+}
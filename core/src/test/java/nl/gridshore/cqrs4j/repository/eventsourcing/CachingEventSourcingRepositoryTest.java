@@ -20,16 +20,18 @@ import net.sf.ehcache.CacheManager;
 import net.sf.ehcache.jcache.JCache;
 import nl.gridshore.cqrs4j.DomainEvent;
 import nl.gridshore.cqrs4j.EventStream;
-import nl.gridshore.cqrs4j.SimpleEventStream;
 import nl.gridshore.cqrs4j.StubAggregate;
 import nl.gridshore.cqrs4j.eventhandler.EventBus;
+import nl.gridshore.cqrs4j.repository.UnitOfWork;
 import org.junit.*;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.*;
 import static org.mockito.Mockito.*;
@@ -84,37 +86,86 @@ public class CachingEventSourcingRepositoryTest {
                      reloadedAggregate1.getLastCommittedEventSequenceNumber());
     }
 
-    private static class StubCachingEventSourcingRepository extends CachingEventSourcingRepository<StubAggregate> {
+    @Test
+    public void testReleasedAggregateRemovedFromCache() {
+        StubAggregate aggregate = new StubAggregate();
+        aggregate.doSomething();
+        testSubject.save(aggregate);
+
+        StubAggregate loadedAggregate = testSubject.load(aggregate.getIdentifier());
+        assertSame(aggregate, loadedAggregate);
+        loadedAggregate.doSomething();
+        testSubject.release(loadedAggregate);
+
+        StubAggregate reloadedAggregate = testSubject.load(aggregate.getIdentifier());
+        assertNotSame(aggregate, reloadedAggregate);
+        assertEquals(1, reloadedAggregate.getInvocationCount());
+        testSubject.release(reloadedAggregate);
+        verify(mockEventBus).publish(isA(DomainEvent.class));
+    }
 
-        @Override
-        protected StubAggregate instantiateAggregate(UUID aggregateIdentifier) {
-            return new StubAggregate(aggregateIdentifier);
+    @Test
+    public void testRolledBackAggregateRemovedFromCache() {
+        StubAggregate aggregate = new StubAggregate();
+        aggregate.doSomething();
+        testSubject.save(aggregate);
+
+        UnitOfWork unitOfWork = UnitOfWork.start();
+        StubAggregate loadedAggregate = testSubject.load(aggregate.getIdentifier());
+        assertSame(aggregate, loadedAggregate);
+        loadedAggregate.doSomething();
+        testSubject.save(loadedAggregate);
+        unitOfWork.rollback();
+
+        StubAggregate reloadedAggregate = testSubject.load(aggregate.getIdentifier());
+        assertNotSame(aggregate, reloadedAggregate);
+        assertEquals(1, reloadedAggregate.getInvocationCount());
+        testSubject.release(reloadedAggregate);
+    }
+
+    @Test
+    public void testLoadReadOnlyDoesNotWaitForLock() throws Exception {
+        final StubAggregate aggregate = new StubAggregate();
+        aggregate.doSomething();
+        testSubject.save(aggregate);
+        StubAggregate lockedAggregate = testSubject.load(aggregate.getIdentifier());
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        StubAggregate readOnlyAggregate;
+        try {
+            readOnlyAggregate = executor.submit(new Callable<StubAggregate>() {
+                @Override
+                public StubAggregate call() {
+                    return testSubject.loadReadOnly(aggregate.getIdentifier());
+                }
+            }).get(5, TimeUnit.SECONDS);
+        } finally {
+            executor.shutdownNow();
         }
 
-        @Override
-        protected String getTypeIdentifier() {
-            return "mock";
+        assertNotSame(lockedAggregate, readOnlyAggregate);
+        assertEquals(lockedAggregate.getLastCommittedEventSequenceNumber(),
+                     readOnlyAggregate.getLastCommittedEventSequenceNumber());
+        readOnlyAggregate.doSomething();
+        try {
+            testSubject.save(readOnlyAggregate);
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // expected
         }
+        testSubject.save(lockedAggregate);
     }
 
-    private class InMemoryEventStore implements EventStore {
-
-        private Map<UUID, List<DomainEvent>> store = new HashMap<UUID, List<DomainEvent>>();
+    private static class StubCachingEventSourcingRepository extends CachingEventSourcingRepository<StubAggregate> {
 
         @Override
-        public void appendEvents(String identifier, EventStream events) {
-            if (!store.containsKey(events.getAggregateIdentifier())) {
-                store.put(events.getAggregateIdentifier(), new ArrayList<DomainEvent>());
-            }
-            List<DomainEvent> eventList = store.get(events.getAggregateIdentifier());
-            while (events.hasNext()) {
-                eventList.add(events.next());
-            }
+        protected StubAggregate instantiateAggregate(UUID aggregateIdentifier) {
+            return new StubAggregate(aggregateIdentifier);
         }
 
         @Override
-        public EventStream readEvents(String type, UUID identifier) {
-            return new SimpleEventStream(store.get(identifier));
+        protected String getTypeIdentifier() {
+            return "mock";
         }
     }
 }
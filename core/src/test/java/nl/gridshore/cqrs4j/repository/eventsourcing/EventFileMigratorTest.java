@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2010. Gridshore
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.gridshore.cqrs4j.repository.eventsourcing;
+
+import nl.gridshore.cqrs4j.EventStream;
+import nl.gridshore.cqrs4j.SimpleEventStream;
+import nl.gridshore.cqrs4j.StubDomainEvent;
+import nl.gridshore.cqrs4j.StubSnapshotEvent;
+import org.junit.*;
+import org.junit.rules.*;
+import org.springframework.core.io.FileSystemResource;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Allard Buijze
+ */
+public class EventFileMigratorTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private FileSystemResource baseDir;
+    private List<UUID> aggregateIdentifiers;
+    private EventFileMigrator testSubject;
+
+    @Test
+    public void testMigrateToSubdirectories() {
+        initialize();
+        testSubject.setTargetDirectoryDepth(2);
+        assertEquals(5, testSubject.migrate());
+
+        XStreamFileSystemEventStore eventStore = createEventStore(2);
+        for (UUID aggregateIdentifier : aggregateIdentifiers) {
+            String id = aggregateIdentifier.toString();
+            assertFalse(new File(baseDir.getFile(), "test/" + id + ".events").exists());
+            assertEventCount(3, eventStore.readEvents("test", aggregateIdentifier, 0));
+        }
+        assertTrue(new File(baseDir.getFile(), "test/" + aggregateIdentifiers.get(0).toString().substring(0, 2)
+                + "/" + aggregateIdentifiers.get(0).toString().substring(2, 4)
+                + "/" + aggregateIdentifiers.get(0) + ".snapshot").exists());
+        assertEquals(15, eventStore.readAll(0, 100).getEvents().size());
+
+        // and back again
+        testSubject.setSourceDirectoryDepth(2);
+        testSubject.setTargetDirectoryDepth(0);
+        assertEquals(5, testSubject.migrate());
+        assertEventCount(3, createEventStore(0).readEvents("test", aggregateIdentifiers.get(4), 0));
+    }
+
+    @Test
+    public void testCopyToSegmentLogEventStore() {
+        initialize();
+        SegmentLogEventStore target = new SegmentLogEventStore();
+        target.setBaseDir(new FileSystemResource(folder.newFolder("segments")));
+        target.initialize();
+        try {
+            assertEquals(5, testSubject.copyTo(createEventStore(0), target));
+            for (UUID aggregateIdentifier : aggregateIdentifiers) {
+                assertEventCount(3, target.readEvents("test", aggregateIdentifier));
+            }
+        } finally {
+            target.close();
+        }
+    }
+
+    private void assertEventCount(int expected, EventStream events) {
+        int count = 0;
+        while (events.hasNext()) {
+            events.next();
+            count++;
+        }
+        assertEquals(expected, count);
+    }
+
+    private XStreamFileSystemEventStore createEventStore(int directoryDepth) {
+        XStreamFileSystemEventStore eventStore = new XStreamFileSystemEventStore();
+        eventStore.setBaseDir(baseDir);
+        eventStore.setDirectoryDepth(directoryDepth);
+        return eventStore;
+    }
+
+    private void initialize() {
+        // unfortunately, we cannot use @Before on the setUp, because of the TemporaryFolder
+        baseDir = new FileSystemResource(folder.newFolder("events").getPath() + "/");
+        XStreamFileSystemEventStore eventStore = createEventStore(0);
+        aggregateIdentifiers = new ArrayList<UUID>();
+        for (int i = 0; i < 5; i++) {
+            UUID aggregateIdentifier = UUID.randomUUID();
+            aggregateIdentifiers.add(aggregateIdentifier);
+            eventStore.appendEvents("test", new SimpleEventStream(new StubDomainEvent(aggregateIdentifier, 0),
+                                                                  new StubDomainEvent(aggregateIdentifier, 1),
+                                                                  new StubDomainEvent(aggregateIdentifier, 2)));
+        }
+        eventStore.appendSnapshotEvent("test", new StubSnapshotEvent(aggregateIdentifiers.get(0), 1));
+        eventStore.close();
+        testSubject = new EventFileMigrator();
+        testSubject.setBaseDir(baseDir);
+        testSubject.setBatchSize(2);
+        testSubject.setParallelism(2);
+    }
+}
@@ -20,13 +20,20 @@ import nl.gridshore.cqrs4j.AbstractAggregateRoot;
 import nl.gridshore.cqrs4j.DomainEvent;
 import nl.gridshore.cqrs4j.EventStream;
 import nl.gridshore.cqrs4j.SimpleEventStream;
+import nl.gridshore.cqrs4j.SnapshotCapableAggregateRoot;
+import nl.gridshore.cqrs4j.SnapshotEvent;
 import nl.gridshore.cqrs4j.StubDomainEvent;
+import nl.gridshore.cqrs4j.StubSnapshotEvent;
 import nl.gridshore.cqrs4j.eventhandler.EventBus;
 import org.junit.*;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import static org.junit.Assert.*;
 import static org.mockito.Mockito.*;
@@ -77,6 +84,141 @@ public class EventSourcingRepositoryTest {
         assertEquals(0, aggregate.getUncommittedEventCount());
     }
 
+    @Test
+    public void testSnapshotCreatedWhenEventCountThresholdReached() {
+        SnapshotEventStore mockSnapshotEventStore = mock(SnapshotEventStore.class);
+        testSubject.setEventStore(mockSnapshotEventStore);
+        testSubject.setSnapshotEventCountThreshold(5);
+        testSubject.setSnapshotExecutor(new DirectExecutor());
+        UUID identifier = UUID.randomUUID();
+        when(mockSnapshotEventStore.readEvents("test", identifier))
+                .thenReturn(new SimpleEventStream(new StubDomainEvent(identifier, 0),
+                                                  new StubDomainEvent(identifier, 1),
+                                                  new StubDomainEvent(identifier, 2)))
+                .thenReturn(new SimpleEventStream(new StubDomainEvent(identifier, 0),
+                                                  new StubDomainEvent(identifier, 1),
+                                                  new StubDomainEvent(identifier, 2),
+                                                  new StubDomainEvent(identifier, 3),
+                                                  new StubDomainEvent(identifier, 4)))
+                .thenReturn(new SimpleEventStream(new StubDomainEvent(identifier, 0),
+                                                  new StubDomainEvent(identifier, 1),
+                                                  new StubDomainEvent(identifier, 2),
+                                                  new StubDomainEvent(identifier, 3),
+                                                  new StubDomainEvent(identifier, 4),
+                                                  new StubDomainEvent(identifier, 5)));
+
+        TestAggregate aggregate = testSubject.load(identifier);
+        aggregate.apply(new StubDomainEvent());
+        testSubject.save(aggregate);
+        verify(mockSnapshotEventStore, never()).appendSnapshotEvent(anyString(), isA(DomainEvent.class));
+
+        aggregate = testSubject.load(identifier);
+        aggregate.apply(new StubDomainEvent());
+        testSubject.save(aggregate);
+        verify(mockSnapshotEventStore).appendSnapshotEvent(eq("test"), isA(StubSnapshotEvent.class));
+    }
+
+    @Test
+    public void testEventsBeforeSnapshotAreNotCounted() {
+        SnapshotEventStore mockSnapshotEventStore = mock(SnapshotEventStore.class);
+        testSubject.setEventStore(mockSnapshotEventStore);
+        testSubject.setSnapshotEventCountThreshold(3);
+        testSubject.setSnapshotExecutor(new DirectExecutor());
+        UUID identifier = UUID.randomUUID();
+        when(mockSnapshotEventStore.readEvents("test", identifier))
+                .thenReturn(new SimpleEventStream(new StubDomainEvent(identifier, 0),
+                                                  new StubDomainEvent(identifier, 1),
+                                                  new StubSnapshotEvent(identifier, 1),
+                                                  new StubDomainEvent(identifier, 2)));
+
+        TestAggregate aggregate = testSubject.load(identifier);
+        aggregate.apply(new StubDomainEvent());
+        testSubject.save(aggregate);
+
+        verify(mockSnapshotEventStore, never()).appendSnapshotEvent(anyString(), isA(DomainEvent.class));
+    }
+
+    @Test
+    public void testNoSnapshotsWithoutSnapshotEventStore() {
+        testSubject.setSnapshotEventCountThreshold(1);
+        testSubject.setSnapshotExecutor(new DirectExecutor());
+        UUID identifier = UUID.randomUUID();
+        when(mockEventStore.readEvents("test", identifier))
+                .thenReturn(new SimpleEventStream(new StubDomainEvent(identifier, 0)));
+
+        TestAggregate aggregate = testSubject.load(identifier);
+        aggregate.apply(new StubDomainEvent());
+        testSubject.save(aggregate);
+
+        verify(mockEventStore, times(1)).readEvents("test", identifier);
+    }
+
+    @Test
+    public void testLoadAllInParallel() {
+        ExecutorService loadExecutor = Executors.newFixedThreadPool(4);
+        testSubject.setLoadExecutor(loadExecutor);
+        try {
+            List<UUID> identifiers = new ArrayList<UUID>();
+            for (int i = 0; i < 10; i++) {
+                UUID identifier = UUID.randomUUID();
+                identifiers.add(identifier);
+                when(mockEventStore.readEvents("test", identifier))
+                        .thenReturn(new SimpleEventStream(new StubDomainEvent(identifier, 0)));
+            }
+
+            List<TestAggregate> aggregates = testSubject.loadAll(identifiers);
+
+            assertEquals(identifiers.size(), aggregates.size());
+            for (int i = 0; i < identifiers.size(); i++) {
+                assertEquals(identifiers.get(i), aggregates.get(i).getIdentifier());
+                assertEquals(1, aggregates.get(i).getHandledEvents().size());
+            }
+        } finally {
+            loadExecutor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testLoadAllReleasesLocksWhenLoadingFails() {
+        ExecutorService loadExecutor = Executors.newFixedThreadPool(2);
+        testSubject.setLoadExecutor(loadExecutor);
+        try {
+            UUID identifier1 = UUID.randomUUID();
+            UUID identifier2 = UUID.randomUUID();
+            when(mockEventStore.readEvents("test", identifier1))
+                    .thenReturn(new SimpleEventStream(new StubDomainEvent(identifier1, 0)));
+            EventStorageException failure = new EventStorageException("Mock");
+            when(mockEventStore.readEvents("test", identifier2)).thenThrow(failure);
+            try {
+                testSubject.loadAll(Arrays.asList(identifier1, identifier2));
+                fail("Expected EventStorageException");
+            } catch (EventStorageException e) {
+                assertSame(failure, e);
+            }
+
+            // the lock of the first aggregate has been released, so it can be saved after loading it again
+            TestAggregate aggregate = testSubject.load(identifier1);
+            aggregate.apply(new StubDomainEvent());
+            testSubject.save(aggregate);
+        } finally {
+            loadExecutor.shutdownNow();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testLoadAllRejectsDuplicates() {
+        UUID identifier = UUID.randomUUID();
+        testSubject.loadAll(Arrays.asList(identifier, identifier));
+    }
+
+    private static class DirectExecutor implements Executor {
+
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    }
+
     private static class EventSourcingRepositoryImpl extends EventSourcingRepository<TestAggregate> {
 
         @Override
@@ -90,7 +232,7 @@ public class EventSourcingRepositoryTest {
         }
     }
 
-    private static class TestAggregate extends AbstractAggregateRoot {
+    private static class TestAggregate extends AbstractAggregateRoot implements SnapshotCapableAggregateRoot {
 
         private List<DomainEvent> handledEvents = new ArrayList<DomainEvent>();
 
@@ -111,5 +253,10 @@ public class EventSourcingRepositoryTest {
         public List<DomainEvent> getHandledEvents() {
             return handledEvents;
         }
+
+        @Override
+        public SnapshotEvent createSnapshotEvent() {
+            return new StubSnapshotEvent(getIdentifier(), getLastCommittedEventSequenceNumber());
+        }
     }
 }
@@ -0,0 +1,204 @@
+/*
+ * Copyright (c) 2010. Gridshore
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.gridshore.cqrs4j.repository.eventsourcing;
+
+import nl.gridshore.cqrs4j.EventStream;
+import nl.gridshore.cqrs4j.SimpleEventStream;
+import nl.gridshore.cqrs4j.StubDomainEvent;
+import nl.gridshore.cqrs4j.StubSnapshotEvent;
+import org.junit.*;
+
+import java.lang.reflect.Field;
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static nl.gridshore.cqrs4j.EventStoreTestUtils.appendEvents;
+import static nl.gridshore.cqrs4j.EventStoreTestUtils.assertSequenceNumberRange;
+import static org.junit.Assert.*;
+
+/**
+ * @author Allard Buijze
+ */
+public class InMemoryEventStoreTest {
+
+    private InMemoryEventStore testSubject;
+
+    @Before
+    public void setUp() {
+        testSubject = new InMemoryEventStore();
+    }
+
+    @Test
+    public void testStoreAndLoadEvents() {
+        UUID aggregateIdentifier = UUID.randomUUID();
+        for (int i = 0; i < 10; i++) {
+            appendEvents(testSubject, aggregateIdentifier, i * 5, 5);
+        }
+
+        EventStream events = testSubject.readEvents("test", aggregateIdentifier);
+        assertEquals(aggregateIdentifier, events.getAggregateIdentifier());
+        assertSequenceNumberRange(events, 0, 50);
+        assertSequenceNumberRange(testSubject.readEvents("test", aggregateIdentifier, 47), 47, 50);
+        assertFalse(testSubject.readEvents("test", aggregateIdentifier, 50).hasNext());
+    }
+
+    @Test(expected = EventStorageException.class)
+    public void testReadEventsOfUnknownAggregate() {
+        testSubject.readEvents("test", UUID.randomUUID());
+    }
+
+    @Test
+    public void testReadEventsStartsAtMostRecentSnapshot() {
+        UUID aggregateIdentifier = UUID.randomUUID();
+        appendEvents(testSubject, aggregateIdentifier, 0, 6);
+        testSubject.appendSnapshotEvent("test", new StubSnapshotEvent(aggregateIdentifier, 3));
+
+        EventStream events = testSubject.readEvents("test", aggregateIdentifier);
+        assertTrue(events.next() instanceof StubSnapshotEvent);
+        assertSequenceNumberRange(events, 4, 6);
+        assertSequenceNumberRange(testSubject.readEvents("test", aggregateIdentifier, 0), 0, 6);
+    }
+
+    @Test
+    public void testEventsPrecedingSnapshotAreDiscarded() {
+        testSubject.setMaxEventsPerAggregate(4);
+        UUID aggregateIdentifier = UUID.randomUUID();
+        appendEvents(testSubject, aggregateIdentifier, 0, 6);
+        // without snapshot, all events are needed to load the aggregate
+        assertSequenceNumberRange(testSubject.readEvents("test", aggregateIdentifier, 0), 0, 6);
+
+        testSubject.appendSnapshotEvent("test", new StubSnapshotEvent(aggregateIdentifier, 3));
+        assertSequenceNumberRange(testSubject.readEvents("test", aggregateIdentifier, 0), 2, 6);
+
+        appendEvents(testSubject, aggregateIdentifier, 6, 4);
+        assertSequenceNumberRange(testSubject.readEvents("test", aggregateIdentifier, 0), 4, 10);
+        EventStream events = testSubject.readEvents("test", aggregateIdentifier);
+        assertTrue(events.next() instanceof StubSnapshotEvent);
+        assertSequenceNumberRange(events, 4, 10);
+    }
+
+    @Test
+    public void testReadAllInCommitOrder() {
+        UUID aggregate1 = UUID.randomUUID();
+        UUID aggregate2 = UUID.randomUUID();
+        appendEvents(testSubject, aggregate1, 0, 2);
+        appendEvents(testSubject, aggregate2, 0, 1);
+        appendEvents(testSubject, aggregate1, 2, 1);
+
+        EventLogBatch batch = testSubject.readAll(0, 3);
+        assertEquals(3, batch.getEvents().size());
+        assertEquals(aggregate1, batch.getEvents().get(0).getAggregateIdentifier());
+        assertEquals(aggregate2, batch.getEvents().get(2).getAggregateIdentifier());
+        batch = testSubject.readAll(batch.getNextPosition(), 3);
+        assertEquals(1, batch.getEvents().size());
+        assertEquals(new Long(2), batch.getEvents().get(0).getSequenceNumber());
+        assertTrue(testSubject.readAll(batch.getNextPosition(), 3).isEmpty());
+    }
+
+    @Test
+    public void testOldestLoggedEventsAreDiscarded() {
+        testSubject.setMaxLoggedEvents(2048);
+        UUID aggregateIdentifier = UUID.randomUUID();
+        appendEvents(testSubject, aggregateIdentifier, 0, 5000);
+
+        EventLogBatch batch = testSubject.readAll(0, 10000);
+        assertEquals(2048, batch.getEvents().get(0).getSequenceNumber().longValue());
+        assertEquals(5000, batch.getNextPosition());
+        assertEquals(5000 - 2048, batch.getEvents().size());
+        assertSequenceNumberRange(testSubject.readEvents("test", aggregateIdentifier), 0, 5000);
+    }
+
+    @Test
+    public void testReadWhileAppending() throws InterruptedException {
+        final UUID aggregateIdentifier = UUID.randomUUID();
+        appendEvents(testSubject, aggregateIdentifier, 0, 1);
+        final CountDownLatch appendsDone = new CountDownLatch(1);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread appender = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 1; i < 2000; i++) {
+                    appendEvents(testSubject, aggregateIdentifier, i, 1);
+                }
+                appendsDone.countDown();
+            }
+        });
+        appender.start();
+        try {
+            while (appendsDone.getCount() > 0) {
+                EventStream events = testSubject.readEvents("test", aggregateIdentifier);
+                long expected = 0;
+                while (events.hasNext()) {
+                    assertEquals(new Long(expected++), events.next().getSequenceNumber());
+                }
+                assertTrue(testSubject.readAll(0, 5000).getEvents().size() >= expected);
+            }
+        } catch (Throwable e) {
+            failure.set(e);
+        }
+        appender.join();
+        assertNull(failure.get());
+        assertSequenceNumberRange(testSubject.readEvents("test", aggregateIdentifier), 0, 2000);
+    }
+
+    @Test
+    public void testEventsOnlyVisibleToReadersOnceLogged() throws Exception {
+        final UUID aggregateIdentifier = UUID.randomUUID();
+        appendEvents(testSubject, aggregateIdentifier, 0, 1);
+        Thread singleAppender = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                appendEvents(testSubject, aggregateIdentifier, 1, 1);
+            }
+        });
+        assertEventsInvisibleWhileLogging(singleAppender, aggregateIdentifier, 1);
+
+        Thread atomicAppender = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                testSubject.appendEvents(Arrays.asList(new TypedEventStream(
+                        "test", new SimpleEventStream(new StubDomainEvent(aggregateIdentifier, 2)))));
+            }
+        });
+        assertEventsInvisibleWhileLogging(atomicAppender, aggregateIdentifier, 2);
+        assertEquals(3, testSubject.readAll(0, 10).getEvents().size());
+    }
+
+    /**
+     * Starts the given appender while the event log is locked, and verifies that the events it appends are not
+     * visible to readers until they have been logged.
+     */
+    private void assertEventsInvisibleWhileLogging(Thread appender, UUID aggregateIdentifier, int visibleEvents)
+            throws Exception {
+        Field eventLogLockField = InMemoryEventStore.class.getDeclaredField("eventLogLock");
+        eventLogLockField.setAccessible(true);
+        synchronized (eventLogLockField.get(testSubject)) {
+            appender.start();
+            long deadline = System.currentTimeMillis() + 5000;
+            while (appender.getState() != Thread.State.BLOCKED && System.currentTimeMillis() < deadline) {
+                Thread.sleep(1);
+            }
+            assertEquals("Expected the appender to wait for the event log", Thread.State.BLOCKED,
+                         appender.getState());
+            assertSequenceNumberRange(testSubject.readEvents("test", aggregateIdentifier), 0, visibleEvents);
+        }
+        appender.join();
+        assertSequenceNumberRange(testSubject.readEvents("test", aggregateIdentifier), 0, visibleEvents + 1);
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) 2010. Gridshore
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.gridshore.cqrs4j.repository.eventsourcing;
+
+import nl.gridshore.cqrs4j.DomainEvent;
+import nl.gridshore.cqrs4j.LazyEventStream;
+import nl.gridshore.cqrs4j.StubDomainEvent;
+import nl.gridshore.cqrs4j.StubSnapshotEvent;
+import nl.gridshore.cqrs4j.repository.ConcurrencyException;
+import org.junit.*;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.UUID;
+
+import static nl.gridshore.cqrs4j.EventStoreTestUtils.appendEvents;
+import static nl.gridshore.cqrs4j.EventStoreTestUtils.assertSequenceNumbers;
+import static org.junit.Assert.*;
+
+/**
+ * @author Allard Buijze
+ */
+public class JdbcEventStoreTest {
+
+    private JdbcEventStore testSubject;
+    private DriverManagerDataSource dataSource;
+
+    @Before
+    public void setUp() {
+        dataSource = new DriverManagerDataSource("jdbc:h2:mem:" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1");
+        testSubject = new JdbcEventStore();
+        testSubject.setDataSource(dataSource);
+        testSubject.setFetchSize(2);
+        testSubject.createSchema();
+    }
+
+    @Test
+    public void testStoreAndLoadEvents() {
+        UUID aggregateIdentifier = UUID.randomUUID();
+        appendEvents(testSubject, aggregateIdentifier, 0, 3);
+        appendEvents(testSubject, UUID.randomUUID(), 0, 2);
+        appendEvents(testSubject, aggregateIdentifier, 3, 2);
+
+        LazyEventStream events = testSubject.readEvents("test", aggregateIdentifier);
+        assertEquals(aggregateIdentifier, events.getAggregateIdentifier());
+        assertEquals(StubDomainEvent.class.getName(), events.peekEventType());
+        assertEquals(new Long(0), events.peekSequenceNumber());
+        events.skip();
+        assertSequenceNumbers(events, 1, 2, 3, 4);
+        assertSequenceNumbers(testSubject.readEvents("test", aggregateIdentifier, 3), 3, 4);
+        assertFalse(testSubject.readEvents("test", aggregateIdentifier, 5).hasNext());
+    }
+
+    @Test
+    public void testReadEventsQueriesOnePageAtATime() {
+        UUID aggregateIdentifier = UUID.randomUUID();
+        appendEvents(testSubject, aggregateIdentifier, 0, 4);
+
+        LazyEventStream events = testSubject.readEvents("test", aggregateIdentifier);
+        assertEquals(new Long(0), events.next().getSequenceNumber());
+        // events appended after the first page has been read are found when reading the next pages
+        appendEvents(testSubject, aggregateIdentifier, 4, 1);
+        assertSequenceNumbers(events, 1, 2, 3, 4);
+
+        testSubject.appendSnapshotEvent("test", new StubSnapshotEvent(aggregateIdentifier, 4));
+        events = testSubject.readEvents("test", aggregateIdentifier);
+        assertTrue(events.next() instanceof StubSnapshotEvent);
+        appendEvents(testSubject, aggregateIdentifier, 5, 3);
+        assertSequenceNumbers(events, 5, 6, 7);
+    }
+
+    @Test(expected = EventStorageException.class)
+    public void testReadEventsOfUnknownAggregate() {
+        testSubject.readEvents("test", UUID.randomUUID());
+    }
+
+    @Test
+    public void testAppendExistingSequenceNumber() {
+        UUID aggregateIdentifier = UUID.randomUUID();
+        appendEvents(testSubject, aggregateIdentifier, 0, 2);
+        try {
+            appendEvents(testSubject, aggregateIdentifier, 1, 2);
+            fail("Expected ConcurrencyException");
+        } catch (ConcurrencyException e) {
+            // expected
+        }
+        assertSequenceNumbers(testSubject.readEvents("test", aggregateIdentifier), 0, 1);
+    }
+
+    @Test
+    public void testReadEventsStartsAtMostRecentSnapshot() {
+        UUID aggregateIdentifier = UUID.randomUUID();
+        appendEvents(testSubject, aggregateIdentifier, 0, 6);
+        testSubject.appendSnapshotEvent("test", new StubSnapshotEvent(aggregateIdentifier, 2));
+        testSubject.appendSnapshotEvent("test", new StubSnapshotEvent(aggregateIdentifier, 3));
+
+        LazyEventStream events = testSubject.readEvents("test", aggregateIdentifier);
+        assertEquals(StubSnapshotEvent.class.getName(), events.peekEventType());
+        DomainEvent snapshot = events.next();
+        assertTrue(snapshot instanceof StubSnapshotEvent);
+        assertEquals(new Long(3), snapshot.getSequenceNumber());
+        assertSequenceNumbers(events, 4, 5);
+    }
+
+    @Test
+    public void testReadAllInCommitOrder() {
+        UUID aggregate1 = UUID.randomUUID();
+        UUID aggregate2 = UUID.randomUUID();
+        appendEvents(testSubject, aggregate1, 0, 2);
+        appendEvents(testSubject, aggregate2, 0, 1);
+        appendEvents(testSubject, aggregate1, 2, 1);
+
+        EventLogBatch batch = testSubject.readAll(0, 3);
+        assertEquals(3, batch.getEvents().size());
+        assertEquals(aggregate1, batch.getEvents().get(0).getAggregateIdentifier());
+        assertEquals(aggregate2, batch.getEvents().get(2).getAggregateIdentifier());
+        batch = testSubject.readAll(batch.getNextPosition(), 3);
+        assertEquals(1, batch.getEvents().size());
+        assertEquals(new Long(2), batch.getEvents().get(0).getSequenceNumber());
+        assertTrue(testSubject.readAll(batch.getNextPosition(), 3).isEmpty());
+    }
+
+    @Test
+    public void testAppendJoinsTransaction() {
+        final UUID aggregateIdentifier = UUID.randomUUID();
+        appendEvents(testSubject, aggregateIdentifier, 0, 1);
+        new TransactionTemplate(new DataSourceTransactionManager(dataSource)).execute(
+                new TransactionCallbackWithoutResult() {
+                    @Override
+                    protected void doInTransactionWithoutResult(TransactionStatus status) {
+                        appendEvents(testSubject, aggregateIdentifier, 1, 2);
+                        status.setRollbackOnly();
+                    }
+                });
+
+        assertSequenceNumbers(testSubject.readEvents("test", aggregateIdentifier), 0);
+    }
+}
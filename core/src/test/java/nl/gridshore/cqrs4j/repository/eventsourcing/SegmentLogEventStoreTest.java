@@ -0,0 +1,479 @@
+/*
+ * Copyright (c) 2010. Gridshore
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package nl.gridshore.cqrs4j.repository.eventsourcing;
+
+import nl.gridshore.cqrs4j.DomainEvent;
+import nl.gridshore.cqrs4j.EventStream;
+import nl.gridshore.cqrs4j.LazyEventStream;
+import nl.gridshore.cqrs4j.SimpleEventStream;
+import nl.gridshore.cqrs4j.StubDomainEvent;
+import nl.gridshore.cqrs4j.StubSnapshotEvent;
+import org.junit.*;
+import org.junit.rules.*;
+import org.springframework.core.io.FileSystemResource;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.Vector;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Allard Buijze
+ */
+public class SegmentLogEventStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private SegmentLogEventStore testSubject;
+
+    @After
+    public void tearDown() {
+        if (testSubject != null) {
+            testSubject.close();
+        }
+    }
+
+    @Test
+    public void testStoreAndLoadEvents() {
+        // unfortunately, we cannot use @Before on the setUp, because of the TemporaryFolder
+        testSubject = createEventStore(1024 * 1024);
+        UUID aggregateIdentifier = UUID.randomUUID();
+        testSubject.appendEvents("test", new SimpleEventStream(new StubDomainEvent(aggregateIdentifier, 0),
+                                                               new StubDomainEvent(aggregateIdentifier, 1)));
+        testSubject.appendEvents("test", new SimpleEventStream(new StubDomainEvent(aggregateIdentifier, 2)));
+
+        assertEventStream(testSubject.readEvents("test", aggregateIdentifier), aggregateIdentifier, 3);
+    }
+
+    @Test
+    public void testEventsOfDifferentAggregatesAreKeptApart() {
+        testSubject = createEventStore(1024 * 1024);
+        UUID aggregate1 = UUID.randomUUID();
+        UUID aggregate2 = UUID.randomUUID();
+        for (int i = 0; i < 5; i++) {
+            testSubject.appendEvents("test", new SimpleEventStream(new StubDomainEvent(aggregate1, i)));
+            testSubject.appendEvents("test", new SimpleEventStream(new StubDomainEvent(aggregate2, i)));
+            testSubject.appendEvents("other", new SimpleEventStream(new StubDomainEvent(aggregate1, i)));
+        }
+
+        assertEventStream(testSubject.readEvents("test", aggregate1), aggregate1, 5);
+        assertEventStream(testSubject.readEvents("test", aggregate2), aggregate2, 5);
+        assertEventStream(testSubject.readEvents("other", aggregate1), aggregate1, 5);
+    }
+
+    @Test
+    public void testNewSegmentStartedWhenSegmentIsFull() {
+        testSubject = createEventStore(2048);
+        UUID aggregateIdentifier = UUID.randomUUID();
+        for (int i = 0; i < 50; i++) {
+            testSubject.appendEvents("test", new SimpleEventStream(new StubDomainEvent(aggregateIdentifier, i)));
+        }
+
+        assertTrue("Expected more than one segment", new File(folder.getRoot(), "segments").listFiles().length > 1);
+        assertEventStream(testSubject.readEvents("test", aggregateIdentifier), aggregateIdentifier, 50);
+    }
+
+    @Test
+    public void testIndexRebuiltWhenReopened() {
+        testSubject = createEventStore(2048);
+        UUID aggregate1 = UUID.randomUUID();
+        UUID aggregate2 = UUID.randomUUID();
+        for (int i = 0; i < 20; i++) {
+            testSubject.appendEvents("test", new SimpleEventStream(new StubDomainEvent(aggregate1, i)));
+            testSubject.appendEvents("test", new SimpleEventStream(new StubDomainEvent(aggregate2, i)));
+        }
+        testSubject.close();
+
+        testSubject = createEventStore(2048);
+        assertEventStream(testSubject.readEvents("test", aggregate1), aggregate1, 20);
+        testSubject.appendEvents("test", new SimpleEventStream(new StubDomainEvent(aggregate2, 20)));
+        assertEventStream(testSubject.readEvents("test", aggregate2), aggregate2, 21);
+    }
+
+    @Test
+    public void testExistingSegmentsKeepTheirSizeWhenReopenedWithLargerSegmentSize() {
+        testSubject = createEventStore(2048);
+        UUID aggregateIdentifier = UUID.randomUUID();
+        for (int i = 0; i < 5; i++) {
+            testSubject.appendEvents("test", new SimpleEventStream(new StubDomainEvent(aggregateIdentifier, i)));
+        }
+        testSubject.close();
+
+        testSubject = createEventStore(1024 * 1024);
+        for (int i = 5; i < 50; i++) {
+            testSubject.appendEvents("test", new SimpleEventStream(new StubDomainEvent(aggregateIdentifier, i)));
+        }
+        File[] segmentFiles = new File(folder.getRoot(), "segments").listFiles();
+        Arrays.sort(segmentFiles);
+        assertEquals("Expected a new segment to be started", 2, segmentFiles.length);
+        assertEquals(2048, segmentFiles[0].length());
+        assertEventStream(testSubject.readEvents("test", aggregateIdentifier), aggregateIdentifier, 50);
+        testSubject.close();
+
+        testSubject = createEventStore(1024 * 1024);
+        assertEventStream(testSubject.readEvents("test", aggregateIdentifier), aggregateIdentifier, 50);
+    }
+
+    @Test
+    public void testConcurrentAppendsAreAllCommitted() throws InterruptedException {
+        testSubject = createEventStore(4096);
+        final int threadCount = 10;
+        final int eventsPerThread = 20;
+        final UUID[] aggregates = new UUID[threadCount];
+        final List<Throwable> failures = new Vector<Throwable>();
+        final CountDownLatch startSignal = new CountDownLatch(1);
+        final CountDownLatch finishedSignal = new CountDownLatch(threadCount);
+        for (int t = 0; t < threadCount; t++) {
+            final UUID aggregateIdentifier = UUID.randomUUID();
+            aggregates[t] = aggregateIdentifier;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        startSignal.await();
+                        for (int i = 0; i < eventsPerThread; i++) {
+                            testSubject.appendEvents("test", new SimpleEventStream(
+                                    new StubDomainEvent(aggregateIdentifier, i)));
+                        }
+                    } catch (Throwable e) {
+                        failures.add(e);
+                    } finally {
+                        finishedSignal.countDown();
+                    }
+                }
+            }).start();
+        }
+        startSignal.countDown();
+        finishedSignal.await();
+
+        assertTrue("Unexpected failures: " + failures, failures.isEmpty());
+        testSubject.close();
+        testSubject = createEventStore(4096);
+        for (UUID aggregateIdentifier : aggregates) {
+            assertEventStream(testSubject.readEvents("test", aggregateIdentifier), aggregateIdentifier,
+                              eventsPerThread);
+        }
+    }
+
+    @Test
+    public void testEventsStoredWithIntervalSyncPolicy() {
+        assertEventsSurviveReopening(SyncPolicy.INTERVAL);
+    }
+
+    @Test
+    public void testEventsStoredWithOsBufferedSyncPolicy() {
+        assertEventsSurviveReopening(SyncPolicy.OS_BUFFERED);
+    }
+
+    @Test
+    public void testStoreAndLoadEventsWithBinarySerializer() {
+        testSubject = new SegmentLogEventStore();
+        testSubject.setBaseDir(new FileSystemResource(new File(folder.getRoot(), "segments")));
+        testSubject.setEventSerializer(new BinaryEventSerializer());
+        testSubject.initialize();
+        UUID aggregateIdentifier = UUID.randomUUID();
+        testSubject.appendEvents("test", new SimpleEventStream(new StubDomainEvent(aggregateIdentifier, 0),
+                                                               new StubDomainEvent(aggregateIdentifier, 1)));
+
+        assertEventStream(testSubject.readEvents("test", aggregateIdentifier), aggregateIdentifier, 2);
+    }
+
+    @Test
+    public void testReadEventsStartsAtMostRecentSnapshot() {
+        testSubject = createEventStore(2048);
+        UUID aggregateIdentifier = UUID.randomUUID();
+        for (int i = 0; i < 10; i++) {
+            testSubject.appendEvents("test", new SimpleEventStream(new StubDomainEvent(aggregateIdentifier, i)));
+        }
+        testSubject.appendSnapshotEvent("test", new StubSnapshotEvent(aggregateIdentifier, 4));
+        testSubject.appendSnapshotEvent("test", new StubSnapshotEvent(aggregateIdentifier, 7));
+        testSubject.appendEvents("test", new SimpleEventStream(new StubDomainEvent(aggregateIdentifier, 10)));
+
+        assertSnapshotFollowedByEvents(testSubject.readEvents("test", aggregateIdentifier), 7, 10);
+
+        testSubject.close();
+        testSubject = createEventStore(2048);
+        assertSnapshotFollowedByEvents(testSubject.readEvents("test", aggregateIdentifier), 7, 10);
+    }
+
+    @Test
+    public void testReadEventsFromSequenceNumber() {
+        testSubject = createEventStore(2048);
+        UUID aggregateIdentifier = UUID.randomUUID();
+        for (int i = 0; i < 10; i++) {
+            testSubject.appendEvents("test", new SimpleEventStream(new StubDomainEvent(aggregateIdentifier, i)));
+        }
+        testSubject.appendSnapshotEvent("test", new StubSnapshotEvent(aggregateIdentifier, 7));
+
+        EventStream events = testSubject.readEvents("test", aggregateIdentifier, 6);
+        for (long i = 6; i < 10; i++) {
+            assertEquals(new Long(i), events.next().getSequenceNumber());
+        }
+        assertFalse(events.hasNext());
+        assertFalse(testSubject.readEvents("test", aggregateIdentifier, 10).hasNext());
+    }
+
+    @Test
+    public void testReadEventsLazily() {
+        testSubject = createEventStore(2048);
+        UUID aggregateIdentifier = UUID.randomUUID();
+        testSubject.appendEvents("test", new SimpleEventStream(new StubDomainEvent(aggregateIdentifier, 0),
+                                                               new StubDomainEvent(aggregateIdentifier, 1)));
+
+        LazyEventStream events = testSubject.readEvents("test", aggregateIdentifier);
+        assertEquals(StubDomainEvent.class.getName(), events.peekEventType());
+        assertEquals(new Long(0), events.peekSequenceNumber());
+        events.skip();
+        assertEquals(new Long(1), events.peekSequenceNumber());
+        assertEquals(new Long(1), events.next().getSequenceNumber());
+        assertFalse(events.hasNext());
+    }
+
+    @Test
+    public void testReadAllInCommitOrder() {
+        testSubject = createEventStore(2048);
+        UUID aggregate1 = UUID.randomUUID();
+        UUID aggregate2 = UUID.randomUUID();
+        List<DomainEvent> appended = new ArrayList<DomainEvent>();
+        for (int i = 0; i < 10; i++) {
+            DomainEvent event = new StubDomainEvent(i % 2 == 0 ? aggregate1 : aggregate2, i / 2);
+            testSubject.appendEvents("test", new SimpleEventStream(event));
+            appended.add(event);
+        }
+        testSubject.appendSnapshotEvent("test", new StubSnapshotEvent(aggregate1, 4));
+
+        List<DomainEvent> read = new ArrayList<DomainEvent>();
+        EventLogBatch batch = testSubject.readAll(0, 3);
+        while (!batch.isEmpty()) {
+            assertTrue(batch.getEvents().size() <= 3);
+            read.addAll(batch.getEvents());
+            batch = testSubject.readAll(batch.getNextPosition(), 3);
+        }
+        assertEquals(appended, read);
+    }
+
+    @Test
+    public void testAppendEventsOfSeveralAggregatesAtomically() {
+        testSubject = createEventStore(2048);
+        UUID aggregate1 = UUID.randomUUID();
+        UUID aggregate2 = UUID.randomUUID();
+        for (int i = 0; i < 10; i++) {
+            testSubject.appendEvents(Arrays.asList(
+                    new TypedEventStream("test", new SimpleEventStream(new StubDomainEvent(aggregate1, i))),
+                    new TypedEventStream("other", new SimpleEventStream(new StubDomainEvent(aggregate2, i)))));
+        }
+        assertEventStream(testSubject.readEvents("test", aggregate1), aggregate1, 10);
+        assertEventStream(testSubject.readEvents("other", aggregate2), aggregate2, 10);
+        testSubject.close();
+
+        testSubject = createEventStore(2048);
+        assertEventStream(testSubject.readEvents("test", aggregate1), aggregate1, 10);
+        assertEventStream(testSubject.readEvents("other", aggregate2), aggregate2, 10);
+    }
+
+    @Test
+    public void testIncompleteAppendIgnoredWhenReopened() throws IOException {
+        testSubject = createEventStore(1024 * 1024);
+        UUID aggregate1 = UUID.randomUUID();
+        UUID aggregate2 = UUID.randomUUID();
+        testSubject.appendEvents("test", new SimpleEventStream(new StubDomainEvent(aggregate1, 0)));
+        testSubject.appendEvents(Arrays.asList(
+                new TypedEventStream("test", new SimpleEventStream(new StubDomainEvent(aggregate1, 1),
+                                                                   new StubDomainEvent(aggregate1, 2))),
+                new TypedEventStream("test", new SimpleEventStream(new StubDomainEvent(aggregate2, 0)))));
+        testSubject.close();
+
+        // simulate a crash before the last record of the append was written
+        File[] segments = new File(folder.getRoot(), "segments").listFiles();
+        assertEquals(1, segments.length);
+        RandomAccessFile segment = new RandomAccessFile(segments[0], "rw");
+        try {
+            int offset = 0;
+            for (int i = 0; i < 3; i++) {
+                segment.seek(offset);
+                offset += 4 + segment.readInt();
+            }
+            segment.seek(offset);
+            segment.writeInt(0);
+        } finally {
+            segment.close();
+        }
+
+        testSubject = createEventStore(1024 * 1024);
+        assertEventStream(testSubject.readEvents("test", aggregate1), aggregate1, 1);
+        try {
+            testSubject.readEvents("test", aggregate2);
+            fail("Expected EventStorageException");
+        } catch (EventStorageException e) {
+            // expected
+        }
+        testSubject.appendEvents("test", new SimpleEventStream(new StubDomainEvent(aggregate1, 1)));
+        testSubject.close();
+
+        testSubject = createEventStore(1024 * 1024);
+        assertEventStream(testSubject.readEvents("test", aggregate1), aggregate1, 2);
+    }
+
+    @Test
+    public void testFailedBatchDiscardedWhenSegmentCannotBeStarted() throws Exception {
+        // measure the size of a record, to create segments that fit a single one
+        testSubject = createEventStore(1024 * 1024);
+        testSubject.appendEvents("test", new SimpleEventStream(new StubDomainEvent(UUID.randomUUID(), 0)));
+        testSubject.close();
+        File segmentDir = new File(folder.getRoot(), "segments");
+        RandomAccessFile firstSegment = new RandomAccessFile(new File(segmentDir, "0000000000.segment"), "r");
+        int recordSize;
+        try {
+            recordSize = 4 + firstSegment.readInt();
+        } finally {
+            firstSegment.close();
+        }
+        for (File segment : segmentDir.listFiles()) {
+            assertTrue(segment.delete());
+        }
+
+        int segmentSize = recordSize + recordSize / 2 + 4;
+        testSubject = createEventStore(segmentSize);
+        UUID aggregate1 = UUID.randomUUID();
+        UUID aggregate2 = UUID.randomUUID();
+        final List<Exception> failures = new Vector<Exception>();
+        Thread appender1 = createAppender(aggregate1, failures);
+        Thread appender2 = createAppender(aggregate2, failures);
+        // a directory with the name of the next segment prevents it from being created
+        File nextSegment = new File(segmentDir, "0000000001.segment");
+        assertTrue(nextSegment.mkdir());
+        Field writeLockField = SegmentLogEventStore.class.getDeclaredField("writeLock");
+        writeLockField.setAccessible(true);
+        synchronized (writeLockField.get(testSubject)) {
+            // both appends are committed in a single batch, the second one needs a new segment
+            startAndAwaitBlocked(appender1);
+            startAndAwaitBlocked(appender2);
+        }
+        appender1.join(5000);
+        appender2.join(5000);
+        assertEquals(2, failures.size());
+        assertTrue(nextSegment.delete());
+
+        testSubject.appendEvents("test", new SimpleEventStream(new StubDomainEvent(aggregate1, 0)));
+        testSubject.appendEvents("test", new SimpleEventStream(new StubDomainEvent(aggregate2, 0)));
+        testSubject.close();
+
+        testSubject = createEventStore(segmentSize);
+        assertEventStream(testSubject.readEvents("test", aggregate1), aggregate1, 1);
+        assertEventStream(testSubject.readEvents("test", aggregate2), aggregate2, 1);
+    }
+
+    @Test(expected = EventStorageException.class)
+    public void testAppendEventTooLargeForSegment() {
+        testSubject = createEventStore(256);
+        testSubject.appendEvents("test", new SimpleEventStream(new StubDomainEvent(UUID.randomUUID(), 0)));
+    }
+
+    @Test(expected = EventStorageException.class)
+    public void testReadEventsOfUnknownAggregate() {
+        testSubject = createEventStore(1024 * 1024);
+        testSubject.readEvents("test", UUID.randomUUID());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testAppendEventsBeforeInitialization() {
+        SegmentLogEventStore eventStore = new SegmentLogEventStore();
+        eventStore.setBaseDir(new FileSystemResource(folder.getRoot()));
+        eventStore.appendEvents("test", new SimpleEventStream(new StubDomainEvent(UUID.randomUUID(), 0)));
+    }
+
+    private void assertEventsSurviveReopening(SyncPolicy syncPolicy) {
+        testSubject = createEventStore(2048, syncPolicy);
+        UUID aggregateIdentifier = UUID.randomUUID();
+        for (int i = 0; i < 30; i++) {
+            testSubject.appendEvents("test", new SimpleEventStream(new StubDomainEvent(aggregateIdentifier, i)));
+        }
+        testSubject.close();
+
+        testSubject = createEventStore(2048, syncPolicy);
+        assertEventStream(testSubject.readEvents("test", aggregateIdentifier), aggregateIdentifier, 30);
+    }
+
+    private Thread createAppender(final UUID aggregateIdentifier, final List<Exception> failures) {
+        return new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    testSubject.appendEvents("test", new SimpleEventStream(new StubDomainEvent(aggregateIdentifier,
+                                                                                               0)));
+                } catch (EventStorageException e) {
+                    failures.add(e);
+                }
+            }
+        });
+    }
+
+    private void startAndAwaitBlocked(Thread thread) throws InterruptedException {
+        thread.start();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (thread.getState() != Thread.State.BLOCKED && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals("Expected the appender to wait for the write lock", Thread.State.BLOCKED, thread.getState());
+    }
+
+    private SegmentLogEventStore createEventStore(int segmentSize) {
+        return createEventStore(segmentSize, SyncPolicy.PER_BATCH);
+    }
+
+    private SegmentLogEventStore createEventStore(int segmentSize, SyncPolicy syncPolicy) {
+        SegmentLogEventStore eventStore = new SegmentLogEventStore();
+        eventStore.setBaseDir(new FileSystemResource(new File(folder.getRoot(), "segments")));
+        eventStore.setSegmentSize(segmentSize);
+        eventStore.setSyncPolicy(syncPolicy);
+        eventStore.setSyncInterval(10);
+        eventStore.initialize();
+        return eventStore;
+    }
+
+    private void assertSnapshotFollowedByEvents(EventStream events, long snapshotSequenceNumber,
+                                                long lastSequenceNumber) {
+        DomainEvent snapshot = events.next();
+        assertTrue(snapshot instanceof StubSnapshotEvent);
+        assertEquals(new Long(snapshotSequenceNumber), snapshot.getSequenceNumber());
+        for (long i = snapshotSequenceNumber + 1; i <= lastSequenceNumber; i++) {
+            assertEquals(new Long(i), events.next().getSequenceNumber());
+        }
+        assertFalse(events.hasNext());
+    }
+
+    private void assertEventStream(EventStream events, UUID aggregateIdentifier, int expectedEventCount) {
+        assertEquals(aggregateIdentifier, events.getAggregateIdentifier());
+        for (int i = 0; i < expectedEventCount; i++) {
+            assertTrue("Expected more events", events.hasNext());
+            DomainEvent event = events.next();
+            assertEquals(aggregateIdentifier, event.getAggregateIdentifier());
+            assertEquals(new Long(i), event.getSequenceNumber());
+        }
+        assertFalse("Expected no more events", events.hasNext());
+    }
+}
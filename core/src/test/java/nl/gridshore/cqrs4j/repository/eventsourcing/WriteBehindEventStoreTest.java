@@ -0,0 +1,197 @@
+/*
+ * Copyright (c) 2010. Gridshore
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.gridshore.cqrs4j.repository.eventsourcing;
+
+import nl.gridshore.cqrs4j.EventStream;
+import nl.gridshore.cqrs4j.StubSnapshotEvent;
+import org.junit.*;
+
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static nl.gridshore.cqrs4j.EventStoreTestUtils.appendEvents;
+import static nl.gridshore.cqrs4j.EventStoreTestUtils.assertSequenceNumberRange;
+import static org.junit.Assert.*;
+
+/**
+ * @author Allard Buijze
+ */
+public class WriteBehindEventStoreTest {
+
+    private WriteBehindSnapshotEventStore testSubject;
+    private BlockingEventStore delegate;
+
+    @Before
+    public void setUp() {
+        delegate = new BlockingEventStore();
+        testSubject = new WriteBehindSnapshotEventStore();
+        testSubject.setDelegate(delegate);
+        testSubject.setQueueCapacity(2);
+        testSubject.setBatchSize(10);
+        testSubject.start();
+    }
+
+    @After
+    public void tearDown() {
+        delegate.release();
+        testSubject.stop();
+    }
+
+    @Test
+    public void testReadEventsNotYetAppendedToDelegate() {
+        UUID aggregateIdentifier = UUID.randomUUID();
+        appendEvents(testSubject, aggregateIdentifier, 0, 2);
+        delegate.release();
+        testSubject.flush();
+        delegate.block();
+
+        appendEvents(testSubject, aggregateIdentifier, 2, 3);
+        assertSequenceNumberRange(delegate.readEvents("test", aggregateIdentifier), 0, 2);
+        assertSequenceNumberRange(testSubject.readEvents("test", aggregateIdentifier), 0, 5);
+        assertSequenceNumberRange(testSubject.readEvents("test", aggregateIdentifier, 1), 1, 5);
+        assertSequenceNumberRange(testSubject.readEvents("test", aggregateIdentifier, 3), 3, 5);
+
+        UUID newAggregateIdentifier = UUID.randomUUID();
+        appendEvents(testSubject, newAggregateIdentifier, 0, 1);
+        assertSequenceNumberRange(testSubject.readEvents("test", newAggregateIdentifier), 0, 1);
+
+        delegate.release();
+        testSubject.flush();
+        assertSequenceNumberRange(delegate.readEvents("test", aggregateIdentifier), 0, 5);
+        assertSequenceNumberRange(testSubject.readEvents("test", aggregateIdentifier), 0, 5);
+        assertSequenceNumberRange(delegate.readEvents("test", newAggregateIdentifier), 0, 1);
+    }
+
+    @Test
+    public void testAppendBlocksWhileQueueIsFull() throws InterruptedException {
+        final UUID aggregateIdentifier = UUID.randomUUID();
+        // the first append is taken by the writer thread, which blocks; the next two fill the queue
+        appendEvents(testSubject, aggregateIdentifier, 0, 1);
+        assertTrue(delegate.awaitAppend());
+        appendEvents(testSubject, aggregateIdentifier, 1, 1);
+        appendEvents(testSubject, aggregateIdentifier, 2, 1);
+        final CountDownLatch appended = new CountDownLatch(1);
+        Thread appender = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                appendEvents(testSubject, aggregateIdentifier, 3, 1);
+                appended.countDown();
+            }
+        });
+        appender.start();
+        assertFalse(appended.await(200, TimeUnit.MILLISECONDS));
+
+        delegate.release();
+        assertTrue(appended.await(5, TimeUnit.SECONDS));
+        testSubject.flush();
+        assertSequenceNumberRange(delegate.readEvents("test", aggregateIdentifier), 0, 4);
+    }
+
+    @Test
+    public void testAppendsAfterFailedAppendAreDiscarded() throws InterruptedException {
+        UUID aggregateIdentifier = UUID.randomUUID();
+        appendEvents(testSubject, aggregateIdentifier, 0, 1);
+        assertTrue(delegate.awaitAppend());
+        appendEvents(testSubject, aggregateIdentifier, 1, 1);
+        delegate.failNextAppend();
+        delegate.release();
+        try {
+            testSubject.flush();
+            fail("Expected EventStorageException");
+        } catch (EventStorageException e) {
+            // expected
+        }
+        testSubject.flush();
+        try {
+            appendEvents(testSubject, aggregateIdentifier, 2, 1);
+            fail("Expected EventStorageException");
+        } catch (EventStorageException e) {
+            // expected
+        }
+
+        // the discarded append never reached the delegate, so the aggregate can be appended again
+        appendEvents(testSubject, aggregateIdentifier, 0, 2);
+        testSubject.flush();
+        assertSequenceNumberRange(delegate.readEvents("test", aggregateIdentifier), 0, 2);
+    }
+
+    @Test
+    public void testStopAppendsQueuedEvents() {
+        UUID aggregateIdentifier = UUID.randomUUID();
+        delegate.release();
+        appendEvents(testSubject, aggregateIdentifier, 0, 3);
+        testSubject.appendSnapshotEvent("test", new StubSnapshotEvent(aggregateIdentifier, 2));
+        testSubject.stop();
+
+        EventStream events = delegate.readEvents("test", aggregateIdentifier);
+        assertTrue(events.next() instanceof StubSnapshotEvent);
+        assertFalse(events.hasNext());
+        try {
+            appendEvents(testSubject, aggregateIdentifier, 3, 1);
+            fail("Expected IllegalStateException");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSnapshotsRequireSnapshotCapableDelegate() {
+        new WriteBehindSnapshotEventStore().setDelegate(new WriteBehindEventStore());
+    }
+
+    /**
+     * In memory event store that blocks appends until it is released.
+     */
+    private static class BlockingEventStore extends InMemoryEventStore {
+
+        private final CountDownLatch appendStarted = new CountDownLatch(1);
+        private volatile CountDownLatch gate = new CountDownLatch(1);
+        private volatile boolean failNextAppend;
+
+        public boolean awaitAppend() throws InterruptedException {
+            return appendStarted.await(5, TimeUnit.SECONDS);
+        }
+
+        public void block() {
+            gate = new CountDownLatch(1);
+        }
+
+        public void release() {
+            gate.countDown();
+        }
+
+        public void failNextAppend() {
+            failNextAppend = true;
+        }
+
+        @Override
+        public void appendEvents(String type, EventStream events) {
+            appendStarted.countDown();
+            try {
+                gate.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (failNextAppend) {
+                failNextAppend = false;
+                throw new EventStorageException("Mock failure");
+            }
+            super.appendEvents(type, events);
+        }
+    }
+}
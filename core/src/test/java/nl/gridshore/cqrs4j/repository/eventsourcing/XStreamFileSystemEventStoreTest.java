@@ -0,0 +1,437 @@
+/*
+ * Copyright (c) 2010. Gridshore
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package nl.gridshore.cqrs4j.repository.eventsourcing;
+
+import nl.gridshore.cqrs4j.DomainEvent;
+import nl.gridshore.cqrs4j.EventStream;
+import nl.gridshore.cqrs4j.LazyEventStream;
+import nl.gridshore.cqrs4j.SimpleEventStream;
+import nl.gridshore.cqrs4j.StubDomainEvent;
+import nl.gridshore.cqrs4j.StubSnapshotEvent;
+import org.junit.*;
+import org.junit.rules.*;
+import org.springframework.core.io.FileSystemResource;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+import static nl.gridshore.cqrs4j.EventStoreTestUtils.appendEvents;
+import static nl.gridshore.cqrs4j.EventStoreTestUtils.assertSequenceNumbers;
+import static org.junit.Assert.*;
+
+/**
+ * @author Allard Buijze
+ */
+public class XStreamFileSystemEventStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private XStreamFileSystemEventStore testSubject;
+
+    @Test
+    public void testStoreAndLoadEvents() {
+        initializeEventStore();
+        UUID aggregateIdentifier = UUID.randomUUID();
+        testSubject.appendEvents("test", new SimpleEventStream(new StubDomainEvent(aggregateIdentifier, 0),
+                                                               new StubDomainEvent(aggregateIdentifier, 1)));
+
+        EventStream events = testSubject.readEvents("test", aggregateIdentifier);
+        assertEquals(aggregateIdentifier, events.getAggregateIdentifier());
+        assertEquals(new Long(0), events.next().getSequenceNumber());
+        assertEquals(new Long(1), events.next().getSequenceNumber());
+        assertFalse(events.hasNext());
+    }
+
+    @Test
+    public void testReadCompressedAndUncompressedEvents() {
+        initializeEventStore();
+        UUID aggregate1 = UUID.randomUUID();
+        UUID aggregate2 = UUID.randomUUID();
+        appendEvents(testSubject, aggregate1, 0, 2);
+        testSubject.setCompressionEnabled(true);
+        appendEvents(testSubject, aggregate1, 2, 3);
+        appendEvents(testSubject, aggregate2, 0, 2);
+        appendEvents(testSubject, aggregate1, 5, 2);
+        testSubject.setCompressionEnabled(false);
+        appendEvents(testSubject, aggregate1, 7, 1);
+
+        assertSequenceNumbers(testSubject.readEvents("test", aggregate1), 0, 1, 2, 3, 4, 5, 6, 7);
+        assertSequenceNumbers(testSubject.readEvents("test", aggregate1, 3), 3, 4, 5, 6, 7);
+        assertSequenceNumbers(testSubject.readEvents("test", aggregate1, 6), 6, 7);
+        assertSequenceNumbers(testSubject.readEvents("test", aggregate2, 1), 1);
+
+        List<DomainEvent> events = testSubject.readAll(0, 20).getEvents();
+        long[] expectedSequenceNumbers = {0, 1, 2, 3, 4, 0, 1, 5, 6, 7};
+        assertEquals(expectedSequenceNumbers.length, events.size());
+        for (int i = 0; i < expectedSequenceNumbers.length; i++) {
+            assertEquals(new Long(expectedSequenceNumbers[i]), events.get(i).getSequenceNumber());
+        }
+        assertEquals(aggregate2, events.get(5).getAggregateIdentifier());
+    }
+
+    @Test
+    public void testCompressedEventsTakeLessSpace() {
+        initializeEventStore();
+        UUID aggregate1 = UUID.randomUUID();
+        UUID aggregate2 = UUID.randomUUID();
+        appendEvents(testSubject, aggregate1, 0, 20);
+        testSubject.setCompressionEnabled(true);
+        appendEvents(testSubject, aggregate2, 0, 20);
+
+        File uncompressed = new File(folder.getRoot(), "test/" + aggregate1 + ".events");
+        File compressed = new File(folder.getRoot(), "test/" + aggregate2 + ".events");
+        assertTrue(compressed.length() * 3 < uncompressed.length());
+        assertSequenceNumbers(testSubject.readEvents("test", aggregate2, 19), 19);
+    }
+
+    @Test
+    public void testStoreEventsInSubdirectories() {
+        initializeEventStore();
+        testSubject.setDirectoryDepth(2);
+        UUID aggregateIdentifier = UUID.randomUUID();
+        appendEvents(testSubject, aggregateIdentifier, 0, 2);
+        testSubject.appendSnapshotEvent("test", new StubSnapshotEvent(aggregateIdentifier, 0));
+
+        String id = aggregateIdentifier.toString();
+        File dir = new File(folder.getRoot(), "test/" + id.substring(0, 2) + "/" + id.substring(2, 4));
+        assertTrue(new File(dir, id + ".events").exists());
+        assertTrue(new File(dir, id + ".index").exists());
+        assertTrue(new File(dir, id + ".snapshot").exists());
+        assertSequenceNumbers(testSubject.readEvents("test", aggregateIdentifier), 0, 1);
+        assertEquals(2, testSubject.readAll(0, 10).getEvents().size());
+    }
+
+    @Test
+    public void testAppendEventsWhenOpenFilesAreEvicted() {
+        initializeEventStore();
+        testSubject.setOpenFileCacheSize(1);
+        UUID aggregate1 = UUID.randomUUID();
+        UUID aggregate2 = UUID.randomUUID();
+        for (int i = 0; i < 3; i++) {
+            appendEvents(testSubject, aggregate1, i, 1);
+            appendEvents(testSubject, aggregate2, i, 1);
+        }
+        testSubject.close();
+        appendEvents(testSubject, aggregate1, 3, 1);
+
+        assertSequenceNumbers(testSubject.readEvents("test", aggregate1), 0, 1, 2, 3);
+        assertSequenceNumbers(testSubject.readEvents("test", aggregate2, 1), 1, 2);
+        assertEquals(7, testSubject.readAll(0, 10).getEvents().size());
+    }
+
+    @Test
+    public void testReadEventsLazily() {
+        initializeEventStore();
+        UUID aggregateIdentifier = UUID.randomUUID();
+        appendEvents(testSubject, aggregateIdentifier, 0, 3);
+        testSubject.appendSnapshotEvent("test", new StubSnapshotEvent(aggregateIdentifier, 0));
+
+        LazyEventStream events = testSubject.readEvents("test", aggregateIdentifier);
+        assertEquals(StubSnapshotEvent.class.getName(), events.peekEventType());
+        assertEquals(new Long(0), events.peekSequenceNumber());
+        events.skip();
+        assertEquals(StubDomainEvent.class.getName(), events.peekEventType());
+        assertEquals(new Long(1), events.peekSequenceNumber());
+        events.skip();
+        assertEquals(new Long(2), events.peekSequenceNumber());
+        assertEquals(new Long(2), events.next().getSequenceNumber());
+        assertFalse(events.hasNext());
+    }
+
+    @Test
+    public void testReadEventsFromSequenceNumber() {
+        initializeEventStore();
+        UUID aggregateIdentifier = UUID.randomUUID();
+        appendEvents(testSubject, aggregateIdentifier, 0, 3);
+        appendEvents(testSubject, aggregateIdentifier, 3, 3);
+
+        assertSequenceNumbers(testSubject.readEvents("test", aggregateIdentifier, 4), 4, 5);
+        assertSequenceNumbers(testSubject.readEvents("test", aggregateIdentifier, 2), 2, 3, 4, 5);
+        assertSequenceNumbers(testSubject.readEvents("test", aggregateIdentifier, 6));
+    }
+
+    @Test
+    public void testReadEventsFromSequenceNumber_IncompleteIndex() {
+        initializeEventStore();
+        UUID aggregateIdentifier = UUID.randomUUID();
+        appendEvents(testSubject, aggregateIdentifier, 0, 3);
+        // simulates an event file that was created before indexes were maintained
+        assertTrue(new File(folder.getRoot(), "test/" + aggregateIdentifier + ".index").delete());
+        appendEvents(testSubject, aggregateIdentifier, 3, 3);
+
+        assertSequenceNumbers(testSubject.readEvents("test", aggregateIdentifier, 1), 1, 2, 3, 4, 5);
+        assertSequenceNumbers(testSubject.readEvents("test", aggregateIdentifier, 4), 4, 5);
+    }
+
+    @Test
+    public void testReadEventsFromSequenceNumberSkipsEarlierRecordsWithoutReadingThem() throws IOException {
+        initializeEventStore();
+        UUID aggregateIdentifier = UUID.randomUUID();
+        appendEvents(testSubject, aggregateIdentifier, 0, 1);
+        testSubject.setCompressionEnabled(true);
+        appendEvents(testSubject, aggregateIdentifier, 1, 2);
+        appendEvents(testSubject, aggregateIdentifier, 3, 2);
+        testSubject.close();
+        // without index, reading starts at the first record
+        assertTrue(new File(folder.getRoot(), "test/" + aggregateIdentifier + ".index").delete());
+        // damage the contents of the first record, which must not be read to read the later events
+        RandomAccessFile file = new RandomAccessFile(
+                new File(folder.getRoot(), "test/" + aggregateIdentifier + ".events"), "rw");
+        file.seek(30);
+        file.write('x');
+        file.close();
+
+        assertSequenceNumbers(testSubject.readEvents("test", aggregateIdentifier, 3), 3, 4);
+        try {
+            assertSequenceNumbers(testSubject.readEvents("test", aggregateIdentifier, 0), 0, 1, 2, 3, 4);
+            fail("Expected EventStorageException");
+        } catch (EventStorageException e) {
+            // expected, the damaged record doesn't match its checksum
+        }
+    }
+
+    @Test
+    public void testReadAllInCommitOrder() {
+        initializeEventStore();
+        UUID aggregate1 = UUID.randomUUID();
+        UUID aggregate2 = UUID.randomUUID();
+        appendEvents(testSubject, aggregate1, 0, 2);
+        testSubject.appendEvents("other", new SimpleEventStream(new StubDomainEvent(aggregate2, 0)));
+        appendEvents(testSubject, aggregate1, 2, 1);
+
+        EventLogBatch batch = testSubject.readAll(0, 3);
+        assertEquals(3, batch.getEvents().size());
+        assertEquals(aggregate1, batch.getEvents().get(0).getAggregateIdentifier());
+        assertEquals(aggregate1, batch.getEvents().get(1).getAggregateIdentifier());
+        assertEquals(aggregate2, batch.getEvents().get(2).getAggregateIdentifier());
+
+        batch = testSubject.readAll(batch.getNextPosition(), 3);
+        assertEquals(1, batch.getEvents().size());
+        assertEquals(new Long(2), batch.getEvents().get(0).getSequenceNumber());
+        assertTrue(testSubject.readAll(batch.getNextPosition(), 3).isEmpty());
+    }
+
+    @Test
+    public void testReadEventsStartsAtMostRecentSnapshot() {
+        initializeEventStore();
+        UUID aggregateIdentifier = UUID.randomUUID();
+        for (int i = 0; i < 6; i++) {
+            testSubject.appendEvents("test", new SimpleEventStream(new StubDomainEvent(aggregateIdentifier, i)));
+        }
+        testSubject.appendSnapshotEvent("test", new StubSnapshotEvent(aggregateIdentifier, 2));
+        testSubject.appendSnapshotEvent("test", new StubSnapshotEvent(aggregateIdentifier, 3));
+
+        EventStream events = testSubject.readEvents("test", aggregateIdentifier);
+        assertEquals(aggregateIdentifier, events.getAggregateIdentifier());
+        DomainEvent snapshot = events.next();
+        assertTrue(snapshot instanceof StubSnapshotEvent);
+        assertEquals(new Long(3), snapshot.getSequenceNumber());
+        assertEquals(new Long(4), events.next().getSequenceNumber());
+        assertEquals(new Long(5), events.next().getSequenceNumber());
+        assertFalse(events.hasNext());
+    }
+
+    @Test
+    public void testRecoverDiscardsIncompleteEvents() throws IOException {
+        initializeEventStore();
+        UUID aggregateIdentifier = UUID.randomUUID();
+        appendEvents(testSubject, aggregateIdentifier, 0, 2);
+        testSubject.setCompressionEnabled(true);
+        appendEvents(testSubject, aggregateIdentifier, 2, 2);
+        File eventFile = new File(folder.getRoot(), "test/" + aggregateIdentifier + ".events");
+        long completeLength = eventFile.length();
+        testSubject.setCompressionEnabled(false);
+        appendEvents(testSubject, aggregateIdentifier, 4, 1);
+        testSubject.close();
+        // simulates a crash while writing the last event and its entry in the global event log
+        setLength(eventFile, eventFile.length() - 10);
+        File eventLogFile = new File(folder.getRoot(), "events.log");
+        setLength(eventLogFile, eventLogFile.length() + 5);
+
+        initializeEventStore();
+        testSubject.recover();
+        assertEquals(completeLength, eventFile.length());
+        // two uncompressed events and a compressed block remain indexed
+        assertEquals(3 * 16, new File(folder.getRoot(), "test/" + aggregateIdentifier + ".index").length());
+        assertSequenceNumbers(testSubject.readEvents("test", aggregateIdentifier), 0, 1, 2, 3);
+        assertSequenceNumbers(testSubject.readEvents("test", aggregateIdentifier, 3), 3);
+        assertEquals(4, testSubject.readAll(0, 10).getEvents().size());
+
+        appendEvents(testSubject, aggregateIdentifier, 4, 1);
+        assertSequenceNumbers(testSubject.readEvents("test", aggregateIdentifier, 3), 3, 4);
+    }
+
+    @Test
+    public void testRecoverDiscardsEventsNotMatchingTheirChecksum() throws IOException {
+        initializeEventStore();
+        UUID aggregateIdentifier = UUID.randomUUID();
+        appendEvents(testSubject, aggregateIdentifier, 0, 1);
+        File eventFile = new File(folder.getRoot(), "test/" + aggregateIdentifier + ".events");
+        long completeLength = eventFile.length();
+        appendEvents(testSubject, aggregateIdentifier, 1, 1);
+        testSubject.close();
+        RandomAccessFile file = new RandomAccessFile(eventFile, "rw");
+        file.seek(eventFile.length() - 20);
+        file.write('x');
+        file.close();
+        try {
+            assertSequenceNumbers(testSubject.readEvents("test", aggregateIdentifier), 0, 1);
+            fail("Expected EventStorageException");
+        } catch (EventStorageException e) {
+            // expected
+        }
+
+        testSubject.recover();
+        assertEquals(completeLength, eventFile.length());
+        assertSequenceNumbers(testSubject.readEvents("test", aggregateIdentifier), 0);
+    }
+
+    @Test
+    public void testRecoverDiscardsZeroFilledTail() throws IOException {
+        initializeEventStore();
+        UUID aggregateIdentifier = UUID.randomUUID();
+        appendEvents(testSubject, aggregateIdentifier, 0, 2);
+        testSubject.close();
+        File eventFile = new File(folder.getRoot(), "test/" + aggregateIdentifier + ".events");
+        long completeLength = eventFile.length();
+        // some file systems leave zeroes behind when the file was extended, but its contents weren't written
+        setLength(eventFile, completeLength + 100);
+
+        testSubject.recover();
+        assertEquals(completeLength, eventFile.length());
+        appendEvents(testSubject, aggregateIdentifier, 2, 1);
+        assertSequenceNumbers(testSubject.readEvents("test", aggregateIdentifier), 0, 1, 2);
+    }
+
+    @Test
+    public void testRecoverRestoresMissingIndexAndEventLogEntries() throws IOException {
+        initializeEventStore();
+        UUID aggregate1 = UUID.randomUUID();
+        UUID aggregate2 = UUID.randomUUID();
+        appendEvents(testSubject, aggregate1, 0, 2);
+        testSubject.setCompressionEnabled(true);
+        appendEvents(testSubject, aggregate1, 2, 2);
+        testSubject.setCompressionEnabled(false);
+        appendEvents(testSubject, aggregate2, 0, 2);
+        testSubject.close();
+        // simulates crashes after writing the events, but before writing all their index and event log entries
+        File indexFile = new File(folder.getRoot(), "test/" + aggregate1 + ".index");
+        setLength(indexFile, indexFile.length() - 16);
+        File eventLogFile = new File(folder.getRoot(), "events.log");
+        int eventLogEntrySize = 2 + "test".length() + 32;
+        setLength(eventLogFile, eventLogFile.length() - 3 * eventLogEntrySize);
+        assertEquals(3, testSubject.readAll(0, 10).getEvents().size());
+
+        initializeEventStore();
+        testSubject.recover();
+        assertEquals(3 * 16, indexFile.length());
+        assertEquals(6 * eventLogEntrySize, eventLogFile.length());
+        assertSequenceNumbers(testSubject.readEvents("test", aggregate1, 3), 3);
+        List<DomainEvent> events = testSubject.readAll(0, 10).getEvents();
+        assertEquals(6, events.size());
+        // the event files are recovered concurrently, so only the events of each aggregate are logged in order
+        List<Long> aggregate1SequenceNumbers = new ArrayList<Long>();
+        List<Long> aggregate2SequenceNumbers = new ArrayList<Long>();
+        for (DomainEvent event : events) {
+            if (aggregate1.equals(event.getAggregateIdentifier())) {
+                aggregate1SequenceNumbers.add(event.getSequenceNumber());
+            } else {
+                aggregate2SequenceNumbers.add(event.getSequenceNumber());
+            }
+        }
+        assertEquals(Arrays.asList(0L, 1L, 2L, 3L), aggregate1SequenceNumbers);
+        assertEquals(Arrays.asList(0L, 1L), aggregate2SequenceNumbers);
+
+        testSubject.recover();
+        assertEquals(6 * eventLogEntrySize, eventLogFile.length());
+    }
+
+    @Test
+    public void testRecoverDoesNotCheckEventFilesAfterClose() throws IOException {
+        initializeEventStore();
+        testSubject.recover();
+        UUID aggregateIdentifier = UUID.randomUUID();
+        appendEvents(testSubject, aggregateIdentifier, 0, 2);
+        testSubject.close();
+        File eventFile = new File(folder.getRoot(), "test/" + aggregateIdentifier + ".events");
+        long length = eventFile.length();
+        setLength(eventFile, length + 100);
+
+        initializeEventStore();
+        testSubject.recover();
+        // the event store was closed properly, so the incomplete data must have been added afterwards
+        assertEquals(length + 100, eventFile.length());
+    }
+
+    @Test
+    public void testRecoverOnlyChecksFilesWrittenSinceClose() throws IOException {
+        initializeEventStore();
+        testSubject.recover();
+        UUID aggregate1 = UUID.randomUUID();
+        UUID aggregate2 = UUID.randomUUID();
+        appendEvents(testSubject, aggregate1, 0, 2);
+        appendEvents(testSubject, aggregate2, 0, 2);
+        testSubject.close();
+        File eventLogFile = new File(folder.getRoot(), "events.log");
+        long eventLogLength = eventLogFile.length();
+
+        // simulates a crash after writing events, but before writing their event log and index entries
+        initializeEventStore();
+        appendEvents(testSubject, aggregate1, 2, 2);
+        setLength(eventLogFile, eventLogLength);
+        File indexFile1 = new File(folder.getRoot(), "test/" + aggregate1 + ".index");
+        setLength(indexFile1, 2 * 16);
+        File eventFile1 = new File(folder.getRoot(), "test/" + aggregate1 + ".events");
+        long eventFile1Length = eventFile1.length();
+        setLength(eventFile1, eventFile1Length + 100);
+        // files that weren't modified since the event store was closed aren't checked
+        File eventFile2 = new File(folder.getRoot(), "test/" + aggregate2 + ".events");
+        long eventFile2Length = eventFile2.length();
+        setLength(eventFile2, eventFile2Length + 100);
+        assertTrue(eventFile2.setLastModified(System.currentTimeMillis() - 60000));
+
+        initializeEventStore();
+        testSubject.recover();
+        assertEquals(eventFile1Length, eventFile1.length());
+        assertEquals(4 * 16, indexFile1.length());
+        assertEquals(eventFile2Length + 100, eventFile2.length());
+        assertSequenceNumbers(testSubject.readEvents("test", aggregate1, 3), 3);
+        List<DomainEvent> events = testSubject.readAll(0, 10).getEvents();
+        assertEquals(6, events.size());
+        assertEquals(aggregate1, events.get(5).getAggregateIdentifier());
+        assertEquals(new Long(3), events.get(5).getSequenceNumber());
+    }
+
+    private void setLength(File file, long length) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        randomAccessFile.setLength(length);
+        randomAccessFile.close();
+    }
+
+    private void initializeEventStore() {
+        // unfortunately, we cannot use @Before on the setUp, because of the TemporaryFolder
+        testSubject = new XStreamFileSystemEventStore();
+        testSubject.setBaseDir(new FileSystemResource(folder.getRoot().getPath() + "/"));
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright (c) 2010. Gridshore
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.gridshore.cqrs4j.util;
+
+import org.junit.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Allard Buijze
+ */
+public class WeakIdentityHashMapTest {
+
+    private WeakIdentityHashMap<String, Integer> testSubject;
+
+    @Before
+    public void setUp() {
+        testSubject = new WeakIdentityHashMap<String, Integer>();
+    }
+
+    @Test
+    public void testKeysComparedByIdentity() {
+        String key = new String("key");
+        String equalKey = new String("key");
+        testSubject.put(key, 1);
+
+        assertEquals(new Integer(1), testSubject.get(key));
+        assertTrue(testSubject.containsKey(key));
+        assertNull(testSubject.get(equalKey));
+        assertFalse(testSubject.containsKey(equalKey));
+
+        testSubject.put(equalKey, 2);
+        assertEquals(2, testSubject.size());
+        assertEquals(new Integer(1), testSubject.remove(key));
+        assertNull(testSubject.get(key));
+        assertEquals(new Integer(2), testSubject.get(equalKey));
+    }
+
+    @Test
+    public void testEntriesRemovedWhenKeyIsGarbageCollected() throws InterruptedException {
+        String key = new String("key");
+        testSubject.put(key, 1);
+        testSubject.put(new String("key"), 2);
+
+        for (int i = 0; i < 50 && testSubject.size() > 1; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertEquals(1, testSubject.size());
+        assertEquals(new Integer(1), testSubject.get(key));
+    }
+}
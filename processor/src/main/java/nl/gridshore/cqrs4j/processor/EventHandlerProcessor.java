@@ -0,0 +1,422 @@
+/*
+ * Copyright (c) 2010. Gridshore
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package nl.gridshore.cqrs4j.processor;
+
+import nl.gridshore.cqrs4j.DomainEvent;
+import nl.gridshore.cqrs4j.eventhandler.TransactionStatus;
+import nl.gridshore.cqrs4j.eventhandler.annotation.AfterTransaction;
+import nl.gridshore.cqrs4j.eventhandler.annotation.BeforeTransaction;
+import nl.gridshore.cqrs4j.eventhandler.annotation.EventHandler;
+import nl.gridshore.cqrs4j.eventhandler.annotation.EventHandlerDispatcher;
+import nl.gridshore.cqrs4j.eventhandler.annotation.EventHandlerDispatchers;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.annotation.Annotation;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Annotation processor that generates an {@link EventHandlerDispatcher} for each class that declares {@link
+ * EventHandler}, {@link BeforeTransaction} or {@link AfterTransaction} annotated methods. The generated dispatcher
+ * selects the handler method using a sequence of <code>instanceof</code> checks, following the same rules as the
+ * reflection based resolution in the core module, and invokes it directly.
+ * <p/>
+ * The processor also validates the signature of event handler methods, and reports invalid handlers as compilation
+ * errors.
+ * <p/>
+ * Handler methods that cannot be called from generated code in the package of the annotated class, such as private
+ * methods or protected methods inherited from a class in another package, are left to the reflection based
+ * invocation. If an event handler accepts an event type that cannot be referenced from the generated code, no
+ * dispatcher is generated for the class at all.
+ * <p/>
+ * To use the processor, add it to the compile time class path. The java compiler will discover it automatically.
+ *
+ * @author Allard Buijze
+ * @since 0.4
+ */
+public class EventHandlerProcessor extends AbstractProcessor {
+
+    private static final String DOMAIN_EVENT = DomainEvent.class.getName();
+    private static final String TRANSACTION_STATUS = TransactionStatus.class.getName();
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Set<String> getSupportedAnnotationTypes() {
+        return new HashSet<String>(Arrays.asList(EventHandler.class.getName(),
+                                                 BeforeTransaction.class.getName(),
+                                                 AfterTransaction.class.getName()));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        Set<TypeElement> handlerTypes = new LinkedHashSet<TypeElement>();
+        for (TypeElement annotation : annotations) {
+            for (Element element : roundEnv.getElementsAnnotatedWith(annotation)) {
+                if (element.getKind() == ElementKind.METHOD
+                        && element.getEnclosingElement().getKind() == ElementKind.CLASS) {
+                    handlerTypes.add((TypeElement) element.getEnclosingElement());
+                }
+            }
+        }
+        for (TypeElement handlerType : handlerTypes) {
+            processHandlerType(handlerType);
+        }
+        // other processors may be interested in these annotations too
+        return false;
+    }
+
+    private void processHandlerType(TypeElement handlerType) {
+        List<ExecutableElement> eventHandlers = findEventHandlers(handlerType);
+        boolean valid = true;
+        for (ExecutableElement eventHandler : eventHandlers) {
+            valid &= validateEventHandler(handlerType, eventHandler);
+        }
+        if (!valid) {
+            return;
+        }
+        PackageElement targetPackage = processingEnv.getElementUtils().getPackageOf(handlerType);
+        if (!isAccessible(handlerType, targetPackage)) {
+            note(handlerType, "No event dispatcher is generated for [%s], as it is not accessible from its package. "
+                    + "Its handlers will be invoked using reflection.", handlerType.getSimpleName());
+            return;
+        }
+        for (ExecutableElement eventHandler : eventHandlers) {
+            if (!isAccessible(eventType(eventHandler), targetPackage)) {
+                note(handlerType, "No event dispatcher is generated for [%s], as the event type of method [%s] is not "
+                        + "accessible from its package. Its handlers will be invoked using reflection.",
+                     handlerType.getSimpleName(), eventHandler.getSimpleName());
+                return;
+            }
+        }
+        try {
+            writeDispatcher(handlerType, targetPackage, eventHandlers);
+        } catch (IOException e) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, String.format(
+                    "Unable to write the event dispatcher for [%s]: %s", handlerType.getQualifiedName(),
+                    e.getMessage()), handlerType);
+        }
+    }
+
+    /**
+     * Returns the event handler methods of the given <code>handlerType</code> and its super classes, in the order in
+     * which they should be evaluated. Methods of a subclass come before those of its super class. Within a class,
+     * handlers for more specific event types come before those for more generic types.
+     *
+     * @param handlerType The type to find the event handlers of
+     * @return the event handler methods, in order of evaluation
+     */
+    private List<ExecutableElement> findEventHandlers(TypeElement handlerType) {
+        List<ExecutableElement> eventHandlers = new ArrayList<ExecutableElement>();
+        for (TypeElement type = handlerType; type != null; type = superClassOf(type)) {
+            List<ExecutableElement> handlersInType = new ArrayList<ExecutableElement>();
+            for (ExecutableElement method : ElementFilter.methodsIn(type.getEnclosedElements())) {
+                if (method.getAnnotation(EventHandler.class) != null) {
+                    insertBySpecificity(handlersInType, method);
+                }
+            }
+            eventHandlers.addAll(handlersInType);
+        }
+        return eventHandlers;
+    }
+
+    private void insertBySpecificity(List<ExecutableElement> handlers, ExecutableElement handler) {
+        TypeMirror eventType = erasedParameterType(handler, 0);
+        for (int i = 0; i < handlers.size(); i++) {
+            TypeMirror otherEventType = erasedParameterType(handlers.get(i), 0);
+            if (eventType != null && otherEventType != null
+                    && processingEnv.getTypeUtils().isAssignable(eventType, otherEventType)) {
+                handlers.add(i, handler);
+                return;
+            }
+        }
+        handlers.add(handler);
+    }
+
+    private ExecutableElement findTransactionMethod(TypeElement handlerType, Class<? extends Annotation> annotation) {
+        for (TypeElement type = handlerType; type != null; type = superClassOf(type)) {
+            for (ExecutableElement method : ElementFilter.methodsIn(type.getEnclosedElements())) {
+                List<? extends VariableElement> parameters = method.getParameters();
+                if (method.getAnnotation(annotation) != null
+                        && (parameters.isEmpty() || isType(parameters.get(0).asType(), TRANSACTION_STATUS))) {
+                    return method;
+                }
+            }
+        }
+        return null;
+    }
+
+    private boolean validateEventHandler(TypeElement handlerType, ExecutableElement method) {
+        // errors in inherited methods are reported on the handler type, as the method is not part of this compilation
+        Element errorElement = handlerType.equals(method.getEnclosingElement()) ? method : handlerType;
+        String className = method.getEnclosingElement().getSimpleName().toString();
+        List<? extends VariableElement> parameters = method.getParameters();
+        if (parameters.size() > 2) {
+            return error(errorElement, "Event Handling class %s contains method %s that has more than two parameters. "
+                    + "Either remove @EventHandler annotation or reduce to one or two parameters.",
+                         className, method.getSimpleName());
+        }
+        if (parameters.isEmpty()) {
+            return error(errorElement, "Event Handling class %s contains method %s that has no parameters. "
+                    + "Event handlers must declare the event as their first parameter.",
+                         className, method.getSimpleName());
+        }
+        TypeMirror domainEventType = typeOf(DOMAIN_EVENT);
+        TypeMirror eventType = erasedParameterType(method, 0);
+        if (eventType == null || !processingEnv.getTypeUtils().isAssignable(eventType, domainEventType)) {
+            return error(errorElement, "Event Handling class %s contains method %s that has an invalid parameter. "
+                    + "Parameter must extend from DomainEvent", className, method.getSimpleName());
+        }
+        if (parameters.size() == 2 && !isType(parameters.get(1).asType(), TRANSACTION_STATUS)) {
+            return error(errorElement, "Event Handling class %s contains method %s that has an invalid parameter. "
+                    + "The (optional) second parameter must be of type: %s",
+                         className, method.getSimpleName(), TRANSACTION_STATUS);
+        }
+        if (parameters.size() == 1 && "handle".contentEquals(method.getSimpleName())
+                && isType(parameters.get(0).asType(), DOMAIN_EVENT)) {
+            return error(errorElement, "Event Handling class %s contains method %s that has a naming conflict with a "
+                    + "method on the EventHandler interface. Please rename the method.",
+                         className, method.getSimpleName());
+        }
+        return true;
+    }
+
+    private void writeDispatcher(TypeElement handlerType, PackageElement targetPackage,
+                                 List<ExecutableElement> eventHandlers) throws IOException {
+        String binaryName = processingEnv.getElementUtils().getBinaryName(handlerType).toString();
+        String dispatcherName = binaryName + EventHandlerDispatchers.DISPATCHER_SUFFIX;
+        String targetTypeName = handlerType.getQualifiedName().toString();
+        PrintWriter out = new PrintWriter(
+                processingEnv.getFiler().createSourceFile(dispatcherName, handlerType).openWriter());
+        try {
+            if (!targetPackage.isUnnamed()) {
+                out.printf("package %s;%n%n", targetPackage.getQualifiedName());
+            }
+            out.printf("/**%n");
+            out.printf(" * Event dispatcher for {@link %s}.%n", targetTypeName);
+            out.printf(" * <p/>%n");
+            out.printf(" * Generated by %s. Do not edit.%n", getClass().getName());
+            out.printf(" */%n");
+            out.printf("public final class %s implements %s {%n%n",
+                       dispatcherName.substring(dispatcherName.lastIndexOf('.') + 1),
+                       EventHandlerDispatcher.class.getName());
+            writeHasEventHandlers(out, eventHandlers);
+            writeCanHandle(out, eventHandlers);
+            writeDispatch(out, targetTypeName, targetPackage, eventHandlers);
+            writeTransactionMethod(out, "beforeTransaction", targetTypeName, targetPackage,
+                                   findTransactionMethod(handlerType, BeforeTransaction.class));
+            writeTransactionMethod(out, "afterTransaction", targetTypeName, targetPackage,
+                                   findTransactionMethod(handlerType, AfterTransaction.class));
+            out.printf("}%n");
+        } finally {
+            out.close();
+        }
+    }
+
+    private void writeHasEventHandlers(PrintWriter out, List<ExecutableElement> eventHandlers) {
+        out.printf("    public boolean hasEventHandlers() {%n");
+        out.printf("        return %s;%n", !eventHandlers.isEmpty());
+        out.printf("    }%n%n");
+    }
+
+    private void writeCanHandle(PrintWriter out, List<ExecutableElement> eventHandlers) {
+        out.printf("    public boolean canHandle(Class<? extends %s> eventType) {%n", DOMAIN_EVENT);
+        Set<String> eventTypes = new LinkedHashSet<String>();
+        for (ExecutableElement eventHandler : eventHandlers) {
+            eventTypes.add(eventType(eventHandler).getQualifiedName().toString());
+        }
+        for (String eventType : eventTypes) {
+            out.printf("        if (%s.class.isAssignableFrom(eventType)) {%n", eventType);
+            out.printf("            return true;%n");
+            out.printf("        }%n");
+        }
+        out.printf("        return false;%n");
+        out.printf("    }%n%n");
+    }
+
+    private void writeDispatch(PrintWriter out, String targetTypeName, PackageElement targetPackage,
+                               List<ExecutableElement> eventHandlers) {
+        out.printf("    public boolean dispatch(Object target, %s event, %s transactionStatus) throws Exception {%n",
+                   DOMAIN_EVENT, TRANSACTION_STATUS);
+        for (ExecutableElement eventHandler : eventHandlers) {
+            String eventType = eventType(eventHandler).getQualifiedName().toString();
+            out.printf("        if (event instanceof %s) {%n", eventType);
+            if (!isInvocable(eventHandler, targetPackage)) {
+                out.printf("            // %s cannot be invoked from here%n", eventHandler.getSimpleName());
+                out.printf("            return false;%n");
+            } else if (eventHandler.getParameters().size() == 1) {
+                out.printf("            ((%s) target).%s((%s) event);%n",
+                           targetTypeName, eventHandler.getSimpleName(), eventType);
+                out.printf("            return true;%n");
+            } else {
+                out.printf("            ((%s) target).%s((%s) event,%n",
+                           targetTypeName, eventHandler.getSimpleName(), eventType);
+                out.printf("                    transactionStatus != null ? transactionStatus : %s.current());%n",
+                           TRANSACTION_STATUS);
+                out.printf("            return true;%n");
+            }
+            out.printf("        }%n");
+        }
+        out.printf("        return false;%n");
+        out.printf("    }%n%n");
+    }
+
+    private void writeTransactionMethod(PrintWriter out, String name, String targetTypeName,
+                                        PackageElement targetPackage, ExecutableElement method) {
+        out.printf("    public boolean %s(Object target, %s transactionStatus) throws Exception {%n",
+                   name, TRANSACTION_STATUS);
+        if (method == null) {
+            out.printf("        return true;%n");
+        } else if (!isInvocable(method, targetPackage)) {
+            out.printf("        // %s cannot be invoked from here%n", method.getSimpleName());
+            out.printf("        return false;%n");
+        } else {
+            out.printf("        ((%s) target).%s(%s);%n", targetTypeName, method.getSimpleName(),
+                       method.getParameters().isEmpty() ? "" : "transactionStatus");
+            out.printf("        return true;%n");
+        }
+        out.printf("    }%n");
+        if (!"afterTransaction".equals(name)) {
+            out.printf("%n");
+        }
+    }
+
+    /**
+     * Indicates whether generated code in the given <code>targetPackage</code> can invoke the given
+     * <code>method</code>.
+     *
+     * @param method        The method to invoke
+     * @param targetPackage The package of the generated code
+     * @return <code>true</code> if the method can be invoked, otherwise <code>false</code>
+     */
+    private boolean isInvocable(ExecutableElement method, PackageElement targetPackage) {
+        for (TypeMirror thrownType : method.getThrownTypes()) {
+            // the dispatcher methods may only throw exceptions
+            if (!processingEnv.getTypeUtils().isAssignable(thrownType, typeOf(Exception.class.getName()))
+                    && !processingEnv.getTypeUtils().isAssignable(thrownType, typeOf(Error.class.getName()))) {
+                return false;
+            }
+        }
+        Set<Modifier> modifiers = method.getModifiers();
+        if (modifiers.contains(Modifier.PUBLIC)) {
+            return true;
+        }
+        return !modifiers.contains(Modifier.PRIVATE)
+                && targetPackage.equals(processingEnv.getElementUtils().getPackageOf(method));
+    }
+
+    /**
+     * Indicates whether the given <code>type</code> can be referenced from generated code in the given
+     * <code>targetPackage</code>. Protected types are only accessible from within their own package, as the generated
+     * code does not extend the declaring class.
+     *
+     * @param type          The type to reference
+     * @param targetPackage The package of the generated code
+     * @return <code>true</code> if the type can be referenced, otherwise <code>false</code>
+     */
+    private boolean isAccessible(TypeElement type, PackageElement targetPackage) {
+        boolean samePackage = targetPackage.equals(processingEnv.getElementUtils().getPackageOf(type));
+        Element current = type;
+        while (current instanceof TypeElement) {
+            TypeElement currentType = (TypeElement) current;
+            if (currentType.getNestingKind() != NestingKind.TOP_LEVEL
+                    && currentType.getNestingKind() != NestingKind.MEMBER) {
+                return false;
+            }
+            Set<Modifier> modifiers = currentType.getModifiers();
+            if (modifiers.contains(Modifier.PRIVATE) || (!modifiers.contains(Modifier.PUBLIC) && !samePackage)) {
+                return false;
+            }
+            current = current.getEnclosingElement();
+        }
+        return true;
+    }
+
+    private TypeElement eventType(ExecutableElement eventHandler) {
+        return (TypeElement) ((DeclaredType) erasedParameterType(eventHandler, 0)).asElement();
+    }
+
+    private TypeMirror erasedParameterType(ExecutableElement method, int index) {
+        if (method.getParameters().size() <= index) {
+            return null;
+        }
+        TypeMirror type = processingEnv.getTypeUtils().erasure(method.getParameters().get(index).asType());
+        return type.getKind() == TypeKind.DECLARED ? type : null;
+    }
+
+    private TypeElement superClassOf(TypeElement type) {
+        TypeMirror superClass = type.getSuperclass();
+        if (superClass.getKind() != TypeKind.DECLARED) {
+            return null;
+        }
+        TypeElement superType = (TypeElement) ((DeclaredType) superClass).asElement();
+        return Object.class.getName().contentEquals(superType.getQualifiedName()) ? null : superType;
+    }
+
+    private boolean isType(TypeMirror type, String className) {
+        return processingEnv.getTypeUtils().isSameType(processingEnv.getTypeUtils().erasure(type),
+                                                      typeOf(className));
+    }
+
+    private TypeMirror typeOf(String className) {
+        return processingEnv.getTypeUtils().erasure(
+                processingEnv.getElementUtils().getTypeElement(className).asType());
+    }
+
+    private boolean error(Element element, String message, Object... arguments) {
+        processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, String.format(message, arguments), element);
+        return false;
+    }
+
+    private void note(Element element, String message, Object... arguments) {
+        processingEnv.getMessager().printMessage(Diagnostic.Kind.NOTE, String.format(message, arguments), element);
+    }
+}
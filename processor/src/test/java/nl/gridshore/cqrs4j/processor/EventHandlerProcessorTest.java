@@ -0,0 +1,239 @@
+/*
+ * Copyright (c) 2010. Gridshore
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package nl.gridshore.cqrs4j.processor;
+
+import nl.gridshore.cqrs4j.DomainEvent;
+import nl.gridshore.cqrs4j.eventhandler.TransactionStatus;
+import nl.gridshore.cqrs4j.eventhandler.annotation.AnnotationEventListenerAdapter;
+import nl.gridshore.cqrs4j.eventhandler.annotation.EventHandlerDispatcher;
+import nl.gridshore.cqrs4j.eventhandler.annotation.EventHandlerDispatchers;
+import org.apache.commons.io.FileUtils;
+import org.junit.*;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * @author Allard Buijze
+ */
+public class EventHandlerProcessorTest {
+
+    private static final String LISTENER_SOURCE = ""
+            + "package com.example;\n"
+            + "import nl.gridshore.cqrs4j.DomainEvent;\n"
+            + "import nl.gridshore.cqrs4j.eventhandler.TransactionStatus;\n"
+            + "import nl.gridshore.cqrs4j.eventhandler.annotation.*;\n"
+            + "public class SampleListener {\n"
+            + "    public int genericEvents, specificEvents, statusEvents, privateEvents, beforeTransactions;\n"
+            + "    public TransactionStatus lastStatus;\n"
+            + "    @EventHandler public void onGeneric(GenericEvent event) { genericEvents++; }\n"
+            + "    @EventHandler public void onSpecific(SpecificEvent event) { specificEvents++; }\n"
+            + "    @EventHandler void onStatus(StatusEvent event, TransactionStatus status) {\n"
+            + "        statusEvents++;\n"
+            + "        lastStatus = status;\n"
+            + "    }\n"
+            + "    @EventHandler private void onPrivate(PrivateEvent event) { privateEvents++; }\n"
+            + "    @BeforeTransaction public void beforeTransaction() { beforeTransactions++; }\n"
+            + "    public static class GenericEvent extends DomainEvent {}\n"
+            + "    public static class SpecificEvent extends GenericEvent {}\n"
+            + "    public static class StatusEvent extends DomainEvent {}\n"
+            + "    public static class PrivateEvent extends DomainEvent {}\n"
+            + "    public static class UnknownEvent extends DomainEvent {}\n"
+            + "}\n";
+
+    private static final String AGGREGATE_SOURCE = ""
+            + "package com.example;\n"
+            + "import nl.gridshore.cqrs4j.DomainEvent;\n"
+            + "import nl.gridshore.cqrs4j.eventhandler.annotation.*;\n"
+            + "public class SampleAggregate extends AbstractAnnotatedAggregateRoot {\n"
+            + "    public int createdEvents;\n"
+            + "    public void doApply(DomainEvent event) { apply(event); }\n"
+            + "    @EventHandler protected void onCreated(CreatedEvent event) { createdEvents++; }\n"
+            + "    public static class CreatedEvent extends DomainEvent {}\n"
+            + "    public static class UnhandledEvent extends DomainEvent {}\n"
+            + "}\n";
+
+    private static final String TRANSACTIONAL_SOURCE = ""
+            + "package com.example;\n"
+            + "import nl.gridshore.cqrs4j.eventhandler.annotation.*;\n"
+            + "public class TransactionalBean {\n"
+            + "    @BeforeTransaction public void beforeTransaction() { }\n"
+            + "}\n";
+
+    private static final String INVALID_SOURCE = ""
+            + "package com.example;\n"
+            + "import nl.gridshore.cqrs4j.eventhandler.annotation.*;\n"
+            + "public class InvalidListener {\n"
+            + "    @EventHandler public void onString(String notAnEvent) { }\n"
+            + "}\n";
+
+    private File workDir;
+
+    @Before
+    public void setUp() {
+        workDir = new File(System.getProperty("java.io.tmpdir"), "cqrs4j-processor-" + UUID.randomUUID());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(workDir);
+    }
+
+    @Test
+    public void testGeneratedDispatcherIsUsedByAdapter() throws Exception {
+        ClassLoader classLoader = compile(LISTENER_SOURCE, "com/example/SampleListener.java");
+        Class<?> listenerClass = classLoader.loadClass("com.example.SampleListener");
+        Object listener = listenerClass.newInstance();
+
+        EventHandlerDispatcher dispatcher = EventHandlerDispatchers.findDispatcher(listenerClass);
+        assertNotNull("Expected a dispatcher to be generated", dispatcher);
+        assertEquals("com.example.SampleListener_EventDispatcher", dispatcher.getClass().getName());
+        assertTrue(dispatcher.hasEventHandlers());
+        assertTrue(dispatcher.canHandle(event(classLoader, "SampleListener$SpecificEvent").getClass()));
+        assertFalse(dispatcher.canHandle(event(classLoader, "SampleListener$UnknownEvent").getClass()));
+        // private handlers are left to reflection
+        assertFalse(dispatcher.dispatch(listener, event(classLoader, "SampleListener$PrivateEvent"), null));
+
+        AnnotationEventListenerAdapter adapter = new AnnotationEventListenerAdapter(listener);
+        adapter.handle(event(classLoader, "SampleListener$GenericEvent"));
+        adapter.handle(event(classLoader, "SampleListener$SpecificEvent"));
+        adapter.handle(event(classLoader, "SampleListener$PrivateEvent"));
+        adapter.handle(event(classLoader, "SampleListener$UnknownEvent"));
+        adapter.beforeTransaction(mock(TransactionStatus.class));
+
+        assertEquals(1, listenerClass.getField("genericEvents").get(listener));
+        assertEquals(1, listenerClass.getField("specificEvents").get(listener));
+        assertEquals(1, listenerClass.getField("privateEvents").get(listener));
+        assertEquals(1, listenerClass.getField("beforeTransactions").get(listener));
+    }
+
+    @Test
+    public void testGeneratedDispatcherPassesTransactionStatus() throws Exception {
+        ClassLoader classLoader = compile(LISTENER_SOURCE, "com/example/SampleListener.java");
+        Class<?> listenerClass = classLoader.loadClass("com.example.SampleListener");
+        Object listener = listenerClass.newInstance();
+        TransactionStatus status = mock(TransactionStatus.class);
+
+        EventHandlerDispatcher dispatcher = EventHandlerDispatchers.findDispatcher(listenerClass);
+        assertTrue(dispatcher.dispatch(listener, event(classLoader, "SampleListener$StatusEvent"), status));
+
+        assertEquals(1, listenerClass.getField("statusEvents").get(listener));
+        assertSame(status, listenerClass.getField("lastStatus").get(listener));
+    }
+
+    @Test
+    public void testGeneratedDispatcherFallsBackForInheritedProtectedHandler() throws Exception {
+        ClassLoader classLoader = compile(AGGREGATE_SOURCE, "com/example/SampleAggregate.java");
+        Class<?> aggregateClass = classLoader.loadClass("com.example.SampleAggregate");
+        Object aggregate = aggregateClass.newInstance();
+        assertNotNull(EventHandlerDispatchers.findDispatcher(aggregateClass));
+
+        aggregateClass.getMethod("doApply", DomainEvent.class).invoke(aggregate,
+                                                                       event(classLoader, "SampleAggregate$CreatedEvent"));
+        assertEquals(1, aggregateClass.getField("createdEvents").get(aggregate));
+
+        try {
+            aggregateClass.getMethod("doApply", DomainEvent.class)
+                    .invoke(aggregate, event(classLoader, "SampleAggregate$UnhandledEvent"));
+            fail("Expected the unhandled event to be rejected by the inherited catch-all handler");
+        } catch (java.lang.reflect.InvocationTargetException e) {
+            assertTrue(e.getCause() instanceof UnsupportedOperationException);
+        }
+    }
+
+    @Test
+    public void testGeneratedDispatcherWithoutEventHandlers() throws Exception {
+        ClassLoader classLoader = compile(TRANSACTIONAL_SOURCE, "com/example/TransactionalBean.java");
+        Class<?> beanClass = classLoader.loadClass("com.example.TransactionalBean");
+
+        EventHandlerDispatcher dispatcher = EventHandlerDispatchers.findDispatcher(beanClass);
+        assertNotNull("Expected a dispatcher to be generated", dispatcher);
+        assertFalse(dispatcher.hasEventHandlers());
+    }
+
+    @Test
+    public void testInvalidHandlerIsReportedAsCompilationError() throws Exception {
+        List<Diagnostic<? extends JavaFileObject>> errors = new ArrayList<Diagnostic<? extends JavaFileObject>>();
+        assertNull(compile(INVALID_SOURCE, "com/example/InvalidListener.java", errors));
+
+        assertEquals(1, errors.size());
+        assertTrue(errors.get(0).getMessage(null).contains("Parameter must extend from DomainEvent"));
+    }
+
+    private DomainEvent event(ClassLoader classLoader, String simpleName) throws Exception {
+        return (DomainEvent) classLoader.loadClass("com.example." + simpleName).newInstance();
+    }
+
+    private ClassLoader compile(String source, String fileName) throws IOException {
+        List<Diagnostic<? extends JavaFileObject>> errors = new ArrayList<Diagnostic<? extends JavaFileObject>>();
+        ClassLoader classLoader = compile(source, fileName, errors);
+        assertNotNull("Compilation failed: " + errors, classLoader);
+        return classLoader;
+    }
+
+    private ClassLoader compile(String source, String fileName, List<Diagnostic<? extends JavaFileObject>> errors)
+            throws IOException {
+        File sourceFile = new File(workDir, "src/" + fileName);
+        File classesDir = new File(workDir, "classes");
+        File generatedDir = new File(workDir, "generated");
+        FileUtils.writeStringToFile(sourceFile, source, "UTF-8");
+        classesDir.mkdirs();
+        generatedDir.mkdirs();
+
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<JavaFileObject>();
+        StandardJavaFileManager fileManager = compiler.getStandardFileManager(diagnostics, null, null);
+        try {
+            String classPath = System.getProperty("surefire.test.class.path", System.getProperty("java.class.path"));
+            JavaCompiler.CompilationTask task = compiler.getTask(
+                    null, fileManager, diagnostics,
+                    Arrays.asList("-classpath", classPath,
+                                  "-d", classesDir.getAbsolutePath(),
+                                  "-s", generatedDir.getAbsolutePath()),
+                    null, fileManager.getJavaFileObjects(sourceFile));
+            task.setProcessors(Arrays.asList(new EventHandlerProcessor()));
+            boolean success = task.call();
+            for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics()) {
+                if (diagnostic.getKind() == Diagnostic.Kind.ERROR) {
+                    errors.add(diagnostic);
+                }
+            }
+            if (!success) {
+                return null;
+            }
+        } finally {
+            fileManager.close();
+        }
+        return new URLClassLoader(new URL[]{classesDir.toURI().toURL()}, getClass().getClassLoader());
+    }
+}